@@ -0,0 +1,139 @@
+package avelios.hospital.bench;
+
+import avelios.hospital.HospitalApplication;
+import avelios.hospital.grpc.*;
+
+import io.grpc.Channel;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A full application context serving gRPC over the in-process transport, backed by its own
+ * in-memory H2 database and seeded through the bulk ingest RPCs with {@code visits} visits
+ * spread over the last ten years ({@code visits / 10} patients, {@code visits / 10_000}
+ * hospitals, at least 100 and 10).
+ */
+public final class BenchServer implements AutoCloseable {
+
+    public final ManagedChannel channel;
+    public final HospitalServiceGrpc.HospitalServiceBlockingStub hospitals;
+    public final PatientServiceGrpc.PatientServiceBlockingStub patients;
+    public final List<String> hospitalIds;
+    public final List<String> patientIds;
+
+    private final ConfigurableApplicationContext ctx;
+
+    private BenchServer(ConfigurableApplicationContext ctx, ManagedChannel channel,
+    List<String> hospitalIds, List<String> patientIds) {
+        this.ctx = ctx;
+        this.channel = channel;
+        this.hospitals = HospitalServiceGrpc.newBlockingStub(channel);
+        this.patients = PatientServiceGrpc.newBlockingStub(channel);
+        this.hospitalIds = hospitalIds;
+        this.patientIds = patientIds;
+    }
+
+    /**
+     * Boots and seeds a server; {@code properties} are extra {@code --key=value} arguments.
+     * Unless they set {@code spring.datasource.url}, the database is a private in-memory H2.
+     */
+    public static BenchServer start(int visits, String... properties) throws Exception {
+        var name = "bench-" + System.nanoTime();
+        var ownUrl = Stream.of(properties).anyMatch(p -> p.startsWith("--spring.datasource.url="));
+        var args = Stream.concat(Stream.of(
+        "--grpc.server.in-process-name=" + name,
+        ownUrl ? "" : "--spring.datasource.url=jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1"),
+        Stream.of(properties)).filter(a -> !a.isEmpty()).toArray(String[]::new);
+        var ctx = new SpringApplicationBuilder(HospitalApplication.class).profiles("bench").run(args);
+        var channel = InProcessChannelBuilder.forName(name)
+        .maxInboundMessageSize(Integer.MAX_VALUE)
+        .build();
+
+        var seed = seed(channel, visits);
+        return new BenchServer(ctx, channel, seed.hospitalIds(), seed.patientIds());
+    }
+
+    /** Ids of the hospitals and patients a seeding created. */
+    public record Seed(List<String> hospitalIds, List<String> patientIds) {}
+
+    /**
+     * Seeds the server behind {@code channel}, in-process or remote, with {@code visits} visits
+     * and the matching numbers of hospitals and patients (see the class comment).
+     */
+    public static Seed seed(Channel channel, int visits) throws Exception {
+        var hospitalStub = HospitalServiceGrpc.newStub(channel);
+        var patientStub = PatientServiceGrpc.newStub(channel);
+        var rnd = new SplittableRandom(42);
+
+        var hospitalIds = ids(bulk(hospitalStub::bulkCreateHospitals,
+        IntStream.range(0, Math.max(10, visits / 10_000))
+        .mapToObj(i -> CreateHospitalRequest.newBuilder().setName("Hospital " + i).build())));
+        var patientIds = ids(bulk(patientStub::bulkCreatePatients,
+        IntStream.range(0, Math.max(100, visits / 10))
+        .mapToObj(i -> CreatePatientRequest.newBuilder()
+        .setName("Patient " + i)
+        .setSex(Sex.forNumber(1 + rnd.nextInt(3)))
+        .setDob(date(java.time.LocalDate.of(1930, 1, 1).plusDays(rnd.nextInt(90 * 365))))
+        .build())));
+        var today = java.time.LocalDate.now();
+        bulk(hospitalStub::bulkRegisterVisits, IntStream.range(0, visits)
+        .mapToObj(i -> RegisterPatientRequest.newBuilder()
+        .setPatientId(patientIds.get(rnd.nextInt(patientIds.size())))
+        .setHospitalId(hospitalIds.get(rnd.nextInt(hospitalIds.size())))
+        .setVisitDate(date(today.minusDays(rnd.nextInt(3650))))
+        .build()));
+
+        return new Seed(hospitalIds, patientIds);
+    }
+
+    public static avelios.hospital.grpc.LocalDate date(java.time.LocalDate d) {
+        return avelios.hospital.grpc.LocalDate.newBuilder()
+        .setYear(d.getYear()).setMonth(d.getMonthValue()).setDay(d.getDayOfMonth()).build();
+    }
+
+    private static List<String> ids(List<BulkIngestReply> replies) {
+        var ids = new ArrayList<String>();
+        replies.stream().filter(BulkIngestReply::hasBatch)
+        .forEach(r -> ids.addAll(r.getBatch().getIdsList()));
+        return ids;
+    }
+
+    /** Streams {@code rows} into a bulk RPC, honouring flow control, and waits for the summary. */
+    private static <T> List<BulkIngestReply> bulk(
+    Function<StreamObserver<BulkIngestReply>, StreamObserver<T>> call, Stream<T> rows) throws Exception {
+        var replies = new ArrayList<BulkIngestReply>();
+        var done = new CompletableFuture<List<BulkIngestReply>>();
+        var requests = (ClientCallStreamObserver<T>) call.apply(new StreamObserver<>() {
+            @Override public void onNext(BulkIngestReply r) { replies.add(r); }
+            @Override public void onError(Throwable t) { done.completeExceptionally(t); }
+            @Override public void onCompleted() { done.complete(replies); }
+        });
+        for (var it = rows.iterator(); it.hasNext(); ) {
+            while (!requests.isReady()) {
+                Thread.sleep(1);
+            }
+            requests.onNext(it.next());
+        }
+        requests.onCompleted();
+        return done.get(30, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void close() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        ctx.close();
+    }
+}
@@ -0,0 +1,65 @@
+package avelios.hospital.bench;
+
+import avelios.hospital.grpc.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registrations/sec with one commit per registration versus group commit, from 64
+ * concurrent callers. The file-backed database is the interesting case: there every commit
+ * pays for a log write, which group commit amortizes over the batch.
+ *
+ * {@code ./gradlew jmh -Pjmh='GroupCommitBenchmark'}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Threads(64)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class GroupCommitBenchmark {
+
+    @Param({"false", "true"})
+    public boolean groupCommit;
+
+    @Param({"mem", "file"})
+    public String db;
+
+    private BenchServer server;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        dir = Files.createTempDirectory("group-commit-bench");
+        var url = db.equals("file")
+        ? "jdbc:h2:file:" + dir.resolve("db")
+        : "jdbc:h2:mem:group-commit-" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        server = BenchServer.start(1000,
+        "--spring.datasource.url=" + url,
+        "--hospital.register.group-commit.enabled=" + groupCommit);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        server.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final SplittableRandom rnd = new SplittableRandom();
+    }
+
+    @Benchmark
+    public RegisterAck registerPatient(Caller c) {
+        return server.hospitals.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(server.patientIds.get(c.rnd.nextInt(server.patientIds.size())))
+        .setHospitalId(server.hospitalIds.get(c.rnd.nextInt(server.hospitalIds.size())))
+        .build());
+    }
+}
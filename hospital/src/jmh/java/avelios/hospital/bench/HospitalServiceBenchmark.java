@@ -0,0 +1,103 @@
+package avelios.hospital.bench;
+
+import avelios.hospital.grpc.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot paths of both gRPC services over the in-process transport.
+ *
+ * Run with {@code ./gradlew jmh -Pjmh='HospitalServiceBenchmark -p visits=100000'}; the GC
+ * profiler adds the allocation rate per operation. {@code createPatient} and
+ * {@code registerPatient} grow the data set while they run, which is negligible next to
+ * the seeded size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class HospitalServiceBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int visits;
+
+    private BenchServer server;
+
+    /** Prebuilt requests for random seeded entities, so the benchmarks only measure the call. */
+    @State(Scope.Thread)
+    public static class Requests {
+        final SplittableRandom rnd = new SplittableRandom();
+        ListPatientsOfHospitalRequest[] hospitals;
+        PatientId[] patientIds;
+
+        @Setup(Level.Trial)
+        public void build(HospitalServiceBenchmark b) {
+            hospitals = b.server.hospitalIds.stream()
+            .map(id -> ListPatientsOfHospitalRequest.newBuilder().setHospitalId(id).build())
+            .toArray(ListPatientsOfHospitalRequest[]::new);
+            patientIds = b.server.patientIds.stream()
+            .map(id -> PatientId.newBuilder().setId(id).build()).toArray(PatientId[]::new);
+        }
+
+        ListPatientsOfHospitalRequest hospital() {
+            return hospitals[rnd.nextInt(hospitals.length)];
+        }
+
+        PatientId patient() {
+            return patientIds[rnd.nextInt(patientIds.length)];
+        }
+
+        RegisterPatientRequest register() {
+            return RegisterPatientRequest.newBuilder()
+            .setPatientId(patient().getId())
+            .setHospitalId(hospital().getHospitalId())
+            .build();
+        }
+    }
+
+    private static final CreatePatientRequest NEW_PATIENT = CreatePatientRequest.newBuilder()
+    .setName("Benchmark Patient")
+    .setSex(Sex.FEMALE)
+    .setDob(avelios.hospital.grpc.LocalDate.newBuilder().setYear(1975).setMonth(4).setDay(12))
+    .build();
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        server = BenchServer.start(visits);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        server.close();
+    }
+
+    @Benchmark
+    public PatientId createPatient() {
+        return server.patients.createPatient(NEW_PATIENT);
+    }
+
+    @Benchmark
+    public RegisterAck registerPatient(Requests r) {
+        return server.hospitals.registerPatient(r.register());
+    }
+
+    @Benchmark
+    public PatientList listPatients() {
+        return server.patients.listPatients(ListPatientsRequest.getDefaultInstance());
+    }
+
+    @Benchmark
+    public PatientList listPatientsOfHospital(Requests r) {
+        return server.hospitals.listPatientsOfHospital(r.hospital());
+    }
+
+    @Benchmark
+    public HospitalList listHospitalsOfPatient(Requests r) {
+        return server.patients.listHospitalsOfPatient(r.patient());
+    }
+}
@@ -0,0 +1,87 @@
+package avelios.hospital.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * v1 (UUID strings) versus v2 (fixed64 halves) for a {@code PatientList} of {@code rows}
+ * patients: building and serializing the reply as the server does, and parsing it and
+ * recovering every {@link UUID} as a client would. Serialized sizes are printed at setup;
+ * the GC profiler adds the bytes allocated per operation.
+ *
+ * {@code ./gradlew jmh -Pjmh='IdEncodingBenchmark'}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class IdEncodingBenchmark {
+
+    @Param({"100000"})
+    public int rows;
+
+    private UUID[] ids;
+    private String[] names;
+    private byte[] v1;
+    private byte[] v2;
+
+    @Setup(Level.Trial)
+    public void data() {
+        var rnd = new SplittableRandom(42);
+        ids = new UUID[rows];
+        names = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            ids[i] = new UUID(rnd.nextLong(), rnd.nextLong());
+            names[i] = "Patient " + i;
+        }
+        v1 = encodeV1();
+        v2 = encodeV2();
+        System.out.printf("%n  %d rows: v1 %d bytes, v2 %d bytes (%.0f%%)%n",
+        rows, v1.length, v2.length, 100.0 * v2.length / v1.length);
+    }
+
+    @Benchmark
+    public byte[] encodeV1() {
+        var list = avelios.hospital.grpc.PatientList.newBuilder();
+        for (int i = 0; i < rows; i++) {
+            list.addPatients(avelios.hospital.grpc.PatientTuple.newBuilder()
+            .setId(ids[i].toString())
+            .setName(names[i]));
+        }
+        return list.build().toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeV2() {
+        var list = avelios.hospital.grpc.v2.PatientList.newBuilder();
+        for (int i = 0; i < rows; i++) {
+            list.addPatients(avelios.hospital.grpc.v2.PatientTuple.newBuilder()
+            .setIdHi(ids[i].getMostSignificantBits())
+            .setIdLo(ids[i].getLeastSignificantBits())
+            .setName(names[i]));
+        }
+        return list.build().toByteArray();
+    }
+
+    @Benchmark
+    public void decodeV1(Blackhole bh) throws Exception {
+        for (var p : avelios.hospital.grpc.PatientList.parseFrom(v1).getPatientsList()) {
+            bh.consume(UUID.fromString(p.getId()));
+            bh.consume(p.getName());
+        }
+    }
+
+    @Benchmark
+    public void decodeV2(Blackhole bh) throws Exception {
+        for (var p : avelios.hospital.grpc.v2.PatientList.parseFrom(v2).getPatientsList()) {
+            bh.consume(new UUID(p.getIdHi(), p.getIdLo()));
+            bh.consume(p.getName());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package avelios.hospital.bench;
+
+import avelios.hospital.grpc.*;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.sun.management.OperatingSystemMXBean;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 1000 registrations per invocation from one client: {@code unary} waits for each
+ * RegisterPatient reply before the next call, {@code unaryPipelined} keeps up to 128 calls in
+ * flight, {@code stream} sends them over one RegisterStream with the same window. The score is
+ * time per registration; after each iteration the latency of a registration (send to ack) and
+ * the process CPU time per registration are printed. Client and server share the JVM, so the
+ * CPU time covers both ends.
+ *
+ * {@code ./gradlew jmh -Pjmh='RegisterStreamBenchmark'}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@OperationsPerInvocation(RegisterStreamBenchmark.BATCH)
+public class RegisterStreamBenchmark {
+
+    static final int BATCH = 1000;
+    static final int WINDOW = 128;
+
+    @Param({"false", "true"})
+    public boolean groupCommit;
+
+    private BenchServer server;
+    private HospitalServiceGrpc.HospitalServiceFutureStub futures;
+    private HospitalServiceGrpc.HospitalServiceStub streams;
+    private OperatingSystemMXBean os;
+    private RegisterPatientRequest[] batch;
+    private RegisterStreamRequest[] streamBatch;
+
+    // nanoseconds from send to ack, per registration of the current invocation and iteration
+    private final long[] latency = new long[BATCH];
+    private long[] iterationLatency;
+    private int recorded;
+    private long cpuAtStart;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        server = BenchServer.start(1000,
+        "--hospital.register.group-commit.enabled=" + groupCommit,
+        "--hospital.register.stream-window=" + WINDOW);
+        futures = HospitalServiceGrpc.newFutureStub(server.channel);
+        streams = HospitalServiceGrpc.newStub(server.channel);
+        os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        var rnd = new SplittableRandom(7);
+        batch = new RegisterPatientRequest[BATCH];
+        streamBatch = new RegisterStreamRequest[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            batch[i] = RegisterPatientRequest.newBuilder()
+            .setPatientId(server.patientIds.get(rnd.nextInt(server.patientIds.size())))
+            .setHospitalId(server.hospitalIds.get(rnd.nextInt(server.hospitalIds.size())))
+            .build();
+            streamBatch[i] = RegisterStreamRequest.newBuilder().setSeq(i).setRequest(batch[i]).build();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        server.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        iterationLatency = new long[BATCH * 64];
+        recorded = 0;
+        cpuAtStart = os.getProcessCpuTime();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        long cpu = os.getProcessCpuTime() - cpuAtStart;
+        var sorted = Arrays.copyOf(iterationLatency, recorded);
+        Arrays.sort(sorted);
+        System.out.printf("%n%d registrations: latency p50 %d us, p99 %d us; cpu %.1f us per registration%n",
+        recorded, sorted[recorded / 2] / 1000, sorted[(int) (recorded * 0.99)] / 1000, cpu / 1000.0 / recorded);
+    }
+
+    private void recordBatch(AtomicReference<Throwable> failure) {
+        if (failure.get() != null) {
+            throw new IllegalStateException("registration failed", failure.get());
+        }
+        if (recorded + BATCH > iterationLatency.length) {
+            iterationLatency = Arrays.copyOf(iterationLatency, iterationLatency.length * 2);
+        }
+        System.arraycopy(latency, 0, iterationLatency, recorded, BATCH);
+        recorded += BATCH;
+    }
+
+    @Benchmark
+    public void unary() {
+        for (int i = 0; i < BATCH; i++) {
+            long sent = System.nanoTime();
+            server.hospitals.registerPatient(batch[i]);
+            latency[i] = System.nanoTime() - sent;
+        }
+        recordBatch(new AtomicReference<>());
+    }
+
+    @Benchmark
+    public void unaryPipelined() throws InterruptedException {
+        var window = new Semaphore(WINDOW);
+        var failure = new AtomicReference<Throwable>();
+        for (int i = 0; i < BATCH; i++) {
+            window.acquire();
+            int seq = i;
+            long sent = System.nanoTime();
+            Futures.addCallback(futures.registerPatient(batch[i]), new FutureCallback<RegisterAck>() {
+                @Override
+                public void onSuccess(RegisterAck ack) {
+                    latency[seq] = System.nanoTime() - sent;
+                    window.release();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failure.set(t);
+                    window.release();
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        window.acquire(WINDOW);
+        recordBatch(failure);
+    }
+
+    @Benchmark
+    public void stream() throws InterruptedException {
+        var window = new Semaphore(WINDOW);
+        var failure = new AtomicReference<Throwable>();
+        var sent = new long[BATCH];
+        var done = new CountDownLatch(1);
+        var requests = streams.registerStream(new StreamObserver<>() {
+            @Override
+            public void onNext(RegisterStreamAck ack) {
+                int seq = (int) ack.getSeq();
+                latency[seq] = System.nanoTime() - sent[seq];
+                if (ack.hasError()) {
+                    failure.set(new IllegalStateException(ack.getError().getCode() + ": " + ack.getError().getMessage()));
+                }
+                window.release();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                failure.set(t);
+                window.release(BATCH);
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        });
+        for (int i = 0; i < BATCH && failure.get() == null; i++) {
+            window.acquire();
+            sent[i] = System.nanoTime();
+            requests.onNext(streamBatch[i]);
+        }
+        requests.onCompleted();
+        done.await();
+        recordBatch(failure);
+    }
+}
@@ -0,0 +1,51 @@
+package avelios.hospital.bench;
+
+import avelios.hospital.search.TrigramIndex;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Patient name search over {@code names} random names: rare and common substrings, name and
+ * word prefixes, and a query that matches nothing. Index size is printed at setup.
+ *
+ * {@code ./gradlew jmh -Pjmh='TrigramSearchBenchmark -p names=3000000'}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class TrigramSearchBenchmark {
+
+    private static final String[] FIRST = {"Anna", "Ben", "Clara", "David", "Elif", "Farid", "Greta", "Hugo",
+        "Ines", "Jonas", "Kira", "Luca", "Mia", "Noah", "Olga", "Paul", "Rosa", "Sven", "Tara", "Yusuf"};
+
+    @Param({"500000"})
+    public int names;
+
+    @Param({"clara", "ben", "an", "k", "xq9", "rosa a", "4kz"})
+    public String query;
+
+    private TrigramIndex index;
+
+    @Setup(Level.Trial)
+    public void data() {
+        var rnd = new SplittableRandom(11);
+        index = new TrigramIndex();
+        for (int i = 0; i < names; i++) {
+            index.put(UUID.randomUUID(), FIRST[rnd.nextInt(FIRST.length)] + " " + Long.toString(rnd.nextLong(1L << 40), 36));
+        }
+        System.out.printf("%n  %d names, %d grams%n", index.size(), index.gramCount());
+    }
+
+    @Benchmark
+    public List<String> search() {
+        return index.search(query, 20, (id, name) -> name);
+    }
+}
@@ -0,0 +1,95 @@
+package avelios.hospital.bench;
+
+import avelios.hospital.grpc.*;
+
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registrations/sec while {@code subscribers} unfiltered {@code WatchVisits} streams are open,
+ * and the events/sec delivered to them (printed after every iteration, together with the gaps
+ * the slow-consumer policy had to insert). With 0 subscribers it is the baseline cost of
+ * publishing into the ring.
+ *
+ * {@code ./gradlew jmh -Pjmh='WatchVisitsBenchmark'}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Threads(16)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class WatchVisitsBenchmark {
+
+    @Param({"0", "1000"})
+    public int subscribers;
+
+    private BenchServer server;
+    private final List<Context.CancellableContext> watches = new ArrayList<>();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder gaps = new LongAdder();
+    private long iterationStart;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        server = BenchServer.start(1000);
+        var stub = HospitalServiceGrpc.newStub(server.channel);
+        for (int i = 0; i < subscribers; i++) {
+            var ctx = Context.current().withCancellation();
+            ctx.run(() -> stub.watchVisits(WatchVisitsRequest.getDefaultInstance(), new StreamObserver<>() {
+                @Override
+                public void onNext(VisitEvent e) {
+                    if (e.getKind() == VisitEvent.Kind.GAP) {
+                        gaps.increment();
+                    } else {
+                        delivered.increment();
+                    }
+                }
+                @Override public void onError(Throwable t) {}
+                @Override public void onCompleted() {}
+            }));
+            watches.add(ctx);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounters() {
+        delivered.reset();
+        gaps.reset();
+        iterationStart = System.nanoTime();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        double secs = (System.nanoTime() - iterationStart) / 1e9;
+        System.out.printf("%n  delivered %.0f events/sec to %d subscribers, %d gaps%n",
+        delivered.sum() / secs, subscribers, gaps.sum());
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        watches.forEach(ctx -> ctx.cancel(null));
+        server.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final SplittableRandom rnd = new SplittableRandom();
+    }
+
+    @Benchmark
+    public RegisterAck registerPatient(Caller c) {
+        return server.hospitals.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(server.patientIds.get(c.rnd.nextInt(server.patientIds.size())))
+        .setHospitalId(server.hospitalIds.get(c.rnd.nextInt(server.hospitalIds.size())))
+        .build());
+    }
+}
@@ -0,0 +1,115 @@
+package avelios.hospital.loadgen;
+
+import io.grpc.Status;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-RPC HDR histograms (microseconds, 3 significant digits) of the measured calls.
+ *
+ * {@code latency} runs from the time a call was scheduled to start to its reply. When the
+ * server (or the client) falls behind, calls start late and that delay is counted, so the
+ * percentiles are free of coordinated omission; {@code serviceTime} runs from the actual start
+ * and is what a closed-loop benchmark would report. Failed calls are counted by status code and
+ * not timed.
+ */
+final class LatencyReport {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    private static final String[] PERCENTILE_KEYS = {"p50", "p90", "p99", "p99.9", "p99.99"};
+
+    private static final class Rpc {
+        final Histogram latency = new ConcurrentHistogram(3);
+        final Histogram serviceTime = new ConcurrentHistogram(3);
+        final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    }
+
+    private final Map<String, Rpc> rpcs = new ConcurrentHashMap<>();
+    private final Rpc all = new Rpc();
+
+    private Rpc rpc(String name) {
+        return rpcs.computeIfAbsent(name, k -> new Rpc());
+    }
+
+    private static long micros(long nanos) {
+        return Math.max(1, nanos / 1000);
+    }
+
+    void succeeded(String rpc, long latencyNanos, long serviceNanos) {
+        for (var r : new Rpc[] {rpc(rpc), all}) {
+            r.latency.recordValue(micros(latencyNanos));
+            r.serviceTime.recordValue(micros(serviceNanos));
+        }
+    }
+
+    void failed(String rpc, Status.Code code) {
+        failed(rpc, code.name());
+    }
+
+    /** A call that failed with {@code reason}, e.g. a status code or the client's own overflow. */
+    void failed(String rpc, String reason) {
+        for (var r : new Rpc[] {rpc(rpc), all}) {
+            r.errors.computeIfAbsent(reason, k -> new LongAdder()).increment();
+        }
+    }
+
+    long succeeded() {
+        return all.latency.getTotalCount();
+    }
+
+    long failed() {
+        return all.errors.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /** Summary per RPC and for all of them, in a stable key order so reports diff cleanly. */
+    Map<String, Object> toMap() {
+        var byRpc = new TreeMap<String, Object>();
+        rpcs.forEach((name, r) -> byRpc.put(name, summary(r)));
+        var map = new LinkedHashMap<String, Object>();
+        map.put("all", summary(all));
+        map.put("rpcs", byRpc);
+        return map;
+    }
+
+    private static Map<String, Object> summary(Rpc r) {
+        var map = new LinkedHashMap<String, Object>();
+        map.put("count", r.latency.getTotalCount());
+        var errors = new TreeMap<String, Long>();
+        r.errors.forEach((code, n) -> errors.put(code, n.sum()));
+        map.put("errors", errors);
+        map.put("latencyMicros", percentiles(r.latency));
+        map.put("serviceTimeMicros", percentiles(r.serviceTime));
+        map.put("latencyHistogram", encode(r.latency));
+        return map;
+    }
+
+    private static Map<String, Object> percentiles(Histogram h) {
+        var map = new LinkedHashMap<String, Object>();
+        if (h.getTotalCount() == 0) {
+            return map;
+        }
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            map.put(PERCENTILE_KEYS[i], h.getValueAtPercentile(PERCENTILES[i]));
+        }
+        map.put("max", h.getMaxValue());
+        map.put("mean", Math.round(h.getMean()));
+        return map;
+    }
+
+    // compressed HdrHistogram encoding, base64: decode with Histogram.decodeFromCompressedByteBuffer
+    // to merge runs or plot the full distribution
+    private static String encode(Histogram h) {
+        var buffer = ByteBuffer.allocate(h.getNeededByteBufferCapacity());
+        int length = h.encodeIntoCompressedByteBuffer(buffer);
+        return Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length));
+    }
+}
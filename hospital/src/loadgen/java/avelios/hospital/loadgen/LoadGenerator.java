@@ -0,0 +1,291 @@
+package avelios.hospital.loadgen;
+
+import avelios.hospital.bench.BenchServer;
+import avelios.hospital.grpc.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Channel;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import org.springframework.boot.convert.DurationStyle;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator: calls start at a fixed arrival rate, constant or Poisson, whether or
+ * not earlier calls have returned, which is how independent clients behave. The traffic is the
+ * {@link Workload} mix against a server seeded like the benchmarks' {@link BenchServer}, and the
+ * result is a {@link LatencyReport} written as JSON, meant to be diffed between releases.
+ *
+ * <pre>
+ * ./gradlew loadgen -Ploadgen='--rate 2000 --duration 60s --mix register=70,relations=20,crud=10'
+ * </pre>
+ *
+ * Options (defaults in brackets):
+ * <ul>
+ *   <li>{@code --target} {@code inprocess} boots a server in this JVM, {@code host:port} calls a
+ *       running one over plaintext [inprocess]</li>
+ *   <li>{@code --visits} visits to seed, with visits/10 patients and visits/10 000 hospitals;
+ *       0 uses the hospitals and patients a remote target already has [100000 in-process, 0 for a
+ *       remote target, which is seeded only when asked]</li>
+ *   <li>{@code --rate} calls per second [1000]; {@code --arrivals} poisson or constant [poisson]</li>
+ *   <li>{@code --duration} measured time [60s]; {@code --warmup} unmeasured time before it [10s]</li>
+ *   <li>{@code --mix} weights of register, relations, crud and lists [register=70,relations=20,crud=10]</li>
+ *   <li>{@code --deadline} per call [5s]; {@code --max-in-flight} calls beyond this fail as
+ *       {@code CLIENT_OVERFLOW} instead of piling up [10000]</li>
+ *   <li>{@code --property key=value} server property, repeatable, in-process only</li>
+ *   <li>{@code --out} report file [build/reports/loadgen/report.json]</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+
+    private static final Map<String, String> DEFAULTS = Map.of(
+    "target", "inprocess",
+    "visits", "",
+    "rate", "1000",
+    "arrivals", "poisson",
+    "duration", "60s",
+    "warmup", "10s",
+    "mix", "register=70,relations=20,crud=10",
+    "deadline", "5s",
+    "max-in-flight", "10000",
+    "out", "build/reports/loadgen/report.json");
+
+    private static final int DEFAULT_INPROCESS_VISITS = 100_000;
+
+    private LoadGenerator() {}
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<>(DEFAULTS);
+        var properties = new ArrayList<String>();
+        for (int i = 0; i < args.length; i += 2) {
+            var key = args[i].startsWith("--") ? args[i].substring(2) : "";
+            if (i + 1 >= args.length || !(DEFAULTS.containsKey(key) || key.equals("property"))) {
+                throw new IllegalArgumentException("expected --option value, got " + args[i] + "; options: "
+                + DEFAULTS.keySet() + " and --property");
+            }
+            if (key.equals("property")) {
+                properties.add("--" + args[i + 1]);
+            } else {
+                options.put(key, args[i + 1]);
+            }
+        }
+
+        var target = options.get("target");
+        int visits = options.get("visits").isEmpty()
+        ? (target.equals("inprocess") ? DEFAULT_INPROCESS_VISITS : 0)
+        : Integer.parseInt(options.get("visits"));
+        BenchServer server = null;
+        ManagedChannel remote = null;
+        try {
+            Channel channel;
+            BenchServer.Seed seed;
+            if (target.equals("inprocess")) {
+                System.out.printf("booting and seeding an in-process server with %d visits%n", visits);
+                server = BenchServer.start(visits, properties.toArray(String[]::new));
+                channel = server.channel;
+                seed = new BenchServer.Seed(server.hospitalIds, server.patientIds);
+            } else {
+                if (!properties.isEmpty()) {
+                    throw new IllegalArgumentException("--property only applies to --target inprocess");
+                }
+                remote = ManagedChannelBuilder.forTarget(target).usePlaintext().maxInboundMessageSize(Integer.MAX_VALUE).build();
+                channel = remote;
+                System.out.printf("%s %s%n", visits > 0 ? "seeding " + visits + " visits into" : "reading ids from", target);
+                seed = visits > 0 ? BenchServer.seed(channel, visits) : existing(channel);
+            }
+
+            var deadline = DurationStyle.detectAndParse(options.get("deadline"));
+            var workload = new Workload(channel, seed.hospitalIds(), seed.patientIds(),
+            Workload.parseMix(options.get("mix")), deadline.toNanos());
+            var run = new Run(workload, Double.parseDouble(options.get("rate")), options.get("arrivals"),
+            DurationStyle.detectAndParse(options.get("warmup")), DurationStyle.detectAndParse(options.get("duration")),
+            Integer.parseInt(options.get("max-in-flight")), deadline);
+            var report = run.execute();
+
+            var config = new LinkedHashMap<String, Object>();
+            config.put("target", target);
+            config.put("arrivals", options.get("arrivals"));
+            config.put("ratePerSecond", run.rate);
+            config.put("warmupSeconds", run.warmup.toMillis() / 1000.0);
+            config.put("durationSeconds", run.duration.toMillis() / 1000.0);
+            config.put("deadlineMillis", run.deadline.toMillis());
+            config.put("maxInFlight", run.maxInFlight);
+            var mix = new LinkedHashMap<String, Integer>();
+            workload.mix().forEach((kind, weight) -> mix.put(kind.name().toLowerCase(Locale.ROOT), weight));
+            config.put("mix", mix);
+            config.put("seededVisits", visits);
+            config.put("hospitals", seed.hospitalIds().size());
+            config.put("patients", seed.patientIds().size());
+            config.put("serverProperties", properties);
+
+            var results = new LinkedHashMap<String, Object>();
+            results.put("scheduled", run.scheduled);
+            results.put("succeeded", report.succeeded());
+            results.put("failed", report.failed());
+            results.put("goodputPerSecond", Math.round(report.succeeded() / (run.duration.toMillis() / 1000.0)));
+            // how late the generator itself started calls; if large, it was the bottleneck
+            results.put("maxScheduleLagMicros", run.maxLagNanos / 1000);
+            results.putAll(report.toMap());
+
+            var json = new LinkedHashMap<String, Object>();
+            json.put("config", config);
+            json.put("results", results);
+            var out = Path.of(options.get("out"));
+            if (out.getParent() != null) {
+                Files.createDirectories(out.getParent());
+            }
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(out.toFile(), json);
+            print(run, report);
+            System.out.println("report: " + out.toAbsolutePath());
+        } finally {
+            if (remote != null) {
+                remote.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            }
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    // ids already on a remote server, read page by page
+    private static BenchServer.Seed existing(Channel channel) {
+        var hospitalIds = new ArrayList<String>();
+        HospitalServiceGrpc.newBlockingStub(channel).streamHospitals(StreamHospitalsRequest.getDefaultInstance())
+        .forEachRemaining(c -> c.getHospitalsList().forEach(h -> hospitalIds.add(h.getId())));
+        var patientIds = new ArrayList<String>();
+        PatientServiceGrpc.newBlockingStub(channel).streamPatients(StreamPatientsRequest.getDefaultInstance())
+        .forEachRemaining(c -> c.getPatientsList().forEach(p -> patientIds.add(p.getId())));
+        return new BenchServer.Seed(hospitalIds, patientIds);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void print(Run run, LatencyReport report) {
+        System.out.printf("scheduled %d, succeeded %d, failed %d, max schedule lag %d us%n",
+        run.scheduled, report.succeeded(), report.failed(), run.maxLagNanos / 1000);
+        var rpcs = (Map<String, Map<String, Object>>) report.toMap().get("rpcs");
+        System.out.printf("%-24s %9s %9s %9s %9s %9s %9s%n", "rpc (latency, us)", "count", "p50", "p99", "p99.9", "max", "errors");
+        rpcs.forEach((name, s) -> {
+            var l = (Map<String, Object>) s.get("latencyMicros");
+            System.out.printf("%-24s %9s %9s %9s %9s %9s %9s%n", name, s.get("count"),
+            l.getOrDefault("p50", "-"), l.getOrDefault("p99", "-"), l.getOrDefault("p99.9", "-"),
+            l.getOrDefault("max", "-"), s.get("errors"));
+        });
+    }
+
+    /** One measured run: warm-up, then {@code duration} of scheduled calls, then the stragglers. */
+    static final class Run {
+
+        final Workload workload;
+        final double rate;
+        final boolean poisson;
+        final Duration warmup;
+        final Duration duration;
+        final int maxInFlight;
+        final Duration deadline;
+        final Semaphore inFlight;
+        final LatencyReport report = new LatencyReport();
+        long scheduled;
+        long maxLagNanos;
+
+        Run(Workload workload, double rate, String arrivals, Duration warmup, Duration duration, int maxInFlight,
+        Duration deadline) {
+            if (rate <= 0) {
+                throw new IllegalArgumentException("rate must be positive");
+            }
+            if (!arrivals.equals("poisson") && !arrivals.equals("constant")) {
+                throw new IllegalArgumentException("arrivals must be poisson or constant");
+            }
+            this.workload = workload;
+            this.rate = rate;
+            this.poisson = arrivals.equals("poisson");
+            this.warmup = warmup;
+            this.duration = duration;
+            this.maxInFlight = maxInFlight;
+            this.deadline = deadline;
+            this.inFlight = new Semaphore(maxInFlight);
+        }
+
+        private long interval(SplittableRandom rnd) {
+            double mean = 1e9 / rate;
+            return (long) (poisson ? -Math.log(1 - rnd.nextDouble()) * mean : mean);
+        }
+
+        LatencyReport execute() throws InterruptedException {
+            var rnd = new SplittableRandom(7);
+            long start = System.nanoTime();
+            long measureFrom = start + warmup.toNanos();
+            long end = measureFrom + duration.toNanos();
+            System.out.printf("offering %.0f calls/s (%s) for %s after %s warm-up%n",
+            rate, poisson ? "poisson" : "constant", duration, warmup);
+            for (long due = start; due < end; due += interval(rnd)) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                boolean measured = due >= measureFrom;
+                if (measured) {
+                    scheduled++;
+                    maxLagNanos = Math.max(maxLagNanos, System.nanoTime() - due);
+                }
+                if (!inFlight.tryAcquire()) {
+                    if (measured) {
+                        report.failed("(not sent)", "CLIENT_OVERFLOW");
+                    }
+                    continue;
+                }
+                issue(rnd, due, measured);
+            }
+            // let the last calls finish or hit their deadline
+            if (inFlight.tryAcquire(maxInFlight, deadline.toMillis() + 5_000, TimeUnit.MILLISECONDS)) {
+                inFlight.release(maxInFlight);
+            }
+            return report;
+        }
+
+        private void issue(SplittableRandom rnd, long due, boolean measured) {
+            long started = System.nanoTime();
+            Workload.Call call;
+            try {
+                call = workload.start(rnd);
+            } catch (RuntimeException e) {
+                inFlight.release();
+                throw e;
+            }
+            Futures.addCallback(call.reply(), new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object reply) {
+                    long now = System.nanoTime();
+                    inFlight.release();
+                    if (measured) {
+                        report.succeeded(call.rpc(), now - due, now - started);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    inFlight.release();
+                    if (measured) {
+                        report.failed(call.rpc(), Status.fromThrowable(t).getCode());
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package avelios.hospital.loadgen;
+
+import avelios.hospital.grpc.*;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Channel;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The traffic mix: each call is drawn from the weighted {@link Kind}s and, within a kind, spread
+ * evenly over its RPCs, against random seeded hospitals and patients.
+ */
+final class Workload {
+
+    enum Kind {
+        /** RegisterPatient */
+        REGISTER,
+        /** ListPatientsOfHospital, ListHospitalsOfPatient */
+        RELATIONS,
+        /** GetPatient, UpdatePatient, CreatePatient, BatchGetPatients */
+        CRUD,
+        /** ListHospitals, CountDistinctPatients */
+        LISTS
+    }
+
+    /** A started call: the RPC it is and its pending reply. */
+    record Call(String rpc, ListenableFuture<?> reply) {}
+
+    private static final int BATCH_GET_SIZE = 20;
+
+    private final HospitalServiceGrpc.HospitalServiceFutureStub hospitals;
+    private final PatientServiceGrpc.PatientServiceFutureStub patients;
+    private final List<String> hospitalIds;
+    private final List<String> patientIds;
+    private final Map<Kind, Integer> mix;
+    private final Kind[] kinds;
+    private final int[] cumulative;
+    private final long deadlineNanos;
+
+    Workload(Channel channel, List<String> hospitalIds, List<String> patientIds, Map<Kind, Integer> mix,
+    long deadlineNanos) {
+        if (hospitalIds.isEmpty() || patientIds.isEmpty()) {
+            throw new IllegalArgumentException("the server has no hospitals or patients to call about");
+        }
+        this.hospitals = HospitalServiceGrpc.newFutureStub(channel);
+        this.patients = PatientServiceGrpc.newFutureStub(channel);
+        this.hospitalIds = hospitalIds;
+        this.patientIds = patientIds;
+        this.mix = mix;
+        this.deadlineNanos = deadlineNanos;
+        this.kinds = mix.keySet().toArray(Kind[]::new);
+        this.cumulative = new int[kinds.length];
+        int sum = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            sum += mix.get(kinds[i]);
+            cumulative[i] = sum;
+        }
+        if (sum == 0) {
+            throw new IllegalArgumentException("the mix has no weight");
+        }
+    }
+
+    /** Parses {@code register=70,relations=20,crud=10}; kinds left out get no traffic. */
+    static Map<Kind, Integer> parseMix(String spec) {
+        var mix = new EnumMap<Kind, Integer>(Kind.class);
+        for (var part : spec.split(",")) {
+            var kv = part.split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("mix entry " + part + " is not kind=weight");
+            }
+            int weight = Integer.parseInt(kv[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("negative weight for " + kv[0]);
+            }
+            mix.put(Kind.valueOf(kv[0].trim().toUpperCase(Locale.ROOT)), weight);
+        }
+        return mix;
+    }
+
+    Map<Kind, Integer> mix() {
+        return mix;
+    }
+
+    private String hospital(SplittableRandom rnd) {
+        return hospitalIds.get(rnd.nextInt(hospitalIds.size()));
+    }
+
+    private String patient(SplittableRandom rnd) {
+        return patientIds.get(rnd.nextInt(patientIds.size()));
+    }
+
+    private static avelios.hospital.grpc.LocalDate dob(SplittableRandom rnd) {
+        return avelios.hospital.grpc.LocalDate.newBuilder()
+        .setYear(1930 + rnd.nextInt(90)).setMonth(1 + rnd.nextInt(12)).setDay(1 + rnd.nextInt(28)).build();
+    }
+
+    Kind pick(SplittableRandom rnd) {
+        int r = rnd.nextInt(cumulative[cumulative.length - 1]);
+        int i = 0;
+        while (r >= cumulative[i]) {
+            i++;
+        }
+        return kinds[i];
+    }
+
+    /** Starts the next call; the deadline counts from now. */
+    Call start(SplittableRandom rnd) {
+        var h = hospitals.withDeadlineAfter(deadlineNanos, TimeUnit.NANOSECONDS);
+        var p = patients.withDeadlineAfter(deadlineNanos, TimeUnit.NANOSECONDS);
+        return switch (pick(rnd)) {
+            case REGISTER -> new Call("RegisterPatient", h.registerPatient(RegisterPatientRequest.newBuilder()
+            .setPatientId(patient(rnd)).setHospitalId(hospital(rnd)).build()));
+            case RELATIONS -> rnd.nextBoolean()
+            ? new Call("ListPatientsOfHospital", h.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder()
+            .setHospitalId(hospital(rnd)).build()))
+            : new Call("ListHospitalsOfPatient", p.listHospitalsOfPatient(PatientId.newBuilder().setId(patient(rnd)).build()));
+            case CRUD -> switch (rnd.nextInt(4)) {
+                case 0 -> new Call("GetPatient", p.getPatient(PatientId.newBuilder().setId(patient(rnd)).build()));
+                case 1 -> new Call("UpdatePatient", p.updatePatient(UpdatePatientRequest.newBuilder()
+                .setId(patient(rnd)).setName("Renamed " + rnd.nextInt(1000))
+                .setSex(Sex.forNumber(1 + rnd.nextInt(3)))
+                .setDob(dob(rnd))
+                .build()));
+                case 2 -> new Call("CreatePatient", p.createPatient(CreatePatientRequest.newBuilder()
+                .setName("Load " + rnd.nextInt(1_000_000)).setSex(Sex.forNumber(1 + rnd.nextInt(3)))
+                .setDob(dob(rnd))
+                .build()));
+                default -> {
+                    var batch = BatchGetPatientsRequest.newBuilder();
+                    for (int i = 0; i < BATCH_GET_SIZE; i++) {
+                        batch.addIds(patient(rnd));
+                    }
+                    yield new Call("BatchGetPatients", p.batchGetPatients(batch.build()));
+                }
+            };
+            case LISTS -> rnd.nextBoolean()
+            ? new Call("ListHospitals", h.listHospitals(ListHospitalsRequest.getDefaultInstance()))
+            : new Call("CountDistinctPatients", h.countDistinctPatients(CountDistinctPatientsRequest.newBuilder()
+            .setHospitalId(hospital(rnd)).build()));
+        };
+    }
+}
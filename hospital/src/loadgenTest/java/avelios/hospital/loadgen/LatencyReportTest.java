@@ -0,0 +1,44 @@
+package avelios.hospital.loadgen;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.grpc.Status;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyReportTest {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static List<String> keys(JsonNode node) {
+        var keys = new ArrayList<String>();
+        node.fieldNames().forEachRemaining(keys::add);
+        return keys;
+    }
+
+    @Test
+    void toMap_keepsAStableKeyOrder() throws Exception {
+        var report = new LatencyReport();
+        report.succeeded("Zeta", 2_000_000, 1_000_000);
+        report.succeeded("Alpha", 3_000_000, 1_000_000);
+        report.failed("Alpha", Status.Code.UNAVAILABLE);
+        report.failed("Alpha", "CLIENT_OVERFLOW");
+
+        var json = JSON.writeValueAsString(report.toMap());
+        var tree = JSON.readTree(json);
+        assertEquals(List.of("all", "rpcs"), keys(tree));
+        assertEquals(List.of("Alpha", "Zeta"), keys(tree.get("rpcs")), "rpcs by name, not by first call");
+        var alpha = tree.get("rpcs").get("Alpha");
+        assertEquals(List.of("count", "errors", "latencyMicros", "serviceTimeMicros", "latencyHistogram"), keys(alpha));
+        assertEquals(List.of("CLIENT_OVERFLOW", "UNAVAILABLE"), keys(alpha.get("errors")));
+        assertEquals(List.of("p50", "p90", "p99", "p99.9", "p99.99", "max", "mean"), keys(alpha.get("latencyMicros")));
+        assertEquals(1, alpha.get("count").asLong(), "failed calls are counted, not timed");
+        assertEquals(2, tree.get("all").get("count").asLong());
+        assertEquals(1, tree.get("all").get("errors").get("UNAVAILABLE").asLong());
+        assertEquals(json, JSON.writeValueAsString(report.toMap()), "the same report serializes the same");
+    }
+}
@@ -0,0 +1,79 @@
+package avelios.hospital.loadgen;
+
+import avelios.hospital.grpc.HospitalServiceGrpc;
+import avelios.hospital.grpc.RegisterAck;
+import avelios.hospital.grpc.RegisterPatientRequest;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadGeneratorTest {
+
+    /** Answers at once, except the first call, which holds its caller for {@code stallMillis}. */
+    private static class StallingService extends HospitalServiceGrpc.HospitalServiceImplBase {
+        final AtomicBoolean first = new AtomicBoolean(true);
+        final long stallMillis;
+
+        StallingService(long stallMillis) {
+            this.stallMillis = stallMillis;
+        }
+
+        @Override
+        public void registerPatient(RegisterPatientRequest req, StreamObserver<RegisterAck> out) {
+            if (first.getAndSet(false)) {
+                try {
+                    Thread.sleep(stallMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            out.onNext(RegisterAck.getDefaultInstance());
+            out.onCompleted();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long micros(LatencyReport report, String histogram, String percentile) {
+        var rpcs = (Map<String, Map<String, Object>>) report.toMap().get("rpcs");
+        return (Long) ((Map<String, Object>) rpcs.get("RegisterPatient").get(histogram)).get(percentile);
+    }
+
+    @Test
+    void latency_countsFromTheScheduledStart_whenCallsStartLate() throws Exception {
+        // direct executors on both ends run the handler on the generator's thread, so the stalled
+        // first call holds back every call due after it
+        var name = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(name).directExecutor()
+        .addService(new StallingService(200)).build().start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        try {
+            var workload = new Workload(channel, List.of("h"), List.of("p"), Workload.parseMix("register=1"),
+            Duration.ofSeconds(5).toNanos());
+            var run = new LoadGenerator.Run(workload, 1000, "constant", Duration.ZERO, Duration.ofMillis(400),
+            1000, Duration.ofSeconds(5));
+            var report = run.execute();
+
+            assertEquals(run.scheduled, report.succeeded());
+            // about half the calls were due during the stall and waited up to 200 ms to start
+            assertTrue(micros(report, "latencyMicros", "p90") >= 100_000,
+            "latency p90 " + micros(report, "latencyMicros", "p90") + " us");
+            assertTrue(micros(report, "serviceTimeMicros", "p90") < 50_000,
+            "service time p90 " + micros(report, "serviceTimeMicros", "p90") + " us");
+        } finally {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+}
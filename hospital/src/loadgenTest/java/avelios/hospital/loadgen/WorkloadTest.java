@@ -0,0 +1,59 @@
+package avelios.hospital.loadgen;
+
+import avelios.hospital.loadgen.Workload.Kind;
+
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkloadTest {
+
+    // never connected: picking a kind makes no call
+    private final ManagedChannel channel = InProcessChannelBuilder.forName("unused").build();
+
+    @AfterEach
+    void tearDown() {
+        channel.shutdownNow();
+    }
+
+    private Workload workload(String mix) {
+        return new Workload(channel, List.of("h"), List.of("p"), Workload.parseMix(mix), 1_000_000_000L);
+    }
+
+    @Test
+    void parseMix_readsKindsAndWeights() {
+        assertEquals(Map.of(Kind.REGISTER, 70, Kind.RELATIONS, 20, Kind.CRUD, 10),
+        Workload.parseMix(" Register=70, relations = 20,CRUD=10"));
+        for (var bad : List.of("register", "register=-1", "register=x", "reads=5")) {
+            assertThrows(IllegalArgumentException.class, () -> Workload.parseMix(bad), bad);
+        }
+    }
+
+    @Test
+    void pick_followsTheWeights() {
+        var workload = workload("register=70,relations=20,crud=10,lists=0");
+        var counts = new EnumMap<Kind, Integer>(Kind.class);
+        var rnd = new SplittableRandom(1);
+        int n = 100_000;
+        for (int i = 0; i < n; i++) {
+            counts.merge(workload.pick(rnd), 1, Integer::sum);
+        }
+        assertEquals(0.70, counts.get(Kind.REGISTER) / (double) n, 0.01);
+        assertEquals(0.20, counts.get(Kind.RELATIONS) / (double) n, 0.01);
+        assertEquals(0.10, counts.get(Kind.CRUD) / (double) n, 0.01);
+        assertNull(counts.get(Kind.LISTS), "a zero weight gets no traffic");
+    }
+
+    @Test
+    void mixWithoutWeight_isRejected() {
+        assertThrows(IllegalArgumentException.class, () -> workload("register=0,crud=0"));
+    }
+}
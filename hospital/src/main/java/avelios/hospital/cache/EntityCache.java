@@ -0,0 +1,86 @@
+package avelios.hospital.cache;
+
+import avelios.hospital.entity.Hospital;
+import avelios.hospital.entity.Patient;
+import avelios.hospital.events.ChangeListener;
+import avelios.hospital.repo.HospitalRepo;
+import avelios.hospital.repo.PatientRepo;
+import avelios.hospital.routing.ReadRouting;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Bounded read-through cache in front of {@link HospitalRepo} and {@link PatientRepo} for
+ * by-id lookups (W-TinyLFU eviction, optional TTL). Cached entities are detached and must
+ * be treated as read-only. Saves and deletes evict entries, so the next lookup reloads the
+ * row: a saved entity may already be stale, e.g. deleted while an update was under way.
+ *
+ * Hit/miss/eviction counters are published as {@code cache.*} meters tagged
+ * {@code cache=hospitals|patients}.
+ */
+@Component
+public class EntityCache implements ChangeListener {
+    
+    private final HospitalRepo hospitalRepo;
+    private final PatientRepo patientRepo;
+    private final Cache<UUID, Hospital> hospitals;
+    private final Cache<UUID, Patient> patients;
+    
+    public EntityCache(HospitalRepo hospitalRepo, PatientRepo patientRepo, MeterRegistry registry,
+    @Value("${hospital.cache.max-size:100000}") long maxSize,
+    @Value("${hospital.cache.ttl:0s}") Duration ttl) {
+        this.hospitalRepo = hospitalRepo;
+        this.patientRepo = patientRepo;
+        this.hospitals = CaffeineCacheMetrics.monitor(registry, build(maxSize, ttl), "hospitals");
+        this.patients = CaffeineCacheMetrics.monitor(registry, build(maxSize, ttl), "patients");
+    }
+    
+    private static <V> Cache<UUID, V> build(long maxSize, Duration ttl) {
+        var b = Caffeine.newBuilder().maximumSize(maxSize).recordStats();
+        if (!ttl.isZero()) {
+            b.expireAfterWrite(ttl);
+        }
+        return b.build();
+    }
+    
+    // misses are not cached, so an id created later is found right away; loads read the primary,
+    // a lagging replica could bring back a row that was just deleted
+    public Optional<Hospital> hospital(UUID id) {
+        return Optional.ofNullable(hospitals.get(id, k ->
+        ReadRouting.onPrimary(() -> hospitalRepo.findByIdAndDeletedFalse(k).orElse(null))));
+    }
+    
+    public Optional<Patient> patient(UUID id) {
+        return Optional.ofNullable(patients.get(id, k ->
+        ReadRouting.onPrimary(() -> patientRepo.findByIdAndDeletedFalse(k).orElse(null))));
+    }
+    
+    @Override
+    public void onHospitalSaved(Hospital h) {
+        hospitals.invalidate(h.getId());
+    }
+    
+    @Override
+    public void onPatientSaved(Patient p) {
+        patients.invalidate(p.getId());
+    }
+    
+    @Override
+    public void onHospitalDeleted(UUID hospitalId) {
+        hospitals.invalidate(hospitalId);
+    }
+    
+    @Override
+    public void onPatientDeleted(UUID patientId) {
+        patients.invalidate(patientId);
+    }
+}
@@ -0,0 +1,134 @@
+package avelios.hospital.cache;
+
+import avelios.hospital.entity.Hospital;
+import avelios.hospital.entity.Patient;
+import avelios.hospital.entity.Visit;
+import avelios.hospital.events.ChangeListener;
+import avelios.hospital.repo.VisitRepo;
+import avelios.hospital.routing.ReadRouting;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.YearMonth;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * Serialized replies of {@code ListHospitals} and of each hospital's {@code ListPatientsOfHospital},
+ * tagged with a version, one entry per id encoding (v1 strings, v2 binary). Versions come from
+ * one clock that every change bumps: hospital saves and deletes move the hospital list, a
+ * registration moves its hospital's patient list, a patient rename or delete moves the lists of
+ * the hospitals it visited, and retention moves them all.
+ * A reply is rebuilt only when its version has moved since it was cached.
+ *
+ * The clock starts at the boot time in microseconds, so versions keep increasing across
+ * restarts and a version a client remembers from a previous run is never reused. Bytes are
+ * bounded by {@code hospital.response-cache.max-bytes}; hits and misses are published as
+ * {@code cache.*} meters tagged {@code cache=responses}.
+ */
+@Component
+public class ResponseCache implements ChangeListener {
+    
+    // key of the hospital list; never a hospital id (version 0 UUIDs are not generated)
+    public static final UUID ALL_HOSPITALS = new UUID(0, 0);
+    
+    /** How the ids of a reply are encoded; v1 and v2 replies share versions, not bytes. */
+    public enum Ids { STRINGS, BINARY }
+    
+    private record Key(UUID list, Ids ids) {}
+    
+    private record Entry(long version, byte[] bytes) {}
+    
+    private final AtomicLong clock = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final long start = clock.get();
+    private final ConcurrentHashMap<UUID, Long> versions = new ConcurrentHashMap<>();
+    // raised by retention: every patient list may have lost visits
+    private volatile long expired;
+    private final Cache<Key, Entry> bytes;
+    private final VisitRepo visits;
+    
+    public ResponseCache(VisitRepo visits, MeterRegistry registry,
+    @Value("${hospital.response-cache.max-bytes:67108864}") long maxBytes) {
+        this.visits = visits;
+        this.bytes = CaffeineCacheMetrics.monitor(registry, Caffeine.newBuilder()
+        .maximumWeight(maxBytes)
+        .weigher((Key k, Entry e) -> e.bytes().length)
+        .recordStats()
+        .<Key, Entry>build(), "responses");
+    }
+    
+    /** Current version of the hospital list. */
+    public long hospitalsVersion() {
+        return versions.getOrDefault(ALL_HOSPITALS, start);
+    }
+    
+    /** Current version of the hospital's patient list. */
+    public long patientsVersion(UUID hospitalId) {
+        return Math.max(versions.getOrDefault(hospitalId, start), expired);
+    }
+    
+    /**
+     * The reply cached for {@code list} (a hospital id or {@link #ALL_HOSPITALS}) in the
+     * {@code ids} encoding if it is at {@code version}, otherwise {@code build}'s, which is
+     * cached unless a newer one got there first. The version must have been read
+     * before the data, so a reply is never tagged newer than its contents; for the same reason
+     * {@code build} reads the primary, not a replica that may not have reached the version yet.
+     */
+    public byte[] get(UUID list, Ids ids, long version, LongFunction<byte[]> build) {
+        var key = new Key(list, ids);
+        var e = bytes.getIfPresent(key);
+        if (e != null && e.version() == version) {
+            return e.bytes();
+        }
+        var fresh = new Entry(version, ReadRouting.onPrimary(() -> build.apply(version)));
+        bytes.asMap().merge(key, fresh, (old, add) -> old.version() >= add.version() ? old : add);
+        return fresh.bytes();
+    }
+    
+    private void bump(UUID key) {
+        versions.merge(key, clock.incrementAndGet(), Math::max);
+    }
+    
+    @Override
+    public void onHospitalSaved(Hospital h) {
+        bump(ALL_HOSPITALS);
+    }
+    
+    @Override
+    public void onHospitalDeleted(UUID hospitalId) {
+        bump(ALL_HOSPITALS);
+        bump(hospitalId);
+        for (var ids : Ids.values()) {
+            bytes.invalidate(new Key(hospitalId, ids));
+        }
+    }
+    
+    @Override
+    public void onVisit(Visit v) {
+        bump(v.getHospital().getId());
+    }
+    
+    // lists hold only id and name: creates (no visits yet) and sex/dob updates move nothing
+    @Override
+    public void onPatientRenamed(Patient p) {
+        visits.hospitalIdsOfPatient(p.getId()).forEach(this::bump);
+    }
+    
+    @Override
+    public void onPatientDeleted(UUID patientId) {
+        visits.hospitalIdsOfPatient(patientId).forEach(this::bump);
+    }
+    
+    @Override
+    public void onVisitsExpired(YearMonth before) {
+        expired = clock.incrementAndGet();
+        bytes.asMap().keySet().removeIf(k -> !k.list().equals(ALL_HOSPITALS));
+    }
+}
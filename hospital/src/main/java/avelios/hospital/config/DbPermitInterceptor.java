@@ -0,0 +1,81 @@
+package avelios.hospital.config;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.devh.boot.grpc.server.interceptor.GrpcGlobalServerInterceptor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * With virtual threads ({@code hospital.grpc.executor=virtual}) lets at most {@code permits}
+ * units of DB work run at once. They block on JDBC, so the permit count should match the
+ * connection pool: excess work parks cheaply on the semaphore instead of queueing inside Hikari.
+ *
+ * A unary handler is one unit. A streaming call holds no permit for its lifetime, which would
+ * starve the unary calls; it finds the semaphore under {@link #STREAM_PERMITS} in its context
+ * and takes a permit per unit through {@link #withPermit}: per page of the keyset streams
+ * (StreamPatients, StreamHospitals, StreamPatientsOfHospital, ListVisits), per batch of the
+ * bulk ingest streams and per RegisterStream message. WatchVisits only subscribes to the feed,
+ * whose own thread sends the events, so it needs none.
+ */
+@GrpcGlobalServerInterceptor
+@ConditionalOnProperty(name = "hospital.grpc.executor", havingValue = "virtual")
+public class DbPermitInterceptor implements ServerInterceptor {
+    
+    /** The permits a streaming call takes per unit of DB work; absent unless the executor is virtual. */
+    public static final Context.Key<Semaphore> STREAM_PERMITS = Context.key("hospital.grpc.db.permits");
+    
+    private final Semaphore permits;
+    
+    public DbPermitInterceptor(MeterRegistry registry,
+    @Value("${hospital.grpc.db-permits:${spring.datasource.hikari.maximum-pool-size:10}}") int permits) {
+        this.permits = new Semaphore(permits, true);
+        Gauge.builder("hospital.grpc.db.permits.available", this.permits, Semaphore::availablePermits)
+        .register(registry);
+    }
+    
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+    Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        if (call.getMethodDescriptor().getType() != MethodDescriptor.MethodType.UNARY) {
+            return Contexts.interceptCall(Context.current().withValue(STREAM_PERMITS, permits), call, headers, next);
+        }
+        var listener = next.startCall(call, headers);
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+            // a unary handler runs once its request is complete
+            @Override
+            public void onHalfClose() {
+                permits.acquireUninterruptibly();
+                try {
+                    super.onHalfClose();
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+    }
+    
+    /** Runs {@code work} holding one of {@code permits}, or right away if there are none (null). */
+    public static <T> T withPermit(Semaphore permits, Supplier<T> work) {
+        if (permits == null) {
+            return work.get();
+        }
+        permits.acquireUninterruptibly();
+        try {
+            return work.get();
+        } finally {
+            permits.release();
+        }
+    }
+}
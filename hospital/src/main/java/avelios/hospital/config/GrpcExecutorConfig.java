@@ -0,0 +1,28 @@
+package avelios.hospital.config;
+
+import net.devh.boot.grpc.server.serverfactory.GrpcServerConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.Executors;
+
+/**
+ * Execution model of the gRPC handlers, chosen with {@code hospital.grpc.executor}:
+ * <ul>
+ *   <li>{@code platform} (default): the starter's thread pool</li>
+ *   <li>{@code virtual}: one virtual thread per call callback, with at most
+ *       {@code hospital.grpc.db-permits} units of DB work running concurrently
+ *       ({@link DbPermitInterceptor})</li>
+ * </ul>
+ */
+@Configuration
+public class GrpcExecutorConfig {
+    
+    @Bean
+    @ConditionalOnProperty(name = "hospital.grpc.executor", havingValue = "virtual")
+    GrpcServerConfigurer virtualThreadServerConfigurer() {
+        var threads = Thread.ofVirtual().name("grpc-vt-", 0).factory();
+        return builder -> builder.executor(Executors.newThreadPerTaskExecutor(threads));
+    }
+}
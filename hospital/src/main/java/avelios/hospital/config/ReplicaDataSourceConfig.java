@@ -0,0 +1,62 @@
+package avelios.hospital.config;
+
+import avelios.hospital.routing.RoutingDataSource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read replicas, on when {@code hospital.datasource.replicas} lists their JDBC URLs. Replaces
+ * Boot's DataSource with a routing one: {@code spring.datasource.*} still configures the primary,
+ * each replica gets a read-only pool of {@code replica-pool-size} with the same credentials.
+ * Replication itself is the database's business.
+ */
+@Configuration
+@ConditionalOnExpression("!'${hospital.datasource.replicas:}'.isEmpty()")
+public class ReplicaDataSourceConfig {
+    
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+    
+    @Bean(destroyMethod = "close")
+    RoutingDataSource routingDataSource(HikariDataSource primaryDataSource, DataSourceProperties properties,
+    @Value("${hospital.datasource.replicas}") List<String> urls,
+    @Value("${hospital.datasource.replica-selection:round-robin}") String selection,
+    @Value("${hospital.datasource.replica-pool-size:10}") int poolSize) {
+        var replicas = new ArrayList<HikariDataSource>();
+        for (var url : urls) {
+            var config = new HikariConfig();
+            config.setPoolName("replica-" + (replicas.size() + 1));
+            config.setJdbcUrl(url.trim());
+            config.setUsername(properties.determineUsername());
+            config.setPassword(properties.determinePassword());
+            config.setMaximumPoolSize(poolSize);
+            config.setReadOnly(true);
+            replicas.add(new HikariDataSource(config));
+        }
+        return new RoutingDataSource(primaryDataSource, replicas,
+        RoutingDataSource.Selection.valueOf(selection.toUpperCase(Locale.ROOT).replace('-', '_')));
+    }
+    
+    @Bean
+    @Primary
+    DataSource dataSource(RoutingDataSource routingDataSource) {
+        return new LazyConnectionDataSourceProxy(routingDataSource);
+    }
+}
@@ -0,0 +1,29 @@
+package avelios.hospital.config;
+
+import avelios.hospital.shard.ShardRouter;
+
+import io.grpc.ManagedChannelBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.List;
+
+/**
+ * Shard router mode, on when {@code hospital.shard.targets} lists the gRPC targets of the
+ * shards (e.g. {@code dns:///shard-1:9090,dns:///shard-2:9090}). The instance then serves
+ * HospitalService and PatientService by forwarding to the shards instead of from its own
+ * database; the targets double as shard names on the ring, so keep them stable.
+ */
+@Configuration
+@ConditionalOnExpression("!'${hospital.shard.targets:}'.isEmpty()")
+public class ShardRouterConfig {
+    
+    @Bean(destroyMethod = "close")
+    ShardRouter shardRouter(@Value("${hospital.shard.targets}") List<String> targets,
+    @Value("${hospital.shard.vnodes:128}") int vnodes) {
+        return new ShardRouter(targets.stream().map(String::trim).toList(),
+        target -> ManagedChannelBuilder.forTarget(target).usePlaintext().build(), vnodes);
+    }
+}
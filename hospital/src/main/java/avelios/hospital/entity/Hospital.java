@@ -1,17 +1,56 @@
 package avelios.hospital.entity;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.ColumnDefault;
+import org.springframework.data.domain.Persistable;
 import java.util.UUID;
 
+// ids are assigned in-process (random unless given, e.g. by the shard router); Persistable
+// keeps save() of a new row a plain insert instead of a merge that looks the id up first
 @Entity
-public class Hospital {
-    @Id @GeneratedValue
+public class Hospital implements Persistable<UUID> {
+    @Id
     private UUID id;
     
+    @Transient
+    private boolean isNew = true;
+    
     @Column(nullable = false)
     private String name;
     
-    public UUID getId() { 
+    // soft delete, only ever set by a bulk update (so a concurrent save cannot undo it);
+    // the row itself is removed by Purger once its visits are gone
+    @ColumnDefault("false")
+    @Column(nullable = false, updatable = false)
+    private boolean deleted;
+    
+    public Hospital() {
+    }
+    
+    public Hospital(UUID id) {
+        this.id = id;
+    }
+    
+    @PrePersist
+    void assignId() {
+        if (id == null) {
+            id = UUID.randomUUID();
+        }
+    }
+    
+    @PostLoad
+    @PostPersist
+    void markStored() {
+        isNew = false;
+    }
+    
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+    
+    @Override
+    public UUID getId() {
         return id; 
     }
 
@@ -22,4 +61,8 @@ public class Hospital {
     public void setName(String name) {
         this.name = name;
     }
-}
\ No newline at end of file
+    
+    public boolean isDeleted() {
+        return deleted;
+    }
+}
@@ -1,11 +1,15 @@
 package avelios.hospital.entity;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.ColumnDefault;
+import org.springframework.data.domain.Persistable;
 import java.time.LocalDate;
 import java.util.UUID;
 
+// ids are assigned in-process (random unless given, e.g. by the shard router); Persistable
+// keeps save() of a new row a plain insert instead of a merge that looks the id up first
 @Entity
-public class Patient {
+public class Patient implements Persistable<UUID> {
     public enum Sex {
         SEX_UNSPECIFIED, 
         MALE, 
@@ -13,12 +17,21 @@ public class Patient {
         OTHER 
     }
     
-    @Id @GeneratedValue
+    @Id
     private UUID id;
     
+    @Transient
+    private boolean isNew = true;
+    
     @Column(nullable = false)
     private String name;
     
+    // soft delete, only ever set by a bulk update (so a concurrent save cannot undo it);
+    // the row itself is removed by Purger once its visits are gone
+    @ColumnDefault("false")
+    @Column(nullable = false, updatable = false)
+    private boolean deleted;
+    
     @Enumerated(EnumType.STRING)
     @Column(nullable = false)
     private Sex sex;
@@ -26,6 +39,32 @@ public class Patient {
     @Column(nullable = false)
     private LocalDate dob;
     
+    public Patient() {
+    }
+    
+    public Patient(UUID id) {
+        this.id = id;
+    }
+    
+    @PrePersist
+    void assignId() {
+        if (id == null) {
+            id = UUID.randomUUID();
+        }
+    }
+    
+    @PostLoad
+    @PostPersist
+    void markStored() {
+        isNew = false;
+    }
+    
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+    
+    @Override
     public UUID getId() {
         return id; 
     }
@@ -52,4 +91,8 @@ public class Patient {
     public void setDob(LocalDate dob) {
         this.dob = dob;
     }
-}
\ No newline at end of file
+    
+    public boolean isDeleted() {
+        return deleted;
+    }
+}
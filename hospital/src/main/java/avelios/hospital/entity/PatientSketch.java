@@ -0,0 +1,81 @@
+package avelios.hospital.entity;
+
+import jakarta.persistence.*;
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Persisted HyperLogLog sketch of the distinct patients of one hospital in one month.
+ * {@code monthIndex} is {@code year * 12 + (month - 1)}; {@code sketch} is the serialized
+ * {@code HyperLogLog} and {@code visits} the number of visits added to it, which tells at
+ * startup whether the month has changed since it was written.
+ */
+@Entity
+@Table(name = "patient_sketch")
+public class PatientSketch {
+    
+    @Embeddable
+    public static class Key implements Serializable {
+        @Column(nullable = false)
+        private UUID hospitalId;
+        
+        @Column(nullable = false)
+        private int monthIndex;
+        
+        public Key() {}
+        public Key(UUID hospitalId, int monthIndex) {
+            this.hospitalId = hospitalId;
+            this.monthIndex = monthIndex;
+        }
+        
+        public UUID getHospitalId() {
+            return hospitalId;
+        }
+        
+        public int getMonthIndex() {
+            return monthIndex;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k
+            && monthIndex == k.monthIndex
+            && Objects.equals(hospitalId, k.hospitalId);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(hospitalId, monthIndex);
+        }
+    }
+    
+    @EmbeddedId
+    private Key key;
+    
+    @Lob
+    @Column(nullable = false)
+    private byte[] sketch;
+    
+    // null in rows written before the count was kept; such sketches are rebuilt
+    private Long visits;
+    
+    public PatientSketch() {}
+    public PatientSketch(Key key, byte[] sketch, long visits) {
+        this.key = key;
+        this.sketch = sketch;
+        this.visits = visits;
+    }
+    
+    public Key getKey() {
+        return key;
+    }
+    
+    public byte[] getSketch() {
+        return sketch;
+    }
+    
+    public Long getVisits() {
+        return visits;
+    }
+}
@@ -3,25 +3,56 @@ package avelios.hospital.entity;
 import jakarta.persistence.*;
 import java.time.LocalDate;
 
+/**
+ * Visits are partitioned by month: {@code visitMonth} ({@code year * 12 + (month - 1)} of the
+ * visit date) is the partition key. H2 has no declarative partitioning, so a partition is
+ * simulated as the rows sharing a {@code visit_month} value, reachable through its own index;
+ * retention drops partitions whole and date-range queries constrain the key so that only the
+ * overlapping months are read. On a database with range partitioning the same column is the
+ * {@code PARTITION BY RANGE} key.
+ */
 @Entity
+@Table(indexes = {
+    @Index(name = "idx_visit_hospital_patient", columnList = "hospital_id, patient_id"),
+    @Index(name = "idx_visit_patient_hospital", columnList = "patient_id, hospital_id"),
+    @Index(name = "idx_visit_hospital_date", columnList = "hospital_id, visit_date"),
+    @Index(name = "idx_visit_month", columnList = "visit_month")
+})
 public class Visit {
     @Id @GeneratedValue
     private Long id;
     
-    @ManyToOne(optional = false)
+    @ManyToOne(optional = false, fetch = FetchType.LAZY)
     private Hospital hospital;
     
-    @ManyToOne(optional = false)
+    @ManyToOne(optional = false, fetch = FetchType.LAZY)
     private Patient patient;
     
     @Column(nullable = false)
     private LocalDate visitDate;
     
+    // partition key, always derived from visitDate
+    @Column(nullable = false)
+    private int visitMonth;
+    
+    // the patient's sex and birth date when the visit was stored: the statistics bucket it by
+    // these, so correcting the patient later moves neither its bucket nor what a purge takes
+    // back out. Null on rows stored before the columns existed; readers fall back to the patient.
+    @Enumerated(EnumType.STRING)
+    private Patient.Sex patientSex;
+    
+    private LocalDate patientDob;
+    
     public Visit() {}
     public Visit(Hospital hospital, Patient patient, LocalDate visitDate) {
         this.hospital = hospital;
-        this.patient = patient;
-        this.visitDate = visitDate;
+        setPatient(patient);
+        setVisitDate(visitDate);
+    }
+    
+    /** The partition (month) a visit on {@code d} belongs to. */
+    public static int monthIndex(LocalDate d) {
+        return d.getYear() * 12 + d.getMonthValue() - 1;
     }
     
     public Long getId() {
@@ -40,16 +71,33 @@ public class Visit {
         return visitDate;
     }
     
+    public int getVisitMonth() {
+        return visitMonth;
+    }
+    
+    public Patient.Sex getPatientSex() {
+        return patientSex;
+    }
+    
+    public LocalDate getPatientDob() {
+        return patientDob;
+    }
+    
     public void setHospital(Hospital hospital) {
         this.hospital = hospital;
     }
 
     public void setPatient(Patient patient) {
         this.patient = patient;
+        if (patient != null) {
+            this.patientSex = patient.getSex();
+            this.patientDob = patient.getDob();
+        }
     }
 
     public void setVisitDate(LocalDate visitDate) {
         this.visitDate = visitDate;
+        this.visitMonth = monthIndex(visitDate);
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package avelios.hospital.entity;
+
+import jakarta.persistence.*;
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Persisted monthly aggregate of visits: one row per (hospital, month, sex).
+ * {@code monthIndex} is {@code year * 12 + (month - 1)}.
+ */
+@Entity
+@Table(name = "visit_bucket")
+public class VisitBucket {
+    
+    @Embeddable
+    public static class Key implements Serializable {
+        @Column(nullable = false)
+        private UUID hospitalId;
+        
+        @Column(nullable = false)
+        private int monthIndex;
+        
+        @Enumerated(EnumType.STRING)
+        @Column(nullable = false)
+        private Patient.Sex sex;
+        
+        public Key() {}
+        public Key(UUID hospitalId, int monthIndex, Patient.Sex sex) {
+            this.hospitalId = hospitalId;
+            this.monthIndex = monthIndex;
+            this.sex = sex;
+        }
+        
+        public UUID getHospitalId() {
+            return hospitalId;
+        }
+        
+        public int getMonthIndex() {
+            return monthIndex;
+        }
+        
+        public Patient.Sex getSex() {
+            return sex;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k
+            && monthIndex == k.monthIndex
+            && sex == k.sex
+            && Objects.equals(hospitalId, k.hospitalId);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(hospitalId, monthIndex, sex);
+        }
+    }
+    
+    @EmbeddedId
+    private Key key;
+    
+    @Column(nullable = false)
+    private long visitsCount;
+    
+    @Column(nullable = false)
+    private long ageDaysSum;
+    
+    // highest visit id counted in; null in rows written before it was kept
+    private Long maxVisitId;
+    
+    public VisitBucket() {}
+    public VisitBucket(Key key, long visitsCount, long ageDaysSum, long maxVisitId) {
+        this.key = key;
+        this.visitsCount = visitsCount;
+        this.ageDaysSum = ageDaysSum;
+        this.maxVisitId = maxVisitId;
+    }
+    
+    public Key getKey() {
+        return key;
+    }
+    
+    public long getVisitsCount() {
+        return visitsCount;
+    }
+    
+    public long getAgeDaysSum() {
+        return ageDaysSum;
+    }
+    
+    public Long getMaxVisitId() {
+        return maxVisitId;
+    }
+}
@@ -0,0 +1,50 @@
+package avelios.hospital.events;
+
+import avelios.hospital.entity.Hospital;
+import avelios.hospital.entity.Patient;
+import avelios.hospital.entity.Visit;
+
+import org.springframework.stereotype.Component;
+
+import java.time.YearMonth;
+import java.util.List;
+import java.util.UUID;
+
+/** Fans committed changes out to every {@link ChangeListener} bean, in bean order. */
+@Component
+public class ChangeEvents {
+    
+    private final List<ChangeListener> listeners;
+    
+    public ChangeEvents(List<ChangeListener> listeners) {
+        this.listeners = listeners;
+    }
+    
+    public void hospitalSaved(Hospital h) {
+        listeners.forEach(l -> l.onHospitalSaved(h));
+    }
+    
+    public void patientSaved(Patient p) {
+        listeners.forEach(l -> l.onPatientSaved(p));
+    }
+    
+    public void patientRenamed(Patient p) {
+        listeners.forEach(l -> l.onPatientRenamed(p));
+    }
+    
+    public void hospitalDeleted(UUID hospitalId) {
+        listeners.forEach(l -> l.onHospitalDeleted(hospitalId));
+    }
+    
+    public void patientDeleted(UUID patientId) {
+        listeners.forEach(l -> l.onPatientDeleted(patientId));
+    }
+    
+    public void visit(Visit v) {
+        listeners.forEach(l -> l.onVisit(v));
+    }
+    
+    public void visitsExpired(YearMonth before) {
+        listeners.forEach(l -> l.onVisitsExpired(before));
+    }
+}
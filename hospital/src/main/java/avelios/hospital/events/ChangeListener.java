@@ -0,0 +1,34 @@
+package avelios.hospital.events;
+
+import avelios.hospital.entity.Hospital;
+import avelios.hospital.entity.Patient;
+import avelios.hospital.entity.Visit;
+
+import java.time.YearMonth;
+import java.util.UUID;
+
+/**
+ * Callback for in-memory views (caches, indexes, aggregates) that must follow the database.
+ * Called synchronously by {@link ChangeEvents} after the change has been committed.
+ */
+public interface ChangeListener {
+    
+    /** A hospital was created or updated. */
+    default void onHospitalSaved(Hospital h) {}
+    
+    /** A patient was created or updated. */
+    default void onPatientSaved(Patient p) {}
+    
+    /** An existing patient got a new name; follows {@link #onPatientSaved}. */
+    default void onPatientRenamed(Patient p) {}
+    
+    default void onHospitalDeleted(UUID hospitalId) {}
+    
+    default void onPatientDeleted(UUID patientId) {}
+    
+    /** A visit was stored; its hospital and patient are loaded. */
+    default void onVisit(Visit v) {}
+    
+    /** Retention dropped every visit dated before {@code before}. */
+    default void onVisitsExpired(YearMonth before) {}
+}
@@ -0,0 +1,306 @@
+package avelios.hospital.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BiFunction;
+
+/**
+ * Bipartite hospital/patient graph with dense int ordinals. Each node keeps its neighbours
+ * as a sorted, duplicate-free {@code int[]}, so a node costs a few words plus 4 bytes per
+ * edge instead of a boxed {@code HashSet<UUID>}. A parallel {@code int[]} holds the month
+ * ({@code year * 12 + month - 1}) of the newest visit behind each edge, so edges whose visits
+ * all expired can be dropped without reading the visits again ({@link #expireBefore}).
+ *
+ * Not thread-safe; {@link VisitGraph} guards it with a read/write lock.
+ */
+public final class AdjacencyIndex {
+
+    private static final int[] NONE = new int[0];
+
+    /** One side of the graph: ordinal <-> UUID, names and adjacency lists. */
+    static final class Side {
+        final HashMap<UUID, Integer> ordinals = new HashMap<>();
+        UUID[] ids = new UUID[16];
+        String[] names = new String[16];
+        int[][] adj = new int[16][];
+        // newest visit month per entry of adj
+        int[][] months = new int[16][];
+        int[] degree = new int[16];
+        int size;
+        long edges;
+
+        int ordinal(UUID id, String name) {
+            var o = ordinals.get(id);
+            if (o != null) {
+                if (name != null) {
+                    names[o] = name;
+                }
+                return o;
+            }
+            if (size == ids.length) {
+                int cap = size * 2;
+                ids = Arrays.copyOf(ids, cap);
+                names = Arrays.copyOf(names, cap);
+                adj = Arrays.copyOf(adj, cap);
+                months = Arrays.copyOf(months, cap);
+                degree = Arrays.copyOf(degree, cap);
+            }
+            ids[size] = id;
+            names[size] = name;
+            adj[size] = NONE;
+            months[size] = NONE;
+            ordinals.put(id, size);
+            return size++;
+        }
+
+        Integer find(UUID id) {
+            return ordinals.get(id);
+        }
+
+        private void grow(int from, int n) {
+            int cap = Math.max(4, n + (n >> 1));
+            adj[from] = Arrays.copyOf(adj[from], cap);
+            months[from] = Arrays.copyOf(months[from], cap);
+        }
+
+        /**
+         * Inserts {@code to} keeping the list sorted; false if it was already there, in which
+         * case only its month moves forward.
+         */
+        boolean link(int from, int to, int month) {
+            int n = degree[from];
+            int pos = Arrays.binarySearch(adj[from], 0, n, to);
+            if (pos >= 0) {
+                months[from][pos] = Math.max(months[from][pos], month);
+                return false;
+            }
+            pos = -pos - 1;
+            if (n == adj[from].length) {
+                grow(from, n);
+            }
+            int[] a = adj[from], m = months[from];
+            System.arraycopy(a, pos, a, pos + 1, n - pos);
+            System.arraycopy(m, pos, m, pos + 1, n - pos);
+            a[pos] = to;
+            m[pos] = month;
+            degree[from] = n + 1;
+            edges++;
+            return true;
+        }
+
+        /** Appends without ordering or duplicate checks; only valid before {@link #seal}. */
+        void append(int from, int to, int month) {
+            int n = degree[from];
+            if (n == adj[from].length) {
+                grow(from, n);
+            }
+            adj[from][n] = to;
+            months[from][n] = month;
+            degree[from] = n + 1;
+        }
+
+        void unlink(int from, int to) {
+            int n = degree[from];
+            int[] a = adj[from], m = months[from];
+            int pos = Arrays.binarySearch(a, 0, n, to);
+            if (pos >= 0) {
+                System.arraycopy(a, pos + 1, a, pos, n - pos - 1);
+                System.arraycopy(m, pos + 1, m, pos, n - pos - 1);
+                degree[from] = n - 1;
+                edges--;
+            }
+        }
+
+        /** Drops every entry whose newest visit is before {@code month}; returns how many. */
+        long expireBefore(int month) {
+            long dropped = 0;
+            for (int o = 0; o < size; o++) {
+                int n = degree[o];
+                int[] a = adj[o], m = months[o];
+                int w = 0;
+                for (int r = 0; r < n; r++) {
+                    if (m[r] >= month) {
+                        a[w] = a[r];
+                        m[w++] = m[r];
+                    }
+                }
+                degree[o] = w;
+                dropped += n - w;
+            }
+            edges -= dropped;
+            return dropped;
+        }
+
+        /** Removes a node; its ordinal is retired, not reused. Returns its former neighbours. */
+        int[] remove(int o) {
+            ordinals.remove(ids[o]);
+            int[] neighbours = Arrays.copyOf(adj[o], degree[o]);
+            edges -= degree[o];
+            ids[o] = null;
+            names[o] = null;
+            adj[o] = NONE;
+            months[o] = NONE;
+            degree[o] = 0;
+            return neighbours;
+        }
+
+        void seal() {
+            edges = 0;
+            long[] pairs = new long[0];
+            for (int o = 0; o < size; o++) {
+                int n = degree[o];
+                int[] a = adj[o], m = months[o];
+                // sort by neighbour, then month, so the last of a run holds the newest month
+                if (pairs.length < n) {
+                    pairs = new long[n];
+                }
+                for (int i = 0; i < n; i++) {
+                    pairs[i] = (long) a[i] << 32 | (m[i] & 0xFFFFFFFFL);
+                }
+                Arrays.sort(pairs, 0, n);
+                int w = 0;
+                for (int r = 0; r < n; r++) {
+                    int to = (int) (pairs[r] >>> 32);
+                    if (w > 0 && a[w - 1] == to) {
+                        w--;
+                    }
+                    a[w] = to;
+                    m[w++] = (int) pairs[r];
+                }
+                degree[o] = w;
+                adj[o] = w == a.length ? a : Arrays.copyOf(a, w);
+                months[o] = w == m.length ? m : Arrays.copyOf(m, w);
+                edges += w;
+            }
+        }
+
+        long footprintBytes() {
+            // object header 16, reference 4 (compressed oops), UUID 32, boxed Integer 16,
+            // HashMap.Node 32 + table slot 4, String ~ 40 + 1 byte per Latin-1 char
+            long bytes = 5L * 16 + 4L * (ids.length + names.length + adj.length + months.length + degree.length);
+            bytes += (long) ordinals.size() * (32 + 16 + 32 + 4);
+            for (int o = 0; o < size; o++) {
+                if (ids[o] != null) {
+                    bytes += 2 * 16 + 4L * (adj[o].length + months[o].length);
+                    bytes += names[o] == null ? 0 : 40 + names[o].length();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    private final Side hospitals = new Side();
+    private final Side patients = new Side();
+
+    /**
+     * Records that the patient visited the hospital in {@code month}; names may be null if
+     * unknown. False if the pair was already known.
+     */
+    public boolean add(UUID hospitalId, String hospitalName, UUID patientId, String patientName, int month) {
+        int h = hospitals.ordinal(hospitalId, hospitalName);
+        int p = patients.ordinal(patientId, patientName);
+        boolean added = hospitals.link(h, p, month);
+        patients.link(p, h, month);
+        return added;
+    }
+
+    /** Bulk-load variant of {@link #add}: cheap appends, call {@link #seal()} afterwards. */
+    public void append(UUID hospitalId, UUID patientId, int month) {
+        int h = hospitals.ordinal(hospitalId, null);
+        int p = patients.ordinal(patientId, null);
+        hospitals.append(h, p, month);
+        patients.append(p, h, month);
+    }
+
+    /**
+     * Drops the pairs whose newest visit is before {@code month}, after retention removed the
+     * older visits; returns the number of pairs dropped. Nodes stay, with fewer neighbours.
+     */
+    public long expireBefore(int month) {
+        patients.expireBefore(month);
+        return hospitals.expireBefore(month);
+    }
+
+    /** Sorts and deduplicates everything appended since the last seal. */
+    public void seal() {
+        hospitals.seal();
+        patients.seal();
+    }
+
+    /** Sets the name of a known hospital; unknown ids are ignored (they get a name with their first edge). */
+    public void renameHospital(UUID id, String name) {
+        var o = hospitals.find(id);
+        if (o != null) {
+            hospitals.names[o] = name;
+        }
+    }
+
+    public void renamePatient(UUID id, String name) {
+        var o = patients.find(id);
+        if (o != null) {
+            patients.names[o] = name;
+        }
+    }
+
+    public void removeHospital(UUID id) {
+        var o = hospitals.find(id);
+        if (o != null) {
+            for (int p : hospitals.remove(o)) {
+                patients.unlink(p, o);
+            }
+        }
+    }
+
+    public void removePatient(UUID id) {
+        var o = patients.find(id);
+        if (o != null) {
+            for (int h : patients.remove(o)) {
+                hospitals.unlink(h, o);
+            }
+        }
+    }
+
+    /** Neighbours of the patient's hospitals, mapped through {@code row(id, name)}. */
+    public <R> List<R> hospitalsOf(UUID patientId, BiFunction<UUID, String, R> row) {
+        return neighbours(patients, hospitals, patientId, row);
+    }
+
+    public <R> List<R> patientsOf(UUID hospitalId, BiFunction<UUID, String, R> row) {
+        return neighbours(hospitals, patients, hospitalId, row);
+    }
+
+    private static <R> List<R> neighbours(Side from, Side to, UUID id, BiFunction<UUID, String, R> row) {
+        var o = from.find(id);
+        if (o == null) {
+            return List.of();
+        }
+        int n = from.degree[o];
+        int[] a = from.adj[o];
+        var out = new ArrayList<R>(n);
+        for (int i = 0; i < n; i++) {
+            out.add(row.apply(to.ids[a[i]], to.names[a[i]]));
+        }
+        return out;
+    }
+
+    public int hospitalCount() {
+        return hospitals.ordinals.size();
+    }
+
+    public int patientCount() {
+        return patients.ordinals.size();
+    }
+
+    /** Distinct (hospital, patient) pairs. */
+    public long edgeCount() {
+        return hospitals.edges;
+    }
+
+    /** Estimated retained heap of the index in bytes (64-bit JVM, compressed oops). */
+    public long footprintBytes() {
+        return hospitals.footprintBytes() + patients.footprintBytes();
+    }
+}
@@ -0,0 +1,253 @@
+package avelios.hospital.graph;
+
+import avelios.hospital.entity.Hospital;
+import avelios.hospital.entity.Patient;
+import avelios.hospital.entity.Visit;
+import avelios.hospital.events.ChangeListener;
+import avelios.hospital.repo.HospitalRepo;
+import avelios.hospital.repo.HospitalRow;
+import avelios.hospital.repo.PatientRepo;
+import avelios.hospital.repo.PatientRow;
+import avelios.hospital.repo.VisitRepo;
+import avelios.hospital.snapshot.VisitSnapshot;
+import avelios.hospital.snapshot.VisitSnapshots;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Optional in-memory patient/hospital adjacency index ({@code hospital.graph.enabled}).
+ * Loaded from the distinct visit pairs at startup and kept current through
+ * {@link ChangeListener}; when enabled, {@code ListPatientsOfHospital} and
+ * {@code ListHospitalsOfPatient} are answered from it without touching the database.
+ *
+ * When a {@link VisitSnapshot} is available the pairs come from the mapped file instead,
+ * followed by the visits committed after it and one pass over the hospital and patient rows
+ * for renames and deletes.
+ *
+ * Its estimated size is published as {@code hospital.graph.memory} (bytes) and
+ * {@code hospital.graph.memory.per.million.visits}.
+ */
+@Component
+public class VisitGraph implements ChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(VisitGraph.class);
+
+    private final boolean enabled;
+    // replaced wholesale on reload, only read or written under the lock
+    private AdjacencyIndex index = new AdjacencyIndex();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongAdder visits = new LongAdder();
+
+    private final VisitRepo visitRepo;
+    private final HospitalRepo hospitalRepo;
+    private final PatientRepo patientRepo;
+    private final VisitSnapshots snapshots;
+    private final TransactionTemplate tx;
+
+    public VisitGraph(VisitRepo visitRepo, HospitalRepo hospitalRepo, PatientRepo patientRepo,
+    VisitSnapshots snapshots, TransactionTemplate tx, MeterRegistry registry,
+    @Value("${hospital.graph.enabled:false}") boolean enabled) {
+        this.visitRepo = visitRepo;
+        this.hospitalRepo = hospitalRepo;
+        this.patientRepo = patientRepo;
+        this.snapshots = snapshots;
+        this.tx = tx;
+        this.enabled = enabled;
+        if (enabled) {
+            Gauge.builder("hospital.graph.memory", this, g -> g.read(() -> g.index.footprintBytes()))
+            .baseUnit("bytes").register(registry);
+            Gauge.builder("hospital.graph.memory.per.million.visits", this, VisitGraph::bytesPerMillionVisits)
+            .baseUnit("bytes").register(registry);
+            Gauge.builder("hospital.graph.edges", this, g -> g.read(() -> g.index.edgeCount())).register(registry);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    void load() {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            index = new AdjacencyIndex();
+            visits.reset();
+            var snapshot = snapshots.latest().orElse(null);
+            tx.executeWithoutResult(s -> {
+                if (snapshot == null) {
+                    try (var edges = visitRepo.streamEdges()) {
+                        edges.forEach(e -> index.append(e.hospitalId(), e.patientId(), e.month()));
+                    }
+                    index.seal();
+                } else {
+                    fromSnapshot(snapshot);
+                }
+                var liveHospitals = new HashSet<UUID>();
+                var livePatients = new HashSet<UUID>();
+                try (var rows = hospitalRepo.streamRows()) {
+                    rows.forEach(h -> {
+                        index.renameHospital(h.id(), h.name());
+                        if (snapshot != null) {
+                            liveHospitals.add(h.id());
+                        }
+                    });
+                }
+                try (var rows = patientRepo.streamRows()) {
+                    rows.forEach(p -> {
+                        index.renamePatient(p.id(), p.name());
+                        if (snapshot != null) {
+                            livePatients.add(p.id());
+                        }
+                    });
+                }
+                if (snapshot != null) {
+                    // deleted or purged after the snapshot was taken
+                    for (int i = 0; i < snapshot.hospitalCount(); i++) {
+                        if (!liveHospitals.contains(snapshot.hospitalId(i))) {
+                            index.removeHospital(snapshot.hospitalId(i));
+                        }
+                    }
+                    for (int i = 0; i < snapshot.patientCount(); i++) {
+                        if (!livePatients.contains(snapshot.patientId(i))) {
+                            index.removePatient(snapshot.patientId(i));
+                        }
+                    }
+                }
+            });
+            visits.add(visitRepo.count());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // pairs from the mapped snapshot, minus months retention dropped since, plus newer visits
+    private void fromSnapshot(VisitSnapshot snapshot) {
+        var hospitalIds = new UUID[snapshot.hospitalCount()];
+        for (int i = 0; i < hospitalIds.length; i++) {
+            hospitalIds[i] = snapshot.hospitalId(i);
+        }
+        var patientIds = new UUID[snapshot.patientCount()];
+        for (int i = 0; i < patientIds.length; i++) {
+            patientIds[i] = snapshot.patientId(i);
+        }
+        var oldest = visitRepo.oldestMonth();
+        long firstDay = oldest == null ? Long.MAX_VALUE
+        : LocalDate.of(oldest / 12, oldest % 12 + 1, 1).toEpochDay();
+        for (int i = 0; i < snapshot.visitCount(); i++) {
+            long day = snapshot.visitEpochDay(i);
+            if (day >= firstDay) {
+                index.append(hospitalIds[snapshot.visitHospital(i)], patientIds[snapshot.visitPatient(i)],
+                Visit.monthIndex(LocalDate.ofEpochDay(day)));
+            }
+        }
+        index.seal();
+        for (int i = 0; i < hospitalIds.length; i++) {
+            index.renameHospital(hospitalIds[i], snapshot.hospitalName(i));
+        }
+        for (int i = 0; i < patientIds.length; i++) {
+            index.renamePatient(patientIds[i], snapshot.patientName(i));
+        }
+        long[] caughtUp = new long[1];
+        try (var edges = visitRepo.streamEdgesAfter(snapshot.committedThrough())) {
+            edges.forEach(e -> {
+                index.add(e.hospitalId(), null, e.patientId(), null, e.month());
+                caughtUp[0]++;
+            });
+        }
+        log.info("visit graph loaded from a snapshot of {} visits, {} pairs caught up", snapshot.visitCount(), caughtUp[0]);
+    }
+
+    public List<PatientRow> patientsOf(UUID hospitalId) {
+        return read(() -> index.patientsOf(hospitalId, PatientRow::new));
+    }
+
+    public List<HospitalRow> hospitalsOf(UUID patientId) {
+        return read(() -> index.hospitalsOf(patientId, HospitalRow::new));
+    }
+
+    double bytesPerMillionVisits() {
+        long n = visits.sum();
+        return n == 0 ? 0 : read(() -> index.footprintBytes()) * 1e6 / n;
+    }
+
+    private <T> T read(Supplier<T> f) {
+        lock.readLock().lock();
+        try {
+            return f.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void write(Runnable r) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            r.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void onVisit(Visit v) {
+        write(() -> index.add(v.getHospital().getId(), v.getHospital().getName(),
+        v.getPatient().getId(), v.getPatient().getName(), v.getVisitMonth()));
+        visits.increment();
+    }
+
+    // a pair goes once its newest visit has expired; the index knows that month per pair
+    @Override
+    public void onVisitsExpired(YearMonth before) {
+        if (!enabled) {
+            return;
+        }
+        write(() -> {
+            long dropped = index.expireBefore(Visit.monthIndex(before.atDay(1)));
+            log.info("visit graph dropped {} pairs without visits since {}", dropped, before);
+        });
+        visits.reset();
+        visits.add(visitRepo.count());
+    }
+    
+    @Override
+    public void onHospitalSaved(Hospital h) {
+        write(() -> index.renameHospital(h.getId(), h.getName()));
+    }
+
+    @Override
+    public void onPatientSaved(Patient p) {
+        write(() -> index.renamePatient(p.getId(), p.getName()));
+    }
+
+    @Override
+    public void onHospitalDeleted(UUID hospitalId) {
+        write(() -> index.removeHospital(hospitalId));
+    }
+
+    @Override
+    public void onPatientDeleted(UUID patientId) {
+        write(() -> index.removePatient(patientId));
+    }
+}
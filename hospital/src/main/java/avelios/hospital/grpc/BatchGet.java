@@ -0,0 +1,70 @@
+package avelios.hospital.grpc;
+
+import com.google.protobuf.FieldMask;
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Shared by the BatchGet RPCs. The distinct requested ids are looked up in IN-queries of at
+ * most {@link #CHUNK} ids; Hibernate pads every IN list to the next power of two
+ * ({@code in_clause_parameter_padding}), so any batch size maps onto a handful of statement
+ * shapes in the database's plan cache. The caller then answers every requested id in request
+ * order, found or not. The shard router validates with the same limit and parser before it
+ * splits a batch across shards.
+ */
+public final class BatchGet {
+
+    public static final int MAX_IDS = 1000;
+    static final int CHUNK = 256;
+
+    private BatchGet() {}
+
+    /** The requested ids, parsed; INVALID_ARGUMENT for more than {@link #MAX_IDS} or a malformed one. */
+    public static List<UUID> ids(List<String> ids) {
+        if (ids.size() > MAX_IDS) {
+            throw Status.INVALID_ARGUMENT.withDescription("at most " + MAX_IDS + " ids per call").asRuntimeException();
+        }
+        var parsed = new ArrayList<UUID>(ids.size());
+        for (var id : ids) {
+            try {
+                parsed.add(UUID.fromString(id));
+            } catch (IllegalArgumentException e) {
+                throw Status.INVALID_ARGUMENT.withDescription("malformed id " + id).asRuntimeException();
+            }
+        }
+        return parsed;
+    }
+
+    /** The fields a read mask asks for, all of {@code known} when it is empty; INVALID_ARGUMENT for others. */
+    static Set<String> fields(FieldMask mask, Set<String> known) {
+        if (mask.getPathsCount() == 0) {
+            return known;
+        }
+        for (var path : mask.getPathsList()) {
+            if (!path.equals("id") && !known.contains(path)) {
+                throw Status.INVALID_ARGUMENT.withDescription("unknown field " + path).asRuntimeException();
+            }
+        }
+        return Set.copyOf(mask.getPathsList());
+    }
+
+    /** Entities found for the ids, by id, one query per {@link #CHUNK} distinct ids. */
+    static <E> Map<UUID, E> load(List<UUID> ids, Function<List<UUID>, List<E>> query, Function<E, UUID> idOf) {
+        var distinct = List.copyOf(new LinkedHashSet<>(ids));
+        var found = new HashMap<UUID, E>(distinct.size() * 2);
+        for (int from = 0; from < distinct.size(); from += CHUNK) {
+            for (var e : query.apply(distinct.subList(from, Math.min(distinct.size(), from + CHUNK)))) {
+                found.put(idOf.apply(e), e);
+            }
+        }
+        return found;
+    }
+}
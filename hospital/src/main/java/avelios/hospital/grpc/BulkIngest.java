@@ -0,0 +1,106 @@
+package avelios.hospital.grpc;
+
+import avelios.hospital.config.DbPermitInterceptor;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Request side of the bulk ingest RPCs: groups incoming messages into batches of
+ * {@code batchSize}, hands each batch to a writer (one transaction per batch), acknowledges
+ * it, and sends a summary with the overall throughput when the client half-closes. Each batch
+ * takes a DB permit of the call, if it has any ({@link DbPermitInterceptor}).
+ *
+ * A failing batch is acknowledged with its error and counted as rejected; the stream goes on.
+ */
+final class BulkIngest<T> implements StreamObserver<T> {
+    
+    /**
+     * Outcome of one batch: ids of created rows in input order ("" for rejected rows), if any, and
+     * how many of the accepted rows were already stored.
+     */
+    record Result(List<String> ids, int rejected, int duplicates) {
+        
+        Result(List<String> ids, int rejected) {
+            this(ids, rejected, 0);
+        }
+    }
+    
+    @FunctionalInterface
+    interface Writer<T> {
+        Result write(List<T> batch);
+    }
+    
+    private final StreamObserver<avelios.hospital.grpc.BulkIngestReply> out;
+    private final int batchSize;
+    private final Writer<T> writer;
+    // null unless the handlers run on virtual threads
+    private final Semaphore permits = DbPermitInterceptor.STREAM_PERMITS.get();
+    private final long startNanos = System.nanoTime();
+    private List<T> buffer;
+    private long batches, accepted, rejected, duplicates;
+    
+    BulkIngest(StreamObserver<avelios.hospital.grpc.BulkIngestReply> out, int batchSize, Writer<T> writer) {
+        this.out = out;
+        this.batchSize = batchSize;
+        this.writer = writer;
+        this.buffer = new ArrayList<>(batchSize);
+    }
+    
+    @Override
+    public void onNext(T value) {
+        buffer.add(value);
+        if (buffer.size() >= batchSize) {
+            flush();
+        }
+    }
+    
+    @Override
+    public void onError(Throwable t) {
+        // client went away; whatever is buffered was never acknowledged, so drop it
+        buffer.clear();
+    }
+    
+    @Override
+    public void onCompleted() {
+        if (!buffer.isEmpty()) {
+            flush();
+        }
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        out.onNext(avelios.hospital.grpc.BulkIngestReply.newBuilder()
+        .setSummary(avelios.hospital.grpc.BulkIngestSummary.newBuilder()
+        .setBatches(batches)
+        .setAccepted(accepted)
+        .setRejected(rejected)
+        .setDuplicates(duplicates)
+        .setElapsedMillis(elapsedNanos / 1_000_000)
+        .setRowsPerSec(accepted * 1e9 / elapsedNanos))
+        .build());
+        out.onCompleted();
+    }
+    
+    private void flush() {
+        var batch = buffer;
+        buffer = new ArrayList<>(batchSize);
+        var ack = avelios.hospital.grpc.BulkBatchAck.newBuilder().setBatch(++batches);
+        try {
+            var res = DbPermitInterceptor.withPermit(permits, () -> writer.write(batch));
+            ack.setAccepted(batch.size() - res.rejected())
+            .setRejected(res.rejected())
+            .setDuplicates(res.duplicates())
+            .addAllIds(res.ids());
+        } catch (RuntimeException e) {
+            ack.setAccepted(0)
+            .setRejected(batch.size())
+            .setError(Status.fromThrowable(e).getCode() + ": " + e.getMessage());
+        }
+        accepted += ack.getAccepted();
+        rejected += ack.getRejected();
+        duplicates += ack.getDuplicates();
+        out.onNext(avelios.hospital.grpc.BulkIngestReply.newBuilder().setBatch(ack).build());
+    }
+}
@@ -1,31 +1,91 @@
 package avelios.hospital.grpc;
 
+import avelios.hospital.cache.EntityCache;
 import avelios.hospital.entity.Hospital;
 import avelios.hospital.entity.Visit;
+import avelios.hospital.events.ChangeEvents;
+import avelios.hospital.ingest.BulkWriter;
+import avelios.hospital.ingest.VisitRegistrar;
+import avelios.hospital.ingest.VisitWrites;
 import avelios.hospital.repo.HospitalRepo;
-import avelios.hospital.repo.PatientRepo;
+import avelios.hospital.repo.HospitalRow;
+import avelios.hospital.repo.PatientRow;
 import avelios.hospital.repo.VisitRepo;
+import avelios.hospital.repo.VisitRow;
+import avelios.hospital.snapshot.VisitSnapshots;
+import avelios.hospital.stats.DistinctPatientStore;
+import avelios.hospital.stats.VisitStatsStore;
+import avelios.hospital.watch.VisitFeed;
 
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.ServerServiceDefinition;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.server.service.GrpcService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 
+import java.time.DateTimeException;
 import java.time.LocalDate;
-import java.util.HashSet;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static avelios.hospital.grpc.Protos.*;
 
 @GrpcService
+// a shard router (hospital.shard.targets) serves the routing services in avelios.hospital.shard instead
+@ConditionalOnExpression("'${hospital.shard.targets:}'.isEmpty()")
 public class HospitalGrpcService extends HospitalServiceGrpc.HospitalServiceImplBase {
     
+    private static final int SNAPSHOT_CHUNK_BYTES = 1 << 20;
+    private static final Set<String> HOSPITAL_FIELDS = Set.of("name");
+    
     private final HospitalRepo hospitals;
-    private final PatientRepo patients;
     private final VisitRepo visits;
+    private final VisitStatsStore stats;
+    private final DistinctPatientStore distinct;
+    private final BulkWriter writer;
+    private final VisitRegistrar registrar;
+    private final VisitWrites visitWrites;
+    private final EntityCache cache;
+    private final ListReplies lists;
+    private final ChangeEvents events;
+    private final VisitFeed feed;
+    private final VisitSnapshots snapshots;
+    private final int ingestBatchSize;
+    private final int retentionMonths;
+    private final int registerStreamWindow;
     
-    public HospitalGrpcService(HospitalRepo hospitals, PatientRepo patients, VisitRepo visits) {
+    public HospitalGrpcService(HospitalRepo hospitals, VisitRepo visits,
+    VisitStatsStore stats, DistinctPatientStore distinct, BulkWriter writer, VisitRegistrar registrar,
+    VisitWrites visitWrites, EntityCache cache, ListReplies lists,
+    ChangeEvents events, VisitFeed feed, VisitSnapshots snapshots,
+    @Value("${hospital.ingest.batch-size:500}") int ingestBatchSize,
+    @Value("${hospital.retention.months:120}") int retentionMonths,
+    @Value("${hospital.register.stream-window:128}") int registerStreamWindow) {
         this.hospitals = hospitals;
-        this.patients = patients;
         this.visits = visits;
+        this.stats = stats;
+        this.distinct = distinct;
+        this.writer = writer;
+        this.registrar = registrar;
+        this.visitWrites = visitWrites;
+        this.cache = cache;
+        this.lists = lists;
+        this.events = events;
+        this.feed = feed;
+        this.snapshots = snapshots;
+        this.ingestBatchSize = ingestBatchSize;
+        this.retentionMonths = retentionMonths;
+        this.registerStreamWindow = registerStreamWindow;
     }
     
     private static UUID uuid(String s) {
@@ -39,9 +99,21 @@ public class HospitalGrpcService extends HospitalServiceGrpc.HospitalServiceImpl
             out.onError(Status.INVALID_ARGUMENT.withDescription("name required").asRuntimeException());
             return;
         }
-        var h = new Hospital();
+        Hospital h;
+        try {
+            h = new Hospital(optionalId(req.getId()));
+        } catch (IllegalArgumentException e) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("malformed id").asRuntimeException());
+            return;
+        }
         h.setName(req.getName());
-        hospitals.save(h);
+        try {
+            hospitals.save(h);
+        } catch (DataIntegrityViolationException e) {
+            out.onError(Status.ALREADY_EXISTS.withDescription("hospital id taken").asRuntimeException());
+            return;
+        }
+        events.hospitalSaved(h);
         
         out.onNext(avelios.hospital.grpc.HospitalId.newBuilder()
         .setId(h.getId().toString())
@@ -53,12 +125,13 @@ public class HospitalGrpcService extends HospitalServiceGrpc.HospitalServiceImpl
     public void updateHospital(avelios.hospital.grpc.UpdateHospitalRequest req,
     StreamObserver<avelios.hospital.grpc.Hospital> out) {
         var id = uuid(req.getId());
-        var h = hospitals.findById(id).orElseThrow(() ->
+        var h = hospitals.findByIdAndDeletedFalse(id).orElseThrow(() ->
         Status.NOT_FOUND.withDescription("hospital not found").asRuntimeException());
         if (!req.getName().isBlank()) {
             h.setName(req.getName());
         }
         hospitals.save(h);
+        events.hospitalSaved(h);
         
         out.onNext(avelios.hospital.grpc.Hospital.newBuilder()
         .setId(h.getId().toString())
@@ -71,7 +144,8 @@ public class HospitalGrpcService extends HospitalServiceGrpc.HospitalServiceImpl
     public void deleteHospital(avelios.hospital.grpc.HospitalId req,
     StreamObserver<avelios.hospital.grpc.DeleteHospitalResponse> out) {
         var id = uuid(req.getId());
-        if (!hospitals.existsById(id)) {
+        // flag only: reads skip the hospital from now on, Purger removes its visits and the row
+        if (hospitals.markDeleted(id) == 0) {
             out.onNext(avelios.hospital.grpc.DeleteHospitalResponse.newBuilder()
             .setDeleted(false)
             .setId(req.getId())
@@ -80,7 +154,7 @@ public class HospitalGrpcService extends HospitalServiceGrpc.HospitalServiceImpl
             return;
         }
         
-        hospitals.deleteById(id);
+        events.hospitalDeleted(id);
         
         out.onNext(avelios.hospital.grpc.DeleteHospitalResponse.newBuilder()
         .setDeleted(true)
@@ -89,54 +163,319 @@ public class HospitalGrpcService extends HospitalServiceGrpc.HospitalServiceImpl
         out.onCompleted();
     }
     
+    /** ListHospitals and ListPatientsOfHospital answer with cached bytes, see {@link ListReplies}. */
     @Override
-    public void listHospitals(avelios.hospital.grpc.ListHospitalsRequest req,
-    StreamObserver<avelios.hospital.grpc.HospitalList> out) {
-        var list = avelios.hospital.grpc.HospitalList.newBuilder();
-        hospitals.findAll().forEach(h ->
-        list.addHospitals(avelios.hospital.grpc.HospitalTuple.newBuilder()
-        .setId(h.getId().toString())
-        .setName(h.getName())));
-        out.onNext(list.build());
-        out.onCompleted();
+    public ServerServiceDefinition bindService() {
+        return SerializedResponses.rebind(super.bindService())
+        .unary(HospitalServiceGrpc.getListHospitalsMethod(), this::listHospitalsSerialized)
+        .unary(HospitalServiceGrpc.getListPatientsOfHospitalMethod(), this::listPatientsOfHospitalSerialized)
+        .build();
+    }
+    
+    private void listHospitalsSerialized(avelios.hospital.grpc.ListHospitalsRequest req, StreamObserver<byte[]> out) {
+        lists.hospitals(ListReplies.V1, req.getIfVersion(), out);
+    }
+    
+    private void listPatientsOfHospitalSerialized(avelios.hospital.grpc.ListPatientsOfHospitalRequest req,
+    StreamObserver<byte[]> out) {
+        lists.patientsOfHospital(ListReplies.V1, uuid(req.getHospitalId()), req.getIfVersion(), out);
     }
     
     @Override
-    public void listPatientsOfHospital(avelios.hospital.grpc.HospitalId req,
-    StreamObserver<avelios.hospital.grpc.PatientList> out) {
-        var id = uuid(req.getId());
-        var list = avelios.hospital.grpc.PatientList.newBuilder();
+    public void batchGetHospitals(avelios.hospital.grpc.BatchGetHospitalsRequest req,
+    StreamObserver<avelios.hospital.grpc.BatchGetHospitalsResponse> out) {
+        List<UUID> ids;
+        Set<String> fields;
+        try {
+            ids = BatchGet.ids(req.getIdsList());
+            fields = BatchGet.fields(req.getReadMask(), HOSPITAL_FIELDS);
+        } catch (StatusRuntimeException e) {
+            out.onError(e);
+            return;
+        }
+        var found = BatchGet.load(ids, hospitals::findByIdInAndDeletedFalse, Hospital::getId);
         
-        // distinct patients via a set
-        Set<UUID> seen = new HashSet<>();
-        visits.findByHospital_Id(id).forEach(v -> {
-            var p = v.getPatient();
-            if (seen.add(p.getId())) {
-                list.addPatients(avelios.hospital.grpc.PatientTuple.newBuilder()
-                .setId(p.getId().toString())
-                .setName(p.getName()));
+        var reply = avelios.hospital.grpc.BatchGetHospitalsResponse.newBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            var h = found.get(ids.get(i));
+            if (h == null) {
+                reply.addResults(avelios.hospital.grpc.HospitalResult.newBuilder().setNotFound(req.getIds(i)));
+                continue;
             }
-        });
-        out.onNext(list.build());
+            var hospital = avelios.hospital.grpc.Hospital.newBuilder().setId(h.getId().toString());
+            if (fields.contains("name")) hospital.setName(h.getName());
+            reply.addResults(avelios.hospital.grpc.HospitalResult.newBuilder().setHospital(hospital));
+        }
+        out.onNext(reply.build());
         out.onCompleted();
     }
     
     @Override
     public void registerPatient(avelios.hospital.grpc.RegisterPatientRequest req,
     StreamObserver<avelios.hospital.grpc.RegisterAck> out) {
-        var p = patients.findById(uuid(req.getPatientId())).orElse(null);
-        var h = hospitals.findById(uuid(req.getHospitalId())).orElse(null);
+        register(req).whenComplete((ack, err) -> {
+            if (err != null) {
+                out.onError(RegisterStream.statusOf(err).asRuntimeException());
+                return;
+            }
+            out.onNext(ack);
+            out.onCompleted();
+        });
+    }
+    
+    @Override
+    public StreamObserver<avelios.hospital.grpc.RegisterStreamRequest> registerStream(
+    StreamObserver<avelios.hospital.grpc.RegisterStreamAck> out) {
+        return RegisterStream.start(out, registerStreamWindow, this::register);
+    }
+    
+    // throws IllegalArgumentException for a malformed id; everything else fails the future
+    private CompletableFuture<avelios.hospital.grpc.RegisterAck> register(avelios.hospital.grpc.RegisterPatientRequest req) {
+        // both lookups are cache hits for hot entities, leaving only the Visit insert
+        var p = cache.patient(uuid(req.getPatientId())).orElse(null);
+        var h = cache.hospital(uuid(req.getHospitalId())).orElse(null);
         if (p == null || h == null) {
-            out.onError(Status.NOT_FOUND.withDescription("patient or hospital not found").asRuntimeException());
-            return;
+            return CompletableFuture.failedFuture(
+            Status.NOT_FOUND.withDescription("patient or hospital not found").asRuntimeException());
         }
-        visits.save(new Visit(h, p, LocalDate.now()));
-        
-        out.onNext(avelios.hospital.grpc.RegisterAck.newBuilder()
+        // with group commit this completes on the committer thread once the batch is durable
+        return registrar.register(p, h).thenApply(r -> avelios.hospital.grpc.RegisterAck.newBuilder()
         .setRegistered(true)
         .setPatientId(req.getPatientId())
         .setHospitalId(req.getHospitalId())
+        .setDuplicate(r.duplicate())
         .build());
+    }
+    
+    @Override
+    public void getVisitStatistics(avelios.hospital.grpc.VisitStatisticsRequest req,
+    StreamObserver<avelios.hospital.grpc.VisitStatistics> out) {
+        var id = uuid(req.getHospitalId());
+        if (cache.hospital(id).isEmpty()) {
+            out.onError(Status.NOT_FOUND.withDescription("hospital not found").asRuntimeException());
+            return;
+        }
+        var res = avelios.hospital.grpc.VisitStatistics.newBuilder()
+        .setHospitalId(req.getHospitalId());
+        long count = 0, ageDays = 0;
+        for (var b : stats.window(id, LocalDate.now(), req.getIncludeCurrentMonth())) {
+            res.addBuckets(avelios.hospital.grpc.MonthlyVisitBucket.newBuilder()
+            .setYear(b.month().getYear())
+            .setMonth(b.month().getMonthValue())
+            .setSex(toProtoSex(b.sex()))
+            .setVisitsCount(b.visitsCount())
+            .setAgeDaysSum(b.ageDaysSum())
+            .setAvgAgeYears(b.avgAgeYears()));
+            count += b.visitsCount();
+            ageDays += b.ageDaysSum();
+        }
+        res.setVisitsCount(count);
+        res.setAvgAgeYears(count == 0 ? 0 : (ageDays / (double) count) / VisitStatsStore.DAYS_PER_YEAR);
+        
+        out.onNext(res.build());
         out.onCompleted();
     }
+    
+    @Override
+    public void countDistinctPatients(avelios.hospital.grpc.CountDistinctPatientsRequest req,
+    StreamObserver<avelios.hospital.grpc.DistinctPatientCount> out) {
+        var id = uuid(req.getHospitalId());
+        if (cache.hospital(id).isEmpty()) {
+            out.onError(Status.NOT_FOUND.withDescription("hospital not found").asRuntimeException());
+            return;
+        }
+        YearMonth from, to;
+        try {
+            to = req.hasToMonth() ? YearMonth.of(req.getToMonth().getYear(), req.getToMonth().getMonth()) : YearMonth.now();
+            from = req.hasFromMonth() ? YearMonth.of(req.getFromMonth().getYear(), req.getFromMonth().getMonth()) : to;
+        } catch (DateTimeException e) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("invalid month").asRuntimeException());
+            return;
+        }
+        if (to.isBefore(from)) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("to_month is before from_month").asRuntimeException());
+            return;
+        }
+        var e = distinct.distinctPatients(id, from, to);
+        out.onNext(avelios.hospital.grpc.DistinctPatientCount.newBuilder()
+        .setHospitalId(req.getHospitalId())
+        .setDistinctPatients(e.distinctPatients())
+        .setRelativeError(e.relativeError())
+        .setMonths(e.months())
+        .build());
+        out.onCompleted();
+    }
+    
+    @Override
+    public void streamHospitals(avelios.hospital.grpc.StreamHospitalsRequest req,
+    StreamObserver<avelios.hospital.grpc.HospitalChunk> out) {
+        KeysetStreamer.stream(out, req.getPageSize(), req.getResumeToken(),
+        (after, limit) -> after == null
+        ? hospitals.firstPage(PageRequest.of(0, limit))
+        : hospitals.pageAfter(after, PageRequest.of(0, limit)),
+        HospitalRow::id,
+        (rows, token) -> {
+            var chunk = avelios.hospital.grpc.HospitalChunk.newBuilder().setResumeToken(token);
+            rows.forEach(h -> chunk.addHospitals(avelios.hospital.grpc.HospitalTuple.newBuilder()
+            .setId(h.id().toString())
+            .setName(h.name())));
+            return chunk.build();
+        });
+    }
+    
+    @Override
+    public void streamPatientsOfHospital(avelios.hospital.grpc.StreamPatientsOfHospitalRequest req,
+    StreamObserver<avelios.hospital.grpc.PatientChunk> out) {
+        var id = uuid(req.getHospitalId());
+        KeysetStreamer.stream(out, req.getPageSize(), req.getResumeToken(),
+        (after, limit) -> after == null
+        ? visits.firstPatientsPage(id, PageRequest.of(0, limit))
+        : visits.patientsPageAfter(id, after, PageRequest.of(0, limit)),
+        PatientRow::id,
+        (rows, token) -> {
+            var chunk = avelios.hospital.grpc.PatientChunk.newBuilder().setResumeToken(token);
+            rows.forEach(p -> chunk.addPatients(avelios.hospital.grpc.PatientTuple.newBuilder()
+            .setId(p.id().toString())
+            .setName(p.name())));
+            return chunk.build();
+        });
+    }
+    
+    @Override
+    public void listVisits(avelios.hospital.grpc.ListVisitsRequest req,
+    StreamObserver<avelios.hospital.grpc.VisitChunk> out) {
+        var id = uuid(req.getHospitalId());
+        if (cache.hospital(id).isEmpty()) {
+            out.onError(Status.NOT_FOUND.withDescription("hospital not found").asRuntimeException());
+            return;
+        }
+        LocalDate from, to;
+        try {
+            to = req.hasTo() ? toJavaLocalDate(req.getTo()) : LocalDate.now();
+            from = req.hasFrom() ? toJavaLocalDate(req.getFrom())
+            : LocalDate.now().withDayOfMonth(1).minusMonths(retentionMonths);
+        } catch (DateTimeException e) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("invalid date").asRuntimeException());
+            return;
+        }
+        if (to.isBefore(from)) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("to is before from").asRuntimeException());
+            return;
+        }
+        int fromMonth = Visit.monthIndex(from), toMonth = Visit.monthIndex(to);
+        // keyed by (visit date, id); the resume token is "<date>/<id>"
+        KeysetStreamer.stream(out, req.getPageSize(), req.getResumeToken(),
+        token -> {
+            int slash = token.indexOf('/');
+            return new VisitRow(Long.parseLong(token.substring(slash + 1)), null, LocalDate.parse(token.substring(0, slash)));
+        },
+        row -> row.visitDate() + "/" + row.id(),
+        (after, limit) -> visits.visitsBetween(id, fromMonth, toMonth, to,
+        after == null ? from : after.visitDate(), after == null ? -1L : after.id(), PageRequest.of(0, limit)),
+        row -> row,
+        (rows, token) -> {
+            var chunk = avelios.hospital.grpc.VisitChunk.newBuilder().setResumeToken(token);
+            rows.forEach(v -> chunk.addVisits(avelios.hospital.grpc.VisitTuple.newBuilder()
+            .setId(v.id())
+            .setPatientId(v.patientId().toString())
+            .setVisitDate(toProtoDate(v.visitDate()))));
+            return chunk.build();
+        });
+    }
+    
+    @Override
+    public void watchVisits(avelios.hospital.grpc.WatchVisitsRequest req,
+    StreamObserver<avelios.hospital.grpc.VisitEvent> out) {
+        UUID id = null;
+        if (!req.getHospitalId().isEmpty()) {
+            id = uuid(req.getHospitalId());
+            if (cache.hospital(id).isEmpty()) {
+                out.onError(Status.NOT_FOUND.withDescription("hospital not found").asRuntimeException());
+                return;
+            }
+        }
+        feed.subscribe(out, id);
+    }
+    
+    @Override
+    public void exportVisitSnapshot(avelios.hospital.grpc.ExportVisitSnapshotRequest req,
+    StreamObserver<avelios.hospital.grpc.SnapshotChunk> out) {
+        if (!snapshots.isEnabled()) {
+            out.onError(Status.FAILED_PRECONDITION.withDescription("hospital.snapshot.file is not set").asRuntimeException());
+            return;
+        }
+        var snapshot = req.getRefresh() ? snapshots.write() : snapshots.latest().orElseGet(snapshots::write);
+        // slices of the read-only mapping are wrapped, not copied; sent while the transport is ready
+        var bytes = snapshot.bytes();
+        int total = bytes.limit();
+        var call = (ServerCallStreamObserver<avelios.hospital.grpc.SnapshotChunk>) out;
+        call.setOnCancelHandler(() -> {});
+        call.setOnReadyHandler(new Runnable() {
+            private int offset;
+            
+            @Override
+            public void run() {
+                while (offset < total && call.isReady()) {
+                    int n = Math.min(SNAPSHOT_CHUNK_BYTES, total - offset);
+                    call.onNext(avelios.hospital.grpc.SnapshotChunk.newBuilder()
+                    .setOffset(offset)
+                    .setTotalSize(total)
+                    .setData(UnsafeByteOperations.unsafeWrap(bytes.slice(offset, n)))
+                    .build());
+                    offset += n;
+                    if (offset == total) {
+                        call.onCompleted();
+                    }
+                }
+            }
+        });
+    }
+    
+    @Override
+    public StreamObserver<avelios.hospital.grpc.CreateHospitalRequest> bulkCreateHospitals(
+    StreamObserver<avelios.hospital.grpc.BulkIngestReply> out) {
+        return new BulkIngest<>(out, ingestBatchSize, batch -> {
+            var created = new ArrayList<Hospital>(batch.size());
+            var slots = new ArrayList<Hospital>(batch.size());
+            for (var r : batch) {
+                Hospital h = null;
+                try {
+                    if (!r.getName().isBlank()) {
+                        h = new Hospital(optionalId(r.getId()));
+                        h.setName(r.getName());
+                        created.add(h);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // malformed id: rejected
+                }
+                slots.add(h);
+            }
+            writer.insert(created);
+            created.forEach(events::hospitalSaved);
+            return new BulkIngest.Result(
+            slots.stream().map(h -> h == null ? "" : h.getId().toString()).toList(),
+            batch.size() - created.size());
+        });
+    }
+    
+    @Override
+    public StreamObserver<avelios.hospital.grpc.RegisterPatientRequest> bulkRegisterVisits(
+    StreamObserver<avelios.hospital.grpc.BulkIngestReply> out) {
+        return new BulkIngest<>(out, ingestBatchSize, batch -> {
+            var today = LocalDate.now();
+            var drafts = new ArrayList<BulkWriter.VisitDraft>(batch.size());
+            for (var r : batch) {
+                try {
+                    drafts.add(new BulkWriter.VisitDraft(uuid(r.getPatientId()), uuid(r.getHospitalId()),
+                    r.hasVisitDate() ? toJavaLocalDate(r.getVisitDate()) : today));
+                } catch (IllegalArgumentException | DateTimeException e) {
+                    // malformed id or date: rejected, the rest of the batch still goes in
+                }
+            }
+            var written = visitWrites.insert(() -> writer.insertVisits(drafts));
+            written.stored().forEach(events::visit);
+            return new BulkIngest.Result(java.util.List.of(),
+            batch.size() - written.stored().size() - written.duplicates(), written.duplicates());
+        });
+    }
 }
@@ -0,0 +1,30 @@
+package avelios.hospital.grpc;
+
+import io.grpc.ServerServiceDefinition;
+import net.devh.boot.grpc.server.service.GrpcService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+
+import java.util.UUID;
+
+/** {@code hospital.v2.HospitalService}: the v1 list calls with binary ids, see {@link ListReplies}. */
+@GrpcService
+@ConditionalOnExpression("'${hospital.shard.targets:}'.isEmpty()")
+public class HospitalV2GrpcService
+extends avelios.hospital.grpc.v2.HospitalServiceGrpc.HospitalServiceImplBase {
+    
+    private final ListReplies lists;
+    
+    public HospitalV2GrpcService(ListReplies lists) {
+        this.lists = lists;
+    }
+    
+    @Override
+    public ServerServiceDefinition bindService() {
+        return SerializedResponses.rebind(super.bindService())
+        .unary(avelios.hospital.grpc.v2.HospitalServiceGrpc.getListHospitalsMethod(),
+        (req, out) -> lists.hospitals(ListReplies.V2, req.getIfVersion(), out))
+        .unary(avelios.hospital.grpc.v2.HospitalServiceGrpc.getListPatientsOfHospitalMethod(),
+        (req, out) -> lists.patientsOfHospital(ListReplies.V2, new UUID(req.getHi(), req.getLo()), req.getIfVersion(), out))
+        .build();
+    }
+}
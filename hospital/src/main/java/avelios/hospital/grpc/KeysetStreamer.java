@@ -0,0 +1,115 @@
+package avelios.hospital.grpc;
+
+import avelios.hospital.config.DbPermitInterceptor;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Drives a server stream over a table page by page using keyset pagination, by default on
+ * the UUID primary key. A page is only fetched while the transport reports {@code isReady()},
+ * so at most one page is held on the heap regardless of the table size. Each page load takes
+ * a DB permit of the call, if it has any ({@link DbPermitInterceptor}).
+ *
+ * The resume token of each chunk is the key of the last row it contains; passing it back
+ * continues right after that row.
+ */
+final class KeysetStreamer<K, R, M> implements Runnable {
+
+    static final int DEFAULT_PAGE_SIZE = 500;
+    static final int MAX_PAGE_SIZE = 5000;
+
+    /** Loads up to {@code limit} rows with a key greater than {@code after} ({@code null} = from the start). */
+    @FunctionalInterface
+    interface PageLoader<K, R> {
+        List<R> load(K after, int limit);
+    }
+
+    private final ServerCallStreamObserver<M> out;
+    private final PageLoader<K, R> loader;
+    private final Function<R, K> key;
+    private final Function<K, String> format;
+    private final BiFunction<List<R>, String, M> chunk;
+    private final int pageSize;
+    // null unless the handlers run on virtual threads
+    private final Semaphore permits = DbPermitInterceptor.STREAM_PERMITS.get();
+    private K after;
+    private volatile boolean done;
+
+    private KeysetStreamer(ServerCallStreamObserver<M> out, int pageSize, K after, PageLoader<K, R> loader,
+    Function<R, K> key, Function<K, String> format, BiFunction<List<R>, String, M> chunk) {
+        this.out = out;
+        this.pageSize = pageSize;
+        this.after = after;
+        this.loader = loader;
+        this.key = key;
+        this.format = format;
+        this.chunk = chunk;
+    }
+
+    /**
+     * Starts streaming; must be called from the RPC handler itself, before it returns.
+     *
+     * @param chunk builds the message for one page, given the rows and the resume token
+     */
+    static <R, M> void stream(StreamObserver<M> out, int pageSize, String resumeToken,
+    PageLoader<UUID, R> loader, Function<R, UUID> key, BiFunction<List<R>, String, M> chunk) {
+        stream(out, pageSize, resumeToken, UUID::fromString, UUID::toString, loader, key, chunk);
+    }
+
+    /**
+     * Same, keyed by any {@code K} that {@code parse} and {@code format} map to and from the
+     * resume token; the loader must order rows by that key.
+     */
+    static <K, R, M> void stream(StreamObserver<M> out, int pageSize, String resumeToken,
+    Function<String, K> parse, Function<K, String> format,
+    PageLoader<K, R> loader, Function<R, K> key, BiFunction<List<R>, String, M> chunk) {
+        K after;
+        try {
+            after = resumeToken.isEmpty() ? null : parse.apply(resumeToken);
+        } catch (RuntimeException e) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("malformed resume_token").asRuntimeException());
+            return;
+        }
+        if (pageSize < 0) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("page_size must not be negative").asRuntimeException());
+            return;
+        }
+        int size = pageSize == 0 ? DEFAULT_PAGE_SIZE : Math.min(pageSize, MAX_PAGE_SIZE);
+
+        var call = (ServerCallStreamObserver<M>) out;
+        var streamer = new KeysetStreamer<>(call, size, after, loader, key, format, chunk);
+        call.setOnCancelHandler(() -> streamer.done = true);
+        call.setOnReadyHandler(streamer);
+    }
+
+    // invoked by gRPC whenever the call becomes ready; calls are serialized per call
+    @Override
+    public void run() {
+        try {
+            while (!done && out.isReady()) {
+                var page = DbPermitInterceptor.withPermit(permits, () -> loader.load(after, pageSize));
+                if (!page.isEmpty()) {
+                    after = key.apply(page.get(page.size() - 1));
+                    out.onNext(chunk.apply(page, format.apply(after)));
+                }
+                if (page.size() < pageSize) {
+                    done = true;
+                    out.onCompleted();
+                }
+            }
+        } catch (RuntimeException e) {
+            if (!done) {
+                done = true;
+                out.onError(Status.INTERNAL.withDescription(e.getMessage()).withCause(e).asRuntimeException());
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package avelios.hospital.grpc;
+
+import avelios.hospital.cache.EntityCache;
+import avelios.hospital.cache.ResponseCache;
+import avelios.hospital.graph.VisitGraph;
+import avelios.hospital.repo.HospitalRepo;
+import avelios.hospital.repo.HospitalRow;
+import avelios.hospital.repo.PatientRepo;
+import avelios.hospital.repo.PatientRow;
+import avelios.hospital.repo.VisitRepo;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The list calls of v1 and v2, which differ only in how ids are encoded: both read the same
+ * rows, share the versions and cached bytes of {@link ResponseCache} and fail the same way.
+ * Replies are serialized here; the services bind them through {@link SerializedResponses}.
+ */
+@Component
+class ListReplies {
+    
+    /** Serializes list replies with one API version's id encoding. */
+    interface Format {
+        ResponseCache.Ids ids();
+        
+        byte[] hospitals(long version, boolean notModified, List<HospitalRow> rows);
+        
+        byte[] patients(long version, boolean notModified, List<PatientRow> rows);
+    }
+    
+    static final Format V1 = new Format() {
+        @Override
+        public ResponseCache.Ids ids() {
+            return ResponseCache.Ids.STRINGS;
+        }
+        
+        @Override
+        public byte[] hospitals(long version, boolean notModified, List<HospitalRow> rows) {
+            var list = avelios.hospital.grpc.HospitalList.newBuilder().setVersion(version).setNotModified(notModified);
+            rows.forEach(h ->
+            list.addHospitals(avelios.hospital.grpc.HospitalTuple.newBuilder()
+            .setId(h.id().toString())
+            .setName(h.name())));
+            return list.build().toByteArray();
+        }
+        
+        @Override
+        public byte[] patients(long version, boolean notModified, List<PatientRow> rows) {
+            var list = avelios.hospital.grpc.PatientList.newBuilder().setVersion(version).setNotModified(notModified);
+            rows.forEach(p ->
+            list.addPatients(avelios.hospital.grpc.PatientTuple.newBuilder()
+            .setId(p.id().toString())
+            .setName(p.name())));
+            return list.build().toByteArray();
+        }
+    };
+    
+    static final Format V2 = new Format() {
+        @Override
+        public ResponseCache.Ids ids() {
+            return ResponseCache.Ids.BINARY;
+        }
+        
+        @Override
+        public byte[] hospitals(long version, boolean notModified, List<HospitalRow> rows) {
+            var list = avelios.hospital.grpc.v2.HospitalList.newBuilder().setVersion(version).setNotModified(notModified);
+            rows.forEach(h ->
+            list.addHospitals(avelios.hospital.grpc.v2.HospitalTuple.newBuilder()
+            .setIdHi(h.id().getMostSignificantBits())
+            .setIdLo(h.id().getLeastSignificantBits())
+            .setName(h.name())));
+            return list.build().toByteArray();
+        }
+        
+        @Override
+        public byte[] patients(long version, boolean notModified, List<PatientRow> rows) {
+            var list = avelios.hospital.grpc.v2.PatientList.newBuilder().setVersion(version).setNotModified(notModified);
+            rows.forEach(p ->
+            list.addPatients(avelios.hospital.grpc.v2.PatientTuple.newBuilder()
+            .setIdHi(p.id().getMostSignificantBits())
+            .setIdLo(p.id().getLeastSignificantBits())
+            .setName(p.name())));
+            return list.build().toByteArray();
+        }
+    };
+    
+    private final HospitalRepo hospitals;
+    private final PatientRepo patients;
+    private final VisitRepo visits;
+    private final VisitGraph graph;
+    private final EntityCache cache;
+    private final ResponseCache responses;
+    
+    ListReplies(HospitalRepo hospitals, PatientRepo patients, VisitRepo visits, VisitGraph graph,
+    EntityCache cache, ResponseCache responses) {
+        this.hospitals = hospitals;
+        this.patients = patients;
+        this.visits = visits;
+        this.graph = graph;
+        this.cache = cache;
+        this.responses = responses;
+    }
+    
+    // the version is read before the rows, so cached bytes are never tagged newer than their contents
+    void hospitals(Format format, long ifVersion, StreamObserver<byte[]> out) {
+        long version = responses.hospitalsVersion();
+        if (ifVersion == version) {
+            out.onNext(format.hospitals(version, true, List.of()));
+        } else {
+            out.onNext(responses.get(ResponseCache.ALL_HOSPITALS, format.ids(), version, v ->
+            format.hospitals(v, false, hospitals.findByDeletedFalse().stream()
+            .map(h -> new HospitalRow(h.getId(), h.getName())).toList())));
+        }
+        out.onCompleted();
+    }
+    
+    void patientsOfHospital(Format format, UUID id, long ifVersion, StreamObserver<byte[]> out) {
+        if (cache.hospital(id).isEmpty()) {
+            out.onError(Status.NOT_FOUND.withDescription("hospital not found").asRuntimeException());
+            return;
+        }
+        long version = responses.patientsVersion(id);
+        if (ifVersion == version) {
+            out.onNext(format.patients(version, true, List.of()));
+        } else {
+            out.onNext(responses.get(id, format.ids(), version, v ->
+            format.patients(v, false, graph.isEnabled() ? graph.patientsOf(id) : visits.patientsOfHospital(id))));
+        }
+        out.onCompleted();
+    }
+    
+    // ListPatients and ListHospitalsOfPatient carry no version and are not cached
+    void patients(Format format, StreamObserver<byte[]> out) {
+        out.onNext(format.patients(0, false, patients.findByDeletedFalse().stream()
+        .map(p -> new PatientRow(p.getId(), p.getName())).toList()));
+        out.onCompleted();
+    }
+    
+    void hospitalsOfPatient(Format format, UUID id, StreamObserver<byte[]> out) {
+        out.onNext(format.hospitals(0, false, graph.isEnabled() ? graph.hospitalsOf(id) : visits.hospitalsOfPatient(id)));
+        out.onCompleted();
+    }
+}
@@ -1,67 +1,79 @@
 package avelios.hospital.grpc;
 
 import avelios.hospital.entity.Patient;
+import avelios.hospital.events.ChangeEvents;
+import avelios.hospital.ingest.BulkWriter;
 import avelios.hospital.repo.PatientRepo;
-import avelios.hospital.repo.VisitRepo;
+import avelios.hospital.repo.PatientRow;
+import avelios.hospital.search.PatientSearch;
 
+import io.grpc.ServerServiceDefinition;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.server.service.GrpcService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 
-import java.time.LocalDate;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
+import static avelios.hospital.grpc.Protos.*;
+
 @GrpcService
+@ConditionalOnExpression("'${hospital.shard.targets:}'.isEmpty()")
 public class PatientGrpcService
 extends avelios.hospital.grpc.PatientServiceGrpc.PatientServiceImplBase {
     
     private final PatientRepo patients;
-    private final VisitRepo visits;
+    private final BulkWriter writer;
+    private final ListReplies lists;
+    private final ChangeEvents events;
+    private final PatientSearch search;
+    private final int ingestBatchSize;
+    
+    private static final int DEFAULT_SEARCH_LIMIT = 20;
+    private static final int MAX_SEARCH_LIMIT = 1000;
+    private static final Set<String> PATIENT_FIELDS = Set.of("name", "sex", "dob");
     
-    public PatientGrpcService(PatientRepo patients, VisitRepo visits) {
+    public PatientGrpcService(PatientRepo patients, BulkWriter writer,
+    ListReplies lists, ChangeEvents events, PatientSearch search,
+    @Value("${hospital.ingest.batch-size:500}") int ingestBatchSize) {
         this.patients = patients;
-        this.visits = visits;
+        this.writer = writer;
+        this.lists = lists;
+        this.events = events;
+        this.search = search;
+        this.ingestBatchSize = ingestBatchSize;
     }
     
     private static UUID uuid(String s) { return UUID.fromString(s); }
     
-    private static LocalDate toJavaLocalDate(avelios.hospital.grpc.LocalDate d) {
-        return LocalDate.of(d.getYear(), d.getMonth(), d.getDay());
-    }
-    
-    private static avelios.hospital.grpc.LocalDate toProtoDate(LocalDate d) {
-        return avelios.hospital.grpc.LocalDate.newBuilder()
-        .setYear(d.getYear())
-        .setMonth(d.getMonthValue())
-        .setDay(d.getDayOfMonth())
-        .build();
-    }
-    
-    private static Patient.Sex toEntitySex(avelios.hospital.grpc.Sex sx) {
-        return switch (sx) {
-            case MALE   -> Patient.Sex.MALE;
-            case FEMALE -> Patient.Sex.FEMALE;
-            case OTHER  -> Patient.Sex.OTHER;
-            default     -> Patient.Sex.SEX_UNSPECIFIED;
-        };
-    }
-    private static avelios.hospital.grpc.Sex toProtoSex(Patient.Sex sx) {
-        return switch (sx) {
-            case MALE            -> avelios.hospital.grpc.Sex.MALE;
-            case FEMALE          -> avelios.hospital.grpc.Sex.FEMALE;
-            case OTHER           -> avelios.hospital.grpc.Sex.OTHER;
-            case SEX_UNSPECIFIED -> avelios.hospital.grpc.Sex.SEX_UNSPECIFIED;
-        };
-    }
-    
     @Override
     public void createPatient(avelios.hospital.grpc.CreatePatientRequest req,
     StreamObserver<avelios.hospital.grpc.PatientId> out) {
-        var p = new Patient();
+        Patient p;
+        try {
+            p = new Patient(optionalId(req.getId()));
+        } catch (IllegalArgumentException e) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("malformed id").asRuntimeException());
+            return;
+        }
         p.setName(req.getName());
         p.setSex(toEntitySex(req.getSex()));
         p.setDob(toJavaLocalDate(req.getDob()));
-        patients.save(p);
+        try {
+            patients.save(p);
+        } catch (DataIntegrityViolationException e) {
+            out.onError(Status.ALREADY_EXISTS.withDescription("patient id taken").asRuntimeException());
+            return;
+        }
+        events.patientSaved(p);
         
         out.onNext(avelios.hospital.grpc.PatientId.newBuilder()
         .setId(p.getId().toString())
@@ -72,13 +84,18 @@ extends avelios.hospital.grpc.PatientServiceGrpc.PatientServiceImplBase {
     @Override
     public void updatePatient(avelios.hospital.grpc.UpdatePatientRequest req,
     StreamObserver<avelios.hospital.grpc.Patient> out) {
-        var p = patients.findById(uuid(req.getId())).orElseThrow(() ->
+        var p = patients.findByIdAndDeletedFalse(uuid(req.getId())).orElseThrow(() ->
         Status.NOT_FOUND.withDescription("patient not found").asRuntimeException());
         
+        var oldName = p.getName();
         if (!req.getName().isBlank()) p.setName(req.getName());
         p.setSex(toEntitySex(req.getSex()));
         p.setDob(toJavaLocalDate(req.getDob()));
         patients.save(p);
+        events.patientSaved(p);
+        if (!p.getName().equals(oldName)) {
+            events.patientRenamed(p);
+        }
         
         out.onNext(avelios.hospital.grpc.Patient.newBuilder()
         .setId(p.getId().toString())
@@ -89,47 +106,145 @@ extends avelios.hospital.grpc.PatientServiceGrpc.PatientServiceImplBase {
         out.onCompleted();
     }
     
+    @Override
+    public void getPatient(avelios.hospital.grpc.PatientId req,
+    StreamObserver<avelios.hospital.grpc.Patient> out) {
+        var p = patients.findByIdAndDeletedFalse(uuid(req.getId())).orElse(null);
+        if (p == null) {
+            out.onError(Status.NOT_FOUND.withDescription("patient not found").asRuntimeException());
+            return;
+        }
+        out.onNext(avelios.hospital.grpc.Patient.newBuilder()
+        .setId(p.getId().toString())
+        .setName(p.getName())
+        .setSex(toProtoSex(p.getSex()))
+        .setDob(toProtoDate(p.getDob()))
+        .build());
+        out.onCompleted();
+    }
+    
+    @Override
+    public void batchGetPatients(avelios.hospital.grpc.BatchGetPatientsRequest req,
+    StreamObserver<avelios.hospital.grpc.BatchGetPatientsResponse> out) {
+        List<UUID> ids;
+        Set<String> fields;
+        try {
+            ids = BatchGet.ids(req.getIdsList());
+            fields = BatchGet.fields(req.getReadMask(), PATIENT_FIELDS);
+        } catch (StatusRuntimeException e) {
+            out.onError(e);
+            return;
+        }
+        var found = BatchGet.load(ids, patients::findByIdInAndDeletedFalse, Patient::getId);
+        
+        var reply = avelios.hospital.grpc.BatchGetPatientsResponse.newBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            var p = found.get(ids.get(i));
+            if (p == null) {
+                reply.addResults(avelios.hospital.grpc.PatientResult.newBuilder().setNotFound(req.getIds(i)));
+                continue;
+            }
+            // fields outside the mask are neither converted nor sent
+            var patient = avelios.hospital.grpc.Patient.newBuilder().setId(p.getId().toString());
+            if (fields.contains("name")) patient.setName(p.getName());
+            if (fields.contains("sex")) patient.setSex(toProtoSex(p.getSex()));
+            if (fields.contains("dob")) patient.setDob(toProtoDate(p.getDob()));
+            reply.addResults(avelios.hospital.grpc.PatientResult.newBuilder().setPatient(patient));
+        }
+        out.onNext(reply.build());
+        out.onCompleted();
+    }
+    
     @Override
     public void deletePatient(avelios.hospital.grpc.PatientId req,
     StreamObserver<avelios.hospital.grpc.DeletePatientResponse> out) {
         var id = uuid(req.getId());
-        if (!patients.existsById(id)) {
+        // flag only: reads skip the patient from now on, Purger removes its visits and the row
+        if (patients.markDeleted(id) == 0) {
             out.onNext(avelios.hospital.grpc.DeletePatientResponse.newBuilder()
             .setDeleted(false).setId(req.getId()).build());
             out.onCompleted();
             return;
         }
-        patients.deleteById(id);
+        events.patientDeleted(id);
         out.onNext(avelios.hospital.grpc.DeletePatientResponse.newBuilder()
         .setDeleted(true).setId(req.getId()).build());
         out.onCompleted();
     }
     
+    /** ListPatients and ListHospitalsOfPatient are built by {@link ListReplies}, shared with v2. */
     @Override
-    public void listPatients(avelios.hospital.grpc.ListPatientsRequest req,
-    StreamObserver<avelios.hospital.grpc.PatientList> out) {
-        var list = avelios.hospital.grpc.PatientList.newBuilder();
-        patients.findAll().forEach(p ->
-        list.addPatients(avelios.hospital.grpc.PatientTuple.newBuilder()
-        .setId(p.getId().toString())
-        .setName(p.getName())));
-        out.onNext(list.build());
-        out.onCompleted();
+    public ServerServiceDefinition bindService() {
+        return SerializedResponses.rebind(super.bindService())
+        .unary(PatientServiceGrpc.getListPatientsMethod(), (req, out) -> lists.patients(ListReplies.V1, out))
+        .unary(PatientServiceGrpc.getListHospitalsOfPatientMethod(),
+        (req, out) -> lists.hospitalsOfPatient(ListReplies.V1, uuid(req.getId()), out))
+        .build();
     }
     
     @Override
-    public void listHospitalsOfPatient(avelios.hospital.grpc.PatientId req,
-    StreamObserver<avelios.hospital.grpc.HospitalList> out) {
-        var id = uuid(req.getId());
-        var list = avelios.hospital.grpc.HospitalList.newBuilder();
-        
-        visits.hospitalsOfPatient(id).forEach(h ->
-        list.addHospitals(avelios.hospital.grpc.HospitalTuple.newBuilder()
-        .setId(h.getId().toString())
-        .setName(h.getName()))
-        );
+    public void streamPatients(avelios.hospital.grpc.StreamPatientsRequest req,
+    StreamObserver<avelios.hospital.grpc.PatientChunk> out) {
+        KeysetStreamer.stream(out, req.getPageSize(), req.getResumeToken(),
+        (after, limit) -> after == null
+        ? patients.firstPage(PageRequest.of(0, limit))
+        : patients.pageAfter(after, PageRequest.of(0, limit)),
+        PatientRow::id,
+        (rows, token) -> {
+            var chunk = avelios.hospital.grpc.PatientChunk.newBuilder().setResumeToken(token);
+            rows.forEach(p -> chunk.addPatients(avelios.hospital.grpc.PatientTuple.newBuilder()
+            .setId(p.id().toString())
+            .setName(p.name())));
+            return chunk.build();
+        });
+    }
+    
+    @Override
+    public void searchPatients(avelios.hospital.grpc.SearchPatientsRequest req,
+    StreamObserver<avelios.hospital.grpc.PatientTuple> out) {
+        if (req.getQuery().isBlank()) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("query required").asRuntimeException());
+            return;
+        }
+        if (req.getLimit() < 0) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("limit must not be negative").asRuntimeException());
+            return;
+        }
+        int limit = req.getLimit() == 0 ? DEFAULT_SEARCH_LIMIT : Math.min(req.getLimit(), MAX_SEARCH_LIMIT);
         
-        out.onNext(list.build());
+        search.search(req.getQuery(), limit).forEach(p ->
+        out.onNext(avelios.hospital.grpc.PatientTuple.newBuilder()
+        .setId(p.id().toString())
+        .setName(p.name())
+        .build()));
         out.onCompleted();
     }
+    
+    @Override
+    public StreamObserver<avelios.hospital.grpc.CreatePatientRequest> bulkCreatePatients(
+    StreamObserver<avelios.hospital.grpc.BulkIngestReply> out) {
+        return new BulkIngest<>(out, ingestBatchSize, batch -> {
+            var created = new ArrayList<Patient>(batch.size());
+            var slots = new ArrayList<Patient>(batch.size());
+            for (var r : batch) {
+                Patient p = null;
+                try {
+                    var dob = toJavaLocalDate(r.getDob());
+                    p = new Patient(optionalId(r.getId()));
+                    p.setName(r.getName());
+                    p.setSex(toEntitySex(r.getSex()));
+                    p.setDob(dob);
+                    created.add(p);
+                } catch (DateTimeException | IllegalArgumentException e) {
+                    // missing or invalid dob, malformed id: rejected
+                }
+                slots.add(p);
+            }
+            writer.insert(created);
+            created.forEach(events::patientSaved);
+            return new BulkIngest.Result(
+            slots.stream().map(p -> p == null ? "" : p.getId().toString()).toList(),
+            batch.size() - created.size());
+        });
+    }
 }
@@ -0,0 +1,30 @@
+package avelios.hospital.grpc;
+
+import io.grpc.ServerServiceDefinition;
+import net.devh.boot.grpc.server.service.GrpcService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+
+import java.util.UUID;
+
+/** {@code hospital.v2.PatientService}: the v1 list calls with binary ids, see {@link ListReplies}. */
+@GrpcService
+@ConditionalOnExpression("'${hospital.shard.targets:}'.isEmpty()")
+public class PatientV2GrpcService
+extends avelios.hospital.grpc.v2.PatientServiceGrpc.PatientServiceImplBase {
+    
+    private final ListReplies lists;
+    
+    public PatientV2GrpcService(ListReplies lists) {
+        this.lists = lists;
+    }
+    
+    @Override
+    public ServerServiceDefinition bindService() {
+        return SerializedResponses.rebind(super.bindService())
+        .unary(avelios.hospital.grpc.v2.PatientServiceGrpc.getListPatientsMethod(),
+        (req, out) -> lists.patients(ListReplies.V2, out))
+        .unary(avelios.hospital.grpc.v2.PatientServiceGrpc.getListHospitalsOfPatientMethod(),
+        (req, out) -> lists.hospitalsOfPatient(ListReplies.V2, new UUID(req.getHi(), req.getLo()), out))
+        .build();
+    }
+}
@@ -0,0 +1,47 @@
+package avelios.hospital.grpc;
+
+import avelios.hospital.entity.Patient;
+
+import java.time.LocalDate;
+import java.util.UUID;
+
+/** Conversions between entity and protobuf types shared by the gRPC services. */
+final class Protos {
+    
+    private Protos() {}
+    
+    /** The caller-chosen id of a create request, null when empty; malformed ids throw. */
+    static UUID optionalId(String id) {
+        return id.isEmpty() ? null : UUID.fromString(id);
+    }
+    
+    static LocalDate toJavaLocalDate(avelios.hospital.grpc.LocalDate d) {
+        return LocalDate.of(d.getYear(), d.getMonth(), d.getDay());
+    }
+    
+    static avelios.hospital.grpc.LocalDate toProtoDate(LocalDate d) {
+        return avelios.hospital.grpc.LocalDate.newBuilder()
+        .setYear(d.getYear())
+        .setMonth(d.getMonthValue())
+        .setDay(d.getDayOfMonth())
+        .build();
+    }
+    
+    static Patient.Sex toEntitySex(avelios.hospital.grpc.Sex sx) {
+        return switch (sx) {
+            case MALE   -> Patient.Sex.MALE;
+            case FEMALE -> Patient.Sex.FEMALE;
+            case OTHER  -> Patient.Sex.OTHER;
+            default     -> Patient.Sex.SEX_UNSPECIFIED;
+        };
+    }
+    
+    static avelios.hospital.grpc.Sex toProtoSex(Patient.Sex sx) {
+        return switch (sx) {
+            case MALE            -> avelios.hospital.grpc.Sex.MALE;
+            case FEMALE          -> avelios.hospital.grpc.Sex.FEMALE;
+            case OTHER           -> avelios.hospital.grpc.Sex.OTHER;
+            case SEX_UNSPECIFIED -> avelios.hospital.grpc.Sex.SEX_UNSPECIFIED;
+        };
+    }
+}
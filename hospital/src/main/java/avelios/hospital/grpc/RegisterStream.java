@@ -0,0 +1,161 @@
+package avelios.hospital.grpc;
+
+import avelios.hospital.config.DbPermitInterceptor;
+import avelios.hospital.limit.ConcurrencyLimitInterceptor;
+import avelios.hospital.limit.ConcurrencyLimiter;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Request side of RegisterStream: every request is registered as it arrives and acknowledged
+ * with its sequence number once its registration completes, so acks may overtake each other
+ * (with group commit, pipelined requests share a batch and complete together).
+ *
+ * Flow control is manual. The transport is asked for {@code window} requests up front and for
+ * one more per ack sent, and only while the client keeps reading acks ({@code isReady}); so at
+ * most {@code window} registrations are in progress per stream, and a client sending faster is
+ * held back by HTTP/2 flow control rather than queueing in server memory.
+ *
+ * With a concurrency limit configured every request also takes a WRITE slot of the service's
+ * limit for as long as it is registered, like a RegisterPatient call; a request finding none
+ * free is answered at once with a RESOURCE_EXHAUSTED error and the stream goes on. On virtual
+ * threads each request also takes a DB permit ({@link DbPermitInterceptor}) while it is handed
+ * to the registrar, which is as long as a RegisterPatient handler holds one.
+ */
+final class RegisterStream implements StreamObserver<avelios.hospital.grpc.RegisterStreamRequest> {
+
+    private final ServerCallStreamObserver<avelios.hospital.grpc.RegisterStreamAck> out;
+    private final Function<avelios.hospital.grpc.RegisterPatientRequest, CompletableFuture<avelios.hospital.grpc.RegisterAck>> register;
+    // null without a concurrency limit
+    private final ConcurrencyLimitInterceptor.MessageLimit limit;
+    // null unless the handlers run on virtual threads
+    private final Semaphore permits;
+    // guarded by this
+    private int inFlight;
+    private int owed;
+    private boolean halfClosed;
+    private boolean done;
+
+    private RegisterStream(ServerCallStreamObserver<avelios.hospital.grpc.RegisterStreamAck> out,
+    Function<avelios.hospital.grpc.RegisterPatientRequest, CompletableFuture<avelios.hospital.grpc.RegisterAck>> register,
+    ConcurrencyLimitInterceptor.MessageLimit limit, Semaphore permits) {
+        this.out = out;
+        this.register = register;
+        this.limit = limit;
+        this.permits = permits;
+    }
+
+    /** Must be called from the service method, before it returns. */
+    static StreamObserver<avelios.hospital.grpc.RegisterStreamRequest> start(
+    StreamObserver<avelios.hospital.grpc.RegisterStreamAck> responses, int window,
+    Function<avelios.hospital.grpc.RegisterPatientRequest, CompletableFuture<avelios.hospital.grpc.RegisterAck>> register) {
+        var out = (ServerCallStreamObserver<avelios.hospital.grpc.RegisterStreamAck>) responses;
+        var stream = new RegisterStream(out, register, ConcurrencyLimitInterceptor.MESSAGE_LIMIT.get(),
+        DbPermitInterceptor.STREAM_PERMITS.get());
+        out.disableAutoRequest();
+        out.setOnReadyHandler(stream::onReady);
+        out.setOnCancelHandler(stream::onCancel);
+        out.request(window);
+        return stream;
+    }
+
+    /** The status a failed registration reports: its own if it has one, INTERNAL otherwise. */
+    static Status statusOf(Throwable err) {
+        var cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+        var status = Status.fromThrowable(cause);
+        return status.getCode() == Status.Code.UNKNOWN
+        ? Status.INTERNAL.withDescription("registration failed").withCause(cause)
+        : status;
+    }
+
+    @Override
+    public void onNext(avelios.hospital.grpc.RegisterStreamRequest req) {
+        synchronized (this) {
+            inFlight++;
+        }
+        var slot = limit == null ? null : limit.tryAcquire(ConcurrencyLimiter.Priority.WRITE);
+        CompletableFuture<avelios.hospital.grpc.RegisterAck> pending;
+        if (limit != null && slot == null) {
+            pending = CompletableFuture.failedFuture(
+            Status.RESOURCE_EXHAUSTED.withDescription("server overloaded, retry later").asRuntimeException());
+        } else {
+            try {
+                pending = DbPermitInterceptor.withPermit(permits, () -> register.apply(req.getRequest()));
+            } catch (IllegalArgumentException e) {
+                pending = CompletableFuture.failedFuture(
+                Status.INVALID_ARGUMENT.withDescription("malformed id").asRuntimeException());
+            } catch (RuntimeException e) {
+                pending = CompletableFuture.failedFuture(e);
+            }
+        }
+        pending.whenComplete((ack, err) -> {
+            if (slot != null) {
+                slot.release(err == null ? Status.Code.OK : statusOf(err).getCode());
+            }
+            complete(req.getSeq(), ack, err);
+        });
+    }
+
+    private synchronized void complete(long seq, avelios.hospital.grpc.RegisterAck ack, Throwable err) {
+        inFlight--;
+        if (done) {
+            return;
+        }
+        var reply = avelios.hospital.grpc.RegisterStreamAck.newBuilder().setSeq(seq);
+        if (err == null) {
+            reply.setAck(ack);
+        } else {
+            var status = statusOf(err);
+            reply.setError(avelios.hospital.grpc.RegisterError.newBuilder()
+            .setCode(status.getCode().name())
+            .setMessage(status.getDescription() == null ? "" : status.getDescription()));
+        }
+        out.onNext(reply.build());
+        owed++;
+        askForMore();
+        finishIfDrained();
+    }
+
+    private void askForMore() {
+        if (owed > 0 && !halfClosed && out.isReady()) {
+            out.request(owed);
+            owed = 0;
+        }
+    }
+
+    private void finishIfDrained() {
+        if (halfClosed && inFlight == 0 && !done) {
+            done = true;
+            out.onCompleted();
+        }
+    }
+
+    private synchronized void onReady() {
+        if (!done) {
+            askForMore();
+        }
+    }
+
+    private synchronized void onCancel() {
+        done = true;
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        // client went away; registrations in progress still complete, their acks are dropped
+        done = true;
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+        halfClosed = true;
+        finishIfDrained();
+    }
+}
@@ -0,0 +1,95 @@
+package avelios.hospital.grpc;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+import io.grpc.stub.ServerCalls;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rebinds unary methods of a service so that their handlers reply with already serialized
+ * bytes. The wire format is unchanged, clients keep their generated stubs; on the server the
+ * response marshaller hands the bytes to the transport as they are.
+ */
+final class SerializedResponses {
+    
+    /** Passes bytes through; the stream reports its length and drains with a single write. */
+    static final MethodDescriptor.Marshaller<byte[]> BYTES = new MethodDescriptor.Marshaller<>() {
+        @Override
+        public InputStream stream(byte[] value) {
+            return new BytesStream(value);
+        }
+        
+        @Override
+        public byte[] parse(InputStream in) {
+            try {
+                return in.readAllBytes();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    
+    private static final class BytesStream extends ByteArrayInputStream implements KnownLength, Drainable {
+        BytesStream(byte[] bytes) {
+            super(bytes);
+        }
+        
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int n = count - pos;
+            target.write(buf, pos, n);
+            pos = count;
+            return n;
+        }
+    }
+    
+    private final ServerServiceDefinition service;
+    private final Map<String, ServerMethodDefinition<?, byte[]>> replaced = new HashMap<>();
+    
+    private SerializedResponses(ServerServiceDefinition service) {
+        this.service = service;
+    }
+    
+    static SerializedResponses rebind(ServerServiceDefinition service) {
+        return new SerializedResponses(service);
+    }
+    
+    /** Serves {@code method} with {@code handler}, which answers with the serialized response. */
+    <Req> SerializedResponses unary(MethodDescriptor<Req, ?> method, ServerCalls.UnaryMethod<Req, byte[]> handler) {
+        var bytesMethod = method.toBuilder(method.getRequestMarshaller(), BYTES).build();
+        replaced.put(method.getFullMethodName(), ServerMethodDefinition.create(bytesMethod, ServerCalls.asyncUnaryCall(handler)));
+        return this;
+    }
+    
+    // the service descriptor must list the very MethodDescriptor instances that are bound
+    ServerServiceDefinition build() {
+        var original = service.getServiceDescriptor();
+        var descriptor = ServiceDescriptor.newBuilder(original.getName())
+        .setSchemaDescriptor(original.getSchemaDescriptor());
+        var methods = new ArrayList<ServerMethodDefinition<?, ?>>();
+        for (var m : service.getMethods()) {
+            ServerMethodDefinition<?, ?> def = replaced.get(m.getMethodDescriptor().getFullMethodName());
+            if (def == null) {
+                def = m;
+            }
+            descriptor.addMethod(def.getMethodDescriptor());
+            methods.add(def);
+        }
+        var definition = ServerServiceDefinition.builder(descriptor.build());
+        for (var m : methods) {
+            definition.addMethod(m);
+        }
+        return definition.build();
+    }
+}
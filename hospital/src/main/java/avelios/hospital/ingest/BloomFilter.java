@@ -0,0 +1,95 @@
+package avelios.hospital.ingest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size Bloom filter over 64-bit keys. Sized for {@code expected} insertions at false
+ * positive rate {@code fpp}; probes are derived from one 128-bit mix by double hashing.
+ * {@link #add} and {@link #mightContain} may run concurrently (bits are set with CAS).
+ */
+public final class BloomFilter {
+    
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashes;
+    private final long expected;
+    private final LongAdder added = new LongAdder();
+    
+    public BloomFilter(long expected, double fpp) {
+        if (expected < 1 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("expected >= 1 and 0 < fpp < 1 required");
+        }
+        long m = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = Math.toIntExact(Math.max(1, (m + 63) >>> 6));
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = (long) words << 6;
+        this.hashes = Math.max(1, (int) Math.round((double) bitCount / expected * Math.log(2)));
+        this.expected = expected;
+    }
+    
+    /** Adds a key; true if at least one bit changed (the key was definitely absent before). */
+    public boolean add(long h1, long h2) {
+        boolean changed = false;
+        long h = h1;
+        h2 |= 1; // an odd stride never repeats a probe
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old = bits.get(word);
+            while ((old & mask) == 0) {
+                long witness = bits.compareAndExchange(word, old, old | mask);
+                if (witness == old) {
+                    changed = true;
+                    break;
+                }
+                old = witness;
+            }
+            h += h2;
+        }
+        added.increment();
+        return changed;
+    }
+    
+    /** False means the key was never added; true may be a false positive. */
+    public boolean mightContain(long h1, long h2) {
+        long h = h1;
+        h2 |= 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+            h += h2;
+        }
+        return true;
+    }
+    
+    /** Insertions it was sized for; beyond that the false positive rate climbs. */
+    public long expected() {
+        return expected;
+    }
+    
+    public long added() {
+        return added.sum();
+    }
+    
+    public long sizeBytes() {
+        return bitCount >>> 3;
+    }
+    
+    public int hashes() {
+        return hashes;
+    }
+    
+    /** 64-bit finalizer of MurmurHash3. */
+    public static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
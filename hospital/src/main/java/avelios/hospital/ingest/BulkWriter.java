@@ -0,0 +1,94 @@
+package avelios.hospital.ingest;
+
+import avelios.hospital.entity.Hospital;
+import avelios.hospital.entity.Patient;
+import avelios.hospital.entity.Visit;
+import avelios.hospital.repo.HospitalRepo;
+import avelios.hospital.repo.PatientRepo;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Writes one ingest batch per transaction. Rows are handed to {@code persist} directly
+ * (no {@code save}/merge lookups) and flushed together, so with {@code hibernate.jdbc.batch_size}
+ * and {@code order_inserts} the batch goes out as a few multi-row JDBC batches.
+ */
+@Component
+public class BulkWriter {
+    
+    /** A visit to insert; the date may lie in the past for historical loads. */
+    public record VisitDraft(UUID patientId, UUID hospitalId, LocalDate visitDate) {}
+    
+    /** The stored visits of a batch, and how many drafts were left out as already stored. */
+    public record VisitBatch(List<Visit> stored, int duplicates) {}
+    
+    @PersistenceContext
+    private EntityManager em;
+    
+    private final HospitalRepo hospitals;
+    private final PatientRepo patients;
+    private final VisitDeduplicator dedup;
+    
+    public BulkWriter(HospitalRepo hospitals, PatientRepo patients, VisitDeduplicator dedup) {
+        this.hospitals = hospitals;
+        this.patients = patients;
+        this.dedup = dedup;
+    }
+    
+    /** Persists new hospitals or patients; their UUIDs are generated in-process on persist. */
+    @Transactional
+    public <T> List<T> insert(List<T> entities) {
+        entities.forEach(em::persist);
+        em.flush();
+        em.clear();
+        return entities;
+    }
+    
+    /**
+     * Inserts the drafts whose patient and hospital exist (and are not deleted) and returns the stored visits, with
+     * their (detached) patient and hospital loaded. Both sides are resolved with one IN query each.
+     *
+     * With {@code hospital.register.idempotent} a draft repeated in the batch or already stored is left out and
+     * counted as a duplicate ({@link VisitDeduplicator}); all of them are checked before the first insert, so the
+     * existence queries do not flush the batch early.
+     */
+    @Transactional
+    public VisitBatch insertVisits(List<VisitDraft> drafts) {
+        var ps = patients.findByIdInAndDeletedFalse(drafts.stream().map(VisitDraft::patientId).collect(Collectors.toSet()))
+        .stream().collect(Collectors.toMap(Patient::getId, Function.identity()));
+        var hs = hospitals.findByIdInAndDeletedFalse(drafts.stream().map(VisitDraft::hospitalId).collect(Collectors.toSet()))
+        .stream().collect(Collectors.toMap(Hospital::getId, Function.identity()));
+        
+        var fresh = new ArrayList<Visit>(drafts.size());
+        var seen = new HashSet<VisitDraft>();
+        int duplicates = 0;
+        for (var d : drafts) {
+            var p = ps.get(d.patientId());
+            var h = hs.get(d.hospitalId());
+            if (p == null || h == null) {
+                continue;
+            }
+            if (dedup.isEnabled()
+            && (!seen.add(d) || dedup.isDuplicate(d.patientId(), d.hospitalId(), d.visitDate()))) {
+                duplicates++;
+                continue;
+            }
+            fresh.add(new Visit(h, p, d.visitDate()));
+        }
+        fresh.forEach(em::persist);
+        em.flush();
+        em.clear();
+        return new VisitBatch(fresh, duplicates);
+    }
+}
@@ -0,0 +1,146 @@
+package avelios.hospital.ingest;
+
+import avelios.hospital.entity.Visit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues visits from concurrent registrations and writes them in one transaction once
+ * {@code maxBatch} are waiting or the oldest has waited {@code maxDelay}. Each caller's
+ * future completes after the transaction holding its visit has committed.
+ *
+ * If a batch fails, its visits are retried one per transaction so that only the callers
+ * whose row is at fault see an error.
+ */
+final class GroupCommitter implements AutoCloseable {
+    
+    private static final Logger log = LoggerFactory.getLogger(GroupCommitter.class);
+    
+    private record Pending(Visit visit, CompletableFuture<Visit> done) {}
+    
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final BulkWriter writer;
+    private final VisitWrites gate;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final Thread flusher;
+    // written under this, so no submit can enqueue after close() has stopped the flusher
+    private volatile boolean running = true;
+    
+    GroupCommitter(BulkWriter writer, VisitWrites gate, int maxBatch, Duration maxDelay) {
+        this.writer = writer;
+        this.gate = gate;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.flusher = Thread.ofPlatform().name("visit-group-commit").daemon().start(this::run);
+    }
+    
+    CompletableFuture<Visit> submit(Visit v) {
+        var done = new CompletableFuture<Visit>();
+        synchronized (this) {
+            if (running) {
+                queue.add(new Pending(v, done));
+                return done;
+            }
+        }
+        done.completeExceptionally(shutDown());
+        return done;
+    }
+    
+    private static IllegalStateException shutDown() {
+        return new IllegalStateException("group commit is shut down");
+    }
+    
+    private synchronized void stop() {
+        running = false;
+    }
+    
+    // completes the callers of visits that will never be written
+    private void failQueued() {
+        Pending p;
+        while ((p = queue.poll()) != null) {
+            p.done().completeExceptionally(shutDown());
+        }
+    }
+    
+    private void run() {
+        var batch = new ArrayList<Pending>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                var first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+                        continue;
+                    }
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    var next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stop();
+                batch.forEach(p -> p.done().completeExceptionally(shutDown()));
+                failQueued();
+                return;
+            } catch (RuntimeException e) {
+                // never let the flusher die; flush() already failed the affected callers
+                log.error("group commit flush failed", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+    
+    private void flush(List<Pending> batch) {
+        try {
+            gate.insert(() -> writer.insert(batch.stream().map(Pending::visit).toList()));
+            batch.forEach(p -> p.done().complete(p.visit()));
+            return;
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).done().completeExceptionally(e);
+                return;
+            }
+            log.debug("group commit of {} visits failed, retrying one by one", batch.size(), e);
+        }
+        for (var p : batch) {
+            // the failed attempt already assigned an id, so persist a fresh copy
+            var v = new Visit(p.visit().getHospital(), p.visit().getPatient(), p.visit().getVisitDate());
+            try {
+                gate.insert(() -> writer.insert(List.of(v)));
+                p.done().complete(v);
+            } catch (RuntimeException e) {
+                p.done().completeExceptionally(e);
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws InterruptedException {
+        stop();
+        flusher.join(TimeUnit.SECONDS.toMillis(10));
+        // only left over if the flusher did not finish in time
+        failQueued();
+    }
+}
@@ -0,0 +1,189 @@
+package avelios.hospital.ingest;
+
+import avelios.hospital.entity.Visit;
+import avelios.hospital.events.ChangeListener;
+import avelios.hospital.repo.VisitRepo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.hibernate.exception.ConstraintViolationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Idempotent registration ({@code hospital.register.idempotent}). A unique index on
+ * {@code (patient_id, hospital_id, visit_date)} rules out a second visit of a patient at the
+ * same hospital on the same day. A Bloom filter over the day's visits sends the common first
+ * registration straight to the insert; only a filter hit costs an existence query, and a
+ * concurrent retry the filter could not see yet ends in the unique index and is reported as
+ * a duplicate as well.
+ *
+ * Registrations are always dated today, so the filter covers the current day only; other
+ * dates (bulk loads) always run the existence query. It is
+ * built from that day's visits at startup and on the first registration after midnight,
+ * sized to twice the larger of yesterday's and today's count, and rebuilt twice as large
+ * once it holds more keys than it was sized for.
+ */
+@Component
+public class VisitDeduplicator implements ChangeListener {
+    
+    private static final Logger log = LoggerFactory.getLogger(VisitDeduplicator.class);
+    
+    static final String UNIQUE_INDEX = "uk_visit_patient_hospital_date";
+    private static final long MIN_EXPECTED = 10_000;
+    // SQLSTATE of a unique constraint violation
+    private static final String UNIQUE_VIOLATION = "23505";
+    
+    private record Day(LocalDate date, BloomFilter filter) {}
+    
+    private final boolean enabled;
+    private final double fpp;
+    private final VisitRepo visits;
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+    private final Counter skipped;
+    private final Counter checked;
+    private final Counter duplicates;
+    private volatile Day day;
+    
+    public VisitDeduplicator(VisitRepo visits, JdbcTemplate jdbc, TransactionTemplate tx, MeterRegistry registry,
+    @Value("${hospital.register.idempotent:false}") boolean enabled,
+    @Value("${hospital.register.idempotency.fpp:0.01}") double fpp) {
+        this.visits = visits;
+        this.jdbc = jdbc;
+        this.tx = tx;
+        this.enabled = enabled;
+        this.fpp = fpp;
+        this.skipped = Counter.builder("hospital.register.dedup").tag("result", "filter-miss").register(registry);
+        this.checked = Counter.builder("hospital.register.dedup").tag("result", "checked").register(registry);
+        this.duplicates = Counter.builder("hospital.register.dedup").tag("result", "duplicate").register(registry);
+        if (enabled) {
+            Gauge.builder("hospital.register.dedup.filter", this, d -> d.day == null ? 0 : d.day.filter().sizeBytes())
+            .baseUnit("bytes").register(registry);
+        }
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            jdbc.execute("create unique index if not exists " + UNIQUE_INDEX + " on visit (patient_id, hospital_id, visit_date)");
+        } catch (DataAccessException e) {
+            throw new IllegalStateException("hospital.register.idempotent needs visits to be unique per patient, "
+            + "hospital and day; remove the existing duplicates first", e);
+        }
+        day = build(LocalDate.now(), 0);
+    }
+    
+    /** Whether the patient already visited the hospital on {@code date}; queries only on a filter hit. */
+    public boolean isDuplicate(UUID patientId, UUID hospitalId, LocalDate date) {
+        var d = current(date);
+        if (d != null) {
+            long h1 = hash(patientId, hospitalId);
+            if (!d.filter().mightContain(h1, BloomFilter.mix(h1))) {
+                skipped.increment();
+                return false;
+            }
+        }
+        checked.increment();
+        if (visits.existsByPatientIdAndHospitalIdAndVisitDate(patientId, hospitalId, date)) {
+            duplicates.increment();
+            return true;
+        }
+        return false;
+    }
+    
+    /** Whether a failed insert ran into the unique index, i.e. lost a race against its own retry. */
+    public boolean isDuplicate(Throwable insertFailure) {
+        for (var t = insertFailure; t != null; t = t.getCause()) {
+            if (t instanceof ConstraintViolationException cve) {
+                var name = cve.getConstraintName();
+                if (UNIQUE_VIOLATION.equals(cve.getSQLState())
+                || name != null && name.toLowerCase(Locale.ROOT).contains(UNIQUE_INDEX)) {
+                    duplicates.increment();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    @Override
+    public void onVisit(Visit v) {
+        var d = day;
+        if (d == null || !d.date().equals(v.getVisitDate())) {
+            return;
+        }
+        long h1 = hash(v.getPatient().getId(), v.getHospital().getId());
+        d.filter().add(h1, BloomFilter.mix(h1));
+        if (d.filter().added() > d.filter().expected()) {
+            grow(d);
+        }
+    }
+    
+    // null for a date other than the filter's and today (a registration that started before
+    // midnight, a bulk-loaded visit)
+    private Day current(LocalDate date) {
+        var d = day;
+        if (d == null || d.date().equals(date)) {
+            return d;
+        }
+        if (date.isBefore(d.date()) || !date.equals(LocalDate.now())) {
+            return null;
+        }
+        synchronized (this) {
+            if (day.date().isBefore(date)) {
+                day = build(date, 0);
+            }
+            return day;
+        }
+    }
+    
+    private synchronized void grow(Day full) {
+        if (day == full) {
+            day = build(full.date(), full.filter().expected() * 2);
+            log.info("dedup filter for {} full, rebuilt for {} visits", full.date(), day.filter().expected());
+        }
+    }
+    
+    // keys added while this runs may be missing from the new filter; the unique index still catches them
+    private Day build(LocalDate date, long atLeast) {
+        int month = Visit.monthIndex(date);
+        var yesterday = date.minusDays(1);
+        long today = visits.countOnDay(month, date);
+        long before = visits.countOnDay(Visit.monthIndex(yesterday), yesterday);
+        var filter = new BloomFilter(Math.max(Math.max(MIN_EXPECTED, atLeast), 2 * Math.max(today, before)), fpp);
+        tx.executeWithoutResult(s -> {
+            try (var rows = visits.streamVisitsOnDay(month, date)) {
+                rows.forEach(e -> {
+                    long h1 = hash(e.patientId(), e.hospitalId());
+                    filter.add(h1, BloomFilter.mix(h1));
+                });
+            }
+        });
+        return new Day(date, filter);
+    }
+    
+    private static long hash(UUID patientId, UUID hospitalId) {
+        long p = BloomFilter.mix(patientId.getMostSignificantBits() ^ BloomFilter.mix(patientId.getLeastSignificantBits()));
+        long h = BloomFilter.mix(hospitalId.getMostSignificantBits() ^ BloomFilter.mix(hospitalId.getLeastSignificantBits()));
+        return BloomFilter.mix(p + 0x9e3779b97f4a7c15L * h);
+    }
+}
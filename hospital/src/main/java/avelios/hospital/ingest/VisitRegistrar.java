@@ -0,0 +1,87 @@
+package avelios.hospital.ingest;
+
+import avelios.hospital.entity.Hospital;
+import avelios.hospital.entity.Patient;
+import avelios.hospital.entity.Visit;
+import avelios.hospital.events.ChangeEvents;
+import avelios.hospital.repo.VisitRepo;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Stores the visit of a single registration and publishes it once it is committed.
+ *
+ * By default every registration commits its own insert. With
+ * {@code hospital.register.group-commit.enabled} concurrent registrations are queued and
+ * committed together (up to {@code max-batch} visits or {@code max-delay}); the returned
+ * future then completes when the shared transaction has committed.
+ *
+ * With {@code hospital.register.idempotent} a second registration of the same patient at the
+ * same hospital on the same day stores nothing and completes as a duplicate of the first
+ * (see {@link VisitDeduplicator}); only new visits are published.
+ */
+@Component
+public class VisitRegistrar {
+    
+    /** The stored visit, or the attempted one when {@code duplicate}. */
+    public record Registration(Visit visit, boolean duplicate) {}
+    
+    private final VisitRepo visits;
+    private final VisitWrites gate;
+    private final ChangeEvents events;
+    private final GroupCommitter committer;
+    private final VisitDeduplicator dedup;
+    
+    public VisitRegistrar(VisitRepo visits, VisitWrites gate, BulkWriter writer, ChangeEvents events, VisitDeduplicator dedup,
+    @Value("${hospital.register.group-commit.enabled:false}") boolean groupCommit,
+    @Value("${hospital.register.group-commit.max-batch:256}") int maxBatch,
+    @Value("${hospital.register.group-commit.max-delay:2ms}") Duration maxDelay) {
+        this.visits = visits;
+        this.gate = gate;
+        this.events = events;
+        this.dedup = dedup;
+        this.committer = groupCommit ? new GroupCommitter(writer, gate, maxBatch, maxDelay) : null;
+    }
+    
+    public CompletableFuture<Registration> register(Patient p, Hospital h) {
+        var v = new Visit(h, p, LocalDate.now());
+        if (dedup.isEnabled() && dedup.isDuplicate(p.getId(), h.getId(), v.getVisitDate())) {
+            return CompletableFuture.completedFuture(new Registration(v, true));
+        }
+        CompletableFuture<Visit> stored;
+        if (committer == null) {
+            try {
+                stored = CompletableFuture.completedFuture(gate.insert(() -> visits.save(v)));
+            } catch (RuntimeException e) {
+                stored = CompletableFuture.failedFuture(e);
+            }
+        } else {
+            stored = committer.submit(v);
+        }
+        return stored.handle((saved, err) -> {
+            if (err == null) {
+                events.visit(saved);
+                return new Registration(saved, false);
+            }
+            // a concurrent registration of the same visit got past the filter first
+            if (dedup.isEnabled() && dedup.isDuplicate(err)) {
+                return new Registration(v, true);
+            }
+            throw err instanceof CompletionException ce ? ce : new CompletionException(err);
+        });
+    }
+    
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        if (committer != null) {
+            committer.close();
+        }
+    }
+}
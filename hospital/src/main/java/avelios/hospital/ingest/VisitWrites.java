@@ -0,0 +1,43 @@
+package avelios.hospital.ingest;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Gate around the transactions that insert visits, so a reader can learn a commit watermark:
+ * an id below which every visit is committed.
+ *
+ * Visit ids come from a sequence in this process and so only grow, but they are assigned
+ * before commit; the highest committed id alone says nothing about lower ids whose
+ * transactions are still open. Every insert runs inside {@link #insert} (shared),
+ * {@link #watermark} takes the gate exclusively, which waits for the open inserts to commit
+ * or roll back, and reads the highest id while no new one can be assigned.
+ */
+@Component
+public class VisitWrites {
+
+    private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock(true);
+
+    /** Runs a visit insert; it has to include the commit, i.e. wrap the transactional call. */
+    public <T> T insert(Supplier<T> write) {
+        gate.readLock().lock();
+        try {
+            return write.get();
+        } finally {
+            gate.readLock().unlock();
+        }
+    }
+
+    /** Reads {@code maxId} once no insert is open: every visit with an id up to it is committed. */
+    public long watermark(LongSupplier maxId) {
+        gate.writeLock().lock();
+        try {
+            return maxId.getAsLong();
+        } finally {
+            gate.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package avelios.hospital.limit;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.devh.boot.grpc.server.interceptor.GrpcGlobalServerInterceptor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Load shedding for the hospital services ({@code hospital.grpc.limit.algorithm}): each service
+ * gets a {@link ConcurrencyLimiter}, and a unary call that finds no free slot is closed at once
+ * with RESOURCE_EXHAUSTED instead of queueing behind the database. Reads (Get, BatchGet, List,
+ * Count, Search) have priority over writes. Streaming calls are long-lived and hold no slot
+ * themselves; a stream that does work per message (RegisterStream) takes a slot per message
+ * from {@link #MESSAGE_LIMIT} in its call's context.
+ *
+ * Meters per service: {@code hospital.grpc.limit} and {@code hospital.grpc.limit.in.flight}
+ * gauges, {@code hospital.grpc.limit.rejected} by {@code priority}.
+ */
+@GrpcGlobalServerInterceptor
+@ConditionalOnExpression("'${hospital.grpc.limit.algorithm:none}' != 'none'")
+public class ConcurrencyLimitInterceptor implements ServerInterceptor {
+    
+    private static final Duration WINDOW = Duration.ofMillis(100);
+    private static final int MIN_SAMPLES = 10;
+    
+    private record ServiceLimit(ConcurrencyLimiter limiter, Counter rejectedReads, Counter rejectedWrites) {
+        
+        // null, counted as rejected, when no slot is free
+        Slot tryAcquire(ConcurrencyLimiter.Priority priority) {
+            if (!limiter.tryAcquire(priority)) {
+                (priority == ConcurrencyLimiter.Priority.READ ? rejectedReads : rejectedWrites).increment();
+                return null;
+            }
+            return new Slot(limiter);
+        }
+    }
+    
+    /** The limit of the service a streaming call belongs to; absent while no limit is configured. */
+    public static final Context.Key<MessageLimit> MESSAGE_LIMIT = Context.key("hospital.grpc.limit.message");
+    
+    private final ConcurrentHashMap<String, ServiceLimit> limits = new ConcurrentHashMap<>();
+    private final MeterRegistry registry;
+    private final String algorithm;
+    private final int initial;
+    private final int min;
+    private final int max;
+    private final double writeShare;
+    private final Duration latencyTarget;
+    
+    public ConcurrencyLimitInterceptor(MeterRegistry registry,
+    @Value("${hospital.grpc.limit.algorithm}") String algorithm,
+    @Value("${hospital.grpc.limit.initial:20}") int initial,
+    @Value("${hospital.grpc.limit.min:4}") int min,
+    @Value("${hospital.grpc.limit.max:500}") int max,
+    @Value("${hospital.grpc.limit.write-share:0.8}") double writeShare,
+    @Value("${hospital.grpc.limit.latency-target:50ms}") Duration latencyTarget) {
+        if (!algorithm.equals("gradient") && !algorithm.equals("aimd")) {
+            throw new IllegalArgumentException("hospital.grpc.limit.algorithm must be none, gradient or aimd");
+        }
+        this.registry = registry;
+        this.algorithm = algorithm;
+        this.initial = initial;
+        this.min = min;
+        this.max = max;
+        this.writeShare = writeShare;
+        this.latencyTarget = latencyTarget;
+    }
+    
+    private ServiceLimit create(String service) {
+        var limiter = new ConcurrencyLimiter(
+        algorithm.equals("aimd") ? new ConcurrencyLimiter.Aimd(latencyTarget) : new ConcurrencyLimiter.Gradient(),
+        initial, min, max, writeShare, WINDOW, MIN_SAMPLES);
+        Gauge.builder("hospital.grpc.limit", limiter, ConcurrencyLimiter::limit)
+        .tag("service", service).register(registry);
+        Gauge.builder("hospital.grpc.limit.in.flight", limiter, ConcurrencyLimiter::inFlight)
+        .tag("service", service).register(registry);
+        return new ServiceLimit(limiter,
+        Counter.builder("hospital.grpc.limit.rejected").tag("service", service).tag("priority", "read").register(registry),
+        Counter.builder("hospital.grpc.limit.rejected").tag("service", service).tag("priority", "write").register(registry));
+    }
+    
+    static ConcurrencyLimiter.Priority priorityOf(MethodDescriptor<?, ?> method) {
+        var name = method.getBareMethodName();
+        return name != null && (name.startsWith("Get") || name.startsWith("BatchGet") || name.startsWith("List")
+        || name.startsWith("Count") || name.startsWith("Search"))
+        ? ConcurrencyLimiter.Priority.READ : ConcurrencyLimiter.Priority.WRITE;
+    }
+    
+    static ConcurrencyLimiter.Outcome outcomeOf(Status.Code code) {
+        return switch (code) {
+            case DEADLINE_EXCEEDED, UNAVAILABLE, RESOURCE_EXHAUSTED -> ConcurrencyLimiter.Outcome.DROPPED;
+            case CANCELLED -> ConcurrencyLimiter.Outcome.IGNORED;
+            default -> ConcurrencyLimiter.Outcome.DONE;
+        };
+    }
+    
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+    Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        var method = call.getMethodDescriptor();
+        var service = method.getServiceName();
+        if (service == null || !service.startsWith("hospital.")) {
+            return next.startCall(call, headers);
+        }
+        var limit = limits.computeIfAbsent(service, this::create);
+        if (method.getType() != MethodDescriptor.MethodType.UNARY) {
+            return Contexts.interceptCall(Context.current().withValue(MESSAGE_LIMIT, new MessageLimit(limit)),
+            call, headers, next);
+        }
+        var slot = limit.tryAcquire(priorityOf(method));
+        if (slot == null) {
+            call.close(Status.RESOURCE_EXHAUSTED.withDescription("server overloaded, retry later"), new Metadata());
+            return new ServerCall.Listener<>() {};
+        }
+        
+        var releasing = new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                slot.release(outcomeOf(status.getCode()));
+                super.close(status, trailers);
+            }
+        };
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(releasing, headers);
+        } catch (RuntimeException e) {
+            slot.release(ConcurrencyLimiter.Outcome.IGNORED);
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+            @Override
+            public void onCancel() {
+                // a client giving up on its deadline is an overload signal, any other cancel is not
+                var deadline = Context.current().getDeadline();
+                slot.release(deadline != null && deadline.isExpired()
+                ? ConcurrencyLimiter.Outcome.DROPPED : ConcurrencyLimiter.Outcome.IGNORED);
+                super.onCancel();
+            }
+        };
+    }
+    
+    /** Admission of the single messages of a streaming call against its service's limit. */
+    public static final class MessageLimit {
+        
+        private final ServiceLimit limit;
+        
+        private MessageLimit(ServiceLimit limit) {
+            this.limit = limit;
+        }
+        
+        /** A slot for one message, or null (counted as rejected) when none is free. */
+        public Slot tryAcquire(ConcurrencyLimiter.Priority priority) {
+            return limit.tryAcquire(priority);
+        }
+    }
+    
+    /** One acquired slot, released once: for a unary call by whichever of close and cancel comes first. */
+    public static final class Slot {
+        
+        private final ConcurrencyLimiter limiter;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+        
+        private Slot(ConcurrencyLimiter limiter) {
+            this.limiter = limiter;
+        }
+        
+        /** Gives the slot back with the status the work it was taken for ended with. */
+        public void release(Status.Code code) {
+            release(outcomeOf(code));
+        }
+        
+        void release(ConcurrencyLimiter.Outcome outcome) {
+            if (released.compareAndSet(false, true)) {
+                limiter.release(System.nanoTime() - startNanos, outcome);
+            }
+        }
+    }
+}
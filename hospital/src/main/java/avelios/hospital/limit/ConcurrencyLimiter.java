@@ -0,0 +1,163 @@
+package avelios.hospital.limit;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive concurrency limit. Calls take a slot with {@link #tryAcquire} and give it back
+ * with their latency on {@link #release}; once per window (at least {@code minSamples} calls
+ * and {@code window} long) the {@link Algorithm} turns the window's average latency and peak
+ * concurrency into a new limit, clamped to {@code [min, max]}.
+ *
+ * Reads may fill the whole limit, writes only {@code writeShare} of it, so under overload
+ * writes are turned away first and reads keep getting through.
+ */
+public final class ConcurrencyLimiter {
+    
+    public enum Priority { READ, WRITE }
+    
+    /** How a call ended, as far as the limit is concerned. */
+    public enum Outcome {
+        /** completed (successfully or not) after doing its work; its latency is a sample */
+        DONE,
+        /** timed out or failed for lack of capacity: a sign of overload */
+        DROPPED,
+        /** cancelled by the client; says nothing about capacity */
+        IGNORED
+    }
+    
+    /** Computes the next limit from the previous one and a window of samples. */
+    public interface Algorithm {
+        double update(double limit, double avgRttNanos, int peakInFlight, boolean dropped);
+    }
+    
+    /**
+     * Gradient of long-term to recent latency: while recent latency stays within
+     * {@code TOLERANCE} of the long-term average the limit grows by about its square root per
+     * window, beyond that it shrinks in proportion (by at most half). Windows in which fewer
+     * than half the slots were used carry no evidence and leave the limit alone.
+     */
+    public static final class Gradient implements Algorithm {
+        
+        private static final double TOLERANCE = 1.5;
+        private static final double SMOOTHING = 0.2;
+        // windows averaged into the long-term latency
+        private static final int LONG_WINDOWS = 60;
+        
+        private double longRtt;
+        
+        @Override
+        public double update(double limit, double rtt, int peakInFlight, boolean dropped) {
+            longRtt = longRtt == 0 ? rtt : longRtt + (rtt - longRtt) / LONG_WINDOWS;
+            // latency fell well below the long-term average (e.g. after an overload): catch up
+            // faster, or the gradient would tolerate a new rise for too long
+            if (longRtt > 2 * rtt) {
+                longRtt *= 0.95;
+            }
+            if (!dropped && peakInFlight < limit / 2) {
+                return limit;
+            }
+            double gradient = dropped ? 0.5 : Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / rtt));
+            double next = limit * gradient + Math.sqrt(limit);
+            return limit * (1 - SMOOTHING) + next * SMOOTHING;
+        }
+    }
+    
+    /** Additive increase, multiplicative decrease once latency passes {@code target}. */
+    public static final class Aimd implements Algorithm {
+        
+        private static final double BACKOFF = 0.9;
+        
+        private final long targetNanos;
+        
+        public Aimd(Duration target) {
+            this.targetNanos = target.toNanos();
+        }
+        
+        @Override
+        public double update(double limit, double rtt, int peakInFlight, boolean dropped) {
+            if (dropped || rtt > targetNanos) {
+                return limit * BACKOFF;
+            }
+            return peakInFlight * 2 >= limit ? limit + 1 : limit;
+        }
+    }
+    
+    private final Algorithm algorithm;
+    private final int min;
+    private final int max;
+    private final double writeShare;
+    private final long windowNanos;
+    private final int minSamples;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+    
+    // current window and the unrounded limit, guarded by this
+    private double estimate;
+    private long windowStart = System.nanoTime();
+    private double rttSum;
+    private int samples;
+    private int peak;
+    private boolean dropped;
+    
+    public ConcurrencyLimiter(Algorithm algorithm, int initial, int min, int max, double writeShare,
+    Duration window, int minSamples) {
+        if (min < 1 || initial < min || max < initial || writeShare <= 0 || writeShare > 1) {
+            throw new IllegalArgumentException("1 <= min <= initial <= max and 0 < writeShare <= 1 required");
+        }
+        this.algorithm = algorithm;
+        this.min = min;
+        this.max = max;
+        this.writeShare = writeShare;
+        this.windowNanos = window.toNanos();
+        this.minSamples = minSamples;
+        this.limit = initial;
+        this.estimate = initial;
+    }
+    
+    public boolean tryAcquire(Priority priority) {
+        int cap = priority == Priority.READ ? limit : Math.max(1, (int) (limit * writeShare));
+        for (;;) {
+            int n = inFlight.get();
+            if (n >= cap) {
+                return false;
+            }
+            if (inFlight.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+    
+    public void release(long rttNanos, Outcome outcome) {
+        int n = inFlight.getAndDecrement();
+        if (outcome != Outcome.IGNORED) {
+            sample(rttNanos, n, outcome == Outcome.DROPPED);
+        }
+    }
+    
+    private synchronized void sample(long rttNanos, int concurrent, boolean drop) {
+        rttSum += rttNanos;
+        samples++;
+        peak = Math.max(peak, concurrent);
+        dropped |= drop;
+        long now = System.nanoTime();
+        if (samples < minSamples || now - windowStart < windowNanos) {
+            return;
+        }
+        estimate = Math.max(min, Math.min(max, algorithm.update(estimate, rttSum / samples, peak, dropped)));
+        limit = (int) estimate;
+        windowStart = now;
+        rttSum = 0;
+        samples = 0;
+        peak = 0;
+        dropped = false;
+    }
+    
+    public int limit() {
+        return limit;
+    }
+    
+    public int inFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,150 @@
+package avelios.hospital.metrics;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import net.devh.boot.grpc.server.interceptor.GrpcGlobalServerInterceptor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Records, per gRPC method ({@code service}, {@code method} tags):
+ * <ul>
+ *   <li>{@code hospital.grpc.server.latency} - timer with p50/p95/p99 and max</li>
+ *   <li>{@code hospital.grpc.server.in.flight} - calls started but not closed</li>
+ *   <li>{@code hospital.grpc.server.status} - closed calls by status {@code code}</li>
+ *   <li>{@code hospital.grpc.server.request.size} / {@code response.size} - message bytes</li>
+ * </ul>
+ * Meters are resolved once per method and cached, so the per-call cost is two small wrapper
+ * objects and a few counter updates. Message sizes come from {@code getSerializedSize()},
+ * which protobuf memoizes and reuses when it serializes the message.
+ */
+@GrpcGlobalServerInterceptor
+public class GrpcMetricsInterceptor implements ServerInterceptor {
+    
+    private static final Status.Code[] CODES = Status.Code.values();
+    
+    private final MeterRegistry registry;
+    private final ConcurrentHashMap<String, MethodMeters> meters = new ConcurrentHashMap<>();
+    
+    public GrpcMetricsInterceptor(MeterRegistry registry) {
+        this.registry = registry;
+    }
+    
+    final class MethodMeters {
+        final Tags tags;
+        final Timer latency;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final DistributionSummary requestSize;
+        final DistributionSummary responseSize;
+        private final Counter[] byStatus = new Counter[CODES.length];
+        
+        MethodMeters(MethodDescriptor<?, ?> method) {
+            tags = Tags.of("service", String.valueOf(method.getServiceName()), "method", method.getBareMethodName());
+            latency = Timer.builder("hospital.grpc.server.latency")
+            .tags(tags)
+            .publishPercentiles(0.5, 0.95, 0.99)
+            .publishPercentileHistogram()
+            .register(registry);
+            Gauge.builder("hospital.grpc.server.in.flight", inFlight, AtomicInteger::get)
+            .tags(tags)
+            .register(registry);
+            requestSize = DistributionSummary.builder("hospital.grpc.server.request.size")
+            .baseUnit("bytes").tags(tags).register(registry);
+            responseSize = DistributionSummary.builder("hospital.grpc.server.response.size")
+            .baseUnit("bytes").tags(tags).register(registry);
+        }
+        
+        void closed(Status.Code code, long nanos) {
+            latency.record(nanos, TimeUnit.NANOSECONDS);
+            inFlight.decrementAndGet();
+            var c = byStatus[code.ordinal()];
+            if (c == null) {
+                // racing initializations resolve to the same registered counter
+                c = byStatus[code.ordinal()] = Counter.builder("hospital.grpc.server.status")
+                .tags(tags).tag("code", code.name())
+                .register(registry);
+            }
+            c.increment();
+        }
+    }
+    
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+    Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        var method = call.getMethodDescriptor();
+        var m = meters.computeIfAbsent(method.getFullMethodName(), k -> new MethodMeters(method));
+        m.inFlight.incrementAndGet();
+        var recording = new RecordingCall<>(call, m);
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(next.startCall(recording, headers)) {
+            @Override
+            public void onMessage(ReqT message) {
+                if (message instanceof MessageLite msg) {
+                    m.requestSize.record(msg.getSerializedSize());
+                }
+                super.onMessage(message);
+            }
+            
+            @Override
+            public void onCancel() {
+                // cancelled calls are never closed by the handler
+                recording.finish(Status.Code.CANCELLED);
+                super.onCancel();
+            }
+        };
+    }
+    
+    private static final class RecordingCall<ReqT, RespT>
+    extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+        
+        private static final AtomicIntegerFieldUpdater<RecordingCall> FINISHED =
+        AtomicIntegerFieldUpdater.newUpdater(RecordingCall.class, "finished");
+        
+        private final MethodMeters meters;
+        private final long startNanos = System.nanoTime();
+        private volatile int finished;
+        
+        RecordingCall(ServerCall<ReqT, RespT> call, MethodMeters meters) {
+            super(call);
+            this.meters = meters;
+        }
+        
+        @Override
+        public void sendMessage(RespT message) {
+            if (message instanceof MessageLite msg) {
+                meters.responseSize.record(msg.getSerializedSize());
+            } else if (message instanceof byte[] serialized) {
+                // replies sent pre-serialized (SerializedResponses)
+                meters.responseSize.record(serialized.length);
+            }
+            super.sendMessage(message);
+        }
+        
+        @Override
+        public void close(Status status, Metadata trailers) {
+            finish(status.getCode());
+            super.close(status, trailers);
+        }
+        
+        void finish(Status.Code code) {
+            if (FINISHED.compareAndSet(this, 0, 1)) {
+                meters.closed(code, System.nanoTime() - startNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package avelios.hospital.purge;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/** {@code purge} actuator endpoint: queued purges with their progress, and totals. */
+@Component
+@Endpoint(id = "purge")
+public class PurgeEndpoint {
+    
+    private final Purger purger;
+    
+    public PurgeEndpoint(Purger purger) {
+        this.purger = purger;
+    }
+    
+    @ReadOperation
+    public Purger.Status status() {
+        return purger.status();
+    }
+}
@@ -0,0 +1,169 @@
+package avelios.hospital.purge;
+
+import avelios.hospital.events.ChangeListener;
+import avelios.hospital.repo.HospitalRepo;
+import avelios.hospital.repo.PatientRepo;
+import avelios.hospital.repo.PurgedVisit;
+import avelios.hospital.repo.VisitRepo;
+import avelios.hospital.stats.VisitStatsStore;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background removal of deleted hospitals and patients. The delete RPCs only flag the row,
+ * which hides it from every read at once; the resulting delete event queues it here. Each
+ * drain removes the entity's visits in transactions of at most {@code hospital.purge.chunk-size}
+ * rows, so no statement locks more than one chunk, and then deletes the row itself.
+ *
+ * Flagged rows survive a restart and are queued again at startup. Progress is available as the
+ * {@code purge} actuator endpoint and the {@code hospital.purge.pending} /
+ * {@code hospital.purge.visits} meters.
+ */
+@Component
+public class Purger implements ChangeListener {
+    
+    private static final Logger log = LoggerFactory.getLogger(Purger.class);
+    
+    public enum Kind { HOSPITAL, PATIENT }
+    
+    /** A queued purge and the number of its visits removed so far. */
+    public record Progress(Kind kind, UUID id, Instant requestedAt, long visitsPurged) {}
+    
+    /** What the {@code purge} endpoint reports. */
+    public record Status(List<Progress> pending, long visitsPurged, long entitiesPurged) {}
+    
+    private static final class Job {
+        final Kind kind;
+        final UUID id;
+        final Instant requestedAt = Instant.now();
+        final AtomicLong visitsPurged = new AtomicLong();
+        
+        Job(Kind kind, UUID id) {
+            this.kind = kind;
+            this.id = id;
+        }
+    }
+    
+    private final ConcurrentLinkedQueue<Job> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong entitiesPurged = new AtomicLong();
+    private final Counter visitsPurged;
+    
+    private final HospitalRepo hospitals;
+    private final PatientRepo patients;
+    private final VisitRepo visits;
+    private final VisitStatsStore stats;
+    private final TransactionTemplate tx;
+    private final int chunkSize;
+    
+    public Purger(HospitalRepo hospitals, PatientRepo patients, VisitRepo visits, VisitStatsStore stats,
+    TransactionTemplate tx, MeterRegistry registry,
+    @Value("${hospital.purge.chunk-size:1000}") int chunkSize) {
+        this.hospitals = hospitals;
+        this.patients = patients;
+        this.visits = visits;
+        this.stats = stats;
+        this.tx = tx;
+        this.chunkSize = chunkSize;
+        this.visitsPurged = Counter.builder("hospital.purge.visits").register(registry);
+        Gauge.builder("hospital.purge.pending", queue, ConcurrentLinkedQueue::size).register(registry);
+    }
+    
+    @PostConstruct
+    void resume() {
+        hospitals.findDeletedIds().forEach(id -> queue.add(new Job(Kind.HOSPITAL, id)));
+        patients.findDeletedIds().forEach(id -> queue.add(new Job(Kind.PATIENT, id)));
+    }
+    
+    @Override
+    public void onHospitalDeleted(UUID hospitalId) {
+        queue.add(new Job(Kind.HOSPITAL, hospitalId));
+    }
+    
+    @Override
+    public void onPatientDeleted(UUID patientId) {
+        queue.add(new Job(Kind.PATIENT, patientId));
+    }
+    
+    public Status status() {
+        return new Status(
+        queue.stream().map(j -> new Progress(j.kind, j.id, j.requestedAt, j.visitsPurged.get())).toList(),
+        (long) visitsPurged.count(), entitiesPurged.get());
+    }
+    
+    /** Works through the queue in order; a job that fails goes to the back and is retried next time. */
+    @Scheduled(fixedDelayString = "${hospital.purge.interval-ms:1000}")
+    public synchronized void drain() {
+        Job job;
+        while ((job = queue.peek()) != null) {
+            try {
+                if (job.kind == Kind.HOSPITAL) {
+                    purgeHospital(job);
+                } else {
+                    purgePatient(job);
+                }
+                entitiesPurged.incrementAndGet();
+                queue.remove(job);
+            } catch (RuntimeException e) {
+                log.warn("purge of {} {} failed, will retry", job.kind, job.id, e);
+                queue.remove(job);
+                queue.add(job);
+                return;
+            }
+        }
+    }
+    
+    private void purgeHospital(Job job) {
+        int n;
+        do {
+            n = tx.execute(s -> {
+                var ids = visits.idsOfHospital(job.id, PageRequest.of(0, chunkSize));
+                return ids.isEmpty() ? 0 : visits.deleteByIds(ids);
+            });
+            purged(job, n);
+        } while (n > 0);
+        // its buckets were dropped when the delete event was published
+        hospitals.purge(job.id);
+    }
+    
+    private void purgePatient(Job job) {
+        if (patients.findById(job.id).isEmpty()) {
+            return;
+        }
+        List<PurgedVisit> chunk;
+        do {
+            chunk = tx.execute(s -> {
+                var rows = visits.visitsOfPatient(job.id, PageRequest.of(0, chunkSize));
+                if (!rows.isEmpty()) {
+                    visits.deleteByIds(rows.stream().map(PurgedVisit::id).toList());
+                }
+                return rows;
+            });
+            // only after the commit, so a failed chunk is still counted; each visit leaves the
+            // bucket it was counted in, even if the patient was corrected since
+            chunk.forEach(v -> stats.remove(v.hospitalId(), v.sex(), v.dob(), v.visitDate()));
+            purged(job, chunk.size());
+        } while (!chunk.isEmpty());
+        patients.purge(job.id);
+    }
+    
+    private void purged(Job job, int n) {
+        job.visitsPurged.addAndGet(n);
+        visitsPurged.increment(n);
+    }
+}
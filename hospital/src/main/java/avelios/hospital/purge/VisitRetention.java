@@ -0,0 +1,83 @@
+package avelios.hospital.purge;
+
+import avelios.hospital.entity.Visit;
+import avelios.hospital.events.ChangeEvents;
+import avelios.hospital.repo.VisitRepo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+
+/**
+ * Keeps raw visits to the last {@code hospital.retention.months} (120) months. Expired data
+ * goes one monthly partition at a time (see {@link Visit}), oldest first, instead of a delete
+ * over the whole table. Only partitions that hold visits are visited. Like the purge, each
+ * partition is emptied in transactions of at most {@code hospital.purge.chunk-size} rows, so
+ * a busy month does not hold all of its row locks in one statement.
+ */
+@Component
+public class VisitRetention {
+    
+    private static final Logger log = LoggerFactory.getLogger(VisitRetention.class);
+    
+    private final VisitRepo visits;
+    private final ChangeEvents events;
+    private final TransactionTemplate tx;
+    private final int months;
+    private final int chunkSize;
+    private final Counter dropped;
+    
+    public VisitRetention(VisitRepo visits, ChangeEvents events, TransactionTemplate tx, MeterRegistry registry,
+    @Value("${hospital.retention.months:120}") int months,
+    @Value("${hospital.purge.chunk-size:1000}") int chunkSize) {
+        this.visits = visits;
+        this.events = events;
+        this.tx = tx;
+        this.months = months;
+        this.chunkSize = chunkSize;
+        this.dropped = Counter.builder("hospital.retention.visits").register(registry);
+    }
+    
+    @Scheduled(cron = "${hospital.retention.cron:0 30 3 * * *}")
+    public void run() {
+        expire(LocalDate.now());
+    }
+    
+    /**
+     * Drops every partition older than the retention window ending in the month of {@code today};
+     * returns the number of visits removed.
+     */
+    public synchronized long expire(LocalDate today) {
+        var before = YearMonth.from(today).minusMonths(months);
+        int cutoff = Visit.monthIndex(before.atDay(1));
+        // only partitions that hold visits: after a long gap there may be years of empty months
+        var expired = visits.monthsBefore(cutoff);
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        long removed = 0;
+        for (int month : expired) {
+            int n;
+            do {
+                n = tx.execute(s -> {
+                    var ids = visits.idsOfMonth(month, PageRequest.of(0, chunkSize));
+                    return ids.isEmpty() ? 0 : visits.deleteByIds(ids);
+                });
+                removed += n;
+            } while (n > 0);
+        }
+        dropped.increment(removed);
+        events.visitsExpired(before);
+        log.info("retention dropped {} visits dated before {}", removed, before);
+        return removed;
+    }
+}
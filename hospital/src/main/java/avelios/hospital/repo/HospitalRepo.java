@@ -1,8 +1,51 @@
 package avelios.hospital.repo;
 import avelios.hospital.entity.Hospital;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 import java.util.*;
+import java.util.stream.Stream;
 
+// hospitals marked deleted stay in the table until Purger has removed their visits;
+// every read below skips them, use these instead of findById/findAll
 public interface HospitalRepo extends JpaRepository<Hospital, UUID> {
     Optional<Hospital> findByName(String name);
+    
+    Optional<Hospital> findByIdAndDeletedFalse(UUID id);
+    
+    List<Hospital> findByDeletedFalse();
+    
+    List<Hospital> findByIdInAndDeletedFalse(Collection<UUID> ids);
+    
+    // keyset pages ordered by id; pass PageRequest.of(0, size) so no OFFSET is generated
+    @Query("select new avelios.hospital.repo.HospitalRow(h.id, h.name) from Hospital h where h.deleted = false order by h.id")
+    List<HospitalRow> firstPage(Pageable page);
+    
+    @Query("select new avelios.hospital.repo.HospitalRow(h.id, h.name) from Hospital h where h.deleted = false and h.id > :after order by h.id")
+    List<HospitalRow> pageAfter(@Param("after") UUID after, Pageable page);
+    
+    // must be consumed inside a transaction
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+    @Query("select new avelios.hospital.repo.HospitalRow(h.id, h.name) from Hospital h where h.deleted = false")
+    Stream<HospitalRow> streamRows();
+    
+    /** Marks a live hospital deleted; 0 if it does not exist or is already deleted. */
+    @Transactional
+    @Modifying
+    @Query("update Hospital h set h.deleted = true where h.id = :id and h.deleted = false")
+    int markDeleted(@Param("id") UUID id);
+    
+    @Query("select h.id from Hospital h where h.deleted = true")
+    List<UUID> findDeletedIds();
+    
+    /** Removes a deleted hospital's row; its visits must be gone already. */
+    @Transactional
+    @Modifying
+    @Query("delete from Hospital h where h.id = :id and h.deleted = true")
+    int purge(@Param("id") UUID id);
 }
@@ -0,0 +1,6 @@
+package avelios.hospital.repo;
+
+import java.util.UUID;
+
+/** {@code (id, name)} projection of a hospital, enough to build a {@code HospitalTuple}. */
+public record HospitalRow(UUID id, String name) {}
@@ -0,0 +1,9 @@
+package avelios.hospital.repo;
+
+import java.util.UUID;
+
+/**
+ * Number of visits of one hospital in one month ({@code year * 12 + (month - 1)}), and the
+ * highest id among them.
+ */
+public record MonthCount(UUID hospitalId, int monthIndex, long visits, long maxId) {}
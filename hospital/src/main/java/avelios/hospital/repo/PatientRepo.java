@@ -1,6 +1,54 @@
 package avelios.hospital.repo;
 import avelios.hospital.entity.Patient;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Stream;
 
-public interface PatientRepo extends JpaRepository<Patient, UUID> {}
\ No newline at end of file
+// patients marked deleted stay in the table until Purger has removed their visits;
+// every read below skips them, use these instead of findById/findAll
+public interface PatientRepo extends JpaRepository<Patient, UUID> {
+    
+    Optional<Patient> findByIdAndDeletedFalse(UUID id);
+    
+    List<Patient> findByDeletedFalse();
+    
+    List<Patient> findByIdInAndDeletedFalse(Collection<UUID> ids);
+    
+    // keyset pages ordered by id; pass PageRequest.of(0, size) so no OFFSET is generated
+    @Query("select new avelios.hospital.repo.PatientRow(p.id, p.name) from Patient p where p.deleted = false order by p.id")
+    List<PatientRow> firstPage(Pageable page);
+    
+    @Query("select new avelios.hospital.repo.PatientRow(p.id, p.name) from Patient p where p.deleted = false and p.id > :after order by p.id")
+    List<PatientRow> pageAfter(@Param("after") UUID after, Pageable page);
+    
+    // must be consumed inside a transaction
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+    @Query("select new avelios.hospital.repo.PatientRow(p.id, p.name) from Patient p where p.deleted = false")
+    Stream<PatientRow> streamRows();
+    
+    /** Marks a live patient deleted; 0 if it does not exist or is already deleted. */
+    @Transactional
+    @Modifying
+    @Query("update Patient p set p.deleted = true where p.id = :id and p.deleted = false")
+    int markDeleted(@Param("id") UUID id);
+    
+    @Query("select p.id from Patient p where p.deleted = true")
+    List<UUID> findDeletedIds();
+    
+    /** Removes a deleted patient's row; its visits must be gone already. */
+    @Transactional
+    @Modifying
+    @Query("delete from Patient p where p.id = :id and p.deleted = true")
+    int purge(@Param("id") UUID id);
+}
@@ -0,0 +1,6 @@
+package avelios.hospital.repo;
+
+import java.util.UUID;
+
+/** {@code (id, name)} projection of a patient, enough to build a {@code PatientTuple}. */
+public record PatientRow(UUID id, String name) {}
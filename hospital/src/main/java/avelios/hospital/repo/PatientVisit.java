@@ -0,0 +1,7 @@
+package avelios.hospital.repo;
+
+import java.time.LocalDate;
+import java.util.UUID;
+
+/** Who visited which hospital when, without materializing entities. */
+public record PatientVisit(UUID hospitalId, UUID patientId, LocalDate visitDate) {}
@@ -0,0 +1,12 @@
+package avelios.hospital.repo;
+
+import avelios.hospital.entity.Patient;
+
+import java.time.LocalDate;
+import java.util.UUID;
+
+/**
+ * A visit about to be purged, with what the statistics need to take it back out: the sex and
+ * birth date it was counted under.
+ */
+public record PurgedVisit(Long id, UUID hospitalId, Patient.Sex sex, LocalDate dob, LocalDate visitDate) {}
@@ -0,0 +1,7 @@
+package avelios.hospital.repo;
+
+import java.time.LocalDate;
+import java.util.UUID;
+
+/** One live visit as written to the columnar snapshot. */
+public record SnapshotVisit(Long id, UUID hospitalId, UUID patientId, LocalDate visitDate) {}
@@ -0,0 +1,22 @@
+package avelios.hospital.repo;
+import avelios.hospital.entity.VisitBucket;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.UUID;
+
+public interface VisitBucketRepo extends JpaRepository<VisitBucket, VisitBucket.Key> {
+    
+    @Transactional
+    @Modifying
+    @Query("delete from VisitBucket b where b.key.hospitalId = :hospitalId")
+    int deleteByHospitalId(@Param("hospitalId") UUID hospitalId);
+    
+    @Transactional
+    @Modifying
+    @Query("delete from VisitBucket b where b.key.monthIndex < :monthIndex")
+    int deleteMonthsBefore(@Param("monthIndex") int monthIndex);
+}
@@ -0,0 +1,9 @@
+package avelios.hospital.repo;
+
+import java.util.UUID;
+
+/**
+ * A (hospital, patient) pair that has at least one visit, with the month index of its newest
+ * visit ({@code year * 12 + month - 1}).
+ */
+public record VisitEdge(UUID hospitalId, UUID patientId, int month) {}
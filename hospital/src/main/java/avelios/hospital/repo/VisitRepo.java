@@ -1,22 +1,209 @@
 package avelios.hospital.repo;
 import avelios.hospital.entity.*;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 
+import java.time.LocalDate;
 import java.util.*;
+import java.util.stream.Stream;
 
 public interface VisitRepo extends JpaRepository<Visit, Long> {
-    List<Visit> findByHospital_Id(UUID hospitalId);
-    List<Visit> findByPatient_Id(UUID patientId);
+    // distinct is evaluated by the database on the (hospital_id, patient_id) / (patient_id, hospital_id)
+    // indexes; only the projected columns are read, no Visit entities are materialized.
+    // Visits of deleted hospitals and patients linger until purged, so both sides are checked.
+    @Query(
+    """
+        select distinct new avelios.hospital.repo.PatientRow(p.id, p.name)
+        from Visit v join v.patient p join v.hospital h
+        where h.id = :hospitalId and h.deleted = false and p.deleted = false
+    """)
+    List<PatientRow> patientsOfHospital(@Param("hospitalId") UUID hospitalId);
+    
+    @Query(
+    """
+        select distinct new avelios.hospital.repo.HospitalRow(h.id, h.name)
+        from Visit v join v.hospital h join v.patient p
+        where p.id = :patientId and p.deleted = false and h.deleted = false
+    """)
+    List<HospitalRow> hospitalsOfPatient(@Param("patientId") UUID patientId);
+    
+    // every hospital the patient visited, flagged or not; their patient lists change with the patient
+    @Query("select distinct v.hospital.id from Visit v where v.patient.id = :patientId")
+    List<UUID> hospitalIdsOfPatient(@Param("patientId") UUID patientId);
+    
+    // keyset pages of the distinct patients of a hospital, ordered by patient id
+    @Query(
+    """
+        select distinct new avelios.hospital.repo.PatientRow(p.id, p.name)
+        from Visit v join v.patient p join v.hospital h
+        where h.id = :hospitalId and h.deleted = false and p.deleted = false
+        order by p.id
+    """)
+    List<PatientRow> firstPatientsPage(@Param("hospitalId") UUID hospitalId, Pageable page);
+    
+    @Query(
+    """
+        select distinct new avelios.hospital.repo.PatientRow(p.id, p.name)
+        from Visit v join v.patient p join v.hospital h
+        where h.id = :hospitalId and h.deleted = false and p.deleted = false and p.id > :after
+        order by p.id
+    """)
+    List<PatientRow> patientsPageAfter(@Param("hospitalId") UUID hospitalId, @Param("after") UUID after, Pageable page);
     
+    // must be consumed inside a transaction; visits of deleted patients are included, Purger
+    // subtracts them from the statistics as it removes them
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
     @Query(
     """
-        select distinct v.hospital
+        select new avelios.hospital.repo.VisitSample(v.id, h.id,
+            coalesce(v.patientSex, p.sex), coalesce(v.patientDob, p.dob), v.visitDate)
+        from Visit v join v.patient p join v.hospital h
+        where h.deleted = false
+    """)
+    Stream<VisitSample> streamSamples();
+    
+    // must be consumed inside a transaction; one month of one hospital, to rebuild its buckets
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+    @Query(
+    """
+        select new avelios.hospital.repo.VisitSample(v.id, v.hospital.id,
+            coalesce(v.patientSex, p.sex), coalesce(v.patientDob, p.dob), v.visitDate)
+        from Visit v join v.patient p
+        where v.hospital.id = :hospitalId and v.visitMonth = :month
+    """)
+    Stream<VisitSample> streamSamples(@Param("hospitalId") UUID hospitalId, @Param("month") int month);
+    
+    // must be consumed inside a transaction
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+    @Query(
+    """
+        select new avelios.hospital.repo.PatientVisit(h.id, v.patient.id, v.visitDate)
+        from Visit v join v.hospital h
+        where h.deleted = false
+    """)
+    Stream<PatientVisit> streamPatientVisits();
+    
+    // must be consumed inside a transaction; one month of one hospital, to rebuild its sketch
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+    @Query(
+    """
+        select new avelios.hospital.repo.PatientVisit(v.hospital.id, v.patient.id, v.visitDate)
         from Visit v
-        where v.patient.id = :patientId
+        where v.hospital.id = :hospitalId and v.visitMonth = :month
+    """)
+    Stream<PatientVisit> streamPatientVisits(@Param("hospitalId") UUID hospitalId, @Param("month") int month);
+    
+    // the visits streamPatientVisits() and streamSamples() return, counted per hospital and month without reading them
+    @Query(
+    """
+        select new avelios.hospital.repo.MonthCount(h.id, v.visitMonth, count(v), max(v.id))
+        from Visit v join v.hospital h
+        where h.deleted = false
+        group by h.id, v.visitMonth
     """)
+    List<MonthCount> countByHospitalAndMonth();
     
-    List<avelios.hospital.entity.Hospital> hospitalsOfPatient(@Param("patientId") java.util.UUID patientId);
+    // must be consumed inside a transaction
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+    @Query(
+    """
+        select new avelios.hospital.repo.VisitEdge(h.id, p.id, max(v.visitMonth))
+        from Visit v join v.hospital h join v.patient p
+        where h.deleted = false and p.deleted = false
+        group by h.id, p.id
+    """)
+    Stream<VisitEdge> streamEdges();
+    
+    // must be consumed inside a transaction; visits committed after a snapshot, for the catch-up
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+    @Query(
+    """
+        select new avelios.hospital.repo.VisitEdge(h.id, p.id, max(v.visitMonth))
+        from Visit v join v.hospital h join v.patient p
+        where v.id > :afterId and h.deleted = false and p.deleted = false
+        group by h.id, p.id
+    """)
+    Stream<VisitEdge> streamEdgesAfter(@Param("afterId") long afterId);
+    
+    // must be consumed inside a transaction
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+    @Query(
+    """
+        select new avelios.hospital.repo.SnapshotVisit(v.id, h.id, p.id, v.visitDate)
+        from Visit v join v.hospital h join v.patient p
+        where h.deleted = false and p.deleted = false
+    """)
+    Stream<SnapshotVisit> streamSnapshotVisits();
+    
+    // idempotent registration: the existence check behind a Bloom filter hit
+    boolean existsByPatientIdAndHospitalIdAndVisitDate(UUID patientId, UUID hospitalId, LocalDate visitDate);
+    
+    // visits of one day, through the partition index
+    @Query("select count(v) from Visit v where v.visitMonth = :month and v.visitDate = :date")
+    long countOnDay(@Param("month") int month, @Param("date") LocalDate date);
+    
+    // must be consumed inside a transaction
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+    @Query(
+    """
+        select new avelios.hospital.repo.VisitEdge(v.hospital.id, v.patient.id, v.visitMonth)
+        from Visit v
+        where v.visitMonth = :month and v.visitDate = :date
+    """)
+    Stream<VisitEdge> streamVisitsOnDay(@Param("month") int month, @Param("date") LocalDate date);
+    
+    // one page of a hospital's visits in [from, to], in (visit_date, id) order after the given key,
+    // without those of deleted patients still waiting for the purge; the visitMonth bounds
+    // confine the scan to the partitions overlapping the range
+    @Query(
+    """
+        select new avelios.hospital.repo.VisitRow(v.id, p.id, v.visitDate)
+        from Visit v join v.patient p
+        where v.hospital.id = :hospitalId
+          and p.deleted = false
+          and v.visitMonth between :fromMonth and :toMonth
+          and v.visitDate <= :to
+          and (v.visitDate > :afterDate or (v.visitDate = :afterDate and v.id > :afterId))
+        order by v.visitDate, v.id
+    """)
+    List<VisitRow> visitsBetween(@Param("hospitalId") UUID hospitalId,
+    @Param("fromMonth") int fromMonth, @Param("toMonth") int toMonth, @Param("to") LocalDate to,
+    @Param("afterDate") LocalDate afterDate, @Param("afterId") long afterId, Pageable page);
+    
+    @Query("select min(v.visitMonth) from Visit v")
+    Integer oldestMonth();
+    
+    @Query("select coalesce(max(v.id), 0) from Visit v")
+    long maxId();
+    
+    // retention: the populated partitions before the cutoff, read from the partition index
+    @Query("select distinct v.visitMonth from Visit v where v.visitMonth < :month order by v.visitMonth")
+    List<Integer> monthsBefore(@Param("month") int month);
+    
+    // retention chunks: up to page-size visits of one expired partition, deleted by deleteByIds
+    @Query("select v.id from Visit v where v.visitMonth = :month")
+    List<Long> idsOfMonth(@Param("month") int month, Pageable page);
+    
+    // purge chunks: pick up to page-size visits of a deleted hospital or patient, then delete
+    // exactly those, so each transaction holds a bounded number of row locks
+    @Query("select v.id from Visit v where v.hospital.id = :hospitalId")
+    List<Long> idsOfHospital(@Param("hospitalId") UUID hospitalId, Pageable page);
+    
+    @Query(
+    """
+        select new avelios.hospital.repo.PurgedVisit(v.id, v.hospital.id,
+            coalesce(v.patientSex, p.sex), coalesce(v.patientDob, p.dob), v.visitDate)
+        from Visit v join v.patient p
+        where p.id = :patientId
+    """)
+    List<PurgedVisit> visitsOfPatient(@Param("patientId") UUID patientId, Pageable page);
     
+    @Modifying
+    @Query("delete from Visit v where v.id in :ids")
+    int deleteByIds(@Param("ids") Collection<Long> ids);
 }
@@ -0,0 +1,7 @@
+package avelios.hospital.repo;
+
+import java.time.LocalDate;
+import java.util.UUID;
+
+/** {@code (id, patient, date)} projection of a visit, enough to build a {@code VisitTuple}. */
+public record VisitRow(Long id, UUID patientId, LocalDate visitDate) {}
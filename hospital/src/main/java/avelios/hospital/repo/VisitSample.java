@@ -0,0 +1,8 @@
+package avelios.hospital.repo;
+
+import avelios.hospital.entity.Patient;
+import java.time.LocalDate;
+import java.util.UUID;
+
+/** Just the columns the visit statistics need, without materializing entities. */
+public record VisitSample(long id, UUID hospitalId, Patient.Sex sex, LocalDate dob, LocalDate visitDate) {}
@@ -0,0 +1,50 @@
+package avelios.hospital.routing;
+
+import io.grpc.Context;
+import io.grpc.Metadata;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.function.Supplier;
+
+/**
+ * Which database a connection comes from when read replicas are configured
+ * ({@code hospital.datasource.replicas}). {@link ReadRoutingInterceptor} marks read RPCs in their
+ * gRPC {@link Context}; connections taken for such a call go to a replica unless a read-write
+ * transaction is open. Everything else uses the primary: write RPCs, background jobs, and calls
+ * sending {@code x-read-your-writes: true} to see their own writes at once.
+ *
+ * Replicas lag, so data kept beyond the call (the entity and response caches) must be loaded
+ * {@link #onPrimary on the primary}, or a stale row could outlive the change that replaced it.
+ */
+public final class ReadRouting {
+    
+    public static final Metadata.Key<String> READ_YOUR_WRITES =
+    Metadata.Key.of("x-read-your-writes", Metadata.ASCII_STRING_MARSHALLER);
+    
+    static final Context.Key<Boolean> READ_CALL = Context.key("hospital-read-call");
+    
+    private ReadRouting() {}
+    
+    /** Whether a connection taken now may come from a replica. */
+    static boolean replicaAllowed() {
+        if (!Boolean.TRUE.equals(READ_CALL.get())) {
+            return false;
+        }
+        return !TransactionSynchronizationManager.isActualTransactionActive()
+        || TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+    }
+    
+    /** Runs {@code work} with its connections on the primary, also inside a read call. */
+    public static <T> T onPrimary(Supplier<T> work) {
+        if (!Boolean.TRUE.equals(READ_CALL.get())) {
+            return work.get();
+        }
+        var pinned = Context.current().withValue(READ_CALL, false);
+        var previous = pinned.attach();
+        try {
+            return work.get();
+        } finally {
+            pinned.detach(previous);
+        }
+    }
+}
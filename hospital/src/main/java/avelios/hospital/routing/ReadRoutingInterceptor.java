@@ -0,0 +1,38 @@
+package avelios.hospital.routing;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import net.devh.boot.grpc.server.interceptor.GrpcGlobalServerInterceptor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+
+/**
+ * Marks the read RPCs of the hospital services (Get, BatchGet, List, Count, Search, Stream) so
+ * their queries may run on a replica, see {@link ReadRouting}. A call with the header
+ * {@code x-read-your-writes: true} is left unmarked and reads from the primary.
+ */
+@GrpcGlobalServerInterceptor
+@ConditionalOnExpression("!'${hospital.datasource.replicas:}'.isEmpty()")
+public class ReadRoutingInterceptor implements ServerInterceptor {
+    
+    static boolean isRead(MethodDescriptor<?, ?> method) {
+        var service = method.getServiceName();
+        var name = method.getBareMethodName();
+        return service != null && service.startsWith("hospital.") && name != null
+        && (name.startsWith("Get") || name.startsWith("BatchGet") || name.startsWith("List")
+        || name.startsWith("Count") || name.startsWith("Search") || name.startsWith("Stream"));
+    }
+    
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+    Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        if (!isRead(call.getMethodDescriptor()) || "true".equalsIgnoreCase(headers.get(ReadRouting.READ_YOUR_WRITES))) {
+            return next.startCall(call, headers);
+        }
+        return Contexts.interceptCall(Context.current().withValue(ReadRouting.READ_CALL, true), call, headers, next);
+    }
+}
@@ -0,0 +1,77 @@
+package avelios.hospital.routing;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out primary or replica connections as {@link ReadRouting} decides. Replicas are picked
+ * round-robin, or least-loaded: the one with the fewest connections in use, which steers reads
+ * away from a replica that has turned slow. Meant to sit behind a
+ * {@code LazyConnectionDataSourceProxy}, so the decision is made at the first statement, once
+ * the transaction's read-only flag is known.
+ */
+public final class RoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+    
+    public enum Selection { ROUND_ROBIN, LEAST_LOADED }
+    
+    private static final String PRIMARY = "primary";
+    
+    private final List<HikariDataSource> replicas;
+    private final Selection selection;
+    private final AtomicInteger next = new AtomicInteger();
+    
+    public RoutingDataSource(DataSource primary, List<HikariDataSource> replicas, Selection selection) {
+        if (replicas.isEmpty()) {
+            throw new IllegalArgumentException("at least one replica required");
+        }
+        this.replicas = List.copyOf(replicas);
+        this.selection = selection;
+        var targets = new HashMap<Object, Object>();
+        targets.put(PRIMARY, primary);
+        for (int i = 0; i < replicas.size(); i++) {
+            targets.put(i, replicas.get(i));
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        setLenientFallback(false);
+        afterPropertiesSet();
+    }
+    
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!ReadRouting.replicaAllowed()) {
+            return PRIMARY;
+        }
+        return switch (selection) {
+            case ROUND_ROBIN -> Math.floorMod(next.getAndIncrement(), replicas.size());
+            case LEAST_LOADED -> leastLoaded();
+        };
+    }
+    
+    // ties go round-robin, so idle replicas share the reads
+    private int leastLoaded() {
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        int best = start;
+        int fewest = Integer.MAX_VALUE;
+        for (int k = 0; k < replicas.size(); k++) {
+            int i = (start + k) % replicas.size();
+            var pool = replicas.get(i).getHikariPoolMXBean();
+            int active = pool == null ? 0 : pool.getActiveConnections();
+            if (active < fewest) {
+                fewest = active;
+                best = i;
+            }
+        }
+        return best;
+    }
+    
+    @Override
+    public void close() {
+        replicas.forEach(HikariDataSource::close);
+    }
+}
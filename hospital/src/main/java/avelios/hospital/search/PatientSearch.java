@@ -0,0 +1,92 @@
+package avelios.hospital.search;
+
+import avelios.hospital.entity.Patient;
+import avelios.hospital.events.ChangeListener;
+import avelios.hospital.repo.PatientRepo;
+import avelios.hospital.repo.PatientRow;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
+
+/**
+ * Patient name search ({@code SearchPatients}) over an in-memory {@link TrigramIndex}.
+ * Loaded from the live patients at startup and kept current through {@link ChangeListener},
+ * so no search ever reaches the database. The number of indexed patients and distinct
+ * trigrams are published as {@code hospital.search.patients} and {@code hospital.search.grams}.
+ */
+@Component
+public class PatientSearch implements ChangeListener {
+    
+    private final TrigramIndex index = new TrigramIndex();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final PatientRepo patients;
+    private final TransactionTemplate tx;
+    
+    public PatientSearch(PatientRepo patients, TransactionTemplate tx, MeterRegistry registry) {
+        this.patients = patients;
+        this.tx = tx;
+        Gauge.builder("hospital.search.patients", this, s -> s.read(s.index::size)).register(registry);
+        Gauge.builder("hospital.search.grams", this, s -> s.read(s.index::gramCount)).register(registry);
+    }
+    
+    @PostConstruct
+    void load() {
+        lock.writeLock().lock();
+        try {
+            tx.executeWithoutResult(s -> {
+                try (var rows = patients.streamRows()) {
+                    rows.forEach(p -> index.put(p.id(), p.name()));
+                }
+            });
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /** Best {@code limit} matches of {@code query}, best first. */
+    public List<PatientRow> search(String query, int limit) {
+        lock.readLock().lock();
+        try {
+            return index.search(query, limit, PatientRow::new);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    private int read(IntSupplier f) {
+        lock.readLock().lock();
+        try {
+            return f.getAsInt();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public void onPatientSaved(Patient p) {
+        lock.writeLock().lock();
+        try {
+            index.put(p.getId(), p.getName());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void onPatientDeleted(UUID patientId) {
+        lock.writeLock().lock();
+        try {
+            index.remove(patientId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
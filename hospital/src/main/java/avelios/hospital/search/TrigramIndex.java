@@ -0,0 +1,225 @@
+package avelios.hospital.search;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.function.BiFunction;
+
+/**
+ * Trigram index over names for substring and prefix search. Names are normalized (lower
+ * case, diacritics stripped, whitespace collapsed) and padded with two leading spaces, so
+ * besides its inner trigrams every name has the prefix grams {@code "  a"} and {@code " ab"},
+ * and every later word start yields {@code " xy"}. Each trigram maps to the ascending
+ * ordinals of the names containing it.
+ *
+ * A query of three or more characters walks the rarest posting list of its trigrams, probes
+ * the others by binary search and confirms survivors with {@code contains}. Shorter queries
+ * read a single prefix gram, so they match name prefixes (one character) or word prefixes
+ * (two). Hits are ranked exact match, name prefix, word prefix, substring, then by length
+ * and name.
+ *
+ * Removing or renaming an entry retires its ordinal; searches skip retired ordinals and the
+ * index rebuilds itself once they outnumber the live ones.
+ *
+ * Not thread-safe; {@link PatientSearch} guards it with a read/write lock.
+ */
+public final class TrigramIndex {
+
+    /** Ascending ordinals; appends keep the order because new entries get the highest ordinal. */
+    private static final class Postings {
+        int[] a = new int[2];
+        int n;
+
+        void add(int o) {
+            if (n > 0 && a[n - 1] == o) {
+                return;
+            }
+            if (n == a.length) {
+                a = Arrays.copyOf(a, n + (n >> 1) + 1);
+            }
+            a[n++] = o;
+        }
+
+        boolean contains(int o) {
+            return Arrays.binarySearch(a, 0, n, o) >= 0;
+        }
+    }
+
+    private record Hit(int rank, int length, String name, int ordinal) {}
+
+    private static final Comparator<Hit> ORDER = Comparator.comparingInt(Hit::rank)
+    .thenComparingInt(Hit::length)
+    .thenComparing(Hit::name)
+    .thenComparingInt(Hit::ordinal);
+
+    private HashMap<Long, Postings> grams = new HashMap<>();
+    private final HashMap<UUID, Integer> ordinals = new HashMap<>();
+    private UUID[] ids = new UUID[16];
+    private String[] names = new String[16];
+    private String[] keys = new String[16];
+    private int size;
+    private int retired;
+
+    /** Adds or renames an entry. */
+    public void put(UUID id, String name) {
+        var old = ordinals.get(id);
+        if (old != null) {
+            if (names[old].equals(name)) {
+                return;
+            }
+            retire(old);
+        }
+        append(id, name);
+        compactIfSparse();
+    }
+
+    public void remove(UUID id) {
+        var o = ordinals.get(id);
+        if (o != null) {
+            retire(o);
+            compactIfSparse();
+        }
+    }
+
+    public int size() {
+        return ordinals.size();
+    }
+
+    public int gramCount() {
+        return grams.size();
+    }
+
+    /** Up to {@code limit} best matches of {@code query}, mapped through {@code row(id, name)}. */
+    public <R> List<R> search(String query, int limit, BiFunction<UUID, String, R> row) {
+        var q = normalize(query);
+        if (q.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        var lists = new ArrayList<Postings>();
+        if (q.length() >= 3) {
+            for (int i = 0; i + 3 <= q.length(); i++) {
+                var p = grams.get(gram(q, i));
+                if (p == null) {
+                    return List.of();
+                }
+                lists.add(p);
+            }
+        } else {
+            var p = grams.get(gram((q.length() == 1 ? "  " : " ") + q, 0));
+            if (p == null) {
+                return List.of();
+            }
+            lists.add(p);
+        }
+        lists.sort(Comparator.comparingInt(p -> p.n));
+
+        // bounded max-heap: the worst of the best `limit` hits sits on top
+        var top = new PriorityQueue<Hit>(limit + 1, ORDER.reversed());
+        var rarest = lists.get(0);
+        candidates:
+        for (int k = 0; k < rarest.n; k++) {
+            int o = rarest.a[k];
+            if (keys[o] == null) {
+                continue;
+            }
+            for (int l = 1; l < lists.size(); l++) {
+                if (!lists.get(l).contains(o)) {
+                    continue candidates;
+                }
+            }
+            int rank = rank(keys[o], q);
+            if (rank < 0) {
+                continue;
+            }
+            top.add(new Hit(rank, keys[o].length(), keys[o], o));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        var hits = new ArrayList<>(top);
+        hits.sort(ORDER);
+        var out = new ArrayList<R>(hits.size());
+        hits.forEach(h -> out.add(row.apply(ids[h.ordinal()], names[h.ordinal()])));
+        return out;
+    }
+
+    /** 0 exact, 1 name prefix, 2 word prefix, 3 substring, -1 no match; {@code key} is padded. */
+    private static int rank(String key, String q) {
+        if (key.length() - 2 == q.length() && key.endsWith(q)) {
+            return 0;
+        }
+        if (key.startsWith(q, 2)) {
+            return 1;
+        }
+        if (key.contains(" " + q)) {
+            return 2;
+        }
+        return key.contains(q) ? 3 : -1;
+    }
+
+    static String normalize(String s) {
+        var folded = Normalizer.normalize(s.toLowerCase(Locale.ROOT), Normalizer.Form.NFD)
+        .replaceAll("\\p{M}", "");
+        return folded.trim().replaceAll("\\s+", " ");
+    }
+
+    private static long gram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    private void append(UUID id, String name) {
+        if (size == ids.length) {
+            int cap = size * 2;
+            ids = Arrays.copyOf(ids, cap);
+            names = Arrays.copyOf(names, cap);
+            keys = Arrays.copyOf(keys, cap);
+        }
+        int o = size++;
+        var key = "  " + normalize(name);
+        ids[o] = id;
+        names[o] = name;
+        keys[o] = key;
+        ordinals.put(id, o);
+        for (int i = 0; i + 3 <= key.length(); i++) {
+            grams.computeIfAbsent(gram(key, i), g -> new Postings()).add(o);
+        }
+    }
+
+    private void retire(int o) {
+        ordinals.remove(ids[o]);
+        ids[o] = null;
+        names[o] = null;
+        keys[o] = null;
+        retired++;
+    }
+
+    private void compactIfSparse() {
+        if (retired > 1024 && retired > ordinals.size()) {
+            compact();
+        }
+    }
+
+    /** Rebuilds the postings from the live entries only, renumbering them. */
+    void compact() {
+        var liveIds = Arrays.copyOf(ids, size);
+        var liveNames = Arrays.copyOf(names, size);
+        grams = new HashMap<>();
+        ordinals.clear();
+        ids = new UUID[Math.max(16, size - retired)];
+        names = new String[ids.length];
+        keys = new String[ids.length];
+        size = 0;
+        retired = 0;
+        for (int o = 0; o < liveIds.length; o++) {
+            if (liveIds[o] != null) {
+                append(liveIds[o], liveNames[o]);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package avelios.hospital.shard;
+
+import avelios.hospital.grpc.BatchGet;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import net.devh.boot.grpc.server.service.GrpcService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * {@code HospitalService} of the shard router ({@code hospital.shard.targets}): calls about one
+ * hospital go to the shard owning it, {@code ListHospitals} asks every shard and concatenates
+ * the replies. New hospitals get their id here so their owner is known before they exist.
+ *
+ * Not routed, hence UNIMPLEMENTED: StreamHospitals (resume tokens are per shard),
+ * ExportVisitSnapshot, the bulk ingest calls and RegisterStream (one stream would span shards);
+ * load shards directly.
+ */
+@GrpcService
+@ConditionalOnExpression("!'${hospital.shard.targets:}'.isEmpty()")
+public class HospitalRouter extends avelios.hospital.grpc.HospitalServiceGrpc.HospitalServiceImplBase {
+
+    private final ShardRouter router;
+
+    public HospitalRouter(ShardRouter router) {
+        this.router = router;
+    }
+
+    /** Runs a unary call against the shards and completes {@code out} with its reply or status. */
+    static <T> void unary(StreamObserver<T> out, Supplier<T> call) {
+        T reply;
+        try {
+            reply = call.get();
+        } catch (StatusRuntimeException e) {
+            out.onError(e);
+            return;
+        } catch (IllegalArgumentException e) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("malformed id").asRuntimeException());
+            return;
+        }
+        out.onNext(reply);
+        out.onCompleted();
+    }
+
+    private String owner(String hospitalId) {
+        return router.ownerOf(UUID.fromString(hospitalId));
+    }
+
+    @Override
+    public void createHospital(avelios.hospital.grpc.CreateHospitalRequest req,
+    StreamObserver<avelios.hospital.grpc.HospitalId> out) {
+        var withId = req.getId().isEmpty() ? req.toBuilder().setId(UUID.randomUUID().toString()).build() : req;
+        unary(out, () -> router.routedWrite(UUID.fromString(withId.getId()),
+        () -> router.hospitals(owner(withId.getId())).createHospital(withId)));
+    }
+
+    @Override
+    public void updateHospital(avelios.hospital.grpc.UpdateHospitalRequest req,
+    StreamObserver<avelios.hospital.grpc.Hospital> out) {
+        unary(out, () -> router.routedWrite(UUID.fromString(req.getId()),
+        () -> router.hospitals(owner(req.getId())).updateHospital(req)));
+    }
+
+    @Override
+    public void deleteHospital(avelios.hospital.grpc.HospitalId req,
+    StreamObserver<avelios.hospital.grpc.DeleteHospitalResponse> out) {
+        unary(out, () -> router.routedWrite(UUID.fromString(req.getId()),
+        () -> router.hospitals(owner(req.getId())).deleteHospital(req)));
+    }
+
+    // versions are per shard, so the merged list carries none and if_version is not forwarded
+    @Override
+    public void listHospitals(avelios.hospital.grpc.ListHospitalsRequest req,
+    StreamObserver<avelios.hospital.grpc.HospitalList> out) {
+        unary(out, () -> {
+            var list = avelios.hospital.grpc.HospitalList.newBuilder();
+            router.fanOut(s -> router.hospitalsFuture(s).listHospitals(
+            avelios.hospital.grpc.ListHospitalsRequest.getDefaultInstance()))
+            .forEach(l -> list.addAllHospitals(l.getHospitalsList()));
+            return list.build();
+        });
+    }
+
+    // each owner shard gets the ids it holds, the replies are put back into request order; the
+    // whole batch is validated first, as on a shard, so one bad id fails it before any fan-out
+    @Override
+    public void batchGetHospitals(avelios.hospital.grpc.BatchGetHospitalsRequest req,
+    StreamObserver<avelios.hospital.grpc.BatchGetHospitalsResponse> out) {
+        List<UUID> ids;
+        try {
+            ids = BatchGet.ids(req.getIdsList());
+        } catch (StatusRuntimeException e) {
+            out.onError(e);
+            return;
+        }
+        unary(out, () -> router.routed(() -> {
+            var byShard = new LinkedHashMap<String, avelios.hospital.grpc.BatchGetHospitalsRequest.Builder>();
+            for (int i = 0; i < ids.size(); i++) {
+                byShard.computeIfAbsent(router.ownerOf(ids.get(i)),
+                s -> avelios.hospital.grpc.BatchGetHospitalsRequest.newBuilder().setReadMask(req.getReadMask()))
+                .addIds(req.getIds(i));
+            }
+            var pending = byShard.entrySet().stream()
+            .map(e -> router.hospitalsFuture(e.getKey()).batchGetHospitals(e.getValue().build())).toList();
+            var results = new HashMap<UUID, avelios.hospital.grpc.HospitalResult>();
+            for (var f : pending) {
+                for (var r : ShardRouter.await(f).getResultsList()) {
+                    results.put(UUID.fromString(r.hasHospital() ? r.getHospital().getId() : r.getNotFound()), r);
+                }
+            }
+            var reply = avelios.hospital.grpc.BatchGetHospitalsResponse.newBuilder();
+            ids.forEach(id -> reply.addResults(results.get(id)));
+            return reply.build();
+        }));
+    }
+
+    @Override
+    public void listPatientsOfHospital(avelios.hospital.grpc.ListPatientsOfHospitalRequest req,
+    StreamObserver<avelios.hospital.grpc.PatientList> out) {
+        unary(out, () -> router.routed(() -> router.hospitals(owner(req.getHospitalId())).listPatientsOfHospital(req)));
+    }
+
+    @Override
+    public void registerPatient(avelios.hospital.grpc.RegisterPatientRequest req,
+    StreamObserver<avelios.hospital.grpc.RegisterAck> out) {
+        unary(out, () -> router.routedWrite(UUID.fromString(req.getHospitalId()),
+        () -> router.hospitals(owner(req.getHospitalId())).registerPatient(req)));
+    }
+
+    @Override
+    public void getVisitStatistics(avelios.hospital.grpc.VisitStatisticsRequest req,
+    StreamObserver<avelios.hospital.grpc.VisitStatistics> out) {
+        unary(out, () -> router.routed(() -> router.hospitals(owner(req.getHospitalId())).getVisitStatistics(req)));
+    }
+
+    @Override
+    public void countDistinctPatients(avelios.hospital.grpc.CountDistinctPatientsRequest req,
+    StreamObserver<avelios.hospital.grpc.DistinctPatientCount> out) {
+        unary(out, () -> router.routed(() -> router.hospitals(owner(req.getHospitalId())).countDistinctPatients(req)));
+    }
+
+    @Override
+    public void streamPatientsOfHospital(avelios.hospital.grpc.StreamPatientsOfHospitalRequest req,
+    StreamObserver<avelios.hospital.grpc.PatientChunk> out) {
+        try {
+            router.routed(() -> {
+                router.hospitalsAsync(owner(req.getHospitalId())).streamPatientsOfHospital(req, new Relay<>(out));
+                return null;
+            });
+        } catch (IllegalArgumentException e) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("malformed id").asRuntimeException());
+        }
+    }
+
+    @Override
+    public void listVisits(avelios.hospital.grpc.ListVisitsRequest req,
+    StreamObserver<avelios.hospital.grpc.VisitChunk> out) {
+        try {
+            router.routed(() -> {
+                router.hospitalsAsync(owner(req.getHospitalId())).listVisits(req, new Relay<>(out));
+                return null;
+            });
+        } catch (IllegalArgumentException e) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("malformed id").asRuntimeException());
+        }
+    }
+
+    @Override
+    public void watchVisits(avelios.hospital.grpc.WatchVisitsRequest req,
+    StreamObserver<avelios.hospital.grpc.VisitEvent> out) {
+        if (req.getHospitalId().isEmpty()) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("hospital_id required when sharded").asRuntimeException());
+            return;
+        }
+        try {
+            var id = UUID.fromString(req.getHospitalId());
+            router.routed(() -> {
+                router.hospitalsAsync(router.ownerOf(id)).watchVisits(req, router.watch(id, out));
+                return null;
+            });
+        } catch (IllegalArgumentException e) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("malformed id").asRuntimeException());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package avelios.hospital.shard;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import net.devh.boot.grpc.server.service.GrpcService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+
+import java.util.UUID;
+
+import static avelios.hospital.shard.HospitalRouter.unary;
+
+/**
+ * {@code PatientService} of the shard router. Every shard holds every patient under the same
+ * id: writes go to all of them, reads of patients themselves to the first shard, and
+ * {@code ListHospitalsOfPatient} merges the hospitals each shard knows the patient visited.
+ *
+ * A write failing on one shard may have changed the others; retrying it converges, a retried
+ * create only fails with ALREADY_EXISTS if every shard has the patient already. Bulk creation
+ * is UNIMPLEMENTED here.
+ */
+@GrpcService
+@ConditionalOnExpression("!'${hospital.shard.targets:}'.isEmpty()")
+public class PatientRouter extends avelios.hospital.grpc.PatientServiceGrpc.PatientServiceImplBase {
+
+    private final ShardRouter router;
+
+    public PatientRouter(ShardRouter router) {
+        this.router = router;
+    }
+
+    @Override
+    public void createPatient(avelios.hospital.grpc.CreatePatientRequest req,
+    StreamObserver<avelios.hospital.grpc.PatientId> out) {
+        var withId = req.getId().isEmpty() ? req.toBuilder().setId(UUID.randomUUID().toString()).build() : req;
+        unary(out, () -> router.routedPatientWrite(withId.getId(), () -> {
+            var pending = router.shards().stream().map(s -> router.patientsFuture(s).createPatient(withId)).toList();
+            int existed = 0;
+            StatusRuntimeException failure = null;
+            for (var f : pending) {
+                try {
+                    ShardRouter.await(f);
+                } catch (StatusRuntimeException e) {
+                    if (e.getStatus().getCode() == Status.Code.ALREADY_EXISTS) {
+                        existed++;
+                    } else if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (existed == pending.size()) {
+                throw Status.ALREADY_EXISTS.withDescription("patient id taken").asRuntimeException();
+            }
+            return avelios.hospital.grpc.PatientId.newBuilder().setId(withId.getId()).build();
+        }));
+    }
+
+    @Override
+    public void updatePatient(avelios.hospital.grpc.UpdatePatientRequest req,
+    StreamObserver<avelios.hospital.grpc.Patient> out) {
+        unary(out, () -> router.routedPatientWrite(req.getId(),
+        () -> router.fanOut(s -> router.patientsFuture(s).updatePatient(req)).get(0)));
+    }
+
+    @Override
+    public void deletePatient(avelios.hospital.grpc.PatientId req,
+    StreamObserver<avelios.hospital.grpc.DeletePatientResponse> out) {
+        unary(out, () -> router.routedPatientWrite(req.getId(), () -> {
+            var replies = router.fanOut(s -> router.patientsFuture(s).deletePatient(req));
+            return avelios.hospital.grpc.DeletePatientResponse.newBuilder()
+            .setId(req.getId())
+            .setDeleted(replies.stream().anyMatch(avelios.hospital.grpc.DeletePatientResponse::getDeleted))
+            .build();
+        }));
+    }
+
+    @Override
+    public void getPatient(avelios.hospital.grpc.PatientId req,
+    StreamObserver<avelios.hospital.grpc.Patient> out) {
+        unary(out, () -> router.routed(() -> router.patients(router.primary()).getPatient(req)));
+    }
+
+    @Override
+    public void batchGetPatients(avelios.hospital.grpc.BatchGetPatientsRequest req,
+    StreamObserver<avelios.hospital.grpc.BatchGetPatientsResponse> out) {
+        unary(out, () -> router.routed(() -> router.patients(router.primary()).batchGetPatients(req)));
+    }
+
+    @Override
+    public void listPatients(avelios.hospital.grpc.ListPatientsRequest req,
+    StreamObserver<avelios.hospital.grpc.PatientList> out) {
+        unary(out, () -> router.routed(() -> router.patients(router.primary()).listPatients(req)));
+    }
+
+    @Override
+    public void listHospitalsOfPatient(avelios.hospital.grpc.PatientId req,
+    StreamObserver<avelios.hospital.grpc.HospitalList> out) {
+        unary(out, () -> {
+            var list = avelios.hospital.grpc.HospitalList.newBuilder();
+            router.fanOut(s -> router.patientsFuture(s).listHospitalsOfPatient(req))
+            .forEach(l -> list.addAllHospitals(l.getHospitalsList()));
+            return list.build();
+        });
+    }
+
+    @Override
+    public void streamPatients(avelios.hospital.grpc.StreamPatientsRequest req,
+    StreamObserver<avelios.hospital.grpc.PatientChunk> out) {
+        router.routed(() -> {
+            router.patientsAsync(router.primary()).streamPatients(req, new Relay<>(out));
+            return null;
+        });
+    }
+
+    @Override
+    public void searchPatients(avelios.hospital.grpc.SearchPatientsRequest req,
+    StreamObserver<avelios.hospital.grpc.PatientTuple> out) {
+        if (req.getQuery().isBlank()) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription("query required").asRuntimeException());
+            return;
+        }
+        router.routed(() -> {
+            router.patientsAsync(router.primary()).searchPatients(req, new Relay<>(out));
+            return null;
+        });
+    }
+}
@@ -0,0 +1,84 @@
+package avelios.hospital.shard;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Forwards a server stream from a shard to the router's caller. The next message is requested
+ * from the shard only once the previous one was handed on and the caller's transport is ready,
+ * so a slow caller slows the shard down instead of filling the router's heap; a cancelled
+ * caller cancels the shard call.
+ */
+final class Relay<Req, T> implements ClientResponseObserver<Req, T> {
+
+    private final ServerCallStreamObserver<T> out;
+    private final Runnable done;
+    private final AtomicBoolean waiting = new AtomicBoolean();
+    private ClientCallStreamObserver<Req> upstream;
+    private volatile String abortReason;
+
+    Relay(StreamObserver<T> out) {
+        this(out, () -> {});
+    }
+
+    /** {@code done} runs once the relay has ended, however it ended. */
+    Relay(StreamObserver<T> out, Runnable done) {
+        this.out = (ServerCallStreamObserver<T>) out;
+        this.done = done;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Req> upstream) {
+        this.upstream = upstream;
+        upstream.disableAutoRequestWithInitial(1);
+        out.setOnCancelHandler(() -> upstream.cancel("caller cancelled", null));
+        out.setOnReadyHandler(() -> {
+            if (waiting.compareAndSet(true, false)) {
+                request();
+            }
+        });
+    }
+
+    @Override
+    public void onNext(T value) {
+        out.onNext(value);
+        if (out.isReady()) {
+            request();
+            return;
+        }
+        waiting.set(true);
+        // the transport may have turned ready before the flag was set
+        if (out.isReady() && waiting.compareAndSet(true, false)) {
+            request();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        done.run();
+        var reason = abortReason;
+        out.onError(reason == null ? t : Status.UNAVAILABLE.withDescription(reason).asRuntimeException());
+    }
+
+    @Override
+    public void onCompleted() {
+        done.run();
+        out.onCompleted();
+    }
+
+    /** Ends the relay; the caller sees UNAVAILABLE with {@code reason} and may reconnect. */
+    void abort(String reason) {
+        abortReason = reason;
+        upstream.cancel(reason, null);
+    }
+
+    // ClientCall is not thread-safe; onNext and the ready handler may race here
+    private synchronized void request() {
+        upstream.request(1);
+    }
+}
@@ -0,0 +1,33 @@
+package avelios.hospital.shard;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/** {@code shards} actuator endpoint of the router: the shards on the ring, and adding one. */
+@Component
+@Endpoint(id = "shards")
+@ConditionalOnExpression("!'${hospital.shard.targets:}'.isEmpty()")
+public class ShardEndpoint {
+    
+    private final ShardRouter router;
+    
+    public ShardEndpoint(ShardRouter router) {
+        this.router = router;
+    }
+    
+    @ReadOperation
+    public List<String> shards() {
+        return router.ring().shards();
+    }
+    
+    /** Adds the shard at {@code target} and moves the hospitals it now owns; blocks until done. */
+    @WriteOperation
+    public ShardRouter.Rebalance add(String target) {
+        return router.addShard(target);
+    }
+}
@@ -0,0 +1,92 @@
+package avelios.hospital.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Consistent-hash ring over shard names. Every shard owns {@code vnodes} points on a 64-bit
+ * ring and an id belongs to the shard of the first point at or after its hash, so adding a
+ * shard moves only the ids that now fall on its points (about 1/n of them) and leaves the
+ * rest where they are. Immutable; {@link #with} returns a new ring.
+ */
+public final class ShardRing {
+
+    private final List<String> shards;
+    private final int vnodes;
+    // sorted point hashes and the shard owning each
+    private final long[] points;
+    private final int[] owners;
+
+    public ShardRing(Collection<String> shards, int vnodes) {
+        if (shards.isEmpty() || vnodes < 1) {
+            throw new IllegalArgumentException("at least one shard and one vnode required");
+        }
+        this.shards = List.copyOf(new TreeSet<>(shards));
+        this.vnodes = vnodes;
+        int n = this.shards.size() * vnodes;
+        var keyed = new long[n][];
+        for (int s = 0; s < this.shards.size(); s++) {
+            long seed = hash(this.shards.get(s));
+            for (int v = 0; v < vnodes; v++) {
+                keyed[s * vnodes + v] = new long[] {mix(seed + v * 0x9e3779b97f4a7c15L), s};
+            }
+        }
+        Arrays.sort(keyed, (a, b) -> Long.compareUnsigned(a[0], b[0]));
+        this.points = new long[n];
+        this.owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = keyed[i][0];
+            owners[i] = (int) keyed[i][1];
+        }
+    }
+
+    /** Shard names in sorted order. */
+    public List<String> shards() {
+        return shards;
+    }
+
+    public String owner(UUID id) {
+        long h = mix(id.getMostSignificantBits() ^ mix(id.getLeastSignificantBits()));
+        // first point >= h (unsigned), wrapping to the first point
+        int lo = 0;
+        int hi = points.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(points[mid], h) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return shards.get(owners[lo == points.length ? 0 : lo]);
+    }
+
+    public ShardRing with(String shard) {
+        var all = new TreeSet<>(shards);
+        all.add(shard);
+        return new ShardRing(all, vnodes);
+    }
+
+    // FNV-1a, then mixed; only used to seed a shard's points
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // 64-bit finalizer of MurmurHash3
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
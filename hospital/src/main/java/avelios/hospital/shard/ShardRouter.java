@@ -0,0 +1,493 @@
+package avelios.hospital.shard;
+
+import avelios.hospital.grpc.BulkIngestReply;
+import avelios.hospital.grpc.BulkIngestSummary;
+import avelios.hospital.grpc.CreateHospitalRequest;
+import avelios.hospital.grpc.CreatePatientRequest;
+import avelios.hospital.grpc.HospitalId;
+import avelios.hospital.grpc.HospitalServiceGrpc;
+import avelios.hospital.grpc.ListHospitalsRequest;
+import avelios.hospital.grpc.ListVisitsRequest;
+import avelios.hospital.grpc.PatientId;
+import avelios.hospital.grpc.PatientServiceGrpc;
+import avelios.hospital.grpc.RegisterPatientRequest;
+import avelios.hospital.grpc.StreamPatientsRequest;
+import avelios.hospital.grpc.UpdatePatientRequest;
+import avelios.hospital.grpc.VisitTuple;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Routing state of a sharded deployment: one channel per shard (a regular instance of this
+ * service on its own database, named by its gRPC target) and the {@link ShardRing} that places
+ * every hospital, with its visits, on one of them. Patients are created on every shard under
+ * the same id, so a visit can be registered wherever its hospital lives.
+ *
+ * Routed calls run under a read lock. {@link #addShard} copies data while calls go on, and
+ * takes the write lock only briefly: to start recording patient writes, to start holding back
+ * writes to the hospitals that move, and at the end to replay the recorded patients and swap
+ * the ring.
+ */
+public final class ShardRouter implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardRouter.class);
+
+    private static final int COPY_PAGE_SIZE = 1000;
+    private static final avelios.hospital.grpc.LocalDate LAST_DATE = avelios.hospital.grpc.LocalDate.newBuilder()
+    .setYear(9999).setMonth(12).setDay(31).build();
+
+    /** Outcome of {@link #addShard}: rows copied to the new shard, rows it rejected. */
+    public record Rebalance(String shard, long patients, int hospitals, long visits, long rejected) {}
+
+    private record Watch(UUID hospitalId, Relay<?, ?> relay) {}
+
+    /** A shard being added: the ring it will complete and what changed while copying. */
+    private static final class Rebalancing {
+        final String shard;
+        final ShardRing next;
+        final Set<String> patientsWritten = ConcurrentHashMap.newKeySet();
+        final CompletableFuture<Void> finished = new CompletableFuture<>();
+        volatile boolean holdingMoves;
+
+        Rebalancing(String shard, ShardRing next) {
+            this.shard = shard;
+            this.next = next;
+        }
+
+        boolean holds(UUID hospitalId) {
+            return holdingMoves && next.owner(hospitalId).equals(shard);
+        }
+    }
+
+    private final Map<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+    private final Map<Relay<?, ?>, Watch> watches = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Function<String, ManagedChannel> connect;
+    private volatile ShardRing ring;
+    // guarded by lock (written under the write lock)
+    private volatile Rebalancing rebalancing;
+
+    public ShardRouter(Collection<String> targets, Function<String, ManagedChannel> connect, int vnodes) {
+        this.connect = connect;
+        this.ring = new ShardRing(targets, vnodes);
+        targets.forEach(t -> channels.put(t, connect.apply(t)));
+    }
+
+    public ShardRing ring() {
+        return ring;
+    }
+
+    /** The shard owning a hospital's rows. */
+    String ownerOf(UUID hospitalId) {
+        return ring.owner(hospitalId);
+    }
+
+    /** Patients are on every shard; reads of them go to the first one. */
+    String primary() {
+        return ring.shards().get(0);
+    }
+
+    List<String> shards() {
+        return ring.shards();
+    }
+
+    HospitalServiceGrpc.HospitalServiceBlockingStub hospitals(String shard) {
+        return HospitalServiceGrpc.newBlockingStub(channels.get(shard));
+    }
+
+    HospitalServiceGrpc.HospitalServiceStub hospitalsAsync(String shard) {
+        return HospitalServiceGrpc.newStub(channels.get(shard));
+    }
+
+    HospitalServiceGrpc.HospitalServiceFutureStub hospitalsFuture(String shard) {
+        return HospitalServiceGrpc.newFutureStub(channels.get(shard));
+    }
+
+    PatientServiceGrpc.PatientServiceBlockingStub patients(String shard) {
+        return PatientServiceGrpc.newBlockingStub(channels.get(shard));
+    }
+
+    PatientServiceGrpc.PatientServiceStub patientsAsync(String shard) {
+        return PatientServiceGrpc.newStub(channels.get(shard));
+    }
+
+    PatientServiceGrpc.PatientServiceFutureStub patientsFuture(String shard) {
+        return PatientServiceGrpc.newFutureStub(channels.get(shard));
+    }
+
+    /** Runs a call against the current ring; a rebalance waits for it and vice versa. */
+    <T> T routed(Supplier<T> call) {
+        lock.readLock().lock();
+        try {
+            return call.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs a write about one hospital. While that hospital is being moved to a new shard the
+     * call waits (outside the lock) until the move is over and then goes to its new owner.
+     */
+    <T> T routedWrite(UUID hospitalId, Supplier<T> call) {
+        while (true) {
+            Rebalancing r;
+            lock.readLock().lock();
+            try {
+                r = rebalancing;
+                if (r == null || !r.holds(hospitalId)) {
+                    return call.get();
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            r.finished.join();
+        }
+    }
+
+    /** Runs a write of a patient on all shards and remembers it for a rebalance in progress. */
+    <T> T routedPatientWrite(String patientId, Supplier<T> call) {
+        return routed(() -> {
+            var r = rebalancing;
+            if (r != null) {
+                r.patientsWritten.add(patientId);
+            }
+            return call.get();
+        });
+    }
+
+    // briefly excludes all routed calls, so the change is seen by every call that starts after it
+    private void exclusively(Runnable change) {
+        lock.writeLock().lock();
+        try {
+            change.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Sends {@code call} to every shard at once and returns the replies in shard order. */
+    <T> List<T> fanOut(Function<String, ListenableFuture<T>> call) {
+        return routed(() -> {
+            var pending = shards().stream().map(call).toList();
+            var replies = new ArrayList<T>(pending.size());
+            for (var f : pending) {
+                replies.add(await(f));
+            }
+            return replies;
+        });
+    }
+
+    /** Tracks a WatchVisits relay so that a rebalance moving its hospital can end it. */
+    <Req, T> Relay<Req, T> watch(UUID hospitalId, StreamObserver<T> out) {
+        var holder = new Relay<?, ?>[1];
+        Relay<Req, T> relay = new Relay<>(out, () -> watches.remove(holder[0]));
+        holder[0] = relay;
+        watches.put(relay, new Watch(hospitalId, relay));
+        return relay;
+    }
+
+    /**
+     * Adds a shard and moves the hospitals it now owns. Calls go on meanwhile:
+     * <ol>
+     *   <li>every patient is copied; patient writes from now on are recorded;</li>
+     *   <li>writes to hospitals the new shard will own are held back, the patients recorded so
+     *       far are copied again from the first shard, so that their visits find them, and each
+     *       held-back hospital is copied with its visits from the start of the retention window
+     *       on;</li>
+     *   <li>under the write lock, the recorded patients are copied again, the ring is switched
+     *       and the originals are deleted; held-back writes then go to the new shard.</li>
+     * </ol>
+     * If a copy fails or the new shard rejects any row the ring is unchanged and the originals
+     * stay; wipe the new shard before trying again. Open watches of moved hospitals end with
+     * UNAVAILABLE.
+     */
+    public synchronized Rebalance addShard(String name) {
+        if (channels.containsKey(name)) {
+            throw new IllegalArgumentException("shard " + name + " is already in the ring");
+        }
+        var channel = connect.apply(name);
+        var current = ring;
+        var r = new Rebalancing(name, current.with(name));
+        try {
+            exclusively(() -> rebalancing = r);
+            var target = HospitalServiceGrpc.newBlockingStub(channel);
+            var targetPatients = PatientServiceGrpc.newBlockingStub(channel);
+            long rejected = 0;
+
+            var patients = copyPatients(primary(), PatientServiceGrpc.newStub(channel));
+            rejected += patients.getRejected();
+
+            // hospitals created from here on with an id the new shard owns wait as well
+            exclusively(() -> r.holdingMoves = true);
+            // patients written during the copy may already have visits at a held-back hospital
+            for (var id : r.patientsWritten) {
+                catchUpPatient(id, targetPatients);
+            }
+            var moved = new ArrayList<Map.Entry<String, String>>();
+            long visits = 0;
+            for (var shard : current.shards()) {
+                for (var h : hospitals(shard).listHospitals(ListHospitalsRequest.getDefaultInstance()).getHospitalsList()) {
+                    if (!r.holds(UUID.fromString(h.getId()))) {
+                        continue;
+                    }
+                    target.createHospital(CreateHospitalRequest.newBuilder()
+                    .setId(h.getId())
+                    .setName(h.getName())
+                    .build());
+                    var copied = copyVisits(hospitals(shard), h.getId(), HospitalServiceGrpc.newStub(channel));
+                    visits += copied.getAccepted();
+                    rejected += copied.getRejected();
+                    moved.add(Map.entry(shard, h.getId()));
+                }
+            }
+
+            if (rejected > 0) {
+                // a rejected visit would be lost with its original
+                throw new IllegalStateException(name + " rejected " + rejected + " copied rows, ring unchanged");
+            }
+            lock.writeLock().lock();
+            try {
+                for (var id : r.patientsWritten) {
+                    catchUpPatient(id, targetPatients);
+                }
+                channels.put(name, channel);
+                ring = r.next;
+                rebalancing = null;
+                for (var m : moved) {
+                    hospitals(m.getKey()).deleteHospital(HospitalId.newBuilder().setId(m.getValue()).build());
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            watches.values().stream()
+            .filter(w -> r.next.owner(w.hospitalId()).equals(name))
+            .forEach(w -> w.relay().abort("hospital moved to another shard, watch again"));
+
+            var result = new Rebalance(name, patients.getAccepted(), moved.size(), visits, rejected);
+            log.info("added shard {}: {}", name, result);
+            return result;
+        } catch (RuntimeException e) {
+            if (!channels.containsKey(name)) {
+                exclusively(() -> rebalancing = null);
+                channel.shutdownNow();
+            }
+            throw e;
+        } finally {
+            r.finished.complete(null);
+        }
+    }
+
+    // a patient written during the copy: the new shard gets the first shard's current version
+    private void catchUpPatient(String id, PatientServiceGrpc.PatientServiceBlockingStub target) {
+        var byId = PatientId.newBuilder().setId(id).build();
+        avelios.hospital.grpc.Patient p;
+        try {
+            p = patients(primary()).getPatient(byId);
+        } catch (StatusRuntimeException e) {
+            if (e.getStatus().getCode() != Status.Code.NOT_FOUND) {
+                throw e;
+            }
+            target.deletePatient(byId);
+            return;
+        }
+        try {
+            target.updatePatient(UpdatePatientRequest.newBuilder()
+            .setId(id)
+            .setName(p.getName())
+            .setSex(p.getSex())
+            .setDob(p.getDob())
+            .build());
+        } catch (StatusRuntimeException e) {
+            if (e.getStatus().getCode() != Status.Code.NOT_FOUND) {
+                throw e;
+            }
+            target.createPatient(CreatePatientRequest.newBuilder()
+            .setId(id)
+            .setName(p.getName())
+            .setSex(p.getSex())
+            .setDob(p.getDob())
+            .build());
+        }
+    }
+
+    // pages of ids from the source, each page's patients fetched concurrently, bulk-created on the target
+    private BulkIngestSummary copyPatients(String source, PatientServiceGrpc.PatientServiceStub target) {
+        var ids = patients(source).streamPatients(StreamPatientsRequest.newBuilder()
+        .setPageSize(COPY_PAGE_SIZE)
+        .build());
+        var rows = new Iterator<CreatePatientRequest>() {
+            private final List<CreatePatientRequest> page = new ArrayList<>();
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == page.size() && ids.hasNext()) {
+                    var fetches = ids.next().getPatientsList().stream()
+                    .map(p -> patientsFuture(source).getPatient(PatientId.newBuilder().setId(p.getId()).build()))
+                    .toList();
+                    page.clear();
+                    next = 0;
+                    for (var f : fetches) {
+                        try {
+                            var p = await(f);
+                            page.add(CreatePatientRequest.newBuilder()
+                            .setId(p.getId())
+                            .setName(p.getName())
+                            .setSex(p.getSex())
+                            .setDob(p.getDob())
+                            .build());
+                        } catch (StatusRuntimeException e) {
+                            if (e.getStatus().getCode() != Status.Code.NOT_FOUND) {
+                                throw e;
+                            }
+                            // deleted since the page was read
+                        }
+                    }
+                }
+                return next < page.size();
+            }
+
+            @Override
+            public CreatePatientRequest next() {
+                return page.get(next++);
+            }
+        };
+        return bulk(target::bulkCreatePatients, rows);
+    }
+
+    private static BulkIngestSummary copyVisits(HospitalServiceGrpc.HospitalServiceBlockingStub source, String hospitalId,
+    HospitalServiceGrpc.HospitalServiceStub target) {
+        // ListVisits ends today by default; visits booked for later dates move too
+        var chunks = source.listVisits(ListVisitsRequest.newBuilder()
+        .setHospitalId(hospitalId)
+        .setTo(LAST_DATE)
+        .setPageSize(COPY_PAGE_SIZE)
+        .build());
+        var rows = new Iterator<RegisterPatientRequest>() {
+            private Iterator<VisitTuple> chunk = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!chunk.hasNext() && chunks.hasNext()) {
+                    chunk = chunks.next().getVisitsList().iterator();
+                }
+                return chunk.hasNext();
+            }
+
+            @Override
+            public RegisterPatientRequest next() {
+                var v = chunk.next();
+                return RegisterPatientRequest.newBuilder()
+                .setHospitalId(hospitalId)
+                .setPatientId(v.getPatientId())
+                .setVisitDate(v.getVisitDate())
+                .build();
+            }
+        };
+        return bulk(target::bulkRegisterVisits, rows);
+    }
+
+    /** Streams {@code rows} into a bulk ingest RPC, honouring flow control, and returns its summary. */
+    private static <T> BulkIngestSummary bulk(
+    Function<StreamObserver<BulkIngestReply>, StreamObserver<T>> call, Iterator<T> rows) {
+        var done = new CompletableFuture<BulkIngestSummary>();
+        var ready = new Object();
+        var requests = (ClientCallStreamObserver<T>) call.apply(new ClientResponseObserver<T, BulkIngestReply>() {
+            @Override
+            public void beforeStart(ClientCallStreamObserver<T> requests) {
+                requests.setOnReadyHandler(() -> {
+                    synchronized (ready) {
+                        ready.notifyAll();
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(BulkIngestReply r) {
+                if (r.hasSummary()) {
+                    done.complete(r.getSummary());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                done.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                done.complete(BulkIngestSummary.getDefaultInstance());
+            }
+        });
+        try {
+            while (rows.hasNext() && !done.isDone()) {
+                synchronized (ready) {
+                    while (!requests.isReady() && !done.isDone()) {
+                        ready.wait(100);
+                    }
+                }
+                requests.onNext(rows.next());
+            }
+            requests.onCompleted();
+            return done.get(1, TimeUnit.HOURS);
+        } catch (RuntimeException e) {
+            requests.onError(e);
+            throw e;
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            requests.onError(e);
+            throw Status.fromThrowable(e).withDescription("bulk copy failed").asRuntimeException();
+        }
+    }
+
+    static <T> T await(ListenableFuture<T> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            f.cancel(true);
+            throw Status.CANCELLED.withCause(e).asRuntimeException();
+        } catch (ExecutionException e) {
+            throw Status.fromThrowable(e.getCause()).asRuntimeException();
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        for (var ch : channels.values()) {
+            ch.shutdown();
+        }
+        for (var ch : channels.values()) {
+            if (!ch.awaitTermination(5, TimeUnit.SECONDS)) {
+                ch.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package avelios.hospital.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Columnar binary snapshot of the live visits, read through a read-only memory mapping: no
+ * parsing at open, every accessor is an absolute read at a computed offset, so the file can
+ * be handed to an analytics job as is.
+ *
+ * Layout (little-endian, every section starts 8-byte aligned):
+ * <pre>
+ *   header     136 bytes: magic "HVS1", version, created-at millis, max visit id, counts,
+ *              date base and width, the offset of every section below, then the commit
+ *              watermark (every visit with an id up to it was committed before the read)
+ *   hospitals  16-byte UUIDs (msb, lsb), indexed by hospital ordinal
+ *   patients   16-byte UUIDs, indexed by patient ordinal
+ *   names      int name number per hospital, then per patient, into the dictionary
+ *   dictionary int[n + 1] start offsets, then the UTF-8 bytes of the n distinct names
+ *   visits     three columns: int hospital ordinal, int patient ordinal, visit date as
+ *              epoch day (int) or, when the span allows, as unsigned 16-bit days after the base
+ * </pre>
+ * A single mapping limits a snapshot to 2 GB (about 150M visits).
+ */
+public final class VisitSnapshot {
+    
+    static final int MAGIC = 0x31535648; // "HVS1" read as a little-endian int
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 136;
+    
+    private final ByteBuffer buf;
+    private final long createdAt;
+    private final long maxVisitId;
+    private final long committedThrough;
+    private final int visits, hospitals, patients, names;
+    private final int dateBase, dateWidth;
+    private final int hospitalIds, patientIds, hospitalNames, patientNames, nameOffsets, nameBytes;
+    private final int visitHospital, visitPatient, visitDate;
+    
+    private VisitSnapshot(ByteBuffer buf) throws IOException {
+        this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.capacity() < HEADER_BYTES || buf.getInt(0) != MAGIC) {
+            throw new IOException("not a visit snapshot");
+        }
+        if (buf.getInt(4) != VERSION) {
+            throw new IOException("unsupported visit snapshot version " + buf.getInt(4));
+        }
+        createdAt = buf.getLong(8);
+        maxVisitId = buf.getLong(16);
+        visits = Math.toIntExact(buf.getLong(24));
+        hospitals = buf.getInt(32);
+        patients = buf.getInt(36);
+        names = buf.getInt(40);
+        dateBase = buf.getInt(44);
+        dateWidth = buf.getInt(48);
+        hospitalIds = section(56);
+        patientIds = section(64);
+        hospitalNames = section(72);
+        patientNames = section(80);
+        nameOffsets = section(88);
+        nameBytes = section(96);
+        visitHospital = section(104);
+        visitPatient = section(112);
+        visitDate = section(120);
+        committedThrough = buf.getLong(128);
+    }
+    
+    private int section(int headerOffset) throws IOException {
+        long off = buf.getLong(headerOffset);
+        if (off < HEADER_BYTES || off > buf.capacity()) {
+            throw new IOException("corrupt visit snapshot: section offset " + off);
+        }
+        return (int) off;
+    }
+    
+    /** Maps a snapshot file read-only; the mapping stays valid after the file is replaced. */
+    public static VisitSnapshot open(Path file) throws IOException {
+        try (var ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("visit snapshot larger than 2 GB: " + file);
+            }
+            return new VisitSnapshot(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+    
+    public long createdAt() {
+        return createdAt;
+    }
+    
+    /** Highest visit id in the snapshot. */
+    public long maxVisitId() {
+        return maxVisitId;
+    }
+    
+    /**
+     * Every visit with an id up to this was committed when the snapshot was read, so it is in
+     * the snapshot unless it was deleted; newer visits have to be read from the database.
+     */
+    public long committedThrough() {
+        return committedThrough;
+    }
+    
+    public int visitCount() {
+        return visits;
+    }
+    
+    public int hospitalCount() {
+        return hospitals;
+    }
+    
+    public int patientCount() {
+        return patients;
+    }
+    
+    /** Number of distinct names in the dictionary. */
+    public int nameCount() {
+        return names;
+    }
+    
+    public UUID hospitalId(int ordinal) {
+        return uuid(hospitalIds + 16 * ordinal);
+    }
+    
+    public UUID patientId(int ordinal) {
+        return uuid(patientIds + 16 * ordinal);
+    }
+    
+    public String hospitalName(int ordinal) {
+        return name(buf.getInt(hospitalNames + 4 * ordinal));
+    }
+    
+    public String patientName(int ordinal) {
+        return name(buf.getInt(patientNames + 4 * ordinal));
+    }
+    
+    public int visitHospital(int i) {
+        return buf.getInt(visitHospital + 4 * i);
+    }
+    
+    public int visitPatient(int i) {
+        return buf.getInt(visitPatient + 4 * i);
+    }
+    
+    public long visitEpochDay(int i) {
+        return dateWidth == 2 ? dateBase + buf.getChar(visitDate + 2 * i) : buf.getInt(visitDate + 4 * i);
+    }
+    
+    public LocalDate visitDate(int i) {
+        return LocalDate.ofEpochDay(visitEpochDay(i));
+    }
+    
+    /** The whole file, for export; shares the mapping. */
+    public ByteBuffer bytes() {
+        return buf.duplicate().clear();
+    }
+    
+    public int sizeBytes() {
+        return buf.capacity();
+    }
+    
+    private UUID uuid(int off) {
+        return new UUID(buf.getLong(off), buf.getLong(off + 8));
+    }
+    
+    private String name(int n) {
+        int start = buf.getInt(nameOffsets + 4 * n);
+        int end = buf.getInt(nameOffsets + 4 * n + 4);
+        var b = new byte[end - start];
+        buf.get(nameBytes + start, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Accumulates visits with dense ordinals and interned names, then writes them in one go.
+     * Entities without a visit are not part of a snapshot; names of unknown ids are ignored.
+     */
+    public static final class Writer {
+        
+        private final HashMap<UUID, Integer> hospitalOrdinals = new HashMap<>();
+        private final HashMap<UUID, Integer> patientOrdinals = new HashMap<>();
+        private final List<UUID> hospitalIds = new ArrayList<>();
+        private final List<UUID> patientIds = new ArrayList<>();
+        private final List<String> hospitalNames = new ArrayList<>();
+        private final List<String> patientNames = new ArrayList<>();
+        private int[] hospital = new int[1024];
+        private int[] patient = new int[1024];
+        private long[] day = new long[1024];
+        private int visits;
+        private long maxVisitId;
+        private long minDay = Long.MAX_VALUE, maxDay = Long.MIN_VALUE;
+        
+        public void visit(long id, UUID hospitalId, UUID patientId, LocalDate date) {
+            if (visits == hospital.length) {
+                int cap = visits * 2;
+                hospital = Arrays.copyOf(hospital, cap);
+                patient = Arrays.copyOf(patient, cap);
+                day = Arrays.copyOf(day, cap);
+            }
+            hospital[visits] = ordinal(hospitalOrdinals, hospitalIds, hospitalNames, hospitalId);
+            patient[visits] = ordinal(patientOrdinals, patientIds, patientNames, patientId);
+            long d = date.toEpochDay();
+            day[visits++] = d;
+            minDay = Math.min(minDay, d);
+            maxDay = Math.max(maxDay, d);
+            maxVisitId = Math.max(maxVisitId, id);
+        }
+        
+        private static int ordinal(HashMap<UUID, Integer> ordinals, List<UUID> ids, List<String> names, UUID id) {
+            return ordinals.computeIfAbsent(id, k -> {
+                ids.add(k);
+                names.add("");
+                return ids.size() - 1;
+            });
+        }
+        
+        public void hospitalName(UUID id, String name) {
+            var o = hospitalOrdinals.get(id);
+            if (o != null) {
+                hospitalNames.set(o, name);
+            }
+        }
+        
+        public void patientName(UUID id, String name) {
+            var o = patientOrdinals.get(id);
+            if (o != null) {
+                patientNames.set(o, name);
+            }
+        }
+        
+        public int visitCount() {
+            return visits;
+        }
+        
+        /**
+         * Writes to a temporary file next to {@code file} and moves it into place atomically.
+         * {@code committedThrough} is the commit watermark taken before the visits were read.
+         */
+        public void writeTo(Path file, long createdAt, long committedThrough) throws IOException {
+            var dictionary = new HashMap<String, Integer>();
+            var distinct = new ArrayList<byte[]>();
+            int[] hospitalName = intern(hospitalNames, dictionary, distinct);
+            int[] patientName = intern(patientNames, dictionary, distinct);
+            long textBytes = distinct.stream().mapToLong(b -> b.length).sum();
+            boolean packed = visits == 0 || maxDay - minDay <= 0xFFFF;
+            int base = visits == 0 || !packed ? 0 : Math.toIntExact(minDay);
+            
+            long off = HEADER_BYTES;
+            long hospitalIdsOff = off;
+            off = align(off + 16L * hospitalIds.size());
+            long patientIdsOff = off;
+            off = align(off + 16L * patientIds.size());
+            long hospitalNamesOff = off;
+            off = align(off + 4L * hospitalIds.size());
+            long patientNamesOff = off;
+            off = align(off + 4L * patientIds.size());
+            long nameOffsetsOff = off;
+            off = align(off + 4L * (distinct.size() + 1));
+            long nameBytesOff = off;
+            off = align(off + textBytes);
+            long visitHospitalOff = off;
+            off = align(off + 4L * visits);
+            long visitPatientOff = off;
+            off = align(off + 4L * visits);
+            long visitDateOff = off;
+            off = align(off + (packed ? 2L : 4L) * visits);
+            if (off > Integer.MAX_VALUE) {
+                throw new IOException("visit snapshot would exceed 2 GB (" + visits + " visits)");
+            }
+            
+            var parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            var tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try {
+                try (var ch = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    MappedByteBuffer out = ch.map(FileChannel.MapMode.READ_WRITE, 0, off);
+                    out.order(ByteOrder.LITTLE_ENDIAN);
+                    out.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, createdAt).putLong(16, maxVisitId)
+                    .putLong(24, visits).putInt(32, hospitalIds.size()).putInt(36, patientIds.size())
+                    .putInt(40, distinct.size()).putInt(44, base).putInt(48, packed ? 2 : 4)
+                    .putLong(56, hospitalIdsOff).putLong(64, patientIdsOff)
+                    .putLong(72, hospitalNamesOff).putLong(80, patientNamesOff)
+                    .putLong(88, nameOffsetsOff).putLong(96, nameBytesOff)
+                    .putLong(104, visitHospitalOff).putLong(112, visitPatientOff).putLong(120, visitDateOff)
+                    .putLong(128, committedThrough);
+                    putIds(out, (int) hospitalIdsOff, hospitalIds);
+                    putIds(out, (int) patientIdsOff, patientIds);
+                    putInts(out, (int) hospitalNamesOff, hospitalName, hospitalName.length);
+                    putInts(out, (int) patientNamesOff, patientName, patientName.length);
+                    int start = 0;
+                    for (int i = 0; i < distinct.size(); i++) {
+                        out.putInt((int) nameOffsetsOff + 4 * i, start);
+                        out.put((int) nameBytesOff + start, distinct.get(i));
+                        start += distinct.get(i).length;
+                    }
+                    out.putInt((int) nameOffsetsOff + 4 * distinct.size(), start);
+                    putInts(out, (int) visitHospitalOff, hospital, visits);
+                    putInts(out, (int) visitPatientOff, patient, visits);
+                    for (int i = 0; i < visits; i++) {
+                        if (packed) {
+                            out.putChar((int) visitDateOff + 2 * i, (char) (day[i] - base));
+                        } else {
+                            out.putInt((int) visitDateOff + 4 * i, Math.toIntExact(day[i]));
+                        }
+                    }
+                    out.force();
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        
+        private static int[] intern(List<String> names, HashMap<String, Integer> dictionary, List<byte[]> distinct) {
+            int[] out = new int[names.size()];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = dictionary.computeIfAbsent(names.get(i), n -> {
+                    distinct.add(n.getBytes(StandardCharsets.UTF_8));
+                    return distinct.size() - 1;
+                });
+            }
+            return out;
+        }
+        
+        private static void putIds(ByteBuffer out, int off, List<UUID> ids) {
+            for (int i = 0; i < ids.size(); i++) {
+                out.putLong(off + 16 * i, ids.get(i).getMostSignificantBits());
+                out.putLong(off + 16 * i + 8, ids.get(i).getLeastSignificantBits());
+            }
+        }
+        
+        private static void putInts(ByteBuffer out, int off, int[] values, int n) {
+            for (int i = 0; i < n; i++) {
+                out.putInt(off + 4 * i, values[i]);
+            }
+        }
+        
+        private static long align(long off) {
+            return (off + 7) & ~7L;
+        }
+    }
+}
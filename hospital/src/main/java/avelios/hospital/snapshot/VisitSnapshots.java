@@ -0,0 +1,112 @@
+package avelios.hospital.snapshot;
+
+import avelios.hospital.ingest.VisitWrites;
+import avelios.hospital.repo.HospitalRepo;
+import avelios.hospital.repo.PatientRepo;
+import avelios.hospital.repo.VisitRepo;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Keeps a {@link VisitSnapshot} of the live visits at {@code hospital.snapshot.file}, rewritten
+ * every {@code hospital.snapshot.interval-ms}. In-memory views load it at startup instead of
+ * scanning {@code Visit} through JPA and then only read what changed since; the export RPC
+ * hands the same file to analytics jobs. Without a file configured nothing is written.
+ */
+@Component
+public class VisitSnapshots {
+    
+    private static final Logger log = LoggerFactory.getLogger(VisitSnapshots.class);
+    
+    private final Path file;
+    private final VisitRepo visits;
+    private final VisitWrites visitWrites;
+    private final HospitalRepo hospitals;
+    private final PatientRepo patients;
+    private final TransactionTemplate tx;
+    private final Timer writes;
+    private volatile VisitSnapshot latest;
+    
+    public VisitSnapshots(VisitRepo visits, VisitWrites visitWrites, HospitalRepo hospitals, PatientRepo patients,
+    TransactionTemplate tx, MeterRegistry registry, @Value("${hospital.snapshot.file:}") String file) {
+        this.file = file.isBlank() ? null : Path.of(file);
+        this.visits = visits;
+        this.visitWrites = visitWrites;
+        this.hospitals = hospitals;
+        this.patients = patients;
+        this.tx = tx;
+        this.writes = Timer.builder("hospital.snapshot.write").register(registry);
+        Gauge.builder("hospital.snapshot.bytes", this, s -> s.latest == null ? 0 : s.latest.sizeBytes())
+        .baseUnit("bytes").register(registry);
+    }
+    
+    public boolean isEnabled() {
+        return file != null;
+    }
+    
+    /** The newest snapshot, mapped; empty if disabled or none has been written yet. */
+    public synchronized Optional<VisitSnapshot> latest() {
+        if (latest == null && file != null && Files.exists(file)) {
+            try {
+                latest = VisitSnapshot.open(file);
+            } catch (IOException e) {
+                log.warn("ignoring unreadable visit snapshot {}", file, e);
+            }
+        }
+        return Optional.ofNullable(latest);
+    }
+    
+    @Scheduled(fixedDelayString = "${hospital.snapshot.interval-ms:600000}",
+    initialDelayString = "${hospital.snapshot.interval-ms:600000}")
+    public void scheduled() {
+        if (file != null) {
+            write();
+        }
+    }
+    
+    /** Writes a fresh snapshot of the live visits, replaces the file atomically and returns it. */
+    public synchronized VisitSnapshot write() {
+        if (file == null) {
+            throw new IllegalStateException("hospital.snapshot.file is not set");
+        }
+        long createdAt = System.currentTimeMillis();
+        var writer = new VisitSnapshot.Writer();
+        writes.record(() -> {
+            // taken before the read, so the visits read include every one up to it
+            long committedThrough = visitWrites.watermark(visits::maxId);
+            tx.executeWithoutResult(s -> {
+                try (var rows = visits.streamSnapshotVisits()) {
+                    rows.forEach(v -> writer.visit(v.id(), v.hospitalId(), v.patientId(), v.visitDate()));
+                }
+                try (var rows = hospitals.streamRows()) {
+                    rows.forEach(h -> writer.hospitalName(h.id(), h.name()));
+                }
+                try (var rows = patients.streamRows()) {
+                    rows.forEach(p -> writer.patientName(p.id(), p.name()));
+                }
+            });
+            try {
+                writer.writeTo(file, createdAt, committedThrough);
+                latest = VisitSnapshot.open(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        log.info("wrote visit snapshot {} ({} visits, {} bytes)", file, writer.visitCount(), latest.sizeBytes());
+        return latest;
+    }
+}
@@ -0,0 +1,190 @@
+package avelios.hospital.stats;
+
+import avelios.hospital.entity.PatientSketch;
+import avelios.hospital.entity.Visit;
+import avelios.hospital.events.ChangeListener;
+import avelios.hospital.repo.PatientSketchRepo;
+import avelios.hospital.repo.VisitRepo;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Approximate distinct-patient counts per hospital and month. Every visit adds its patient
+ * to the HyperLogLog sketch of {@code (hospital, month)}; a range query merges at most one
+ * sketch per month, so its cost does not depend on the number of visits. The error bound is
+ * {@code hospital.distinct.relative-error} (standard error, default 2%).
+ *
+ * Dirty sketches are written to the {@code patient_sketch} table in the background, with the
+ * number of visits they hold. At startup the stored sketches are loaded and checked against
+ * the visit count of their month (one grouped query); only months whose count differs, or
+ * that have no sketch, are read back from the visits. A sketch cannot forget an element, so
+ * purged visits keep counting until their month expires or is rebuilt at the next start.
+ */
+@Component
+public class DistinctPatientStore implements ChangeListener {
+
+    private static final int FLUSH_CHUNK = 500;
+
+    /** A range estimate with the standard error of the sketch it came from. */
+    public record Estimate(long distinctPatients, double relativeError, int months) {}
+
+    private record Key(UUID hospitalId, int monthIndex) {}
+
+    /** One month's sketch and the number of visits added to it; guarded by its monitor. */
+    private static final class Month {
+        final HyperLogLog sketch;
+        long visits;
+
+        Month(HyperLogLog sketch, long visits) {
+            this.sketch = sketch;
+            this.visits = visits;
+        }
+    }
+
+    // hospital -> monthIndex -> month
+    private final ConcurrentHashMap<UUID, ConcurrentHashMap<Integer, Month>> hospitals = new ConcurrentHashMap<>();
+    private final Set<Key> dirty = ConcurrentHashMap.newKeySet();
+
+    private final VisitRepo visits;
+    private final PatientSketchRepo sketches;
+    private final TransactionTemplate tx;
+    private final int precision;
+
+    public DistinctPatientStore(VisitRepo visits, PatientSketchRepo sketches, TransactionTemplate tx,
+    @Value("${hospital.distinct.relative-error:0.02}") double relativeError) {
+        this.visits = visits;
+        this.sketches = sketches;
+        this.tx = tx;
+        this.precision = HyperLogLog.precisionFor(relativeError);
+    }
+
+    @Override
+    public void onVisit(Visit v) {
+        add(v.getHospital().getId(), v.getPatient().getId(), v.getVisitMonth());
+        dirty.add(new Key(v.getHospital().getId(), v.getVisitMonth()));
+    }
+
+    @Override
+    public void onHospitalDeleted(UUID hospitalId) {
+        hospitals.remove(hospitalId);
+        dirty.removeIf(k -> k.hospitalId().equals(hospitalId));
+        sketches.deleteByHospitalId(hospitalId);
+    }
+
+    @Override
+    public void onVisitsExpired(YearMonth before) {
+        int cutoff = VisitStatsStore.monthIndex(before);
+        hospitals.values().forEach(months -> months.keySet().removeIf(m -> m < cutoff));
+        dirty.removeIf(k -> k.monthIndex() < cutoff);
+        sketches.deleteMonthsBefore(cutoff);
+    }
+
+    private void add(UUID hospitalId, UUID patientId, int monthIndex) {
+        var month = hospitals
+        .computeIfAbsent(hospitalId, k -> new ConcurrentHashMap<>())
+        .computeIfAbsent(monthIndex, k -> new Month(new HyperLogLog(precision), 0));
+        long hash = HyperLogLog.hash(patientId);
+        synchronized (month) {
+            month.sketch.add(hash);
+            month.visits++;
+        }
+    }
+
+    /** Distinct patients of the hospital over the months {@code from..to}, both inclusive. */
+    public Estimate distinctPatients(UUID hospitalId, YearMonth from, YearMonth to) {
+        int lo = VisitStatsStore.monthIndex(from), hi = VisitStatsStore.monthIndex(to);
+        var union = new HyperLogLog(precision);
+        int months = 0;
+        var byMonth = hospitals.get(hospitalId);
+        if (byMonth != null) {
+            for (var e : byMonth.entrySet()) {
+                if (e.getKey() >= lo && e.getKey() <= hi) {
+                    synchronized (e.getValue()) {
+                        union.merge(e.getValue().sketch);
+                    }
+                    months++;
+                }
+            }
+        }
+        return new Estimate(union.estimate(), union.relativeError(), months);
+    }
+
+    @PostConstruct
+    void rebuild() {
+        var stored = new HashMap<Key, PatientSketch>();
+        sketches.findAll().forEach(row -> stored.put(new Key(row.getKey().getHospitalId(), row.getKey().getMonthIndex()), row));
+        var counts = visits.countByHospitalAndMonth();
+        var stale = new ArrayList<Key>();
+        for (var c : counts) {
+            var key = new Key(c.hospitalId(), c.monthIndex());
+            var row = stored.remove(key);
+            var sketch = row == null || row.getVisits() == null || row.getVisits() != c.visits()
+            ? null : HyperLogLog.fromBytes(row.getSketch());
+            if (sketch == null || sketch.precision() != precision) {
+                stale.add(key);
+            } else {
+                hospitals.computeIfAbsent(key.hospitalId(), k -> new ConcurrentHashMap<>())
+                .put(key.monthIndex(), new Month(sketch, c.visits()));
+            }
+        }
+        // months left without visits (purged, or their hospital deleted)
+        sketches.deleteAllById(stored.values().stream().map(PatientSketch::getKey).toList());
+        
+        tx.executeWithoutResult(s -> {
+            if (stale.size() == counts.size()) {
+                // nothing usable stored (first start, or the error bound changed): one pass
+                try (var rows = visits.streamPatientVisits()) {
+                    rows.forEach(v -> add(v.hospitalId(), v.patientId(), Visit.monthIndex(v.visitDate())));
+                }
+                return;
+            }
+            for (var key : stale) {
+                try (var rows = visits.streamPatientVisits(key.hospitalId(), key.monthIndex())) {
+                    rows.forEach(v -> add(v.hospitalId(), v.patientId(), key.monthIndex()));
+                }
+            }
+        });
+        dirty.addAll(stale);
+    }
+
+    @Scheduled(fixedDelayString = "${hospital.stats.flush-interval-ms:5000}")
+    @PreDestroy
+    public void flush() {
+        var batch = new ArrayList<PatientSketch>(FLUSH_CHUNK);
+        for (var key : dirty) {
+            // remove before reading so a concurrent add marks it dirty again
+            dirty.remove(key);
+            var months = hospitals.get(key.hospitalId());
+            var month = months == null ? null : months.get(key.monthIndex());
+            if (month == null) {
+                continue;
+            }
+            byte[] bytes;
+            long count;
+            synchronized (month) {
+                bytes = month.sketch.toBytes();
+                count = month.visits;
+            }
+            batch.add(new PatientSketch(new PatientSketch.Key(key.hospitalId(), key.monthIndex()), bytes, count));
+            if (batch.size() == FLUSH_CHUNK) {
+                sketches.saveAll(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            sketches.saveAll(batch);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package avelios.hospital.stats;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * HyperLogLog cardinality sketch with {@code 2^p} registers and a relative standard error of
+ * {@code 1.04 / sqrt(2^p)}. Small sketches stay sparse (a sorted {@code int[]} of
+ * {@code index << 8 | rank}) and switch to one byte per register once that would be smaller,
+ * so a hospital-month with a handful of patients costs a few dozen bytes.
+ *
+ * Sketches with the same precision merge by taking the register-wise maximum, which is how
+ * monthly sketches combine into a range. Not thread-safe.
+ */
+public final class HyperLogLog {
+
+    private static final byte SPARSE = 0;
+    private static final byte DENSE = 1;
+
+    private final int p;
+    private final int m;
+    private byte[] dense;
+    private int[] sparse = new int[4];
+    private int sparseSize;
+
+    public HyperLogLog(int p) {
+        if (p < 4 || p > 16) {
+            throw new IllegalArgumentException("precision must be in [4, 16]: " + p);
+        }
+        this.p = p;
+        this.m = 1 << p;
+    }
+
+    /** Smallest precision whose standard error is at most {@code relativeError}. */
+    public static int precisionFor(double relativeError) {
+        double registers = Math.pow(1.04 / relativeError, 2);
+        int p = (int) Math.ceil(Math.log(registers) / Math.log(2));
+        return Math.max(4, Math.min(16, p));
+    }
+
+    /** 64-bit mix of both halves of the UUID (MurmurHash3 finalizer). */
+    public static long hash(UUID id) {
+        return fmix64(id.getMostSignificantBits() ^ fmix64(id.getLeastSignificantBits()));
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    public int precision() {
+        return p;
+    }
+
+    public double relativeError() {
+        return 1.04 / Math.sqrt(m);
+    }
+
+    public void add(UUID id) {
+        add(hash(id));
+    }
+
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - p));
+        // the guard bit caps the rank at 64 - p + 1
+        int rank = Long.numberOfLeadingZeros((hash << p) | (1L << (p - 1))) + 1;
+        offer(index, rank);
+    }
+
+    private void offer(int index, int rank) {
+        if (dense != null) {
+            if (rank > dense[index]) {
+                dense[index] = (byte) rank;
+            }
+            return;
+        }
+        int pos = find(index);
+        if (pos >= 0) {
+            if (rank > (sparse[pos] & 0xff)) {
+                sparse[pos] = index << 8 | rank;
+            }
+            return;
+        }
+        pos = -pos - 1;
+        if (sparseSize == sparse.length) {
+            sparse = Arrays.copyOf(sparse, sparseSize * 2);
+        }
+        System.arraycopy(sparse, pos, sparse, pos + 1, sparseSize - pos);
+        sparse[pos] = index << 8 | rank;
+        sparseSize++;
+        // 4 bytes per sparse entry against 1 per dense register
+        if (sparseSize * 4 >= m) {
+            toDense();
+        }
+    }
+
+    /** Binary search by register index; same contract as {@link Arrays#binarySearch}. */
+    private int find(int index) {
+        int lo = 0, hi = sparseSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int i = sparse[mid] >>> 8;
+            if (i < index) {
+                lo = mid + 1;
+            } else if (i > index) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private void toDense() {
+        dense = new byte[m];
+        for (int k = 0; k < sparseSize; k++) {
+            dense[sparse[k] >>> 8] = (byte) (sparse[k] & 0xff);
+        }
+        sparse = null;
+        sparseSize = 0;
+    }
+
+    /** Adds every element of {@code other} to this sketch. */
+    public void merge(HyperLogLog other) {
+        if (other.p != p) {
+            throw new IllegalArgumentException("precision mismatch: " + p + " vs " + other.p);
+        }
+        if (other.dense == null) {
+            for (int k = 0; k < other.sparseSize; k++) {
+                offer(other.sparse[k] >>> 8, other.sparse[k] & 0xff);
+            }
+            return;
+        }
+        if (dense == null) {
+            toDense();
+        }
+        for (int i = 0; i < m; i++) {
+            if (other.dense[i] > dense[i]) {
+                dense[i] = other.dense[i];
+            }
+        }
+    }
+
+    public long estimate() {
+        double sum;
+        int zeros;
+        if (dense != null) {
+            sum = 0;
+            zeros = 0;
+            for (byte r : dense) {
+                sum += Math.scalb(1.0, -r);
+                if (r == 0) {
+                    zeros++;
+                }
+            }
+        } else {
+            zeros = m - sparseSize;
+            sum = zeros;
+            for (int k = 0; k < sparseSize; k++) {
+                sum += Math.scalb(1.0, -(sparse[k] & 0xff));
+            }
+        }
+        double alpha = switch (m) {
+            case 16 -> 0.673;
+            case 32 -> 0.697;
+            case 64 -> 0.709;
+            default -> 0.7213 / (1 + 1.079 / m);
+        };
+        double e = alpha * m * m / sum;
+        // small range: linear counting over the empty registers is far more accurate
+        if (e <= 2.5 * m && zeros > 0) {
+            e = m * Math.log((double) m / zeros);
+        }
+        return Math.round(e);
+    }
+
+    public HyperLogLog copy() {
+        var c = new HyperLogLog(p);
+        c.merge(this);
+        return c;
+    }
+
+    /** {@code [format][p]} followed by {@code count, entries...} (sparse) or the registers (dense). */
+    public byte[] toBytes() {
+        if (dense != null) {
+            return ByteBuffer.allocate(2 + m).put(DENSE).put((byte) p).put(dense).array();
+        }
+        var b = ByteBuffer.allocate(2 + 4 + 4 * sparseSize).put(SPARSE).put((byte) p).putInt(sparseSize);
+        for (int k = 0; k < sparseSize; k++) {
+            b.putInt(sparse[k]);
+        }
+        return b.array();
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        var b = ByteBuffer.wrap(bytes);
+        byte format = b.get();
+        var h = new HyperLogLog(b.get());
+        if (format == DENSE) {
+            h.dense = new byte[h.m];
+            b.get(h.dense);
+        } else {
+            h.sparseSize = b.getInt();
+            h.sparse = new int[Math.max(4, h.sparseSize)];
+            for (int k = 0; k < h.sparseSize; k++) {
+                h.sparse[k] = b.getInt();
+            }
+        }
+        return h;
+    }
+}
@@ -0,0 +1,263 @@
+package avelios.hospital.stats;
+
+import avelios.hospital.entity.Patient;
+import avelios.hospital.entity.Visit;
+import avelios.hospital.entity.VisitBucket;
+import avelios.hospital.events.ChangeListener;
+import avelios.hospital.repo.VisitBucketRepo;
+import avelios.hospital.repo.VisitRepo;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory implementation of the monthly-bucket algorithm from the readme.
+ *
+ * Every visit lands in the bucket {@code (hospital, month, sex)} which keeps
+ * {@code visits_count} and {@code age_days_sum} as striped counters, so recording is
+ * O(1) and lock-free. Queries read at most {@code 120 x |Sex|} buckets and never touch
+ * {@code Visit} rows. Dirty buckets are written to the {@code visit_bucket} table in the
+ * background; at startup they are loaded from it, and only the months whose visits no longer
+ * match the stored buckets are read back from the visits. A month matches if both its visit
+ * count and its highest visit id do: the count alone misses as many visits purged as
+ * registered since the last flush, but a registration always brings a higher id.
+ */
+@Component
+public class VisitStatsStore implements ChangeListener {
+
+    public static final int WINDOW_MONTHS = 120;
+    public static final double DAYS_PER_YEAR = 365.2425;
+
+    private static final Patient.Sex[] SEXES = Patient.Sex.values();
+    private static final int FLUSH_CHUNK = 500;
+
+    /** One bucket's counters; purges are the only thing that subtracts. */
+    static final class Counter {
+        final LongAdder visits = new LongAdder();
+        final LongAdder ageDays = new LongAdder();
+        // raised after the visit is counted, so whatever it covers is in the sums read after it
+        final LongAccumulator maxVisitId = new LongAccumulator(Math::max, 0);
+    }
+
+    /** Snapshot of a non-empty bucket, as returned by {@link #window}. */
+    public record Bucket(YearMonth month, Patient.Sex sex, long visitsCount, long ageDaysSum) {
+        public double avgAgeYears() {
+            return visitsCount == 0 ? 0 : (ageDaysSum / (double) visitsCount) / DAYS_PER_YEAR;
+        }
+    }
+
+    private record DirtyKey(UUID hospitalId, int slot) {}
+
+    private record MonthKey(UUID hospitalId, int monthIndex) {}
+
+    // hospital -> (monthIndex * |Sex| + sex.ordinal) -> counters
+    private final ConcurrentHashMap<UUID, ConcurrentHashMap<Integer, Counter>> hospitals = new ConcurrentHashMap<>();
+    private final Set<DirtyKey> dirty = ConcurrentHashMap.newKeySet();
+
+    private final VisitRepo visits;
+    private final VisitBucketRepo buckets;
+    private final TransactionTemplate tx;
+
+    public VisitStatsStore(VisitRepo visits, VisitBucketRepo buckets, TransactionTemplate tx) {
+        this.visits = visits;
+        this.buckets = buckets;
+        this.tx = tx;
+    }
+
+    static int monthIndex(LocalDate d) {
+        return Visit.monthIndex(d);
+    }
+
+    static int monthIndex(YearMonth m) {
+        return m.getYear() * 12 + m.getMonthValue() - 1;
+    }
+
+    private static int slot(int monthIndex, Patient.Sex sex) {
+        return monthIndex * SEXES.length + sex.ordinal();
+    }
+
+    @Override
+    public void onVisit(Visit v) {
+        record(v.getId(), v.getHospital().getId(), v.getPatientSex(), v.getPatientDob(), v.getVisitDate());
+    }
+
+    @Override
+    public void onHospitalDeleted(UUID hospitalId) {
+        forgetHospital(hospitalId);
+    }
+
+    @Override
+    public void onVisitsExpired(YearMonth before) {
+        forgetMonthsBefore(monthIndex(before));
+    }
+
+    /** Adds one visit to its bucket. */
+    public void record(long visitId, UUID hospitalId, Patient.Sex sex, LocalDate dob, LocalDate visitDate) {
+        add(visitId, hospitalId, sex, dob, visitDate);
+        dirty.add(new DirtyKey(hospitalId, slot(monthIndex(visitDate), sex)));
+    }
+
+    /**
+     * Takes a purged visit back out of its bucket. Hospitals that were forgotten in the
+     * meantime are left alone.
+     */
+    public void remove(UUID hospitalId, Patient.Sex sex, LocalDate dob, LocalDate visitDate) {
+        var slots = hospitals.get(hospitalId);
+        var c = slots == null ? null : slots.get(slot(monthIndex(visitDate), sex));
+        if (c == null) {
+            return;
+        }
+        c.visits.decrement();
+        c.ageDays.add(-ChronoUnit.DAYS.between(dob, visitDate));
+        dirty.add(new DirtyKey(hospitalId, slot(monthIndex(visitDate), sex)));
+    }
+
+    private void add(long visitId, UUID hospitalId, Patient.Sex sex, LocalDate dob, LocalDate visitDate) {
+        var c = hospitals
+        .computeIfAbsent(hospitalId, k -> new ConcurrentHashMap<>())
+        .computeIfAbsent(slot(monthIndex(visitDate), sex), k -> new Counter());
+        c.visits.increment();
+        c.ageDays.add(ChronoUnit.DAYS.between(dob, visitDate));
+        c.maxVisitId.accumulate(visitId);
+    }
+
+    /** Drops every bucket of a hospital, in memory and in the aggregate table. */
+    public void forgetHospital(UUID hospitalId) {
+        hospitals.remove(hospitalId);
+        dirty.removeIf(k -> k.hospitalId().equals(hospitalId));
+        buckets.deleteByHospitalId(hospitalId);
+    }
+
+    /** Drops the buckets of every month before {@code monthIndex}, in memory and in the aggregate table. */
+    public void forgetMonthsBefore(int monthIndex) {
+        hospitals.values().forEach(slots -> slots.keySet().removeIf(s -> s / SEXES.length < monthIndex));
+        dirty.removeIf(k -> k.slot() / SEXES.length < monthIndex);
+        buckets.deleteMonthsBefore(monthIndex);
+    }
+
+    /**
+     * Non-empty buckets of the 120-month window. The window ends at the previous full
+     * month unless {@code includeCurrentMonth} is set (see "Mid-Month Granularity" in the readme).
+     */
+    public List<Bucket> window(UUID hospitalId, LocalDate today, boolean includeCurrentMonth) {
+        var out = new ArrayList<Bucket>();
+        var slots = hospitals.get(hospitalId);
+        if (slots == null) {
+            return out;
+        }
+        var last = YearMonth.from(today);
+        if (!includeCurrentMonth) {
+            last = last.minusMonths(1);
+        }
+        var month = last.minusMonths(WINDOW_MONTHS - 1);
+        for (int i = 0; i < WINDOW_MONTHS; i++, month = month.plusMonths(1)) {
+            int mi = monthIndex(month);
+            for (var sex : SEXES) {
+                var c = slots.get(slot(mi, sex));
+                long n = c == null ? 0 : c.visits.sum();
+                if (n > 0) {
+                    out.add(new Bucket(month, sex, n, c.ageDays.sum()));
+                }
+            }
+        }
+        return out;
+    }
+
+    @PostConstruct
+    void rebuild() {
+        var stored = new HashMap<MonthKey, List<VisitBucket>>();
+        buckets.findAll().forEach(b -> stored
+        .computeIfAbsent(new MonthKey(b.getKey().getHospitalId(), b.getKey().getMonthIndex()), k -> new ArrayList<>())
+        .add(b));
+        var counts = visits.countByHospitalAndMonth();
+        var stale = new ArrayList<MonthKey>();
+        var obsolete = new ArrayList<VisitBucket.Key>();
+        for (var c : counts) {
+            var key = new MonthKey(c.hospitalId(), c.monthIndex());
+            var rows = stored.remove(key);
+            if (rows == null || rows.stream().mapToLong(VisitBucket::getVisitsCount).sum() != c.visits()
+            || rows.stream().anyMatch(b -> b.getMaxVisitId() == null)
+            || rows.stream().mapToLong(VisitBucket::getMaxVisitId).max().getAsLong() != c.maxId()) {
+                stale.add(key);
+                // rebuilt below; a sex may have no visits left in it
+                if (rows != null) {
+                    rows.forEach(b -> obsolete.add(b.getKey()));
+                }
+                continue;
+            }
+            var slots = hospitals.computeIfAbsent(key.hospitalId(), k -> new ConcurrentHashMap<>());
+            for (var b : rows) {
+                var counter = new Counter();
+                counter.visits.add(b.getVisitsCount());
+                counter.ageDays.add(b.getAgeDaysSum());
+                counter.maxVisitId.accumulate(b.getMaxVisitId());
+                slots.put(slot(key.monthIndex(), b.getKey().getSex()), counter);
+            }
+        }
+        // months left without visits (purged, or their hospital deleted)
+        stored.values().forEach(rows -> rows.forEach(b -> obsolete.add(b.getKey())));
+        buckets.deleteAllById(obsolete);
+
+        tx.executeWithoutResult(s -> {
+            if (stale.size() == counts.size()) {
+                // nothing usable stored (first start): one pass
+                try (var samples = visits.streamSamples()) {
+                    samples.forEach(v -> add(v.id(), v.hospitalId(), v.sex(), v.dob(), v.visitDate()));
+                }
+                return;
+            }
+            for (var key : stale) {
+                try (var samples = visits.streamSamples(key.hospitalId(), key.monthIndex())) {
+                    samples.forEach(v -> add(v.id(), v.hospitalId(), v.sex(), v.dob(), v.visitDate()));
+                }
+            }
+        });
+        for (var key : stale) {
+            for (var sex : SEXES) {
+                dirty.add(new DirtyKey(key.hospitalId(), slot(key.monthIndex(), sex)));
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hospital.stats.flush-interval-ms:5000}")
+    @PreDestroy
+    public void flush() {
+        var batch = new ArrayList<VisitBucket>(FLUSH_CHUNK);
+        for (var key : dirty) {
+            // remove before reading so a concurrent record() marks it dirty again
+            dirty.remove(key);
+            var slots = hospitals.get(key.hospitalId());
+            var c = slots == null ? null : slots.get(key.slot());
+            if (c == null) {
+                continue;
+            }
+            // before the sums: a watermark below what they include only makes the month look stale
+            long maxVisitId = c.maxVisitId.get();
+            batch.add(new VisitBucket(
+            new VisitBucket.Key(key.hospitalId(), key.slot() / SEXES.length, SEXES[key.slot() % SEXES.length]),
+            c.visits.sum(), c.ageDays.sum(), maxVisitId));
+            if (batch.size() == FLUSH_CHUNK) {
+                buckets.saveAll(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            buckets.saveAll(batch);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package avelios.hospital.watch;
+
+import avelios.hospital.entity.Visit;
+import avelios.hospital.events.ChangeListener;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Change feed behind {@code WatchVisits}. Registrations and deletes are published into a
+ * {@link VisitRing} (cost: filling one preallocated slot), and a single dispatcher thread
+ * copies them to every subscriber whose stream is ready, in ring order.
+ *
+ * A subscriber that stops reading is simply skipped; once the ring has wrapped past it,
+ * {@code hospital.watch.slow-consumer} decides: {@code gap} (default) sends one {@code GAP}
+ * event with the number of missed events and continues from half a ring behind the head,
+ * {@code disconnect} ends its call with {@code RESOURCE_EXHAUSTED}. Either way the
+ * registration path never waits for a subscriber.
+ */
+@Component
+public class VisitFeed implements ChangeListener {
+    
+    private static final Logger log = LoggerFactory.getLogger(VisitFeed.class);
+    
+    // events per subscriber per pass, so one busy subscriber cannot starve the others
+    private static final int BATCH = 256;
+    
+    private static final class Subscriber {
+        final ServerCallStreamObserver<avelios.hospital.grpc.VisitEvent> out;
+        final long hospitalMsb, hospitalLsb;
+        final boolean filtered;
+        long next;
+        volatile boolean cancelled;
+        
+        Subscriber(ServerCallStreamObserver<avelios.hospital.grpc.VisitEvent> out, UUID hospitalId, long next) {
+            this.out = out;
+            this.filtered = hospitalId != null;
+            this.hospitalMsb = filtered ? hospitalId.getMostSignificantBits() : 0;
+            this.hospitalLsb = filtered ? hospitalId.getLeastSignificantBits() : 0;
+            this.next = next;
+        }
+        
+        // patient deletes concern every hospital the patient visited, so they always pass
+        boolean wants(VisitRing.Event e) {
+            return !filtered || e.kind == VisitRing.Kind.PATIENT_DELETED
+            || (e.hospitalMsb == hospitalMsb && e.hospitalLsb == hospitalLsb);
+        }
+    }
+    
+    private final VisitRing ring;
+    private final boolean disconnectSlow;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Thread dispatcher;
+    private final Counter published;
+    private final Counter gaps;
+    private volatile boolean sleeping;
+    private volatile boolean running = true;
+    
+    public VisitFeed(MeterRegistry registry,
+    @Value("${hospital.watch.buffer-size:65536}") int bufferSize,
+    @Value("${hospital.watch.slow-consumer:gap}") String slowConsumer) {
+        this.ring = new VisitRing(bufferSize);
+        this.disconnectSlow = switch (slowConsumer) {
+            case "gap" -> false;
+            case "disconnect" -> true;
+            default -> throw new IllegalArgumentException("hospital.watch.slow-consumer must be gap or disconnect: " + slowConsumer);
+        };
+        this.published = Counter.builder("hospital.watch.events").register(registry);
+        this.gaps = Counter.builder("hospital.watch.gaps").register(registry);
+        Gauge.builder("hospital.watch.subscribers", subscribers, CopyOnWriteArrayList::size).register(registry);
+        this.dispatcher = Thread.ofPlatform().name("visit-feed").daemon().start(this::dispatch);
+    }
+    
+    /** Attaches a call; it receives every event published from now on (of one hospital, if given). */
+    public void subscribe(StreamObserver<avelios.hospital.grpc.VisitEvent> out, UUID hospitalId) {
+        var call = (ServerCallStreamObserver<avelios.hospital.grpc.VisitEvent>) out;
+        var s = new Subscriber(call, hospitalId, ring.cursor() + 1);
+        call.setOnCancelHandler(() -> {
+            s.cancelled = true;
+            subscribers.remove(s);
+        });
+        call.setOnReadyHandler(this::wake);
+        subscribers.add(s);
+    }
+    
+    @Override
+    public void onVisit(Visit v) {
+        publish(VisitRing.Kind.VISIT_REGISTERED, v.getHospital().getId(), v.getPatient().getId(), v.getId(), v.getVisitDate());
+    }
+    
+    @Override
+    public void onHospitalDeleted(UUID hospitalId) {
+        publish(VisitRing.Kind.HOSPITAL_DELETED, hospitalId, null, 0, null);
+    }
+    
+    @Override
+    public void onPatientDeleted(UUID patientId) {
+        publish(VisitRing.Kind.PATIENT_DELETED, null, patientId, 0, null);
+    }
+    
+    private void publish(VisitRing.Kind kind, UUID hospitalId, UUID patientId, long visitId, java.time.LocalDate date) {
+        ring.publish(kind, hospitalId, patientId, visitId, date);
+        published.increment();
+        wake();
+    }
+    
+    private void wake() {
+        if (sleeping) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+    
+    private void dispatch() {
+        var event = new VisitRing.Event();
+        while (running) {
+            boolean sent = false;
+            for (var s : subscribers) {
+                sent |= drain(s, event);
+            }
+            if (!sent) {
+                sleeping = true;
+                // re-check after announcing the nap, a publish in between would otherwise be missed
+                if (!hasWork()) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                sleeping = false;
+            }
+        }
+    }
+    
+    private boolean hasWork() {
+        long head = ring.cursor();
+        for (var s : subscribers) {
+            if (s.next <= head && !s.cancelled && s.out.isReady()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /** Sends up to {@link #BATCH} events to one subscriber; true if it made progress. */
+    private boolean drain(Subscriber s, VisitRing.Event e) {
+        int n = 0;
+        try {
+            while (n < BATCH && !s.cancelled && s.out.isReady()) {
+                int r = ring.read(s.next, e);
+                if (r == VisitRing.NOT_YET) {
+                    break;
+                }
+                n++;
+                if (r == VisitRing.LAPPED) {
+                    lapped(s);
+                    continue;
+                }
+                s.next++;
+                if (s.wants(e)) {
+                    s.out.onNext(toProto(e));
+                }
+            }
+        } catch (RuntimeException ex) {
+            // the call went away underneath us
+            log.debug("dropping watch subscriber", ex);
+            s.cancelled = true;
+            subscribers.remove(s);
+        }
+        return n > 0;
+    }
+    
+    private void lapped(Subscriber s) {
+        gaps.increment();
+        if (disconnectSlow) {
+            s.cancelled = true;
+            subscribers.remove(s);
+            s.out.onError(Status.RESOURCE_EXHAUSTED.withDescription("watcher fell behind the change feed")
+            .asRuntimeException());
+            return;
+        }
+        long resume = Math.max(s.next + 1, ring.cursor() - ring.capacity() / 2);
+        s.out.onNext(avelios.hospital.grpc.VisitEvent.newBuilder()
+        .setKind(avelios.hospital.grpc.VisitEvent.Kind.GAP)
+        .setSequence(resume)
+        .setMissed(resume - s.next)
+        .build());
+        s.next = resume;
+    }
+    
+    private static avelios.hospital.grpc.VisitEvent toProto(VisitRing.Event e) {
+        var b = avelios.hospital.grpc.VisitEvent.newBuilder()
+        .setSequence(e.sequence)
+        .setKind(switch (e.kind) {
+            case VISIT_REGISTERED -> avelios.hospital.grpc.VisitEvent.Kind.VISIT_REGISTERED;
+            case HOSPITAL_DELETED -> avelios.hospital.grpc.VisitEvent.Kind.HOSPITAL_DELETED;
+            case PATIENT_DELETED -> avelios.hospital.grpc.VisitEvent.Kind.PATIENT_DELETED;
+        });
+        if (e.hasHospital()) {
+            b.setHospitalId(new UUID(e.hospitalMsb, e.hospitalLsb).toString());
+        }
+        if (e.hasPatient()) {
+            b.setPatientId(new UUID(e.patientMsb, e.patientLsb).toString());
+        }
+        if (e.kind == VisitRing.Kind.VISIT_REGISTERED) {
+            var d = e.visitDate();
+            b.setVisitId(e.visitId)
+            .setVisitDate(avelios.hospital.grpc.LocalDate.newBuilder()
+            .setYear(d.getYear()).setMonth(d.getMonthValue()).setDay(d.getDayOfMonth()));
+        }
+        return b.build();
+    }
+    
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(dispatcher);
+        dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+    }
+}
@@ -0,0 +1,119 @@
+package avelios.hospital.watch;
+
+import java.lang.invoke.VarHandle;
+import java.time.LocalDate;
+import java.util.UUID;
+
+/**
+ * Preallocated ring of change events. Publishing fills the next slot in place, without
+ * allocating, and never waits for readers: a reader more than {@code capacity} events behind
+ * finds its slot overwritten and {@link #read} says so, leaving the reader to decide what to do.
+ *
+ * Writers are serialized by the ring's monitor, held only while one slot is filled, so the
+ * ring has a single writer at any time. Readers take no lock; each slot carries the sequence
+ * it holds and a read is only valid if that sequence is unchanged afterwards (a seqlock).
+ */
+public final class VisitRing {
+    
+    public enum Kind { VISIT_REGISTERED, HOSPITAL_DELETED, PATIENT_DELETED }
+    
+    public static final int OK = 0;
+    public static final int NOT_YET = 1;
+    public static final int LAPPED = 2;
+    
+    private static final long NO_DATE = Long.MIN_VALUE;
+    
+    private static final class Slot {
+        volatile long sequence = -1;
+        Kind kind;
+        long hospitalMsb, hospitalLsb;
+        long patientMsb, patientLsb;
+        long visitId;
+        long visitEpochDay;
+    }
+    
+    /** Reader-side copy of one event, reused across reads. Absent ids are {@code 0/0}. */
+    public static final class Event {
+        public long sequence;
+        public Kind kind;
+        public long hospitalMsb, hospitalLsb;
+        public long patientMsb, patientLsb;
+        public long visitId;
+        long visitEpochDay;
+        
+        public boolean hasHospital() {
+            return (hospitalMsb | hospitalLsb) != 0;
+        }
+        
+        public boolean hasPatient() {
+            return (patientMsb | patientLsb) != 0;
+        }
+        
+        public LocalDate visitDate() {
+            return visitEpochDay == NO_DATE ? null : LocalDate.ofEpochDay(visitEpochDay);
+        }
+    }
+    
+    private final Slot[] slots;
+    private final int mask;
+    private volatile long cursor = -1;
+    
+    /** {@code capacity} is rounded up to a power of two. */
+    public VisitRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+    }
+    
+    public int capacity() {
+        return slots.length;
+    }
+    
+    /** Sequence of the last published event, -1 before the first. */
+    public long cursor() {
+        return cursor;
+    }
+    
+    /** Publishes one event and returns its sequence; ids and date may be null. */
+    public synchronized long publish(Kind kind, UUID hospitalId, UUID patientId, long visitId, LocalDate visitDate) {
+        long seq = cursor + 1;
+        var s = slots[(int) (seq & mask)];
+        s.sequence = -1;
+        // invalidate before the fields change, so a reader of the previous lap notices
+        VarHandle.storeStoreFence();
+        s.kind = kind;
+        s.hospitalMsb = hospitalId == null ? 0 : hospitalId.getMostSignificantBits();
+        s.hospitalLsb = hospitalId == null ? 0 : hospitalId.getLeastSignificantBits();
+        s.patientMsb = patientId == null ? 0 : patientId.getMostSignificantBits();
+        s.patientLsb = patientId == null ? 0 : patientId.getLeastSignificantBits();
+        s.visitId = visitId;
+        s.visitEpochDay = visitDate == null ? NO_DATE : visitDate.toEpochDay();
+        s.sequence = seq;
+        cursor = seq;
+        return seq;
+    }
+    
+    /** Copies event {@code seq} into {@code into}: {@link #OK}, {@link #NOT_YET} or {@link #LAPPED}. */
+    public int read(long seq, Event into) {
+        if (seq > cursor) {
+            return NOT_YET;
+        }
+        var s = slots[(int) (seq & mask)];
+        if (s.sequence != seq) {
+            return LAPPED;
+        }
+        into.sequence = seq;
+        into.kind = s.kind;
+        into.hospitalMsb = s.hospitalMsb;
+        into.hospitalLsb = s.hospitalLsb;
+        into.patientMsb = s.patientMsb;
+        into.patientLsb = s.patientLsb;
+        into.visitId = s.visitId;
+        into.visitEpochDay = s.visitEpochDay;
+        VarHandle.loadLoadFence();
+        return s.sequence == seq ? OK : LAPPED;
+    }
+}
@@ -0,0 +1,167 @@
+package avelios.hospital;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import avelios.hospital.grpc.*;
+
+/**
+ * Offers five times the measured capacity (half ListHospitals, half RegisterPatient, open loop,
+ * 2 s deadlines) to a server with a small connection pool, without and with the adaptive
+ * concurrency limit. Opt-in: {@code ./gradlew test -PloadTests --tests ConcurrencyLimitLoadTest}.
+ */
+@EnabledIfSystemProperty(named = "loadTests", matches = "true")
+class ConcurrencyLimitLoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ConcurrencyLimitLoadTest.class);
+
+    private static final int CAPACITY_CALLS = 20_000;
+    private static final int CAPACITY_CONCURRENCY = 16;
+    private static final int OVERLOAD = 5;
+    private static final int OVERLOAD_SECONDS = 10;
+
+    record Result(String mode, double offeredPerSec, double goodputPerSec, double p99Millis,
+    double readsOk, double writesOk, int rejected, int timedOut) {}
+
+    @Test
+    void goodputAndP99_holdUnderFiveTimesOverload() throws Exception {
+        var baseline = new double[2];
+        var unlimited = run("none", baseline);
+        var limited = run("gradient", baseline);
+
+        var capacity = String.format("capacity %.0f calls/s, p99 %.2f ms", baseline[0], baseline[1]);
+        log.info("{}; without limit {}; with limit {}", capacity, unlimited, limited);
+        assertTrue(limited.goodputPerSec() >= baseline[0] * 0.5,
+        "goodput under overload " + limited + ", " + capacity);
+        assertTrue(limited.p99Millis() <= Math.max(5 * baseline[1], 100),
+        "p99 under overload " + limited + ", " + capacity);
+        assertTrue(limited.readsOk() >= limited.writesOk(), "reads are shed last " + limited);
+    }
+
+    // baseline[0], baseline[1]: capacity and its p99, measured by the first run and reused by the next
+    private Result run(String mode, double[] baseline) throws Exception {
+        try (var server = new LoadTestServer("limit-" + mode,
+        "--spring.datasource.hikari.maximum-pool-size=4",
+        "--hospital.grpc.limit.algorithm=" + mode)) {
+            var channel = server.channel();
+            if (baseline[0] == 0) {
+                capacity(channel, server.hospitalIds(), server.patientIds(), CAPACITY_CALLS / 10, baseline); // warm-up
+                capacity(channel, server.hospitalIds(), server.patientIds(), CAPACITY_CALLS, baseline);
+            }
+            return offer(mode, channel, server.hospitalIds(), server.patientIds(), baseline[0] * OVERLOAD);
+        }
+    }
+
+    // even calls read (ListHospitals), odd calls write (RegisterPatient)
+    private static void call(HospitalServiceGrpc.HospitalServiceStub stub, int i, List<String> hids, List<String> pids,
+    StreamObserver<Object> done) {
+        if (i % 2 == 0) {
+            stub.listHospitals(ListHospitalsRequest.getDefaultInstance(), typed(done));
+        } else {
+            stub.registerPatient(RegisterPatientRequest.newBuilder()
+            .setPatientId(pids.get(i % pids.size()))
+            .setHospitalId(hids.get(i % hids.size()))
+            .build(), typed(done));
+        }
+    }
+
+    private static <T> StreamObserver<T> typed(StreamObserver<Object> done) {
+        return new StreamObserver<>() {
+            @Override public void onNext(T value) { done.onNext(value); }
+            @Override public void onError(Throwable t) { done.onError(t); }
+            @Override public void onCompleted() { done.onCompleted(); }
+        };
+    }
+
+    // closed loop at a concurrency the pool can serve: throughput and p99 without queueing
+    private void capacity(ManagedChannel channel, List<String> hids, List<String> pids, int calls, double[] baseline)
+    throws Exception {
+        var async = HospitalServiceGrpc.newStub(channel);
+        var inFlight = new Semaphore(CAPACITY_CONCURRENCY);
+        var done = new CountDownLatch(calls);
+        var latencies = new long[calls];
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            inFlight.acquire();
+            int n = i;
+            long t0 = System.nanoTime();
+            call(async, i, hids, pids, new StreamObserver<>() {
+                @Override public void onNext(Object value) {}
+                @Override public void onError(Throwable t) { finish(); }
+                @Override public void onCompleted() { finish(); }
+                private void finish() {
+                    latencies[n] = System.nanoTime() - t0;
+                    inFlight.release();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(2, TimeUnit.MINUTES));
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        baseline[0] = calls * 1e9 / elapsed;
+        baseline[1] = latencies[(int) (calls * 0.99)] / 1e6;
+    }
+
+    // open loop: calls start on schedule whether or not earlier ones have finished
+    private Result offer(String mode, ManagedChannel channel, List<String> hids, List<String> pids, double rate)
+    throws Exception {
+        int calls = (int) (rate * OVERLOAD_SECONDS);
+        long interval = (long) (1e9 / rate);
+        var done = new CountDownLatch(calls);
+        var latencies = new long[calls];
+        var ok = new AtomicInteger[] {new AtomicInteger(), new AtomicInteger()};
+        var rejected = new AtomicInteger();
+        var timedOut = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            long due = start + i * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int n = i;
+            long t0 = System.nanoTime();
+            var stub = HospitalServiceGrpc.newStub(channel).withDeadlineAfter(2, TimeUnit.SECONDS);
+            call(stub, i, hids, pids, new StreamObserver<>() {
+                @Override public void onNext(Object value) {}
+                @Override public void onError(Throwable t) {
+                    latencies[n] = -1;
+                    var code = Status.fromThrowable(t).getCode();
+                    if (code == Status.Code.RESOURCE_EXHAUSTED) {
+                        rejected.incrementAndGet();
+                    } else if (code == Status.Code.DEADLINE_EXCEEDED) {
+                        timedOut.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+                @Override public void onCompleted() {
+                    latencies[n] = System.nanoTime() - t0;
+                    ok[n % 2].incrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(2, TimeUnit.MINUTES));
+        long elapsed = System.nanoTime() - start;
+        var good = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+        return new Result(mode, calls * 1e9 / elapsed, good.length * 1e9 / elapsed,
+        good.length == 0 ? Double.NaN : good[(int) (good.length * 0.99)] / 1e6,
+        ok[0].get() / (calls / 2.0), ok[1].get() / (calls / 2.0), rejected.get(), timedOut.get());
+    }
+}
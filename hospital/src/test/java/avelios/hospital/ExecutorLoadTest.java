@@ -0,0 +1,81 @@
+package avelios.hospital;
+
+import io.grpc.ManagedChannel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import avelios.hospital.grpc.*;
+
+/**
+ * Compares the platform-thread pool with virtual threads for RegisterPatient under a fixed
+ * number of concurrent callers. Opt-in: {@code ./gradlew test -PloadTests --tests ExecutorLoadTest}.
+ */
+@EnabledIfSystemProperty(named = "loadTests", matches = "true")
+class ExecutorLoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ExecutorLoadTest.class);
+
+    private static final int CALLS = 20_000;
+    private static final int CONCURRENCY = 512;
+
+    record Result(String mode, double callsPerSec, double p50Millis, double p99Millis, int errors) {}
+
+    @Test
+    void platformVsVirtualThreads() throws Exception {
+        var results = List.of(run("platform"), run("virtual"));
+        results.forEach(r -> log.info("{}", r));
+        results.forEach(r -> assertEquals(0, r.errors(), r.toString()));
+    }
+
+    private Result run(String mode) throws Exception {
+        try (var server = new LoadTestServer("load-" + mode, "--hospital.grpc.executor=" + mode)) {
+            drive(mode, server.channel(), server.hospitalIds(), server.patientIds(), CALLS / 10); // warm-up
+            return drive(mode, server.channel(), server.hospitalIds(), server.patientIds(), CALLS);
+        }
+    }
+
+    private Result drive(String mode, ManagedChannel channel, List<String> hids, List<String> pids, int calls) throws Exception {
+        var async = HospitalServiceGrpc.newStub(channel);
+        var inFlight = new Semaphore(CONCURRENCY);
+        var done = new CountDownLatch(calls);
+        var errors = new AtomicInteger();
+        var latencies = new long[calls];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            inFlight.acquire();
+            int n = i;
+            long t0 = System.nanoTime();
+            async.registerPatient(RegisterPatientRequest.newBuilder()
+            .setPatientId(pids.get(i % pids.size()))
+            .setHospitalId(hids.get(i % hids.size()))
+            .build(), new io.grpc.stub.StreamObserver<>() {
+                @Override public void onNext(RegisterAck value) {}
+                @Override public void onError(Throwable t) { errors.incrementAndGet(); finish(); }
+                @Override public void onCompleted() { finish(); }
+                private void finish() {
+                    latencies[n] = System.nanoTime() - t0;
+                    inFlight.release();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(2, TimeUnit.MINUTES));
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        return new Result(mode, calls * 1e9 / elapsed,
+        latencies[calls / 2] / 1e6, latencies[(int) (calls * 0.99)] / 1e6, errors.get());
+    }
+}
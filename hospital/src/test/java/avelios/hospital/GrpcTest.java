@@ -1,16 +1,28 @@
 package avelios.hospital;
 
+import com.google.protobuf.FieldMask;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.internal.testing.StreamRecorder;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
 
+import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 
 import avelios.hospital.grpc.*;
 
@@ -19,6 +31,21 @@ import avelios.hospital.grpc.*;
 @ActiveProfiles("test")
 class GrpcTest {
     
+    @Autowired
+    private io.micrometer.core.instrument.MeterRegistry meters;
+    
+    @Autowired
+    private avelios.hospital.purge.Purger purger;
+    
+    @Autowired
+    private avelios.hospital.repo.VisitRepo visitRepo;
+    
+    @Autowired
+    private avelios.hospital.purge.VisitRetention retention;
+    
+    @MockitoSpyBean
+    private avelios.hospital.ingest.VisitRegistrar registrar;
+    
     private ManagedChannel channel;
     private HospitalServiceGrpc.HospitalServiceBlockingStub hospital;
     private PatientServiceGrpc.PatientServiceBlockingStub patient;
@@ -95,7 +122,7 @@ class GrpcTest {
         .setPatientId(pid).setHospitalId(hid).build());
         assertTrue(ack.getRegistered());
         
-        var plist = hospital.listPatientsOfHospital(HospitalId.newBuilder().setId(hid).build());
+        var plist = hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid).build());
         var found = plist.getPatientsList().stream().anyMatch(t -> t.getId().equals(pid));
         assertTrue(found, "Registered patient should appear in hospital's patient list");
     }
@@ -116,6 +143,47 @@ class GrpcTest {
         assertFalse(del.getDeleted(), "Deleting unknown patient should return deleted=false");
     }
     
+    @Test
+    void batchGet_answersInRequestOrder_withNotFoundMarkers_andHonoursTheReadMask() {
+        var erin = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Erin").setSex(Sex.FEMALE).setDob(protoDate(1988, 6, 1)).build()).getId();
+        var gone = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Gone").setSex(Sex.MALE).setDob(protoDate(1950, 1, 1)).build()).getId();
+        patient.deletePatient(PatientId.newBuilder().setId(gone).build());
+        var unknown = UUID.randomUUID().toString();
+        
+        var reply = patient.batchGetPatients(BatchGetPatientsRequest.newBuilder()
+        .addIds(unknown).addIds(erin).addIds(gone).addIds(erin).build());
+        assertEquals(4, reply.getResultsCount());
+        assertEquals(unknown, reply.getResults(0).getNotFound());
+        var found = reply.getResults(1).getPatient();
+        assertEquals(erin, found.getId());
+        assertEquals("Erin", found.getName());
+        assertEquals(Sex.FEMALE, found.getSex());
+        assertEquals(protoDate(1988, 6, 1), found.getDob());
+        assertEquals(gone, reply.getResults(2).getNotFound(), "deleted patients are not found");
+        assertEquals(reply.getResults(1), reply.getResults(3));
+        
+        var masked = patient.batchGetPatients(BatchGetPatientsRequest.newBuilder()
+        .addIds(erin).setReadMask(FieldMask.newBuilder().addPaths("name")).build()).getResults(0).getPatient();
+        assertEquals("Erin", masked.getName());
+        assertEquals(Sex.SEX_UNSPECIFIED, masked.getSex());
+        assertFalse(masked.hasDob());
+        
+        var badMask = assertThrows(StatusRuntimeException.class, () -> patient.batchGetPatients(
+        BatchGetPatientsRequest.newBuilder().addIds(erin).setReadMask(FieldMask.newBuilder().addPaths("ssn")).build()));
+        assertEquals(Status.Code.INVALID_ARGUMENT, badMask.getStatus().getCode());
+        var badId = assertThrows(StatusRuntimeException.class, () -> patient.batchGetPatients(
+        BatchGetPatientsRequest.newBuilder().addIds("not-a-uuid").build()));
+        assertEquals(Status.Code.INVALID_ARGUMENT, badId.getStatus().getCode());
+        
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Batch General").build()).getId();
+        var hospitals = hospital.batchGetHospitals(BatchGetHospitalsRequest.newBuilder()
+        .addIds(hid).addIds(unknown).build());
+        assertEquals("Batch General", hospitals.getResults(0).getHospital().getName());
+        assertEquals(unknown, hospitals.getResults(1).getNotFound());
+    }
+    
     @Test
     void listPatientsOfHospital_containsAliceBobCharlie_withCorrectIdsAndNames() {
         var hid = hospital.createHospital(
@@ -138,7 +206,7 @@ class GrpcTest {
         hospital.registerPatient(RegisterPatientRequest.newBuilder()
         .setPatientId(charlieId).setHospitalId(hid).build());
         
-        var list = hospital.listPatientsOfHospital(HospitalId.newBuilder().setId(hid).build());
+        var list = hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid).build());
         var tuples = list.getPatientsList();
         
         assertEquals(3, tuples.size());
@@ -160,4 +228,651 @@ class GrpcTest {
         }
     }
     
+    @Test
+    void registerPatient_updatesMonthlyVisitStatistics() {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Stats Hospital").build()).getId();
+        
+        var dob = java.time.LocalDate.of(1980, 6, 1);
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Erin").setSex(Sex.FEMALE).setDob(protoDate(1980, 6, 1)).build()).getId();
+        
+        hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(hid).build());
+        hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(hid).build());
+        
+        // visits are dated today, so they only show up when the current month is included
+        var fullMonths = hospital.getVisitStatistics(VisitStatisticsRequest.newBuilder()
+        .setHospitalId(hid).build());
+        assertEquals(0, fullMonths.getVisitsCount());
+        
+        var stats = hospital.getVisitStatistics(VisitStatisticsRequest.newBuilder()
+        .setHospitalId(hid).setIncludeCurrentMonth(true).build());
+        assertEquals(2, stats.getVisitsCount());
+        assertEquals(1, stats.getBucketsCount());
+        
+        var bucket = stats.getBuckets(0);
+        var today = java.time.LocalDate.now();
+        assertEquals(today.getYear(), bucket.getYear());
+        assertEquals(today.getMonthValue(), bucket.getMonth());
+        assertEquals(Sex.FEMALE, bucket.getSex());
+        assertEquals(2 * java.time.temporal.ChronoUnit.DAYS.between(dob, today), bucket.getAgeDaysSum());
+        assertEquals(bucket.getAvgAgeYears(), stats.getAvgAgeYears(), 1e-9);
+    }
+    
+    @Test
+    void streamHospitals_pagesThroughAllRows_andResumesFromToken() {
+        var created = new java.util.HashSet<String>();
+        for (int i = 0; i < 5; i++) {
+            created.add(hospital.createHospital(CreateHospitalRequest.newBuilder()
+            .setName("Stream Hospital " + i).build()).getId());
+        }
+        
+        var seen = new java.util.ArrayList<String>();
+        String secondToken = null;
+        var chunks = hospital.streamHospitals(StreamHospitalsRequest.newBuilder().setPageSize(2).build());
+        for (int n = 0; chunks.hasNext(); n++) {
+            var chunk = chunks.next();
+            assertTrue(chunk.getHospitalsCount() <= 2);
+            chunk.getHospitalsList().forEach(t -> seen.add(t.getId()));
+            if (n == 1) {
+                secondToken = chunk.getResumeToken();
+            }
+        }
+        assertTrue(seen.containsAll(created));
+        assertEquals(seen.size(), new java.util.HashSet<>(seen).size(), "keyset pages must not overlap");
+        
+        var resumed = new java.util.ArrayList<String>();
+        hospital.streamHospitals(StreamHospitalsRequest.newBuilder()
+        .setPageSize(2).setResumeToken(secondToken).build())
+        .forEachRemaining(c -> c.getHospitalsList().forEach(t -> resumed.add(t.getId())));
+        assertEquals(seen.subList(4, seen.size()), resumed);
+    }
+    
+    @Test
+    void streamPatientsOfHospital_returnsDistinctPatients() {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Stream Patients Hospital").build()).getId();
+        var ids = new java.util.HashSet<String>();
+        for (int i = 0; i < 3; i++) {
+            var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+            .setName("Streamed " + i).setSex(Sex.OTHER).setDob(protoDate(2000, 1, 1 + i)).build()).getId();
+            ids.add(pid);
+            // register twice, the stream must still list each patient once
+            hospital.registerPatient(RegisterPatientRequest.newBuilder().setPatientId(pid).setHospitalId(hid).build());
+            hospital.registerPatient(RegisterPatientRequest.newBuilder().setPatientId(pid).setHospitalId(hid).build());
+        }
+        
+        var seen = new java.util.ArrayList<String>();
+        hospital.streamPatientsOfHospital(StreamPatientsOfHospitalRequest.newBuilder()
+        .setHospitalId(hid).setPageSize(2).build())
+        .forEachRemaining(c -> c.getPatientsList().forEach(t -> seen.add(t.getId())));
+        assertEquals(3, seen.size());
+        assertEquals(ids, new java.util.HashSet<>(seen));
+    }
+    
+    @Test
+    void bulkIngest_acknowledgesBatches_andSummarizes() throws Exception {
+        var async = HospitalServiceGrpc.newStub(channel);
+        var asyncPatients = PatientServiceGrpc.newStub(channel);
+        
+        var hospitalReplies = StreamRecorder.<BulkIngestReply>create();
+        var hospitalsIn = async.bulkCreateHospitals(hospitalReplies);
+        hospitalsIn.onNext(CreateHospitalRequest.newBuilder().setName("Bulk A").build());
+        hospitalsIn.onNext(CreateHospitalRequest.newBuilder().setName(" ").build());
+        hospitalsIn.onNext(CreateHospitalRequest.newBuilder().setName("Bulk B").build());
+        hospitalsIn.onCompleted();
+        assertTrue(hospitalReplies.awaitCompletion(5, TimeUnit.SECONDS));
+        
+        var replies = hospitalReplies.getValues();
+        assertEquals(2, replies.size());
+        var ack = replies.get(0).getBatch();
+        assertEquals(2, ack.getAccepted());
+        assertEquals(1, ack.getRejected());
+        assertEquals(3, ack.getIdsCount());
+        assertTrue(ack.getIds(1).isEmpty(), "blank name is rejected");
+        var summary = replies.get(1).getSummary();
+        assertEquals(2, summary.getAccepted());
+        assertEquals(1, summary.getBatches());
+        var hid = ack.getIds(0);
+        
+        var patientReplies = StreamRecorder.<BulkIngestReply>create();
+        var patientsIn = asyncPatients.bulkCreatePatients(patientReplies);
+        patientsIn.onNext(CreatePatientRequest.newBuilder()
+        .setName("Bulk Patient").setSex(Sex.MALE).setDob(protoDate(1960, 3, 3)).build());
+        patientsIn.onCompleted();
+        assertTrue(patientReplies.awaitCompletion(5, TimeUnit.SECONDS));
+        var pid = patientReplies.getValues().get(0).getBatch().getIds(0);
+        
+        var visitReplies = StreamRecorder.<BulkIngestReply>create();
+        var visitsIn = async.bulkRegisterVisits(visitReplies);
+        visitsIn.onNext(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(hid).setVisitDate(protoDate(2020, 7, 15)).build());
+        visitsIn.onNext(RegisterPatientRequest.newBuilder()
+        .setPatientId(UUID.randomUUID().toString()).setHospitalId(hid).build());
+        visitsIn.onCompleted();
+        assertTrue(visitReplies.awaitCompletion(5, TimeUnit.SECONDS));
+        var visitAck = visitReplies.getValues().get(0).getBatch();
+        assertEquals(1, visitAck.getAccepted());
+        assertEquals(1, visitAck.getRejected(), "unknown patient is rejected");
+        
+        var plist = hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid).build());
+        assertEquals(pid, plist.getPatients(0).getId());
+    }
+    
+    @Test
+    void registerStream_acksEverySequenceNumberOnce_withPerRequestErrors() throws Exception {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Stream General").build()).getId();
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Streamed").setSex(Sex.MALE).setDob(protoDate(1975, 5, 5)).build()).getId();
+        
+        var acks = StreamRecorder.<RegisterStreamAck>create();
+        var in = HospitalServiceGrpc.newStub(channel).registerStream(acks);
+        for (long seq = 1; seq <= 300; seq++) {
+            in.onNext(RegisterStreamRequest.newBuilder().setSeq(seq).setRequest(RegisterPatientRequest.newBuilder()
+            .setPatientId(pid).setHospitalId(hid)).build());
+        }
+        in.onNext(RegisterStreamRequest.newBuilder().setSeq(301).setRequest(RegisterPatientRequest.newBuilder()
+        .setPatientId(UUID.randomUUID().toString()).setHospitalId(hid)).build());
+        in.onNext(RegisterStreamRequest.newBuilder().setSeq(302).setRequest(RegisterPatientRequest.newBuilder()
+        .setPatientId("not-a-uuid").setHospitalId(hid)).build());
+        in.onCompleted();
+        assertTrue(acks.awaitCompletion(5, TimeUnit.SECONDS));
+        assertNull(acks.getError());
+        
+        // more requests than the window (128): the stream keeps going as acks are sent
+        var bySeq = new HashMap<Long, RegisterStreamAck>();
+        for (var ack : acks.getValues()) {
+            assertNull(bySeq.put(ack.getSeq(), ack), "seq " + ack.getSeq() + " acknowledged twice");
+        }
+        assertEquals(302, bySeq.size());
+        for (long seq = 1; seq <= 300; seq++) {
+            assertTrue(bySeq.get(seq).getAck().getRegistered());
+        }
+        assertEquals("NOT_FOUND", bySeq.get(301L).getError().getCode());
+        assertEquals("INVALID_ARGUMENT", bySeq.get(302L).getError().getCode());
+        
+        var plist = hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid).build());
+        assertEquals(pid, plist.getPatients(0).getId());
+    }
+    
+    @Test
+    void registerStream_neverHasMoreThanItsWindowInProgress() throws Exception {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Windowed General").build()).getId();
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Windowed").setSex(Sex.FEMALE).setDob(protoDate(1982, 2, 2)).build()).getId();
+        // every registration completes 20 ms late, so a client sending ahead would pile them up
+        var inProgress = new AtomicInteger();
+        var peak = new AtomicInteger();
+        doAnswer(inv -> {
+            peak.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+            var real = (CompletableFuture<?>) inv.callRealMethod();
+            return real.whenCompleteAsync((r, err) -> inProgress.decrementAndGet(),
+            CompletableFuture.delayedExecutor(20, TimeUnit.MILLISECONDS));
+        }).when(registrar).register(any(), any());
+        
+        var acks = StreamRecorder.<RegisterStreamAck>create();
+        var in = HospitalServiceGrpc.newStub(channel).registerStream(acks);
+        for (long seq = 1; seq <= 1000; seq++) {
+            in.onNext(RegisterStreamRequest.newBuilder().setSeq(seq).setRequest(RegisterPatientRequest.newBuilder()
+            .setPatientId(pid).setHospitalId(hid)).build());
+        }
+        in.onCompleted();
+        assertTrue(acks.awaitCompletion(30, TimeUnit.SECONDS));
+        assertNull(acks.getError());
+        assertEquals(1000, acks.getValues().size());
+        assertTrue(acks.getValues().stream().allMatch(RegisterStreamAck::hasAck));
+        // hospital.register.stream-window defaults to 128
+        assertTrue(peak.get() <= 128, "at most the window in progress, saw " + peak.get());
+        assertTrue(peak.get() > 1, "requests are pipelined");
+    }
+    
+    @Test
+    void deleteHospital_invalidatesCachedLookup() {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Cached Hospital").build()).getId();
+        var statsReq = VisitStatisticsRequest.newBuilder().setHospitalId(hid).build();
+        
+        // first lookup loads the hospital into the cache
+        assertEquals(0, hospital.getVisitStatistics(statsReq).getVisitsCount());
+        assertTrue(hospital.deleteHospital(HospitalId.newBuilder().setId(hid).build()).getDeleted());
+        
+        var e = assertThrows(io.grpc.StatusRuntimeException.class, () -> hospital.getVisitStatistics(statsReq));
+        assertEquals(io.grpc.Status.Code.NOT_FOUND, e.getStatus().getCode());
+    }
+    
+    @Test
+    void listVisits_returnsTheRangeInDateOrder_andRetentionDropsExpiredMonths() throws Exception {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Partitioned Hospital").build()).getId();
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Ivy").setSex(Sex.FEMALE).setDob(protoDate(1950, 1, 1)).build()).getId();
+        
+        var today = java.time.LocalDate.now();
+        var expired = today.minusYears(11);
+        var dates = java.util.List.of(today.minusYears(1), today.minusYears(3).plusDays(5), expired,
+        today.minusYears(3), today.minusYears(3).plusDays(5));
+        var replies = StreamRecorder.<BulkIngestReply>create();
+        var in = HospitalServiceGrpc.newStub(channel).bulkRegisterVisits(replies);
+        for (var d : dates) {
+            in.onNext(RegisterPatientRequest.newBuilder().setPatientId(pid).setHospitalId(hid)
+            .setVisitDate(protoDate(d.getYear(), d.getMonthValue(), d.getDayOfMonth())).build());
+        }
+        in.onCompleted();
+        assertTrue(replies.awaitCompletion(5, TimeUnit.SECONDS));
+        
+        var from = today.minusYears(4);
+        var to = today.minusYears(2);
+        var range = ListVisitsRequest.newBuilder().setHospitalId(hid).setPageSize(2)
+        .setFrom(protoDate(from.getYear(), from.getMonthValue(), from.getDayOfMonth()))
+        .setTo(protoDate(to.getYear(), to.getMonthValue(), to.getDayOfMonth()));
+        var seen = new java.util.ArrayList<VisitTuple>();
+        var tokens = new java.util.ArrayList<String>();
+        hospital.listVisits(range.build()).forEachRemaining(c -> {
+            seen.addAll(c.getVisitsList());
+            tokens.add(c.getResumeToken());
+        });
+        assertEquals(3, seen.size());
+        var threeYears = today.minusYears(3);
+        assertEquals(threeYears.getDayOfMonth(), seen.get(0).getVisitDate().getDay());
+        assertEquals(seen.get(1).getVisitDate(), seen.get(2).getVisitDate(), "same-day visits are both listed");
+        assertTrue(seen.get(1).getId() < seen.get(2).getId(), "same-day visits are ordered by id");
+        
+        var resumed = new java.util.ArrayList<VisitTuple>();
+        hospital.listVisits(range.setResumeToken(tokens.get(0)).build())
+        .forEachRemaining(c -> resumed.addAll(c.getVisitsList()));
+        assertEquals(seen.subList(2, 3), resumed);
+        
+        var everything = ListVisitsRequest.newBuilder().setHospitalId(hid)
+        .setFrom(protoDate(expired.getYear() - 1, 1, 1)).build();
+        var all = new java.util.ArrayList<VisitTuple>();
+        hospital.listVisits(everything).forEachRemaining(c -> all.addAll(c.getVisitsList()));
+        assertEquals(5, all.size());
+        
+        assertTrue(retention.expire(today) >= 1);
+        all.clear();
+        hospital.listVisits(everything).forEachRemaining(c -> all.addAll(c.getVisitsList()));
+        assertEquals(4, all.size());
+        assertTrue(all.stream().noneMatch(v -> v.getVisitDate().getYear() == expired.getYear()
+        && v.getVisitDate().getMonth() == expired.getMonthValue()));
+        assertEquals(0, retention.expire(today), "nothing left to expire");
+    }
+    
+    @Test
+    void listVisits_hidesVisitsOfDeletedPatients_beforeThePurge() {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Listed Visits").build()).getId();
+        var gone = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Ivo").setSex(Sex.MALE).setDob(protoDate(1966, 6, 6)).build()).getId();
+        var kept = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Jana").setSex(Sex.FEMALE).setDob(protoDate(1977, 7, 7)).build()).getId();
+        for (var pid : java.util.List.of(gone, kept)) {
+            hospital.registerPatient(RegisterPatientRequest.newBuilder().setPatientId(pid).setHospitalId(hid).build());
+        }
+        assertTrue(patient.deletePatient(PatientId.newBuilder().setId(gone).build()).getDeleted());
+        
+        // the purge has not run: the visit row is still there, but no longer listed
+        var listed = new java.util.ArrayList<VisitTuple>();
+        hospital.listVisits(ListVisitsRequest.newBuilder().setHospitalId(hid).build())
+        .forEachRemaining(c -> listed.addAll(c.getVisitsList()));
+        assertEquals(1, listed.size());
+        assertEquals(kept, listed.get(0).getPatientId());
+    }
+    
+    @Test
+    void searchPatients_streamsRankedMatches_andFollowsUpdatesAndDeletes() {
+        var exact = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Quentin").setSex(Sex.MALE).setDob(protoDate(1971, 1, 1)).build()).getId();
+        var prefix = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Quentina Ross").setSex(Sex.FEMALE).setDob(protoDate(1972, 2, 2)).build()).getId();
+        var word = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Mary Quentin-Hale").setSex(Sex.FEMALE).setDob(protoDate(1973, 3, 3)).build()).getId();
+        
+        var ids = new java.util.ArrayList<String>();
+        patient.searchPatients(SearchPatientsRequest.newBuilder().setQuery("quentin").build())
+        .forEachRemaining(t -> ids.add(t.getId()));
+        assertEquals(java.util.List.of(exact, prefix, word), ids);
+        
+        var limited = new java.util.ArrayList<String>();
+        patient.searchPatients(SearchPatientsRequest.newBuilder().setQuery("QUENT").setLimit(1).build())
+        .forEachRemaining(t -> limited.add(t.getId()));
+        assertEquals(java.util.List.of(exact), limited);
+        
+        patient.updatePatient(UpdatePatientRequest.newBuilder()
+        .setId(prefix).setName("Rhona Ross").setSex(Sex.FEMALE).setDob(protoDate(1972, 2, 2)).build());
+        patient.deletePatient(PatientId.newBuilder().setId(exact).build());
+        ids.clear();
+        patient.searchPatients(SearchPatientsRequest.newBuilder().setQuery("quentin").build())
+        .forEachRemaining(t -> ids.add(t.getId()));
+        assertEquals(java.util.List.of(word), ids);
+        
+        var e = assertThrows(io.grpc.StatusRuntimeException.class, () ->
+        patient.searchPatients(SearchPatientsRequest.newBuilder().setQuery(" ").build()).hasNext());
+        assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+    }
+    
+    @Test
+    void countDistinctPatients_countsEachPatientOncePerRange() throws Exception {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Distinct Hospital").build()).getId();
+        var pids = new java.util.ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            pids.add(patient.createPatient(CreatePatientRequest.newBuilder()
+            .setName("Distinct " + i).setSex(Sex.OTHER).setDob(protoDate(1990, 1, 1 + i)).build()).getId());
+        }
+        var thisMonth = java.time.YearMonth.now();
+        var lastMonth = thisMonth.minusMonths(1);
+        var replies = StreamRecorder.<BulkIngestReply>create();
+        var in = HospitalServiceGrpc.newStub(channel).bulkRegisterVisits(replies);
+        // this month: patients 0, 1 (twice); last month: patients 1, 2
+        for (var v : java.util.List.of(java.util.Map.entry(0, thisMonth), java.util.Map.entry(1, thisMonth),
+        java.util.Map.entry(1, thisMonth), java.util.Map.entry(1, lastMonth), java.util.Map.entry(2, lastMonth))) {
+            var d = v.getValue().atDay(1);
+            in.onNext(RegisterPatientRequest.newBuilder().setPatientId(pids.get(v.getKey())).setHospitalId(hid)
+            .setVisitDate(protoDate(d.getYear(), d.getMonthValue(), d.getDayOfMonth())).build());
+        }
+        in.onCompleted();
+        assertTrue(replies.awaitCompletion(5, TimeUnit.SECONDS));
+        
+        var current = hospital.countDistinctPatients(CountDistinctPatientsRequest.newBuilder().setHospitalId(hid).build());
+        assertEquals(2, current.getDistinctPatients());
+        assertEquals(1, current.getMonths());
+        assertTrue(current.getRelativeError() > 0 && current.getRelativeError() <= 0.02);
+        
+        var both = hospital.countDistinctPatients(CountDistinctPatientsRequest.newBuilder().setHospitalId(hid)
+        .setFromMonth(YearMonth.newBuilder().setYear(lastMonth.getYear()).setMonth(lastMonth.getMonthValue()))
+        .setToMonth(YearMonth.newBuilder().setYear(thisMonth.getYear()).setMonth(thisMonth.getMonthValue()))
+        .build());
+        assertEquals(3, both.getDistinctPatients());
+        assertEquals(2, both.getMonths());
+        
+        var e = assertThrows(io.grpc.StatusRuntimeException.class, () -> hospital.countDistinctPatients(
+        CountDistinctPatientsRequest.newBuilder().setHospitalId(hid)
+        .setFromMonth(YearMonth.newBuilder().setYear(thisMonth.getYear()).setMonth(13)).build()));
+        assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+    }
+    
+    @Test
+    void watchVisits_deliversRegistrationsAndDeletes_filteredByHospital() throws Exception {
+        var watched = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Watched Hospital").build()).getId();
+        var other = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Other Hospital").build()).getId();
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Ivy").setSex(Sex.FEMALE).setDob(protoDate(1995, 5, 5)).build()).getId();
+        
+        var all = new java.util.concurrent.LinkedBlockingQueue<VisitEvent>();
+        var one = new java.util.concurrent.LinkedBlockingQueue<VisitEvent>();
+        var subscribers = meters.get("hospital.watch.subscribers").gauge();
+        double before = subscribers.value();
+        var async = HospitalServiceGrpc.newStub(channel);
+        async.watchVisits(WatchVisitsRequest.getDefaultInstance(), collect(all));
+        async.watchVisits(WatchVisitsRequest.newBuilder().setHospitalId(watched).build(), collect(one));
+        // subscribing happens on the server's executor; wait until both are attached
+        for (int i = 0; i < 500 && subscribers.value() < before + 2; i++) {
+            Thread.sleep(10);
+        }
+        
+        hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(watched).build());
+        hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(other).build());
+        assertTrue(patient.deletePatient(PatientId.newBuilder().setId(pid).build()).getDeleted());
+        
+        var e = one.poll(5, TimeUnit.SECONDS);
+        assertNotNull(e);
+        assertEquals(VisitEvent.Kind.VISIT_REGISTERED, e.getKind());
+        assertEquals(watched, e.getHospitalId());
+        assertEquals(pid, e.getPatientId());
+        assertTrue(e.getVisitId() > 0);
+        assertTrue(e.hasVisitDate());
+        // the other hospital's visit is filtered out, a patient delete reaches every watcher
+        e = one.poll(5, TimeUnit.SECONDS);
+        assertNotNull(e);
+        assertEquals(VisitEvent.Kind.PATIENT_DELETED, e.getKind());
+        assertEquals(pid, e.getPatientId());
+        
+        var seen = new java.util.ArrayList<VisitEvent>();
+        while (seen.size() < 3) {
+            var next = all.poll(5, TimeUnit.SECONDS);
+            assertNotNull(next, "unfiltered watcher got " + seen);
+            if (next.getPatientId().equals(pid)) {
+                seen.add(next);
+            }
+        }
+        assertEquals(java.util.List.of(watched, other, ""), seen.stream().map(VisitEvent::getHospitalId).toList());
+        assertTrue(seen.get(0).getSequence() < seen.get(1).getSequence());
+        
+        var notFound = assertThrows(io.grpc.StatusRuntimeException.class, () -> hospital.watchVisits(
+        WatchVisitsRequest.newBuilder().setHospitalId(UUID.randomUUID().toString()).build()).hasNext());
+        assertEquals(io.grpc.Status.Code.NOT_FOUND, notFound.getStatus().getCode());
+    }
+    
+    private static io.grpc.stub.StreamObserver<VisitEvent> collect(java.util.concurrent.BlockingQueue<VisitEvent> into) {
+        return new io.grpc.stub.StreamObserver<>() {
+            @Override public void onNext(VisitEvent e) { into.add(e); }
+            @Override public void onError(Throwable t) {}
+            @Override public void onCompleted() {}
+        };
+    }
+    
+    @Test
+    void exportVisitSnapshot_streamsAFileThatMapsBackToTheVisits() throws Exception {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Snapshot Hospital").build()).getId();
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Jules").setSex(Sex.MALE).setDob(protoDate(1999, 9, 9)).build()).getId();
+        hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(hid).build());
+        
+        var bytes = new java.io.ByteArrayOutputStream();
+        hospital.exportVisitSnapshot(ExportVisitSnapshotRequest.newBuilder().setRefresh(true).build())
+        .forEachRemaining(c -> {
+            assertEquals(bytes.size(), c.getOffset());
+            bytes.writeBytes(c.getData().toByteArray());
+        });
+        var file = java.nio.file.Files.createTempFile("export", ".snap");
+        try {
+            java.nio.file.Files.write(file, bytes.toByteArray());
+            var snap = avelios.hospital.snapshot.VisitSnapshot.open(file);
+            boolean found = false;
+            for (int i = 0; i < snap.visitCount(); i++) {
+                if (snap.hospitalId(snap.visitHospital(i)).toString().equals(hid)
+                && snap.patientId(snap.visitPatient(i)).toString().equals(pid)) {
+                    found = true;
+                    assertEquals("Snapshot Hospital", snap.hospitalName(snap.visitHospital(i)));
+                    assertEquals("Jules", snap.patientName(snap.visitPatient(i)));
+                    assertFalse(snap.visitDate(i).isAfter(java.time.LocalDate.now()));
+                }
+            }
+            assertTrue(found);
+        } finally {
+            java.nio.file.Files.delete(file);
+        }
+    }
+    
+    @Test
+    void v2Lists_returnTheSameRowsAsV1_withBinaryIds() {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Binary Hospital").build()).getId();
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Kim").setSex(Sex.OTHER).setDob(protoDate(1988, 8, 18)).build()).getId();
+        hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(hid).build());
+        var h = UUID.fromString(hid);
+        var p = UUID.fromString(pid);
+        var hospitalV2 = avelios.hospital.grpc.v2.HospitalServiceGrpc.newBlockingStub(channel);
+        var patientV2 = avelios.hospital.grpc.v2.PatientServiceGrpc.newBlockingStub(channel);
+        
+        var patients = hospitalV2.listPatientsOfHospital(avelios.hospital.grpc.v2.ListPatientsOfHospitalRequest.newBuilder()
+        .setHi(h.getMostSignificantBits()).setLo(h.getLeastSignificantBits()).build());
+        assertEquals(1, patients.getPatientsCount());
+        assertEquals(p, new UUID(patients.getPatients(0).getIdHi(), patients.getPatients(0).getIdLo()));
+        assertEquals("Kim", patients.getPatients(0).getName());
+        // same rows, same versions as v1
+        assertEquals(hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid).build()).getVersion(),
+        patients.getVersion());
+        assertTrue(hospitalV2.listPatientsOfHospital(avelios.hospital.grpc.v2.ListPatientsOfHospitalRequest.newBuilder()
+        .setHi(h.getMostSignificantBits()).setLo(h.getLeastSignificantBits()).setIfVersion(patients.getVersion()).build())
+        .getNotModified());
+        var unknown = UUID.randomUUID();
+        var notFound = assertThrows(io.grpc.StatusRuntimeException.class, () -> hospitalV2.listPatientsOfHospital(
+        avelios.hospital.grpc.v2.ListPatientsOfHospitalRequest.newBuilder()
+        .setHi(unknown.getMostSignificantBits()).setLo(unknown.getLeastSignificantBits()).build()));
+        assertEquals(io.grpc.Status.Code.NOT_FOUND, notFound.getStatus().getCode());
+        
+        var hospitals = patientV2.listHospitalsOfPatient(avelios.hospital.grpc.v2.PatientId.newBuilder()
+        .setHi(p.getMostSignificantBits()).setLo(p.getLeastSignificantBits()).build());
+        assertEquals(java.util.List.of(h), hospitals.getHospitalsList().stream()
+        .map(t -> new UUID(t.getIdHi(), t.getIdLo())).toList());
+        
+        var v1 = hospital.listHospitals(ListHospitalsRequest.getDefaultInstance());
+        var v2 = hospitalV2.listHospitals(avelios.hospital.grpc.v2.ListHospitalsRequest.getDefaultInstance());
+        assertEquals(v1.getHospitalsList().stream().map(t -> t.getId() + "/" + t.getName()).toList(),
+        v2.getHospitalsList().stream().map(t -> new UUID(t.getIdHi(), t.getIdLo()) + "/" + t.getName()).toList());
+        assertEquals(v1.getVersion(), v2.getVersion());
+        assertTrue(v2.getSerializedSize() < v1.getSerializedSize());
+        assertEquals(patient.listPatients(ListPatientsRequest.getDefaultInstance()).getPatientsCount(),
+        patientV2.listPatients(avelios.hospital.grpc.v2.ListPatientsRequest.getDefaultInstance()).getPatientsCount());
+    }
+    
+    @Test
+    void listReplies_areVersioned_andUnchangedListsAnswerNotModified() {
+        var first = hospital.listHospitals(ListHospitalsRequest.getDefaultInstance());
+        assertTrue(first.getVersion() > 0);
+        assertFalse(first.getNotModified());
+        var same = hospital.listHospitals(ListHospitalsRequest.newBuilder().setIfVersion(first.getVersion()).build());
+        assertTrue(same.getNotModified());
+        assertEquals(first.getVersion(), same.getVersion());
+        assertEquals(0, same.getHospitalsCount());
+        
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Versioned Hospital").build()).getId();
+        var changed = hospital.listHospitals(ListHospitalsRequest.newBuilder().setIfVersion(first.getVersion()).build());
+        assertFalse(changed.getNotModified());
+        assertTrue(changed.getVersion() > first.getVersion());
+        assertTrue(changed.getHospitalsList().stream().anyMatch(h -> h.getId().equals(hid)));
+        
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Lena").setSex(Sex.FEMALE).setDob(protoDate(1977, 7, 7)).build()).getId();
+        var empty = hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid).build());
+        assertEquals(0, empty.getPatientsCount());
+        hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(hid).build());
+        var one = hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid)
+        .setIfVersion(empty.getVersion()).build());
+        assertEquals(1, one.getPatientsCount());
+        assertTrue(one.getVersion() > empty.getVersion());
+        assertTrue(hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid)
+        .setIfVersion(one.getVersion()).build()).getNotModified());
+        
+        // lists hold names only: other patient fields leave them current
+        patient.updatePatient(UpdatePatientRequest.newBuilder()
+        .setId(pid).setSex(Sex.OTHER).setDob(protoDate(1977, 7, 8)).build());
+        assertTrue(hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid)
+        .setIfVersion(one.getVersion()).build()).getNotModified());
+        
+        // a rename of a listed patient moves the list of every hospital it visited
+        patient.updatePatient(UpdatePatientRequest.newBuilder()
+        .setId(pid).setName("Lena Renamed").setSex(Sex.FEMALE).setDob(protoDate(1977, 7, 7)).build());
+        var renamed = hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid)
+        .setIfVersion(one.getVersion()).build());
+        assertFalse(renamed.getNotModified());
+        assertEquals("Lena Renamed", renamed.getPatients(0).getName());
+    }
+    
+    @Test
+    void deleteHospital_hidesItAtOnce_andPurgeRemovesItsVisits() {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Purged Hospital").build()).getId();
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Frank").setSex(Sex.MALE).setDob(protoDate(1970, 2, 2)).build()).getId();
+        hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(hid).build());
+        hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(hid).build());
+        
+        var hospitalId = HospitalId.newBuilder().setId(hid).build();
+        assertTrue(hospital.deleteHospital(hospitalId).getDeleted());
+        assertFalse(hospital.deleteHospital(hospitalId).getDeleted(), "second delete is a no-op");
+        
+        // flagged: gone from every read, visits still there until the purge runs
+        assertTrue(hospital.listHospitals(ListHospitalsRequest.getDefaultInstance()).getHospitalsList().stream()
+        .noneMatch(h -> h.getId().equals(hid)));
+        assertEquals(0, patient.listHospitalsOfPatient(PatientId.newBuilder().setId(pid).build()).getHospitalsCount());
+        var gone = assertThrows(io.grpc.StatusRuntimeException.class, () -> hospital.listPatientsOfHospital(
+        ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid).build()));
+        assertEquals(io.grpc.Status.Code.NOT_FOUND, gone.getStatus().getCode());
+        var hospitalUuid = UUID.fromString(hid);
+        assertEquals(2, visitRepo.idsOfHospital(hospitalUuid, org.springframework.data.domain.PageRequest.of(0, 10)).size());
+        assertTrue(purger.status().pending().stream().anyMatch(j -> j.id().equals(hospitalUuid)));
+        
+        purger.drain();
+        
+        assertEquals(0, visitRepo.idsOfHospital(hospitalUuid, org.springframework.data.domain.PageRequest.of(0, 10)).size());
+        assertTrue(purger.status().pending().isEmpty());
+        assertTrue(purger.status().visitsPurged() >= 2);
+        // the patient itself is untouched
+        assertEquals("Frank", patient.updatePatient(UpdatePatientRequest.newBuilder()
+        .setId(pid).setSex(Sex.MALE).setDob(protoDate(1970, 2, 2)).build()).getName());
+    }
+    
+    @Test
+    void deletePatient_purgeTakesItsVisitsOutOfTheStatistics() {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Purge Stats Hospital").build()).getId();
+        var gone = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Gina").setSex(Sex.FEMALE).setDob(protoDate(1985, 8, 8)).build()).getId();
+        var kept = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Hank").setSex(Sex.MALE).setDob(protoDate(1960, 1, 1)).build()).getId();
+        for (var pid : java.util.List.of(gone, gone, kept)) {
+            hospital.registerPatient(RegisterPatientRequest.newBuilder()
+            .setPatientId(pid).setHospitalId(hid).build());
+        }
+        var statsReq = VisitStatisticsRequest.newBuilder().setHospitalId(hid).setIncludeCurrentMonth(true).build();
+        assertEquals(3, hospital.getVisitStatistics(statsReq).getVisitsCount());
+        // corrected after the visits were counted: the purge must still take them out as FEMALE
+        patient.updatePatient(UpdatePatientRequest.newBuilder()
+        .setId(gone).setName("Gina").setSex(Sex.MALE).setDob(protoDate(1960, 1, 1)).build());
+        
+        assertTrue(patient.deletePatient(PatientId.newBuilder().setId(gone).build()).getDeleted());
+        var e = assertThrows(io.grpc.StatusRuntimeException.class, () -> hospital.registerPatient(
+        RegisterPatientRequest.newBuilder().setPatientId(gone).setHospitalId(hid).build()));
+        assertEquals(io.grpc.Status.Code.NOT_FOUND, e.getStatus().getCode());
+        assertEquals(1, hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(hid).build()).getPatientsCount());
+        
+        purger.drain();
+        
+        var stats = hospital.getVisitStatistics(statsReq);
+        assertEquals(1, stats.getVisitsCount());
+        assertEquals(1, stats.getBucketsCount());
+        assertEquals(Sex.MALE, stats.getBuckets(0).getSex());
+        assertEquals(1, stats.getBuckets(0).getVisitsCount());
+    }
+    
+    @Test
+    void serverInterceptor_recordsLatencyStatusAndSizes() {
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder()
+        .setName("Metered Hospital").build()).getId();
+        assertThrows(io.grpc.StatusRuntimeException.class, () -> hospital.getVisitStatistics(
+        VisitStatisticsRequest.newBuilder().setHospitalId(UUID.randomUUID().toString()).build()));
+        
+        var latency = meters.get("hospital.grpc.server.latency")
+        .tag("service", "hospital.v1.HospitalService").tag("method", "CreateHospital").timer();
+        assertTrue(latency.count() >= 1);
+        
+        var ok = meters.get("hospital.grpc.server.status")
+        .tag("method", "CreateHospital").tag("code", "OK").counter();
+        assertTrue(ok.count() >= 1);
+        var notFound = meters.get("hospital.grpc.server.status")
+        .tag("method", "GetVisitStatistics").tag("code", "NOT_FOUND").counter();
+        assertTrue(notFound.count() >= 1);
+        
+        var responseSize = meters.get("hospital.grpc.server.response.size")
+        .tag("method", "CreateHospital").summary();
+        assertTrue(responseSize.totalAmount() >= hid.length());
+        assertEquals(0, meters.get("hospital.grpc.server.in.flight")
+        .tag("method", "CreateHospital").gauge().value());
+    }
+    
 }
@@ -0,0 +1,138 @@
+package avelios.hospital;
+
+import avelios.hospital.repo.VisitRepo;
+
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.testing.StreamRecorder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import avelios.hospital.grpc.*;
+
+/** RegisterPatient with {@code hospital.register.idempotent}, in a context of its own. */
+@SpringBootTest(properties = {
+    "grpc.server.in-process-name=" + IdempotentRegisterTest.NAME,
+    "spring.datasource.url=jdbc:h2:mem:" + IdempotentRegisterTest.NAME + ";DB_CLOSE_DELAY=-1",
+    "hospital.register.idempotent=true"
+})
+@ActiveProfiles("test")
+class IdempotentRegisterTest {
+    
+    static final String NAME = "idempotent-register";
+    
+    @Autowired
+    private VisitRepo visits;
+    
+    private ManagedChannel channel;
+    private HospitalServiceGrpc.HospitalServiceStub async;
+    private HospitalServiceGrpc.HospitalServiceBlockingStub hospital;
+    private PatientServiceGrpc.PatientServiceBlockingStub patient;
+    
+    @BeforeEach
+    void setUp() {
+        channel = InProcessChannelBuilder.forName(NAME).directExecutor().build();
+        async = HospitalServiceGrpc.newStub(channel);
+        hospital = HospitalServiceGrpc.newBlockingStub(channel);
+        patient = PatientServiceGrpc.newBlockingStub(channel);
+    }
+    
+    @AfterEach
+    void tearDown() {
+        channel.shutdownNow();
+    }
+    
+    private String newPatient(String name) {
+        return patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName(name).setSex(Sex.FEMALE)
+        .setDob(avelios.hospital.grpc.LocalDate.newBuilder().setYear(1975).setMonth(3).setDay(9))
+        .build()).getId();
+    }
+    
+    private static RegisterPatientRequest register(String patientId, String hospitalId) {
+        return RegisterPatientRequest.newBuilder().setPatientId(patientId).setHospitalId(hospitalId).build();
+    }
+    
+    @Test
+    void secondRegistrationOnTheSameDay_isAcknowledgedAsDuplicate_andStoresNothing() {
+        var h = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Idempotent").build()).getId();
+        var other = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Elsewhere").build()).getId();
+        var p = newPatient("Retry");
+        long before = visits.count();
+        
+        var first = hospital.registerPatient(register(p, h));
+        assertTrue(first.getRegistered());
+        assertFalse(first.getDuplicate());
+        
+        var retry = hospital.registerPatient(register(p, h));
+        assertTrue(retry.getRegistered());
+        assertTrue(retry.getDuplicate());
+        
+        assertFalse(hospital.registerPatient(register(p, other)).getDuplicate(), "another hospital is a new visit");
+        assertEquals(before + 2, visits.count());
+    }
+    
+    @Test
+    void concurrentRetries_storeExactlyOneVisit() throws Exception {
+        var h = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Racing").build()).getId();
+        var p = newPatient("Impatient");
+        long before = visits.count();
+        
+        var calls = new ArrayList<Callable<RegisterAck>>();
+        for (int i = 0; i < 16; i++) {
+            calls.add(() -> hospital.registerPatient(register(p, h)));
+        }
+        var pool = Executors.newFixedThreadPool(16);
+        try {
+            int fresh = 0;
+            for (var f : pool.invokeAll(calls)) {
+                var ack = f.get();
+                assertTrue(ack.getRegistered());
+                fresh += ack.getDuplicate() ? 0 : 1;
+            }
+            assertEquals(1, fresh);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(before + 1, visits.count());
+    }
+    
+    @Test
+    void bulkRegisterVisits_skipsVisitsRepeatedInTheBatchOrAlreadyStored() throws Exception {
+        var h = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Bulk retry").build()).getId();
+        var p = newPatient("Imported");
+        var q = newPatient("Imported too");
+        assertTrue(hospital.registerPatient(register(p, h)).getRegistered());
+        var lastYear = avelios.hospital.grpc.LocalDate.newBuilder()
+        .setYear(java.time.LocalDate.now().getYear() - 1).setMonth(6).setDay(1).build();
+        long before = visits.count();
+        
+        var replies = StreamRecorder.<BulkIngestReply>create();
+        var in = async.bulkRegisterVisits(replies);
+        in.onNext(register(p, h));
+        in.onNext(register(q, h));
+        in.onNext(register(q, h));
+        in.onNext(register(q, h).toBuilder().setVisitDate(lastYear).build());
+        in.onNext(register(q, h).toBuilder().setVisitDate(lastYear).build());
+        in.onCompleted();
+        assertTrue(replies.awaitCompletion(5, TimeUnit.SECONDS));
+        
+        var ack = replies.getValues().get(0).getBatch();
+        assertEquals("", ack.getError(), "a repeated visit must not fail the batch");
+        assertEquals(5, ack.getAccepted());
+        assertEquals(3, ack.getDuplicates());
+        assertEquals(3, replies.getValues().get(1).getSummary().getDuplicates());
+        assertEquals(before + 2, visits.count(), "today's and last year's visit of the second patient");
+    }
+}
@@ -0,0 +1,76 @@
+package avelios.hospital;
+
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import avelios.hospital.grpc.*;
+
+/**
+ * A server of its own for the opt-in load tests: boots the application with the test profile,
+ * an in-process name and H2 database called {@code name} and the given extra arguments, and
+ * seeds 20 hospitals and 500 patients. Closing it shuts the channel and the context down.
+ */
+final class LoadTestServer implements AutoCloseable {
+
+    private static final int HOSPITALS = 20;
+    private static final int PATIENTS = 500;
+
+    private final ConfigurableApplicationContext context;
+    private final ManagedChannel channel;
+    private final List<String> hospitalIds = new ArrayList<>();
+    private final List<String> patientIds = new ArrayList<>();
+
+    LoadTestServer(String name, String... args) {
+        var all = new ArrayList<>(List.of(
+        "--grpc.server.in-process-name=" + name,
+        "--spring.datasource.url=jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1"));
+        all.addAll(List.of(args));
+        context = new SpringApplicationBuilder(HospitalApplication.class).profiles("test").run(all.toArray(String[]::new));
+        channel = InProcessChannelBuilder.forName(name).build();
+        try {
+            var hospital = HospitalServiceGrpc.newBlockingStub(channel);
+            var patient = PatientServiceGrpc.newBlockingStub(channel);
+            for (int i = 0; i < HOSPITALS; i++) {
+                hospitalIds.add(hospital.createHospital(CreateHospitalRequest.newBuilder().setName("H" + i).build()).getId());
+            }
+            for (int i = 0; i < PATIENTS; i++) {
+                patientIds.add(patient.createPatient(CreatePatientRequest.newBuilder()
+                .setName("P" + i).setSex(i % 2 == 0 ? Sex.MALE : Sex.FEMALE)
+                .setDob(avelios.hospital.grpc.LocalDate.newBuilder().setYear(1980).setMonth(1).setDay(1 + i % 28))
+                .build()).getId());
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    ManagedChannel channel() {
+        return channel;
+    }
+
+    List<String> hospitalIds() {
+        return hospitalIds;
+    }
+
+    List<String> patientIds() {
+        return patientIds;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            context.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package avelios.hospital;
+
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import avelios.hospital.grpc.*;
+
+/**
+ * Guards the relationship and batch RPCs against N+1 regressions: each must be answered by a
+ * single projection query (or one IN-query per chunk of ids), however many rows are behind it.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+class QueryCountTest {
+
+    @Autowired
+    private EntityManagerFactory emf;
+
+    private ManagedChannel channel;
+    private HospitalServiceGrpc.HospitalServiceBlockingStub hospital;
+    private PatientServiceGrpc.PatientServiceBlockingStub patient;
+    private Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        channel = InProcessChannelBuilder.forName("test").directExecutor().build();
+        hospital = HospitalServiceGrpc.newBlockingStub(channel);
+        patient  = PatientServiceGrpc.newBlockingStub(channel);
+        statistics = emf.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @AfterEach
+    void tearDown() {
+        channel.shutdownNow();
+    }
+
+    private String newPatient(String name) {
+        return patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName(name).setSex(Sex.MALE)
+        .setDob(avelios.hospital.grpc.LocalDate.newBuilder().setYear(1970).setMonth(1).setDay(1))
+        .build()).getId();
+    }
+
+    private void register(String pid, String hid) {
+        hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(hid).build());
+    }
+
+    @Test
+    void relationshipRpcs_issueOneStatementEach() {
+        var h1 = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Count A").build()).getId();
+        var h2 = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Count B").build()).getId();
+        var p1 = newPatient("Frank");
+        var p2 = newPatient("Grace");
+        for (int i = 0; i < 5; i++) {
+            register(p1, h1);
+            register(p2, h1);
+            register(p1, h2);
+        }
+
+        statistics.clear();
+        var patients = hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(h1).build());
+        assertEquals(2, patients.getPatientsCount());
+        assertEquals(1, statistics.getPrepareStatementCount(), "listPatientsOfHospital");
+
+        statistics.clear();
+        assertEquals(patients, hospital.listPatientsOfHospital(ListPatientsOfHospitalRequest.newBuilder().setHospitalId(h1).build()));
+        assertEquals(0, statistics.getPrepareStatementCount(), "unchanged list is served from the response cache");
+
+        statistics.clear();
+        var hospitals = patient.listHospitalsOfPatient(PatientId.newBuilder().setId(p1).build());
+        assertEquals(2, hospitals.getHospitalsCount());
+        assertEquals(1, statistics.getPrepareStatementCount(), "listHospitalsOfPatient");
+        assertEquals(0, statistics.getEntityLoadCount(), "projections must not load entities");
+    }
+
+    @Test
+    void batchGetPatients_issuesOneQueryPerChunk() {
+        var request = BatchGetPatientsRequest.newBuilder();
+        for (int i = 0; i < 300; i++) {
+            request.addIds(newPatient("Batch " + i));
+        }
+
+        statistics.clear();
+        var reply = patient.batchGetPatients(request.build());
+        assertEquals(300, reply.getResultsCount());
+        assertTrue(reply.getResultsList().stream().allMatch(PatientResult::hasPatient));
+        assertEquals(2, statistics.getPrepareStatementCount(), "300 ids are two chunks of at most 256");
+    }
+}
@@ -0,0 +1,121 @@
+package avelios.hospital.graph;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdjacencyIndexTest {
+    
+    private static final int JAN = 2024 * 12;
+    
+    private static Map.Entry<UUID, String> row(UUID id, String name) {
+        return Map.entry(id, name);
+    }
+    
+    @Test
+    void add_isIdempotent_andVisibleFromBothSides() {
+        var index = new AdjacencyIndex();
+        var h = UUID.randomUUID();
+        var p1 = UUID.randomUUID();
+        var p2 = UUID.randomUUID();
+        
+        assertTrue(index.add(h, "General", p1, "Alice", JAN));
+        assertFalse(index.add(h, "General", p1, "Alice", JAN), "second visit adds no edge");
+        assertTrue(index.add(h, "General", p2, "Bob", JAN));
+        
+        var patients = index.patientsOf(h, AdjacencyIndexTest::row);
+        assertEquals(2, patients.size());
+        assertTrue(patients.contains(row(p1, "Alice")));
+        assertTrue(patients.contains(row(p2, "Bob")));
+        assertEquals(java.util.List.of(row(h, "General")), index.hospitalsOf(p1, AdjacencyIndexTest::row));
+        assertEquals(2, index.edgeCount());
+    }
+    
+    @Test
+    void rename_andRemove_updateBothSides() {
+        var index = new AdjacencyIndex();
+        var h1 = UUID.randomUUID();
+        var h2 = UUID.randomUUID();
+        var p = UUID.randomUUID();
+        index.add(h1, "North", p, "Carol", JAN);
+        index.add(h2, "South", p, "Carol", JAN);
+        
+        index.renamePatient(p, "Caroline");
+        assertEquals("Caroline", index.patientsOf(h1, AdjacencyIndexTest::row).get(0).getValue());
+        
+        index.removeHospital(h1);
+        assertEquals(java.util.List.of(row(h2, "South")), index.hospitalsOf(p, AdjacencyIndexTest::row));
+        assertTrue(index.patientsOf(h1, AdjacencyIndexTest::row).isEmpty());
+        
+        index.removePatient(p);
+        assertTrue(index.patientsOf(h2, AdjacencyIndexTest::row).isEmpty());
+        assertEquals(0, index.edgeCount());
+        assertEquals(0, index.patientCount());
+    }
+    
+    @Test
+    void expireBefore_dropsOnlyPairsWithoutNewerVisits() {
+        var index = new AdjacencyIndex();
+        var h = UUID.randomUUID();
+        var old = UUID.randomUUID();
+        var returning = UUID.randomUUID();
+        index.add(h, "General", old, "Old", JAN);
+        index.add(h, "General", returning, "Returning", JAN);
+        index.add(h, "General", returning, "Returning", JAN + 3);
+        
+        assertEquals(1, index.expireBefore(JAN + 1));
+        assertEquals(java.util.List.of(row(returning, "Returning")), index.patientsOf(h, AdjacencyIndexTest::row));
+        assertTrue(index.hospitalsOf(old, AdjacencyIndexTest::row).isEmpty());
+        assertEquals(1, index.edgeCount());
+        assertEquals(0, index.expireBefore(JAN + 3), "a visit in the cutoff month keeps its pair");
+    }
+    
+    @Test
+    void seal_keepsTheNewestMonthOfDuplicatePairs() {
+        var index = new AdjacencyIndex();
+        var h = UUID.randomUUID();
+        var p = UUID.randomUUID();
+        index.append(h, p, JAN + 5);
+        index.append(h, p, JAN);
+        index.seal();
+        
+        assertEquals(1, index.edgeCount());
+        assertEquals(0, index.expireBefore(JAN + 5));
+        assertEquals(1, index.expireBefore(JAN + 6));
+    }
+    
+    @Test
+    void bulkLoad_matchesIncrementalAdds_withinFootprintBound() {
+        var rnd = new SplittableRandom(7);
+        var hospitals = new ArrayList<UUID>();
+        var patients = new ArrayList<UUID>();
+        for (int i = 0; i < 100; i++) hospitals.add(UUID.randomUUID());
+        for (int i = 0; i < 10_000; i++) patients.add(UUID.randomUUID());
+        
+        var bulk = new AdjacencyIndex();
+        var exact = new HashSet<String>();
+        for (int i = 0; i < 100_000; i++) {
+            var h = hospitals.get(rnd.nextInt(hospitals.size()));
+            var p = patients.get(rnd.nextInt(patients.size()));
+            bulk.append(h, p, JAN + rnd.nextInt(12));
+            exact.add(h + "/" + p);
+        }
+        bulk.seal();
+        assertEquals(exact.size(), bulk.edgeCount());
+        
+        var h = hospitals.get(0);
+        var expected = exact.stream().filter(e -> e.startsWith(h + "/")).count();
+        assertEquals(expected, bulk.patientsOf(h, AdjacencyIndexTest::row).size());
+        
+        // 16 bytes per pair (neighbour and month, on both sides) plus per-node overhead;
+        // a HashSet<UUID> per node would take about 150
+        long bytes = bulk.footprintBytes();
+        assertTrue(bytes < 64 * bulk.edgeCount(), "footprint " + bytes + " for " + bulk.edgeCount() + " pairs");
+    }
+}
@@ -0,0 +1,101 @@
+package avelios.hospital.graph;
+
+import avelios.hospital.entity.Hospital;
+import avelios.hospital.entity.Patient;
+import avelios.hospital.entity.Visit;
+import avelios.hospital.ingest.VisitWrites;
+import avelios.hospital.repo.HospitalRepo;
+import avelios.hospital.repo.PatientRepo;
+import avelios.hospital.repo.PatientRow;
+import avelios.hospital.repo.VisitRepo;
+import avelios.hospital.snapshot.VisitSnapshots;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = "hospital.graph.enabled=true")
+@ActiveProfiles("test")
+class VisitGraphTest {
+
+    @Autowired
+    private VisitGraph graph;
+
+    @Autowired
+    private VisitSnapshots snapshots;
+
+    @Autowired
+    private VisitWrites visitWrites;
+
+    @Autowired
+    private HospitalRepo hospitals;
+
+    @Autowired
+    private PatientRepo patients;
+
+    @Autowired
+    private VisitRepo visits;
+
+    @Autowired
+    private TransactionTemplate tx;
+
+    private Patient patient(String name) {
+        var p = new Patient();
+        p.setName(name);
+        p.setSex(Patient.Sex.MALE);
+        p.setDob(LocalDate.of(1990, 5, 5));
+        return patients.save(p);
+    }
+
+    @Test
+    void load_fromSnapshot_catchesUpEveryVisitItDoesNotHold() throws Exception {
+        var h = new Hospital();
+        h.setName("Snapshotted");
+        var hospital = hospitals.save(h);
+        var before = patient("Before");
+        var open = patient("Open");
+        var after = patient("After");
+        var today = LocalDate.now();
+        visits.save(new Visit(hospital, before, today));
+
+        // an insert whose transaction is still open when the snapshot starts
+        var started = new CountDownLatch(1);
+        var commit = new CountDownLatch(1);
+        var inFlight = CompletableFuture.supplyAsync(() -> visitWrites.insert(() -> tx.execute(s -> {
+            var v = visits.save(new Visit(hospital, open, today));
+            started.countDown();
+            try {
+                commit.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return v;
+        })));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        var writing = CompletableFuture.supplyAsync(snapshots::write);
+        assertThrows(TimeoutException.class, () -> writing.get(200, TimeUnit.MILLISECONDS),
+        "the snapshot waits for open visit inserts");
+        commit.countDown();
+        var openVisit = inFlight.get(5, TimeUnit.SECONDS);
+        var snapshot = writing.get(10, TimeUnit.SECONDS);
+        assertTrue(snapshot.committedThrough() >= openVisit.getId());
+
+        visits.save(new Visit(hospital, after, today));
+        graph.load();
+
+        Set<String> names = graph.patientsOf(hospital.getId()).stream().map(PatientRow::name).collect(Collectors.toSet());
+        assertEquals(Set.of("Before", "Open", "After"), names);
+    }
+}
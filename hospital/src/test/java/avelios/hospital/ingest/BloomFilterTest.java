@@ -0,0 +1,64 @@
+package avelios.hospital.ingest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloomFilterTest {
+    
+    private static boolean add(BloomFilter f, long key) {
+        long h1 = BloomFilter.mix(key);
+        return f.add(h1, BloomFilter.mix(h1));
+    }
+    
+    private static boolean contains(BloomFilter f, long key) {
+        long h1 = BloomFilter.mix(key);
+        return f.mightContain(h1, BloomFilter.mix(h1));
+    }
+    
+    @Test
+    void addedKeys_areAlwaysFound() {
+        var f = new BloomFilter(100_000, 0.01);
+        var rnd = new SplittableRandom(1);
+        var keys = rnd.longs(100_000).toArray();
+        for (long k : keys) {
+            add(f, k);
+        }
+        for (long k : keys) {
+            assertTrue(contains(f, k));
+        }
+        assertEquals(100_000, f.added());
+    }
+    
+    @Test
+    void falsePositiveRate_staysNearTarget_atExpectedLoad() {
+        int n = 200_000;
+        var f = new BloomFilter(n, 0.01);
+        var rnd = new SplittableRandom(2);
+        for (int i = 0; i < n; i++) {
+            add(f, rnd.nextLong());
+        }
+        int probes = 1_000_000;
+        int hits = 0;
+        var other = new SplittableRandom(3);
+        for (int i = 0; i < probes; i++) {
+            if (contains(f, other.nextLong())) {
+                hits++;
+            }
+        }
+        double fpp = (double) hits / probes;
+        assertTrue(fpp < 0.015, "false positive rate " + fpp);
+        assertEquals(7, f.hashes());
+        // ~9.6 bits per key at 1%
+        assertTrue(f.sizeBytes() < n * 10L / 8 + 8, "size " + f.sizeBytes());
+    }
+    
+    @Test
+    void secondAdd_ofSameKey_changesNoBits() {
+        var f = new BloomFilter(1_000, 0.01);
+        assertTrue(add(f, 42));
+        assertFalse(add(f, 42));
+    }
+}
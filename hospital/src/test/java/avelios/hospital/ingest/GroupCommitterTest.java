@@ -0,0 +1,132 @@
+package avelios.hospital.ingest;
+
+import avelios.hospital.entity.Visit;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupCommitterTest {
+
+    private static final LocalDate BAD = LocalDate.of(1900, 1, 1);
+
+    /** Records the size of every insert and rejects any batch holding a visit dated {@link #BAD}. */
+    private static class RecordingWriter extends BulkWriter {
+        final List<Integer> batches = new CopyOnWriteArrayList<>();
+        final CountDownLatch release;
+
+        RecordingWriter(CountDownLatch release) {
+            super(null, null);
+            this.release = release;
+        }
+
+        @Override
+        public <T> List<T> insert(List<T> entities) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            batches.add(entities.size());
+            if (entities.stream().anyMatch(v -> ((Visit) v).getVisitDate().equals(BAD))) {
+                throw new IllegalArgumentException("bad row");
+            }
+            return entities;
+        }
+    }
+
+    private static Visit visit(LocalDate d) {
+        return new Visit(null, null, d);
+    }
+
+    @Test
+    void concurrentSubmissions_shareOneBatch() throws Exception {
+        var writer = new RecordingWriter(new CountDownLatch(0));
+        try (var committer = new GroupCommitter(writer, new VisitWrites(), 8, Duration.ofSeconds(5))) {
+            var start = new CountDownLatch(1);
+            var futures = new CopyOnWriteArrayList<CompletableFuture<Visit>>();
+            var threads = new ArrayList<Thread>();
+            for (int i = 0; i < 8; i++) {
+                threads.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    futures.add(committer.submit(visit(LocalDate.now())));
+                }));
+            }
+            start.countDown();
+            for (var t : threads) {
+                t.join();
+            }
+            for (var f : futures) {
+                assertNotNull(f.get(5, TimeUnit.SECONDS));
+            }
+            // max-batch is reached long before the 5 s delay
+            assertEquals(List.of(8), writer.batches);
+        }
+    }
+
+    @Test
+    void failingRow_isRetriedAlone_andOnlyItsCallerFails() throws Exception {
+        var release = new CountDownLatch(1);
+        var writer = new RecordingWriter(release);
+        try (var committer = new GroupCommitter(writer, new VisitWrites(), 3, Duration.ofSeconds(5))) {
+            var good1 = committer.submit(visit(LocalDate.now()));
+            var bad = committer.submit(visit(BAD));
+            var good2 = committer.submit(visit(LocalDate.now()));
+            release.countDown();
+
+            assertNotNull(good1.get(5, TimeUnit.SECONDS));
+            assertNotNull(good2.get(5, TimeUnit.SECONDS));
+            var ex = assertThrows(ExecutionException.class, () -> bad.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, ex.getCause());
+            // the batch of three fails, then each visit is written on its own
+            assertEquals(List.of(3, 1, 1, 1), writer.batches);
+        }
+    }
+
+    @Test
+    void close_completesEveryPendingFuture() throws Exception {
+        var release = new CountDownLatch(1);
+        var writer = new RecordingWriter(release);
+        var committer = new GroupCommitter(writer, new VisitWrites(), 1, Duration.ofMillis(1));
+        var futures = new ArrayList<CompletableFuture<Visit>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(committer.submit(visit(LocalDate.now())));
+        }
+        // the flusher is stuck in the first insert while close() begins
+        var closing = Thread.ofPlatform().start(() -> {
+            try {
+                committer.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        while (closing.getState() != Thread.State.TIMED_WAITING) {
+            Thread.onSpinWait();
+        }
+        var late = committer.submit(visit(LocalDate.now()));
+        assertTrue(late.isCompletedExceptionally(), "no submissions once shut down");
+        release.countDown();
+        closing.join();
+
+        for (var f : futures) {
+            assertTrue(f.isDone());
+            assertNotNull(f.get());
+        }
+        assertEquals(5, writer.batches.size(), "visits queued before close are still written");
+    }
+}
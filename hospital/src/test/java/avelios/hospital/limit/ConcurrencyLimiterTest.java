@@ -0,0 +1,86 @@
+package avelios.hospital.limit;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrencyLimiterTest {
+    
+    private static final double MS = 1e6;
+    
+    @Test
+    void writes_areShedBeforeReads() {
+        var limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Gradient(), 10, 1, 100, 0.8,
+        Duration.ofHours(1), 1000);
+        int writes = 0;
+        while (limiter.tryAcquire(ConcurrencyLimiter.Priority.WRITE)) {
+            writes++;
+        }
+        assertEquals(8, writes);
+        assertTrue(limiter.tryAcquire(ConcurrencyLimiter.Priority.READ));
+        assertTrue(limiter.tryAcquire(ConcurrencyLimiter.Priority.READ));
+        assertFalse(limiter.tryAcquire(ConcurrencyLimiter.Priority.READ), "the whole limit is in use");
+        
+        limiter.release(1_000_000, ConcurrencyLimiter.Outcome.DONE);
+        assertFalse(limiter.tryAcquire(ConcurrencyLimiter.Priority.WRITE), "writes still over their share");
+        assertTrue(limiter.tryAcquire(ConcurrencyLimiter.Priority.READ));
+        assertEquals(10, limiter.inFlight());
+    }
+    
+    @Test
+    void gradient_growsAtSteadyLatency_shrinksWhenItRises_andIgnoresIdleWindows() {
+        var gradient = new ConcurrencyLimiter.Gradient();
+        double limit = 20;
+        for (int i = 0; i < 20; i++) {
+            limit = gradient.update(limit, 10 * MS, (int) limit, false);
+        }
+        double grown = limit;
+        assertTrue(grown > 30, "grows while latency holds: " + grown);
+        
+        for (int i = 0; i < 10; i++) {
+            limit = gradient.update(limit, 50 * MS, (int) limit, false);
+        }
+        assertTrue(limit < grown * 0.6, "shrinks when latency rises 5x: " + limit);
+        assertEquals(limit * 0.9 + 0.2 * Math.sqrt(limit), gradient.update(limit, 10 * MS, (int) limit, true), 1e-9,
+        "a drop halves the gradient");
+        
+        var idle = new ConcurrencyLimiter.Gradient();
+        assertEquals(20, idle.update(20, 10 * MS, 3, false), "too few calls in flight to learn anything");
+    }
+    
+    @Test
+    void aimd_backsOffPastTarget_andGrowsOnlyWhenUsed() {
+        var aimd = new ConcurrencyLimiter.Aimd(Duration.ofMillis(50));
+        assertEquals(18, aimd.update(20, 80 * MS, 20, false), 1e-9);
+        assertEquals(18, aimd.update(20, 10 * MS, 20, true), 1e-9);
+        assertEquals(21, aimd.update(20, 10 * MS, 20, false), 1e-9);
+        assertEquals(20, aimd.update(20, 10 * MS, 5, false), 1e-9);
+    }
+    
+    @Test
+    void limiter_updatesOncePerWindow_withinBounds_andSkipsIgnoredCalls() {
+        var limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Aimd(Duration.ofMillis(50)), 10, 4, 12,
+        1.0, Duration.ZERO, 4);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(limiter.tryAcquire(ConcurrencyLimiter.Priority.READ));
+            }
+            for (int i = 0; i < 4; i++) {
+                limiter.release((long) (100 * MS), ConcurrencyLimiter.Outcome.DONE);
+            }
+            if (round == 0) {
+                assertEquals(9, limiter.limit(), "one update per window of four calls");
+            }
+        }
+        assertEquals(4, limiter.limit(), "never below min");
+        
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire(ConcurrencyLimiter.Priority.READ);
+            limiter.release((long) (1000 * MS), ConcurrencyLimiter.Outcome.IGNORED);
+        }
+        assertEquals(4, limiter.limit(), "cancelled calls are no samples");
+        assertEquals(0, limiter.inFlight());
+    }
+}
@@ -0,0 +1,114 @@
+package avelios.hospital.routing;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.stub.MetadataUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.nio.file.Files;
+import java.sql.DriverManager;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import avelios.hospital.grpc.*;
+
+/**
+ * One primary and two replicas, all in-memory H2 databases. Replication is simulated: the test
+ * copies the primary into a replica ({@code SCRIPT} / {@code RUNSCRIPT}) when it wants that
+ * replica to catch up, so replica lag is under its control.
+ */
+@SpringBootTest(properties = {
+    "grpc.server.in-process-name=rw",
+    "spring.datasource.url=jdbc:h2:mem:" + ReadReplicaTest.PRIMARY + ";DB_CLOSE_DELAY=-1",
+    "hospital.datasource.replicas=jdbc:h2:mem:rw-replica-1;DB_CLOSE_DELAY=-1,jdbc:h2:mem:rw-replica-2;DB_CLOSE_DELAY=-1",
+    "hospital.datasource.replica-selection=round-robin"
+})
+@ActiveProfiles("test")
+class ReadReplicaTest {
+
+    static final String PRIMARY = "rw-primary";
+    private static final List<String> REPLICAS = List.of("rw-replica-1", "rw-replica-2");
+
+    private ManagedChannel channel;
+    private HospitalServiceGrpc.HospitalServiceBlockingStub hospital;
+    private PatientServiceGrpc.PatientServiceBlockingStub patient;
+    private PatientServiceGrpc.PatientServiceBlockingStub pinned;
+
+    // the replicas start as copies of the primary the context has just set up
+    @BeforeEach
+    void setUp() throws Exception {
+        for (var replica : REPLICAS) {
+            replicate(replica);
+        }
+        channel = InProcessChannelBuilder.forName("rw").directExecutor().build();
+        hospital = HospitalServiceGrpc.newBlockingStub(channel);
+        patient = PatientServiceGrpc.newBlockingStub(channel);
+        var headers = new Metadata();
+        headers.put(ReadRouting.READ_YOUR_WRITES, "true");
+        pinned = patient.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+    }
+
+    @AfterEach
+    void tearDown() {
+        channel.shutdownNow();
+    }
+
+    // the replica becomes an exact copy of the primary as of now
+    private static void replicate(String replica) throws Exception {
+        var script = Files.createTempFile("replica", ".sql");
+        try (var from = DriverManager.getConnection("jdbc:h2:mem:" + PRIMARY, "sa", "");
+             var to = DriverManager.getConnection("jdbc:h2:mem:" + replica, "sa", "")) {
+            from.createStatement().execute("SCRIPT TO '" + script + "'");
+            to.createStatement().execute("DROP ALL OBJECTS");
+            to.createStatement().execute("RUNSCRIPT FROM '" + script + "'");
+        } finally {
+            Files.deleteIfExists(script);
+        }
+    }
+
+    private static boolean listed(PatientServiceGrpc.PatientServiceBlockingStub stub, String id) {
+        return stub.listPatients(ListPatientsRequest.getDefaultInstance())
+        .getPatientsList().stream().anyMatch(p -> p.getId().equals(id));
+    }
+
+    @Test
+    void readsGoToReplicas_writesAndPinnedCallsToThePrimary() throws Exception {
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Lagging").setSex(Sex.FEMALE)
+        .setDob(avelios.hospital.grpc.LocalDate.newBuilder().setYear(1984).setMonth(2).setDay(29))
+        .build()).getId();
+        var byId = PatientId.newBuilder().setId(pid).build();
+
+        // written to the primary only: the replicas have not seen it yet
+        var ex = assertThrows(StatusRuntimeException.class, () -> patient.getPatient(byId));
+        assertEquals(Status.Code.NOT_FOUND, ex.getStatus().getCode());
+        assertFalse(listed(patient, pid));
+        assertFalse(listed(patient, pid));
+        assertEquals("Lagging", pinned.getPatient(byId).getName(), "x-read-your-writes reads the primary");
+        assertTrue(listed(pinned, pid));
+
+        // caches shared with write calls are filled from the primary, never from a lagging replica
+        var hid = hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Unreplicated General").build()).getId();
+        assertTrue(hospital.listHospitals(ListHospitalsRequest.getDefaultInstance())
+        .getHospitalsList().stream().anyMatch(h -> h.getId().equals(hid)));
+        assertTrue(hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(hid).build()).getRegistered());
+
+        // only the first replica caught up: round-robin alternates between a fresh and a stale read
+        replicate(REPLICAS.get(0));
+        assertNotEquals(listed(patient, pid), listed(patient, pid));
+
+        replicate(REPLICAS.get(1));
+        assertTrue(listed(patient, pid));
+        assertTrue(listed(patient, pid));
+        assertEquals("Lagging", patient.getPatient(byId).getName());
+    }
+}
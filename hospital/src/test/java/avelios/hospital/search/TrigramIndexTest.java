@@ -0,0 +1,108 @@
+package avelios.hospital.search;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrigramIndexTest {
+    
+    private static String name(UUID id, String name) {
+        return name;
+    }
+    
+    private static TrigramIndex index(String... names) {
+        var index = new TrigramIndex();
+        for (var n : names) {
+            index.put(UUID.randomUUID(), n);
+        }
+        return index;
+    }
+    
+    @Test
+    void search_ranksExactThenPrefixThenWordPrefixThenSubstring() {
+        var index = index("Maria Santos", "Anna Maria Lopez", "Mar", "Omar Khan", "Marianne Weiss", "Bob");
+        
+        assertEquals(List.of("Mar", "Maria Santos", "Marianne Weiss", "Anna Maria Lopez", "Omar Khan"),
+        index.search("mar", 10, TrigramIndexTest::name));
+        assertEquals(List.of("Mar", "Maria Santos"), index.search("MAR", 2, TrigramIndexTest::name));
+        assertEquals(List.of("Anna Maria Lopez"), index.search("ria  lo", 10, TrigramIndexTest::name));
+        assertTrue(index.search("xyz", 10, TrigramIndexTest::name).isEmpty());
+        assertTrue(index.search("ria ma", 10, TrigramIndexTest::name).isEmpty(), "every trigram matches, the string does not");
+    }
+    
+    @Test
+    void shortQueries_matchNameAndWordPrefixes() {
+        var index = index("Otto Klein", "Karl Otto", "Bob");
+        
+        assertEquals(List.of("Karl Otto"), index.search("k", 10, TrigramIndexTest::name));
+        assertEquals(List.of("Otto Klein"), index.search("kl", 10, TrigramIndexTest::name));
+        assertEquals(List.of("Otto Klein", "Karl Otto"), index.search("ot", 10, TrigramIndexTest::name));
+    }
+    
+    @Test
+    void search_ignoresCaseAndAccents() {
+        var index = index("José Müller");
+        
+        assertEquals(List.of("José Müller"), index.search("jose mu", 10, TrigramIndexTest::name));
+        assertEquals(List.of("José Müller"), index.search("MÜLL", 10, TrigramIndexTest::name));
+    }
+    
+    @Test
+    void putAndRemove_keepTheIndexCurrent_acrossCompaction() {
+        var index = new TrigramIndex();
+        var id = UUID.randomUUID();
+        index.put(id, "Carol");
+        index.put(id, "Caroline");
+        assertEquals(List.of("Caroline"), index.search("carol", 10, TrigramIndexTest::name));
+        index.put(id, "Dana");
+        assertTrue(index.search("carol", 10, TrigramIndexTest::name).isEmpty());
+        index.remove(id);
+        assertTrue(index.search("dana", 10, TrigramIndexTest::name).isEmpty());
+        assertEquals(0, index.size());
+        
+        // enough churn to trigger compaction; the survivors must still be found
+        var kept = UUID.randomUUID();
+        index.put(kept, "Survivor");
+        for (int i = 0; i < 5000; i++) {
+            var churn = UUID.randomUUID();
+            index.put(churn, "Temp " + i);
+            index.remove(churn);
+        }
+        assertEquals(List.of(kept), index.search("surv", 10, (i, n) -> i));
+        assertEquals(1, index.size());
+    }
+    
+    @Test
+    void search_overManyNames_findsWhatAScanFinds() {
+        String[] first = {"Anna", "Ben", "Clara", "David", "Elif", "Farid", "Greta", "Hugo", "Ines", "Jonas",
+            "Kira", "Luca", "Mia", "Noah", "Olga", "Paul", "Rosa", "Sven", "Tara", "Yusuf"};
+        var rnd = new SplittableRandom(11);
+        var index = new TrigramIndex();
+        var keys = new ArrayList<String>();
+        for (int i = 0; i < 20_000; i++) {
+            var n = first[rnd.nextInt(first.length)] + " " + Long.toString(rnd.nextLong(1L << 40), 36);
+            index.put(UUID.randomUUID(), n);
+            keys.add(TrigramIndex.normalize(n));
+        }
+        
+        // latency over millions of names is TrigramSearchBenchmark's job
+        for (var q : List.of("clara", "ben", "an", "k", "xq9", "rosa a", "4kz")) {
+            var nq = TrigramIndex.normalize(q);
+            long matching = keys.stream()
+            .filter(k -> switch (nq.length()) {
+                case 1 -> k.startsWith(nq);
+                case 2 -> k.startsWith(nq) || k.contains(" " + nq);
+                default -> k.contains(nq);
+            })
+            .count();
+            var hits = index.search(q, 20, TrigramIndexTest::name);
+            assertEquals(Math.min(20, matching), hits.size(), q);
+            hits.forEach(h -> assertTrue(TrigramIndex.normalize(h).contains(nq), h));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package avelios.hospital.shard;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardRingTest {
+    
+    private static final List<UUID> IDS = IntStream.range(0, 100_000)
+    .mapToObj(i -> new UUID(i * 0x9e3779b97f4a7c15L, ~i)).toList();
+    
+    @Test
+    void placement_isDeterministic_andBalanced() {
+        var ring = new ShardRing(List.of("c", "a", "b"), 128);
+        assertEquals(List.of("a", "b", "c"), ring.shards());
+        
+        var counts = new HashMap<String, Integer>();
+        IDS.forEach(id -> counts.merge(ring.owner(id), 1, Integer::sum));
+        counts.values().forEach(n -> assertEquals(IDS.size() / 3.0, n, IDS.size() * 0.05, "per shard " + counts));
+        
+        var same = new ShardRing(List.of("a", "b", "c"), 128);
+        IDS.forEach(id -> assertEquals(ring.owner(id), same.owner(id)));
+    }
+    
+    @Test
+    void addingAShard_movesOnlyItsShare_andOnlyToIt() {
+        var before = new ShardRing(List.of("a", "b", "c"), 128);
+        var after = before.with("d");
+        
+        int moved = 0;
+        for (var id : IDS) {
+            var was = before.owner(id);
+            var now = after.owner(id);
+            if (!was.equals(now)) {
+                assertEquals("d", now, "ids only ever move to the new shard");
+                moved++;
+            }
+        }
+        assertEquals(IDS.size() / 4.0, moved, IDS.size() * 0.05);
+    }
+}
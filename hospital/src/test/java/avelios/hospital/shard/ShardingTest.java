@@ -0,0 +1,171 @@
+package avelios.hospital.shard;
+
+import avelios.hospital.HospitalApplication;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.internal.testing.StreamRecorder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import avelios.hospital.grpc.*;
+
+/**
+ * Three shards (full contexts on their own in-memory databases) behind a router serving over
+ * the in-process transport; the router starts with two of them and the third is added.
+ */
+class ShardingTest {
+    
+    private static final List<String> SHARDS = List.of("shard-a", "shard-b", "shard-c");
+    
+    private static final Map<String, ConfigurableApplicationContext> contexts = new HashMap<>();
+    private static final Map<String, ManagedChannel> direct = new HashMap<>();
+    private static ShardRouter router;
+    private static Server server;
+    private static ManagedChannel channel;
+    private static HospitalServiceGrpc.HospitalServiceBlockingStub hospital;
+    private static PatientServiceGrpc.PatientServiceBlockingStub patient;
+    
+    @BeforeAll
+    static void start() throws Exception {
+        for (var name : SHARDS) {
+            contexts.put(name, new SpringApplicationBuilder(HospitalApplication.class).profiles("test").run(
+            "--grpc.server.in-process-name=" + name,
+            "--spring.datasource.url=jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1"));
+            direct.put(name, InProcessChannelBuilder.forName(name).build());
+        }
+        router = new ShardRouter(SHARDS.subList(0, 2), n -> InProcessChannelBuilder.forName(n).build(), 64);
+        server = InProcessServerBuilder.forName("router")
+        .addService(new HospitalRouter(router))
+        .addService(new PatientRouter(router))
+        .build().start();
+        channel = InProcessChannelBuilder.forName("router").build();
+        hospital = HospitalServiceGrpc.newBlockingStub(channel);
+        patient = PatientServiceGrpc.newBlockingStub(channel);
+    }
+    
+    @AfterAll
+    static void stop() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        router.close();
+        for (var ch : direct.values()) {
+            ch.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        contexts.values().forEach(ConfigurableApplicationContext::close);
+    }
+    
+    private static Set<String> hospitalsOn(String shard) {
+        return HospitalServiceGrpc.newBlockingStub(direct.get(shard))
+        .listHospitals(ListHospitalsRequest.getDefaultInstance())
+        .getHospitalsList().stream().map(HospitalTuple::getId).collect(Collectors.toSet());
+    }
+    
+    private static long visitsAt(String hospitalId) {
+        return hospital.getVisitStatistics(VisitStatisticsRequest.newBuilder()
+        .setHospitalId(hospitalId).setIncludeCurrentMonth(true).build()).getVisitsCount();
+    }
+    
+    @Test
+    void hospitalsArePartitioned_patientsReplicated_andAddingAShardMovesItsHospitals() {
+        var ids = new ArrayList<String>();
+        for (int i = 0; i < 30; i++) {
+            ids.add(hospital.createHospital(CreateHospitalRequest.newBuilder().setName("Sharded " + i).build()).getId());
+        }
+        for (var shard : SHARDS.subList(0, 2)) {
+            var owned = ids.stream().filter(id -> router.ring().owner(UUID.fromString(id)).equals(shard))
+            .collect(Collectors.toSet());
+            assertFalse(owned.isEmpty(), shard);
+            assertEquals(owned, hospitalsOn(shard), "each hospital lives on its owner only");
+        }
+        
+        var pid = patient.createPatient(CreatePatientRequest.newBuilder()
+        .setName("Roaming").setSex(Sex.OTHER)
+        .setDob(avelios.hospital.grpc.LocalDate.newBuilder().setYear(1990).setMonth(5).setDay(17))
+        .build()).getId();
+        for (var shard : SHARDS.subList(0, 2)) {
+            assertEquals("Roaming", PatientServiceGrpc.newBlockingStub(direct.get(shard))
+            .getPatient(PatientId.newBuilder().setId(pid).build()).getName());
+        }
+        
+        ids.forEach(h -> assertTrue(hospital.registerPatient(RegisterPatientRequest.newBuilder()
+        .setPatientId(pid).setHospitalId(h).build()).getRegistered()));
+        assertEquals(30, hospital.listHospitals(ListHospitalsRequest.getDefaultInstance()).getHospitalsCount());
+        assertEquals(30, patient.listHospitalsOfPatient(PatientId.newBuilder().setId(pid).build()).getHospitalsCount());
+        assertEquals(1, visitsAt(ids.get(0)));
+        
+        // a visit booked for next year at a hospital that will move: it has to move along
+        var booked = ids.stream().filter(h -> router.ring().with("shard-c").owner(UUID.fromString(h)).equals("shard-c"))
+        .findFirst().orElseThrow();
+        var nextYear = avelios.hospital.grpc.LocalDate.newBuilder()
+        .setYear(java.time.LocalDate.now().getYear() + 1).setMonth(3).setDay(1).build();
+        var replies = StreamRecorder.<BulkIngestReply>create();
+        var in = HospitalServiceGrpc.newStub(direct.get(router.ring().owner(UUID.fromString(booked))))
+        .bulkRegisterVisits(replies);
+        in.onNext(RegisterPatientRequest.newBuilder().setPatientId(pid).setHospitalId(booked).setVisitDate(nextYear).build());
+        in.onCompleted();
+        assertTrue(replies.awaitCompletion(5, TimeUnit.SECONDS));
+        
+        var before = new HashSet<>(ids);
+        var rebalance = router.addShard("shard-c");
+        
+        var onC = hospitalsOn("shard-c");
+        assertEquals(rebalance.hospitals(), onC.size());
+        assertFalse(onC.isEmpty(), "about a third of the hospitals move");
+        assertEquals(1, rebalance.patients());
+        assertEquals(onC.size() + 1, rebalance.visits());
+        assertEquals(0, rebalance.rejected());
+        onC.forEach(h -> assertEquals("shard-c", router.ring().owner(UUID.fromString(h))));
+        for (var shard : SHARDS.subList(0, 2)) {
+            assertTrue(hospitalsOn(shard).stream().noneMatch(onC::contains), "moved hospitals leave " + shard);
+        }
+        
+        assertEquals(before, hospital.listHospitals(ListHospitalsRequest.getDefaultInstance())
+        .getHospitalsList().stream().map(HospitalTuple::getId).collect(Collectors.toSet()));
+        assertEquals(30, patient.listHospitalsOfPatient(PatientId.newBuilder().setId(pid).build()).getHospitalsCount());
+        var unknown = UUID.randomUUID().toString();
+        var batch = hospital.batchGetHospitals(BatchGetHospitalsRequest.newBuilder()
+        .addAllIds(ids).addIds(unknown).build());
+        assertEquals(ids, batch.getResultsList().subList(0, 30).stream().map(r -> r.getHospital().getId()).toList(),
+        "merged across shards in request order");
+        assertEquals(unknown, batch.getResults(30).getNotFound());
+        var malformed = assertThrows(StatusRuntimeException.class, () -> hospital.batchGetHospitals(
+        BatchGetHospitalsRequest.newBuilder().addAllIds(ids).addIds("not-a-uuid").build()));
+        assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT, malformed.getStatus().getCode());
+        assertEquals("malformed id not-a-uuid", malformed.getStatus().getDescription(), "as a shard would answer");
+        
+        var future = new ArrayList<avelios.hospital.grpc.LocalDate>();
+        hospital.listVisits(ListVisitsRequest.newBuilder().setHospitalId(booked)
+        .setTo(avelios.hospital.grpc.LocalDate.newBuilder().setYear(9999).setMonth(12).setDay(31)).build())
+        .forEachRemaining(c -> c.getVisitsList().forEach(v -> future.add(v.getVisitDate())));
+        assertTrue(future.contains(nextYear), "future visits move with their hospital");
+        
+        var moved = onC.iterator().next();
+        hospital.registerPatient(RegisterPatientRequest.newBuilder().setPatientId(pid).setHospitalId(moved).build());
+        assertEquals(2, visitsAt(moved), "the copied visit and the new one");
+        
+        var ex = assertThrows(StatusRuntimeException.class, () -> patient.createPatient(CreatePatientRequest.newBuilder()
+        .setId(pid).setName("Again").setSex(Sex.OTHER)
+        .setDob(avelios.hospital.grpc.LocalDate.newBuilder().setYear(1990).setMonth(5).setDay(17))
+        .build()));
+        assertEquals(io.grpc.Status.Code.ALREADY_EXISTS, ex.getStatus().getCode());
+    }
+}
@@ -0,0 +1,109 @@
+package avelios.hospital.snapshot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VisitSnapshotTest {
+    
+    @TempDir
+    Path dir;
+    
+    @Test
+    void roundTrip_keepsOrdinalsDatesAndInternedNames() throws Exception {
+        var h1 = UUID.randomUUID();
+        var h2 = UUID.randomUUID();
+        var p1 = UUID.randomUUID();
+        var p2 = UUID.randomUUID();
+        var writer = new VisitSnapshot.Writer();
+        writer.visit(7, h1, p1, LocalDate.of(2020, 1, 31));
+        writer.visit(3, h2, p1, LocalDate.of(2024, 2, 29));
+        writer.visit(9, h1, p2, LocalDate.of(2015, 6, 1));
+        writer.hospitalName(h1, "General");
+        writer.hospitalName(h2, "Général");
+        writer.hospitalName(UUID.randomUUID(), "no visits, not written");
+        writer.patientName(p1, "Alice");
+        writer.patientName(p2, "General");
+        var file = dir.resolve("visits.snap");
+        writer.writeTo(file, 1234, 8);
+        
+        var snap = VisitSnapshot.open(file);
+        assertEquals(1234, snap.createdAt());
+        assertEquals(9, snap.maxVisitId());
+        assertEquals(8, snap.committedThrough());
+        assertEquals(3, snap.visitCount());
+        assertEquals(2, snap.hospitalCount());
+        assertEquals(2, snap.patientCount());
+        assertEquals(3, snap.nameCount(), "\"General\" is stored once for a hospital and a patient");
+        assertEquals(h1, snap.hospitalId(snap.visitHospital(0)));
+        assertEquals(h2, snap.hospitalId(snap.visitHospital(1)));
+        assertEquals(p1, snap.patientId(snap.visitPatient(1)));
+        assertEquals(LocalDate.of(2024, 2, 29), snap.visitDate(1));
+        assertEquals(LocalDate.of(2015, 6, 1), snap.visitDate(2));
+        assertEquals("Général", snap.hospitalName(snap.visitHospital(1)));
+        assertEquals("General", snap.patientName(snap.visitPatient(2)));
+        assertEquals(Files.size(file), snap.sizeBytes());
+        assertEquals(0, snap.sizeBytes() % 8);
+    }
+    
+    @Test
+    void datesSpanningMoreThan16Bits_fallBackToFullEpochDays() throws Exception {
+        var writer = new VisitSnapshot.Writer();
+        var h = UUID.randomUUID();
+        writer.visit(1, h, UUID.randomUUID(), LocalDate.of(1850, 1, 1));
+        writer.visit(2, h, UUID.randomUUID(), LocalDate.of(2100, 12, 31));
+        var file = dir.resolve("wide.snap");
+        writer.writeTo(file, 0, 2);
+        
+        var snap = VisitSnapshot.open(file);
+        assertEquals(LocalDate.of(1850, 1, 1), snap.visitDate(0));
+        assertEquals(LocalDate.of(2100, 12, 31), snap.visitDate(1));
+        assertEquals("", snap.patientName(0), "unnamed ids get an empty name");
+    }
+    
+    @Test
+    void rewrite_replacesTheFile_whileOldMappingsStayReadable() throws Exception {
+        var file = dir.resolve("visits.snap");
+        var first = new VisitSnapshot.Writer();
+        first.visit(1, UUID.randomUUID(), UUID.randomUUID(), LocalDate.of(2024, 1, 1));
+        first.writeTo(file, 1, 1);
+        var old = VisitSnapshot.open(file);
+        
+        var rnd = new SplittableRandom(3);
+        var hospitals = new UUID[50];
+        for (int i = 0; i < hospitals.length; i++) {
+            hospitals[i] = UUID.randomUUID();
+        }
+        var second = new VisitSnapshot.Writer();
+        var start = LocalDate.of(2016, 1, 1);
+        for (int i = 0; i < 100_000; i++) {
+            second.visit(i, hospitals[rnd.nextInt(hospitals.length)], new UUID(0, rnd.nextInt(10_000) + 1),
+            start.plusDays(rnd.nextInt(3650)));
+        }
+        second.writeTo(file, 2, 99_999);
+        
+        var fresh = VisitSnapshot.open(file);
+        assertEquals(100_000, fresh.visitCount());
+        assertEquals(50, fresh.hospitalCount());
+        assertTrue(fresh.patientCount() <= 10_000);
+        assertEquals(1, old.visitCount());
+        assertEquals(LocalDate.of(2024, 1, 1), old.visitDate(0));
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count(), "no temporary file left behind");
+        }
+    }
+    
+    @Test
+    void open_rejectsOtherFiles() throws Exception {
+        var file = dir.resolve("junk");
+        Files.write(file, new byte[256]);
+        assertThrows(java.io.IOException.class, () -> VisitSnapshot.open(file));
+    }
+}
@@ -0,0 +1,96 @@
+package avelios.hospital.stats;
+
+import avelios.hospital.entity.Hospital;
+import avelios.hospital.entity.Patient;
+import avelios.hospital.entity.PatientSketch;
+import avelios.hospital.entity.Visit;
+import avelios.hospital.repo.HospitalRepo;
+import avelios.hospital.repo.PatientRepo;
+import avelios.hospital.repo.PatientSketchRepo;
+import avelios.hospital.repo.VisitRepo;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Restarts of the store are simulated by building a second instance on the same database;
+ * visits are saved through the repository so that only the restart can pick them up.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+class DistinctPatientStoreTest {
+
+    private static final YearMonth JAN = YearMonth.of(2020, 1);
+    private static final YearMonth FEB = YearMonth.of(2020, 2);
+
+    @Autowired
+    private HospitalRepo hospitals;
+
+    @Autowired
+    private PatientRepo patients;
+
+    @Autowired
+    private VisitRepo visits;
+
+    @Autowired
+    private PatientSketchRepo sketches;
+
+    @Autowired
+    private TransactionTemplate tx;
+
+    private DistinctPatientStore restart() {
+        var store = new DistinctPatientStore(visits, sketches, tx, 0.02);
+        store.rebuild();
+        return store;
+    }
+
+    private Patient patient(String name) {
+        var p = new Patient();
+        p.setName(name);
+        p.setSex(Patient.Sex.FEMALE);
+        p.setDob(LocalDate.of(1980, 1, 1));
+        return patients.save(p);
+    }
+
+    @Test
+    void restart_loadsStoredSketches_andRereadsOnlyChangedMonths() {
+        var h = new Hospital();
+        h.setName("Sketched");
+        h = hospitals.save(h);
+        var p1 = patient("One");
+        var p2 = patient("Two");
+        visits.save(new Visit(h, p1, JAN.atDay(15)));
+        visits.save(new Visit(h, p2, JAN.atDay(16)));
+        visits.save(new Visit(h, p1, FEB.atDay(10)));
+
+        var first = restart();
+        assertEquals(2, first.distinctPatients(h.getId(), JAN, JAN).distinctPatients());
+        first.flush();
+        var janKey = new PatientSketch.Key(h.getId(), VisitStatsStore.monthIndex(JAN));
+        assertEquals(2L, sketches.findById(janKey).orElseThrow().getVisits());
+
+        // a stored sketch whose visit count still matches is used as it is: make it recognizable
+        var marked = new HyperLogLog(HyperLogLog.precisionFor(0.02));
+        for (int i = 0; i < 1000; i++) {
+            marked.add(HyperLogLog.hash(UUID.randomUUID()));
+        }
+        sketches.save(new PatientSketch(janKey, marked.toBytes(), 2));
+        // February changes behind the store's back, so its count no longer matches
+        visits.save(new Visit(h, p2, FEB.atDay(11)));
+
+        var second = restart();
+        assertTrue(second.distinctPatients(h.getId(), JAN, JAN).distinctPatients() > 900,
+        "January comes from the stored sketch, not from the visits");
+        assertEquals(2, second.distinctPatients(h.getId(), FEB, FEB).distinctPatients(),
+        "February is read back from the visits");
+    }
+}
@@ -0,0 +1,100 @@
+package avelios.hospital.stats;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.HashSet;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HyperLogLogTest {
+    
+    private static UUID uuid(SplittableRandom rnd) {
+        return new UUID(rnd.nextLong(), rnd.nextLong());
+    }
+    
+    @Test
+    void precisionFor_meetsTheRequestedError() {
+        assertEquals(12, HyperLogLog.precisionFor(0.02));
+        assertEquals(14, HyperLogLog.precisionFor(0.01));
+        assertTrue(new HyperLogLog(HyperLogLog.precisionFor(0.02)).relativeError() <= 0.02);
+        assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(17));
+    }
+    
+    private static void assertEstimatesWithinThreeStandardErrors(int... sizes) {
+        var rnd = new SplittableRandom(3);
+        for (int n : sizes) {
+            var sketch = new HyperLogLog(12);
+            var exact = new HashSet<UUID>();
+            for (int i = 0; i < n; i++) {
+                var id = uuid(rnd);
+                exact.add(id);
+                sketch.add(id);
+                // repeat visits must not count twice
+                if (i % 3 == 0) {
+                    sketch.add(id);
+                }
+            }
+            double error = Math.abs(sketch.estimate() - exact.size()) / (double) exact.size();
+            assertTrue(error <= 3 * sketch.relativeError() || Math.abs(sketch.estimate() - exact.size()) <= 1,
+            "n=" + n + " estimate=" + sketch.estimate());
+        }
+    }
+    
+    // past the sparse encoding and the small-range correction of p=12 (2.5 * 4096 registers)
+    @Test
+    void estimate_staysWithinThreeStandardErrorsOfTheExactCount() {
+        assertEstimatesWithinThreeStandardErrors(1, 10, 100, 1_000, 10_000, 30_000);
+    }
+    
+    @Test
+    @EnabledIfSystemProperty(named = "loadTests", matches = "true")
+    void estimate_staysWithinThreeStandardErrors_upToAMillionPatients() {
+        assertEstimatesWithinThreeStandardErrors(100_000, 1_000_000);
+    }
+    
+    @Test
+    void merge_equalsTheSketchOfTheUnion() {
+        var rnd = new SplittableRandom(5);
+        var a = new HyperLogLog(12);
+        var b = new HyperLogLog(12);
+        var union = new HyperLogLog(12);
+        for (int i = 0; i < 50_000; i++) {
+            var id = uuid(rnd);
+            (i % 2 == 0 ? a : b).add(id);
+            union.add(id);
+            // overlap: a third of b's patients also visited in a's month
+            if (i % 6 == 1) {
+                a.add(id);
+            }
+        }
+        var merged = a.copy();
+        merged.merge(b);
+        assertEquals(union.estimate(), merged.estimate());
+        assertThrows(IllegalArgumentException.class, () -> a.merge(new HyperLogLog(10)));
+    }
+    
+    @Test
+    void toBytes_roundTrips_andStaysSmallWhileSparse() {
+        var rnd = new SplittableRandom(9);
+        var sketch = new HyperLogLog(12);
+        for (int i = 0; i < 20; i++) {
+            sketch.add(uuid(rnd));
+        }
+        var small = sketch.toBytes();
+        assertTrue(small.length < 100, "sparse sketch of 20 patients is " + small.length + " bytes");
+        assertEquals(sketch.estimate(), HyperLogLog.fromBytes(small).estimate());
+        
+        for (int i = 0; i < 10_000; i++) {
+            sketch.add(uuid(rnd));
+        }
+        var dense = sketch.toBytes();
+        assertEquals(2 + 4096, dense.length);
+        var restored = HyperLogLog.fromBytes(dense);
+        assertEquals(sketch.estimate(), restored.estimate());
+        restored.merge(HyperLogLog.fromBytes(small));
+        assertEquals(sketch.estimate(), restored.estimate(), "merging a subset changes nothing");
+    }
+}
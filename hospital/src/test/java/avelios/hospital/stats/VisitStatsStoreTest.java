@@ -0,0 +1,89 @@
+package avelios.hospital.stats;
+
+import avelios.hospital.entity.Hospital;
+import avelios.hospital.entity.Patient;
+import avelios.hospital.entity.Visit;
+import avelios.hospital.repo.HospitalRepo;
+import avelios.hospital.repo.PatientRepo;
+import avelios.hospital.repo.VisitBucketRepo;
+import avelios.hospital.repo.VisitRepo;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Restarts of the store are simulated by building a second instance on the same database;
+ * visits are saved and deleted through the repository so that only the restart can see it.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+class VisitStatsStoreTest {
+
+    private static final YearMonth MONTH = YearMonth.now().minusMonths(3);
+
+    @Autowired
+    private HospitalRepo hospitals;
+
+    @Autowired
+    private PatientRepo patients;
+
+    @Autowired
+    private VisitRepo visits;
+
+    @Autowired
+    private VisitBucketRepo buckets;
+
+    @Autowired
+    private TransactionTemplate tx;
+
+    private VisitStatsStore restart() {
+        var store = new VisitStatsStore(visits, buckets, tx);
+        store.rebuild();
+        return store;
+    }
+
+    private Patient patient(String name, LocalDate dob) {
+        var p = new Patient();
+        p.setName(name);
+        p.setSex(Patient.Sex.MALE);
+        p.setDob(dob);
+        return patients.save(p);
+    }
+
+    private static long ageDays(Patient p, LocalDate visitDate) {
+        return ChronoUnit.DAYS.between(p.getDob(), visitDate);
+    }
+
+    @Test
+    void restart_rereadsMonth_whoseCountMatchesButWhoseVisitsChanged() {
+        var h = new Hospital();
+        h.setName("Bucketed");
+        h = hospitals.save(h);
+        var young = patient("Young", LocalDate.of(2000, 1, 1));
+        var old = patient("Old", LocalDate.of(1940, 1, 1));
+        var purged = visits.save(new Visit(h, young, MONTH.atDay(10)));
+        visits.save(new Visit(h, young, MONTH.atDay(11)));
+
+        var first = restart();
+        assertEquals(2, first.window(h.getId(), LocalDate.now(), false).get(0).visitsCount());
+        first.flush();
+
+        // one visit purged and one registered before the next flush: the month's count is unchanged
+        visits.deleteById(purged.getId());
+        visits.save(new Visit(h, old, MONTH.atDay(12)));
+
+        var bucket = restart().window(h.getId(), LocalDate.now(), false).get(0);
+        assertEquals(2, bucket.visitsCount());
+        assertEquals(ageDays(young, MONTH.atDay(11)) + ageDays(old, MONTH.atDay(12)), bucket.ageDaysSum(),
+        "the newer visit id marks the month stale, so it is read back from the visits");
+    }
+}
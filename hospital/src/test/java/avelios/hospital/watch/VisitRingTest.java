@@ -0,0 +1,93 @@
+package avelios.hospital.watch;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VisitRingTest {
+    
+    @Test
+    void capacity_isRoundedUpToAPowerOfTwo() {
+        assertEquals(8, new VisitRing(5).capacity());
+        assertEquals(8, new VisitRing(8).capacity());
+        assertEquals(2, new VisitRing(1).capacity());
+        assertEquals(65536, new VisitRing(65536).capacity());
+    }
+    
+    @Test
+    void read_returnsPublishedEvents_andNotYetAfterTheHead() {
+        var ring = new VisitRing(4);
+        var h = UUID.randomUUID();
+        var p = UUID.randomUUID();
+        var e = new VisitRing.Event();
+        assertEquals(-1, ring.cursor());
+        assertEquals(VisitRing.NOT_YET, ring.read(0, e));
+        
+        assertEquals(0, ring.publish(VisitRing.Kind.VISIT_REGISTERED, h, p, 42, LocalDate.of(2024, 2, 29)));
+        assertEquals(1, ring.publish(VisitRing.Kind.PATIENT_DELETED, null, p, 0, null));
+        
+        assertEquals(VisitRing.OK, ring.read(0, e));
+        assertEquals(VisitRing.Kind.VISIT_REGISTERED, e.kind);
+        assertEquals(h, new UUID(e.hospitalMsb, e.hospitalLsb));
+        assertEquals(p, new UUID(e.patientMsb, e.patientLsb));
+        assertEquals(42, e.visitId);
+        assertEquals(LocalDate.of(2024, 2, 29), e.visitDate());
+        
+        assertEquals(VisitRing.OK, ring.read(1, e));
+        assertEquals(1, e.sequence);
+        assertFalse(e.hasHospital());
+        assertTrue(e.hasPatient());
+        assertNull(e.visitDate());
+        assertEquals(VisitRing.NOT_YET, ring.read(2, e));
+    }
+    
+    @Test
+    void read_reportsLapped_onceTheSlotWasReused() {
+        var ring = new VisitRing(4);
+        for (int i = 0; i < 6; i++) {
+            ring.publish(VisitRing.Kind.HOSPITAL_DELETED, UUID.randomUUID(), null, 0, null);
+        }
+        var e = new VisitRing.Event();
+        assertEquals(VisitRing.LAPPED, ring.read(0, e));
+        assertEquals(VisitRing.LAPPED, ring.read(1, e));
+        for (long seq = 2; seq < 6; seq++) {
+            assertEquals(VisitRing.OK, ring.read(seq, e));
+            assertEquals(seq, e.sequence);
+        }
+    }
+    
+    @Test
+    void concurrentReader_neverSeesATornEvent() throws Exception {
+        var ring = new VisitRing(16);
+        int events = 200_000;
+        var torn = new AtomicLong();
+        // every event carries its sequence in all of its fields, so a mix of two events shows
+        var reader = Thread.ofPlatform().start(() -> {
+            var e = new VisitRing.Event();
+            long next = 0;
+            while (next < events) {
+                int r = ring.read(next, e);
+                if (r == VisitRing.NOT_YET) {
+                    Thread.onSpinWait();
+                } else if (r == VisitRing.LAPPED) {
+                    next = Math.max(next + 1, ring.cursor() - 8);
+                } else {
+                    if (e.visitId != next || e.hospitalMsb != next || e.patientLsb != next) {
+                        torn.incrementAndGet();
+                    }
+                    next++;
+                }
+            }
+        });
+        for (long i = 0; i < events; i++) {
+            ring.publish(VisitRing.Kind.VISIT_REGISTERED, new UUID(i, i), new UUID(i, i), i, null);
+        }
+        reader.join(10_000);
+        assertFalse(reader.isAlive());
+        assertEquals(0, torn.get());
+    }
+}